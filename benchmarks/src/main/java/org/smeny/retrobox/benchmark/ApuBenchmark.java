@@ -0,0 +1,84 @@
+/**
+ * ApuBenchmark
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.smeny.retrobox.exception.UnknownRomFormatException;
+import org.smeny.retrobox.motherboard.nes.FrameScheduler;
+import org.smeny.retrobox.motherboard.nes.audio.Apu_2A03;
+import org.smeny.retrobox.motherboard.nes.memory.mapper.MapperFactory;
+
+/**
+ * Measures the APU playing a frame with all its channels: two pulses and the triangle around 440
+ * Hz, the noise at a high rate and a looping DMC sample read from the program ROM of nestest. One
+ * operation is one frame, its samples included.
+ *
+ * @author Stéphane Meny
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ApuBenchmark {
+  private static final int SAMPLE_RATE = 44100;
+  /** Register values of each channel, from its first register. */
+  private static final int[][] CHANNEL_REGISTERS = {
+      {0xBF, 0x00, 0xFD, 0x08},
+      {0x5A, 0x00, 0x7C, 0x09},
+      {0xFF, 0x00, 0xFD, 0x08},
+      {0x38, 0x00, 0x04, 0x08},
+      {0x4F, 0x40, 0x00, 0xFF}};
+  private static final int REGISTERS_OFFSET = 0x4000;
+  private static final int REGISTERS_PER_CHANNEL = 4;
+  private static final int STATUS = 0x4015;
+  private static final int ALL_CHANNELS = 0x1F;
+
+  private Apu_2A03 apu;
+  private long frame;
+
+  @Setup
+  public void setUp() throws IOException, UnknownRomFormatException {
+    apu = new Apu_2A03(MapperFactory.createMapper(Roms.load(Roms.readNestest())), SAMPLE_RATE);
+    apu.writeRegister(STATUS, ALL_CHANNELS);
+    for (int channel = 0; channel < CHANNEL_REGISTERS.length; channel++) {
+      for (int register = 0; register < REGISTERS_PER_CHANNEL; register++) {
+        apu.writeRegister(REGISTERS_OFFSET + channel * REGISTERS_PER_CHANNEL + register,
+            CHANNEL_REGISTERS[channel][register]);
+      }
+    }
+    apu.writeRegister(STATUS, ALL_CHANNELS);
+  }
+
+  @Benchmark
+  public int playFrame() {
+    frame++;
+    return apu.endFrame(FrameScheduler.getFrameEndCycle(0, frame));
+  }
+}
@@ -0,0 +1,90 @@
+/**
+ * CartridgeBenchmark
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.smeny.retrobox.exception.UnknownRomFormatException;
+import org.smeny.retrobox.motherboard.nes.cartridge.Cartridge;
+import org.smeny.retrobox.motherboard.nes.cartridge.CartridgeReader;
+
+/**
+ * Measures the loading of the nestest cartridge from each source, then the creation of the banks
+ * used by the memory controllers.
+ *
+ * @author Stéphane Meny
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CartridgeBenchmark {
+  private byte[] image;
+  private File romFile;
+
+  @Setup
+  public void setUp() throws IOException {
+    image = Roms.readNestest();
+    romFile = File.createTempFile("nestest", ".nes");
+    Files.write(romFile.toPath(), image);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.delete(romFile.toPath());
+  }
+
+  @Benchmark
+  public Cartridge loadFromBuffer() throws UnknownRomFormatException {
+    return CartridgeReader.loadCartridge(ByteBuffer.wrap(image));
+  }
+
+  @Benchmark
+  public Cartridge loadFromStream() throws IOException, UnknownRomFormatException {
+    return CartridgeReader.loadCartridge(new ByteArrayInputStream(image));
+  }
+
+  @Benchmark
+  public Cartridge loadFromFile() throws IOException, UnknownRomFormatException {
+    return CartridgeReader.loadCartridge(romFile);
+  }
+
+  /**
+   * Loads the cartridge and gets its banks, shared with the cartridges of the same content.
+   */
+  @Benchmark
+  public byte[][] loadProgramRom() throws UnknownRomFormatException {
+    return CartridgeReader.loadCartridge(ByteBuffer.wrap(image)).getProgramRom();
+  }
+}
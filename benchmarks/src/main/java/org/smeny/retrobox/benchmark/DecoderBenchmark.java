@@ -0,0 +1,69 @@
+/**
+ * DecoderBenchmark
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.smeny.retrobox.motherboard.nes.processor.Decoder;
+
+/**
+ * Measures the decoding of operation codes, and the creation of the decoder which parses the
+ * operation code table for every CPU.
+ *
+ * @author Stéphane Meny
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderBenchmark {
+  private static final int OPCODE_COUNT = 0x100;
+
+  private final Decoder decoder = new Decoder();
+
+  /**
+   * Decodes every operation code, one operation being one operation code.
+   */
+  @Benchmark
+  @OperationsPerInvocation(OPCODE_COUNT)
+  public void getOpcode(final Blackhole blackhole) {
+    for (int i = 0; i < OPCODE_COUNT; i++) {
+      blackhole.consume(decoder.getOpcode(i));
+    }
+  }
+
+  /**
+   * Creates a decoder from the operation code table.
+   */
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public Decoder createDecoder() {
+    return new Decoder();
+  }
+}
@@ -0,0 +1,105 @@
+/**
+ * FlagsRegisterBenchmark
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.smeny.retrobox.motherboard.nes.register.flags.FlagsRegister_2A03;
+
+/**
+ * Measures the flag updates done by almost every instruction. The values cover every byte in a
+ * shuffled order so that every flag combination is met, and the register is read after each
+ * update so that no update can be skipped.
+ *
+ * @author Stéphane Meny
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlagsRegisterBenchmark {
+  private static final int VALUE_COUNT = 0x100;
+  private static final int BYTE_MASK = 0xFF;
+
+  /** Odd step visiting every byte value in a shuffled order. */
+  private static final int VALUE_STEP = 0x95;
+
+  private final FlagsRegister_2A03 flags = new FlagsRegister_2A03();
+  private final int[] values = new int[VALUE_COUNT];
+  private int operand = 0x5A;
+
+  @Setup
+  public void setUp() {
+    for (int i = 0; i < VALUE_COUNT; i++) {
+      values[i] = (i * VALUE_STEP) & BYTE_MASK;
+    }
+  }
+
+  /**
+   * Sets the zero and negative flags, like loads and logical instructions.
+   */
+  @Benchmark
+  @OperationsPerInvocation(VALUE_COUNT)
+  public int setZeroAndNegativeFlags() {
+    int result = 0;
+    for (final int value : values) {
+      flags.setZeroAndNegativeFlags(value);
+      result += flags.toByte();
+    }
+    return result;
+  }
+
+  /**
+   * Sets the carry, zero and negative flags, like additions and comparisons.
+   */
+  @Benchmark
+  @OperationsPerInvocation(VALUE_COUNT)
+  public int setArithmeticFlags() {
+    int result = 0;
+    for (final int value : values) {
+      final int sum = value + operand;
+      flags.setCarryFlag(sum);
+      flags.setZeroAndNegativeFlags(sum & BYTE_MASK);
+      result += flags.toByte();
+    }
+    return result;
+  }
+
+  /**
+   * Packs then unpacks the register, like interrupts and PHP / PLP.
+   */
+  @Benchmark
+  @OperationsPerInvocation(VALUE_COUNT)
+  public int toAndFromByte() {
+    for (final int value : values) {
+      flags.fromByte(value ^ flags.toByte());
+    }
+    return flags.toByte();
+  }
+}
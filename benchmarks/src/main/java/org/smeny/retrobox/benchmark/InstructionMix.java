@@ -0,0 +1,102 @@
+/**
+ * InstructionMix
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.benchmark;
+
+/**
+ * Programs looping on a representative group of instructions, assembled to run from 0xC000. They
+ * only access the zero page, the stack and work RAM.
+ *
+ * @author Stéphane Meny
+ */
+public enum InstructionMix {
+  /** Loads and stores over the main addressing modes. */
+  LOAD_STORE(
+      0xA0, 0x10,        // LDY #$10
+      0xA2, 0x20,        // LDX #$20
+      0xA9, 0x12,        // LDA #$12
+      0x85, 0x10,        // STA $10
+      0xA6, 0x10,        // LDX $10
+      0x8E, 0x00, 0x02,  // STX $0200
+      0xAC, 0x00, 0x02,  // LDY $0200
+      0x99, 0x00, 0x03,  // STA $0300,Y
+      0xBD, 0x00, 0x03,  // LDA $0300,X
+      0xB1, 0x10,        // LDA ($10),Y
+      0x4C, 0x00, 0xC0), // JMP $C000
+
+  /** Additions, subtractions, logical operations, comparisons and increments. */
+  ARITHMETIC(
+      0x18,              // CLC
+      0xA9, 0x01,        // LDA #$01
+      0x69, 0x03,        // ADC #$03
+      0x65, 0x10,        // ADC $10
+      0x38,              // SEC
+      0xE9, 0x02,        // SBC #$02
+      0x29, 0x7F,        // AND #$7F
+      0x09, 0x01,        // ORA #$01
+      0x49, 0xFF,        // EOR #$FF
+      0xC9, 0x40,        // CMP #$40
+      0xE6, 0x11,        // INC $11
+      0xC8,              // INY
+      0xCA,              // DEX
+      0x4C, 0x00, 0xC0), // JMP $C000
+
+  /** A counted loop and a subroutine call, mostly taken branches. */
+  BRANCH(
+      0xA2, 0x08,        // C000 LDX #$08
+      0xCA,              // C002 DEX
+      0xD0, 0xFD,        // C003 BNE $C002
+      0x20, 0x0B, 0xC0,  // C005 JSR $C00B
+      0x4C, 0x00, 0xC0,  // C008 JMP $C000
+      0x60),             // C00B RTS
+
+  /** Shifts and rotations of the accumulator and of memory. */
+  SHIFT(
+      0x0A,              // ASL A
+      0x2A,              // ROL A
+      0x4A,              // LSR A
+      0x6A,              // ROR A
+      0x06, 0x10,        // ASL $10
+      0x26, 0x10,        // ROL $10
+      0x46, 0x10,        // LSR $10
+      0x66, 0x10,        // ROR $10
+      0x24, 0x10,        // BIT $10
+      0x4C, 0x00, 0xC0), // JMP $C000
+
+  /** A delay loop, then a loop polling a flag which is never set, like a wait for vblank. */
+  WAIT(
+      0xA2, 0x40,        // C000 LDX #$40
+      0xCA,              // C002 DEX
+      0xD0, 0xFD,        // C003 BNE $C002
+      0xA5, 0x10,        // C005 LDA $10
+      0xF0, 0xFC,        // C007 BEQ $C005
+      0x4C, 0x00, 0xC0); // C009 JMP $C000
+
+  private final byte[] program;
+
+  InstructionMix(final int... program) {
+    this.program = new byte[program.length];
+    for (int i = 0; i < program.length; i++) {
+      this.program[i] = (byte) program[i];
+    }
+  }
+
+  /**
+   * Returns the machine code of the program.
+   */
+  public byte[] getProgram() {
+    return program.clone();
+  }
+}
@@ -0,0 +1,78 @@
+/**
+ * InstructionMixBenchmark
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.smeny.retrobox.exception.UnknownRomFormatException;
+import org.smeny.retrobox.motherboard.nes.processor.Core_2A03;
+import org.smeny.retrobox.motherboard.nes.processor.ExecutionMode;
+
+/**
+ * Measures the CPU executing each {@link InstructionMix} in each execution mode, with and without
+ * the skipping of idle loops. One
+ * operation is one emulated cycle, so the throughput in operations per microsecond is the
+ * emulated clock in MHz, the NES running at 1.79 MHz.
+ *
+ * @author Stéphane Meny
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstructionMixBenchmark {
+  /** Cycles executed per invocation, about one NTSC frame. */
+  private static final int CYCLE_BUDGET = 29781;
+  private static final int NROM = 0;
+
+  @Param
+  private InstructionMix mix;
+
+  @Param
+  private ExecutionMode mode;
+
+  @Param({"false", "true"})
+  private boolean idleLoopSkipping;
+
+  private Core_2A03 cpu;
+
+  @Setup
+  public void setUp() throws UnknownRomFormatException {
+    cpu = new Core_2A03(Roms.load(Roms.createImage(NROM, 1, mix.getProgram())));
+    cpu.setExecutionMode(mode);
+    cpu.setIdleLoopSkipping(idleLoopSkipping);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(CYCLE_BUDGET)
+  public long run() {
+    return cpu.run(CYCLE_BUDGET);
+  }
+}
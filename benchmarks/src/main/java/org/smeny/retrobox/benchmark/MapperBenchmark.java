@@ -0,0 +1,95 @@
+/**
+ * MapperBenchmark
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.smeny.retrobox.exception.UnknownRomFormatException;
+import org.smeny.retrobox.motherboard.nes.memory.PagedMemoryController;
+import org.smeny.retrobox.motherboard.nes.memory.mapper.MapperFactory;
+
+/**
+ * Measures a program bank switch followed by a read in the switched bank, for a mapper switching
+ * with one register write (UxROM) and one with five serial writes (MMC1).
+ *
+ * @author Stéphane Meny
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapperBenchmark {
+  private static final int MMC1 = 1;
+  private static final int UXROM = 2;
+  private static final int BANK_COUNT = 8;
+  private static final int BANK_MASK = BANK_COUNT - 1;
+  private static final int SWITCH_COUNT = 0x100;
+  private static final int MMC1_SHIFT_WRITES = 5;
+  /** Address of the MMC1 program bank register. */
+  private static final int MMC1_PROGRAM_REGISTER = 0xE000;
+  private static final int UXROM_REGISTER = 0x8000;
+  /** Address of the bank number in the switchable window at 0x8000. */
+  private static final int BANK_NUMBER_ADDRESS = 0x8000 + Roms.BANK_NUMBER_OFFSET;
+
+  private PagedMemoryController uxrom;
+  private PagedMemoryController mmc1;
+
+  @Setup
+  public void setUp() throws UnknownRomFormatException {
+    final byte[] program = new byte[0];
+    uxrom = MapperFactory.createMapper(Roms.load(Roms.createImage(UXROM, BANK_COUNT, program)));
+    mmc1 = MapperFactory.createMapper(Roms.load(Roms.createImage(MMC1, BANK_COUNT, program)));
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SWITCH_COUNT)
+  public int switchUxrom() {
+    int sum = 0;
+    for (int i = 0; i < SWITCH_COUNT; i++) {
+      uxrom.write8(UXROM_REGISTER, i & BANK_MASK);
+      sum += uxrom.read8(BANK_NUMBER_ADDRESS);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SWITCH_COUNT)
+  public int switchMmc1() {
+    int sum = 0;
+    for (int i = 0; i < SWITCH_COUNT; i++) {
+      final int bank = i & BANK_MASK;
+      // The register is loaded one bit per write, low bit first
+      for (int bit = 0; bit < MMC1_SHIFT_WRITES; bit++) {
+        mmc1.write8(MMC1_PROGRAM_REGISTER, bank >> bit);
+      }
+      sum += mmc1.read8(BANK_NUMBER_ADDRESS);
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,117 @@
+/**
+ * MemoryBenchmark
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.smeny.retrobox.exception.ReadOutOfMemoryException;
+import org.smeny.retrobox.exception.UnknownRomFormatException;
+import org.smeny.retrobox.exception.WriteOutOfMemoryException;
+import org.smeny.retrobox.motherboard.nes.cartridge.Cartridge;
+import org.smeny.retrobox.motherboard.nes.memory.BasicMemoryController;
+import org.smeny.retrobox.motherboard.nes.memory.PagedMemoryController;
+import org.smeny.retrobox.motherboard.nes.memory.mapper.MapperFactory;
+
+/**
+ * Compares the accesses of the flat memory controller with the paged controller used by the CPU,
+ * on the nestest cartridge. Reads are spread over work RAM and program ROM like instruction
+ * fetches and data loads, writes go to work RAM.
+ *
+ * @author Stéphane Meny
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryBenchmark {
+  private static final int ACCESS_COUNT = 0x400;
+  private static final int WORK_RAM_SIZE = 0x800;
+  private static final int PROGRAM_ROM_START = 0x8000;
+  private static final int PROGRAM_ROM_SIZE = 0x8000;
+  /** Odd step spreading the addresses over the whole area. */
+  private static final int ADDRESS_STEP = 0x2F1;
+
+  private BasicMemoryController basicMemory;
+  private PagedMemoryController pagedMemory;
+  private final int[] readAddresses = new int[ACCESS_COUNT];
+  private final int[] writeAddresses = new int[ACCESS_COUNT];
+
+  /**
+   * Loads nestest and computes the accessed addresses, half in work RAM and half in program ROM.
+   */
+  @Setup
+  public void setUp() throws IOException, UnknownRomFormatException {
+    final Cartridge cart = Roms.load(Roms.readNestest());
+    basicMemory = new BasicMemoryController(cart);
+    pagedMemory = MapperFactory.createMapper(cart);
+    for (int i = 0; i < ACCESS_COUNT; i++) {
+      final int step = i * ADDRESS_STEP;
+      readAddresses[i] = (i & 1) == 0 ? step % WORK_RAM_SIZE
+          : PROGRAM_ROM_START + step % PROGRAM_ROM_SIZE;
+      writeAddresses[i] = step % WORK_RAM_SIZE;
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ACCESS_COUNT)
+  public int basicReadMemory() throws ReadOutOfMemoryException {
+    int sum = 0;
+    for (final int address : readAddresses) {
+      sum += basicMemory.readMemory(address);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ACCESS_COUNT)
+  public void basicWriteMemory() throws WriteOutOfMemoryException {
+    for (int i = 0; i < ACCESS_COUNT; i++) {
+      basicMemory.writeMemory(writeAddresses[i], i);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ACCESS_COUNT)
+  public int pagedRead8() {
+    int sum = 0;
+    for (final int address : readAddresses) {
+      sum += pagedMemory.read8(address);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ACCESS_COUNT)
+  public void pagedWrite8() {
+    for (int i = 0; i < ACCESS_COUNT; i++) {
+      pagedMemory.write8(writeAddresses[i], i);
+    }
+  }
+}
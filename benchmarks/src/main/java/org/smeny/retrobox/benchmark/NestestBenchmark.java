@@ -0,0 +1,69 @@
+/**
+ * NestestBenchmark
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.smeny.retrobox.exception.UnknownRomFormatException;
+import org.smeny.retrobox.motherboard.nes.cartridge.Cartridge;
+import org.smeny.retrobox.motherboard.nes.processor.Core_2A03;
+
+/**
+ * Measures the instructions executed per second on nestest, from power up to its first
+ * unofficial operation code. A new CPU is created before each invocation, out of the measure.
+ *
+ * @author Stéphane Meny
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NestestBenchmark {
+  private Cartridge cart;
+  private Core_2A03 cpu;
+
+  @Setup(Level.Trial)
+  public void loadCartridge() throws IOException, UnknownRomFormatException {
+    cart = Roms.load(Roms.readNestest());
+  }
+
+  @Setup(Level.Invocation)
+  public void powerUp() throws UnknownRomFormatException {
+    cpu = new Core_2A03(cart);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Roms.NESTEST_INSTRUCTION_COUNT)
+  public long emulate() {
+    cpu.emulate(Roms.NESTEST_INSTRUCTION_COUNT);
+    return cpu.getCycleCount();
+  }
+}
@@ -0,0 +1,109 @@
+/**
+ * PpuBenchmark
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.smeny.retrobox.exception.UnknownRomFormatException;
+import org.smeny.retrobox.motherboard.nes.FrameScheduler;
+import org.smeny.retrobox.motherboard.nes.memory.PagedMemoryController;
+import org.smeny.retrobox.motherboard.nes.memory.mapper.MapperFactory;
+import org.smeny.retrobox.motherboard.nes.video.Ppu_2C02;
+
+/**
+ * Measures the PPU drawing whole frames from the character ROM of nestest, with the name tables
+ * filled with all its tiles, a horizontal scroll and the 64 sprites spread over the screen. One
+ * operation is one frame, so the throughput is the number of frames drawn per second.
+ *
+ * @author Stéphane Meny
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PpuBenchmark {
+  private static final int CONTROL = 0x2000;
+  private static final int MASK = 0x2001;
+  private static final int OAM_DATA = 0x2004;
+  private static final int SCROLL = 0x2005;
+  private static final int ADDRESS = 0x2006;
+  private static final int DATA = 0x2007;
+  /** Address of the name tables, followed by the palette once mirrored. */
+  private static final int NAME_TABLE_ADDRESS = 0x2000;
+  private static final int NAME_TABLES_SIZE = 0x1000;
+  private static final int PALETTE_ADDRESS = 0x3F00;
+  private static final int PALETTE_SIZE = 32;
+  /** Sprites of 8x8 pixels, background and sprites drawn everywhere. */
+  private static final int MASK_VALUE = 0x1E;
+  private static final int SPRITE_COUNT = 64;
+  private static final int SPRITE_SPACING = 28;
+  private static final int HORIZONTAL_SCROLL = 13;
+  private static final int BYTE_SHIFT = 8;
+  private static final int BYTE_MASK = 0xFF;
+
+  private Ppu_2C02 ppu;
+  private long frame;
+
+  @Setup
+  public void setUp() throws IOException, UnknownRomFormatException {
+    final PagedMemoryController memory = MapperFactory.createMapper(
+        Roms.load(Roms.readNestest()));
+    ppu = new Ppu_2C02(memory);
+    setAddress(NAME_TABLE_ADDRESS);
+    for (int i = 0; i < NAME_TABLES_SIZE; i++) {
+      ppu.writeRegister(DATA, i);
+    }
+    setAddress(PALETTE_ADDRESS);
+    for (int i = 0; i < PALETTE_SIZE; i++) {
+      ppu.writeRegister(DATA, i * 2 + 1);
+    }
+    for (int i = 0; i < SPRITE_COUNT; i++) {
+      ppu.writeRegister(OAM_DATA, i * SPRITE_SPACING);
+      ppu.writeRegister(OAM_DATA, i);
+      ppu.writeRegister(OAM_DATA, i);
+      ppu.writeRegister(OAM_DATA, i * SPRITE_SPACING / 2);
+    }
+    ppu.writeRegister(CONTROL, 0);
+    ppu.writeRegister(SCROLL, HORIZONTAL_SCROLL);
+    ppu.writeRegister(SCROLL, 0);
+    ppu.writeRegister(MASK, MASK_VALUE);
+  }
+
+  private void setAddress(final int address) {
+    ppu.writeRegister(ADDRESS, address >> BYTE_SHIFT);
+    ppu.writeRegister(ADDRESS, address & BYTE_MASK);
+  }
+
+  @Benchmark
+  public int drawFrame() {
+    frame++;
+    ppu.runTo(FrameScheduler.getFrameEndCycle(0, frame));
+    return ppu.getFrame().get((int) frame & BYTE_MASK);
+  }
+}
@@ -0,0 +1,119 @@
+/**
+ * Roms
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.smeny.retrobox.exception.UnknownRomFormatException;
+import org.smeny.retrobox.motherboard.nes.cartridge.Cartridge;
+import org.smeny.retrobox.motherboard.nes.cartridge.CartridgeReader;
+
+/**
+ * This class provides the ROMs run by the benchmarks: the nestest ROM shipped with the emulator and
+ * synthetic iNES images built in memory.
+ *
+ * @author Stéphane Meny
+ */
+final class Roms {
+  /** Number of instructions of nestest executed before its first unofficial operation code. */
+  static final int NESTEST_INSTRUCTION_COUNT = 5003;
+  /** Offset in each program bank of the number of the bank. */
+  static final int BANK_NUMBER_OFFSET = 0x2000;
+
+  private static final String NESTEST_RESOURCE = "/roms/cpu_test.nes";
+  private static final int HEADER_SIZE = 0x10;
+  private static final byte[] VALIDATION_HEADER = {'N', 'E', 'S', 0x1A};
+  private static final int MAPPER_LOW_SHIFT = 4;
+  private static final int MAPPER_LOW_MASK = 0x0F;
+  private static final int MAPPER_HIGH_MASK = 0xF0;
+  private static final int BYTE_MASK = 0xFF;
+  private static final int BYTE_SHIFT = 8;
+  /** Address where the CPU starts after power up. */
+  private static final int START_ADDRESS = 0xC000;
+  /** Offset of the reset vector from the start of the last program bank. */
+  private static final int RESET_VECTOR_OFFSET = 0x3FFC;
+  private static final int BUFFER_SIZE = 0x2000;
+
+  /**
+   * Private default constructor to prevent instantiation.
+   */
+  private Roms() {
+  }
+
+  /**
+   * Reads the nestest ROM from the classpath.
+   *
+   * @return The content of the ROM file.
+   * @throws IOException If the ROM cannot be read.
+   */
+  static byte[] readNestest() throws IOException {
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    try (InputStream input = Roms.class.getResourceAsStream(NESTEST_RESOURCE)) {
+      final byte[] buffer = new byte[BUFFER_SIZE];
+      int length;
+      while ((length = input.read(buffer)) != -1) {
+        data.write(buffer, 0, length);
+      }
+    }
+    return data.toByteArray();
+  }
+
+  /**
+   * Builds an iNES image with one character ROM bank. The program is copied at the start of the
+   * last program bank, mapped at 0xC000 where the CPU starts, and the reset vector points to it.
+   *
+   * @param mapperNumber The mapper of the cartridge.
+   * @param programBankCount The number of 16KB program ROM banks.
+   * @param program The code executed from 0xC000.
+   * @return The content of the ROM file.
+   */
+  static byte[] createImage(final int mapperNumber, final int programBankCount,
+      final byte[] program) {
+    final int programRomSize = programBankCount * CartridgeReader.PROGRAM_BANK_SIZE;
+    final byte[] image = new byte[HEADER_SIZE + programRomSize
+        + CartridgeReader.CHARACTER_BANK_SIZE];
+    System.arraycopy(VALIDATION_HEADER, 0, image, 0, VALIDATION_HEADER.length);
+    image[4] = (byte) programBankCount;
+    image[5] = 1;
+    image[6] = (byte) ((mapperNumber & MAPPER_LOW_MASK) << MAPPER_LOW_SHIFT);
+    image[7] = (byte) (mapperNumber & MAPPER_HIGH_MASK);
+
+    // Each bank holds its number, so a read tells which bank is mapped
+    for (int bank = 0; bank < programBankCount; bank++) {
+      image[HEADER_SIZE + bank * CartridgeReader.PROGRAM_BANK_SIZE + BANK_NUMBER_OFFSET] =
+          (byte) bank;
+    }
+    final int lastBank = HEADER_SIZE + programRomSize - CartridgeReader.PROGRAM_BANK_SIZE;
+    System.arraycopy(program, 0, image, lastBank, program.length);
+    image[lastBank + RESET_VECTOR_OFFSET] = (byte) (START_ADDRESS & BYTE_MASK);
+    image[lastBank + RESET_VECTOR_OFFSET + 1] = (byte) (START_ADDRESS >> BYTE_SHIFT);
+    return image;
+  }
+
+  /**
+   * Loads a ROM image.
+   *
+   * @param image The content of the ROM file.
+   * @return The cartridge.
+   * @throws UnknownRomFormatException If the image is not valid.
+   */
+  static Cartridge load(final byte[] image) throws UnknownRomFormatException {
+    return CartridgeReader.loadCartridge(ByteBuffer.wrap(image));
+  }
+}
@@ -0,0 +1,72 @@
+/**
+ * SaveStateBenchmark
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.smeny.retrobox.exception.InvalidStateException;
+import org.smeny.retrobox.exception.UnknownRomFormatException;
+import org.smeny.retrobox.motherboard.nes.processor.Core_2A03;
+
+/**
+ * Measures a snapshot of the CPU and its memory followed by its restoration, on nestest halfway
+ * through its official operation codes.
+ *
+ * @author Stéphane Meny
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SaveStateBenchmark {
+  @Param({"false", "true"})
+  private boolean isCompressed;
+
+  private Core_2A03 cpu;
+  private ByteBuffer buffer;
+
+  @Setup
+  public void setUp() throws IOException, UnknownRomFormatException {
+    cpu = new Core_2A03(Roms.load(Roms.readNestest()));
+    cpu.emulate(Roms.NESTEST_INSTRUCTION_COUNT / 2);
+    buffer = ByteBuffer.allocate(cpu.getMaximumStateSize());
+  }
+
+  @Benchmark
+  public int saveAndRestore() throws InvalidStateException {
+    buffer.clear();
+    cpu.saveState(buffer, isCompressed);
+    final int size = buffer.position();
+    buffer.flip();
+    cpu.loadState(buffer);
+    return size;
+  }
+}
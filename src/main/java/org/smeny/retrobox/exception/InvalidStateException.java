@@ -0,0 +1,28 @@
+/**
+ * InvalidStateException
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.exception;
+
+/**
+ * Thrown when a save state cannot be restored: unknown format or version, truncated data, or a
+ * state saved from another cartridge.
+ */
+public final class InvalidStateException extends Exception {
+
+  public InvalidStateException(final String message) {
+    super(message);
+  }
+
+}
@@ -22,4 +22,8 @@ public final class UnknownRomFormatException extends Exception {
 	public UnknownRomFormatException() {
 		super("The loaded rom format is not supported");
 	}
+
+	public UnknownRomFormatException(final String message) {
+		super(message);
+	}
 }
@@ -0,0 +1,247 @@
+/**
+ * FrameScheduler
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.smeny.retrobox.exception.InvalidStateException;
+import org.smeny.retrobox.motherboard.nes.processor.Core_2A03;
+import org.smeny.retrobox.motherboard.nes.state.RewindBuffer;
+
+/**
+ * This class drives the CPU frame by frame. Each frame runs the cycles of an NTSC frame, then
+ * waits until the frame is due so that the machine runs at 60.0988 frames per second. The thread
+ * is parked while waiting, no core is kept busy.
+ *
+ * <p>Frame deadlines are computed from the first frame rather than from the previous one, so the
+ * rounding and the oversleeping of each wait do not accumulate. If the host falls behind by more
+ * than a few frames, the schedule restarts from the current time instead of running the late
+ * frames in a burst.
+ *
+ * <p>In turbo mode frames are run back to back, as fast as the host allows. The mode can be
+ * changed from another thread while the scheduler runs.
+ *
+ * <p>When a {@link RewindBuffer} is set, a snapshot is taken after each frame, and rewinds
+ * requested from any thread are done between two frames.
+ *
+ * <p>The frame of the devices running along the CPU, like the PPU and the APU, is completed after
+ * each frame of the CPU.
+ *
+ * @author Stéphane Meny
+ */
+public final class FrameScheduler implements Runnable {
+  /** CPU cycles of two NTSC frames, a frame lasting 29780.5 cycles. */
+  private static final long CYCLES_PER_TWO_FRAMES = 59561;
+  /** NTSC frame rate. */
+  private static final double FRAMES_PER_SECOND = 60.0988;
+  /** Duration of a frame. */
+  private static final double FRAME_NANOS = 1e9 / FRAMES_PER_SECOND;
+  /** Number of late frames after which the schedule restarts from the current time. */
+  private static final int MAX_LATE_FRAMES = 3;
+
+  /** Our default logger for this class. */
+  private static final Logger LOGGER = Logger.getLogger(FrameScheduler.class.getName());
+
+  private final Core_2A03 cpu;
+  private volatile boolean isTurbo;
+  private volatile boolean isRunning;
+  /** Set when leaving turbo mode, the frames run meanwhile being ahead of the schedule. */
+  private volatile boolean isScheduleResetRequested;
+  /** Number of frames run since the scheduler was created. */
+  private long frameCount;
+  /** CPU cycle count when the scheduler was created, the first frame starting there. */
+  private final long firstCycle;
+  /** Time when the frame numbered scheduleFirstFrame was due. */
+  private long scheduleStartNanos;
+  /** First frame of the current schedule. */
+  private long scheduleFirstFrame;
+  /** Snapshots taken after each frame, null if rewind is disabled. */
+  private RewindBuffer rewindBuffer;
+  /** Number of frames to go back before the next frame, 0 if no rewind is requested. */
+  private final AtomicInteger requestedRewindFrames = new AtomicInteger();
+
+  /**
+   * Creates a scheduler driving a CPU, starting at its current cycle.
+   *
+   * @param cpu The CPU to drive.
+   */
+  public FrameScheduler(final Core_2A03 cpu) {
+    this.cpu = cpu;
+    this.firstCycle = cpu.getCycleCount();
+  }
+
+  /**
+   * Runs frames until {@link #stop()} is called or the CPU stops.
+   */
+  @Override
+  public void run() {
+    runFrames(Long.MAX_VALUE);
+  }
+
+  /**
+   * Runs a number of frames, unless {@link #stop()} is called or the CPU stops before.
+   *
+   * @param frames The number of frames to run.
+   * @return The number of frames actually run.
+   */
+  public long runFrames(final long frames) {
+    isRunning = true;
+    resetSchedule();
+    long framesRun = 0;
+    while (isRunning && framesRun < frames) {
+      if (!runFrame()) {
+        break;
+      }
+      framesRun++;
+      if (rewindBuffer != null && !updateRewind()) {
+        break;
+      }
+      if (isScheduleResetRequested) {
+        isScheduleResetRequested = false;
+        resetSchedule();
+      } else if (!isTurbo) {
+        waitForNextFrame();
+      }
+    }
+    isRunning = false;
+    return framesRun;
+  }
+
+  /**
+   * Runs the cycles of the next frame. Frames alternate between 29780 and 29781 cycles, and the
+   * cycles the CPU ran over the previous frame are deducted.
+   *
+   * @return false if the CPU is stopped.
+   */
+  private boolean runFrame() {
+    frameCount++;
+    final long budget = getFrameEndCycle(firstCycle, frameCount) - cpu.getCycleCount();
+    final boolean isRunning = budget <= 0 || cpu.run(budget) > 0;
+    cpu.completeFrame();
+    return isRunning;
+  }
+
+  /**
+   * Returns the cycle where a frame ends, frames alternating between 29780 and 29781 cycles.
+   *
+   * @param firstCycle The cycle where the first frame starts.
+   * @param frame The number of the frame, from 1.
+   * @return The cycle count once the frame is run.
+   */
+  public static long getFrameEndCycle(final long firstCycle, final long frame) {
+    return firstCycle + frame * CYCLES_PER_TWO_FRAMES / 2;
+  }
+
+  /**
+   * Takes the snapshot of the frame just run, or goes back in time if requested.
+   *
+   * @return false if the rewind failed, which stops the CPU.
+   */
+  private boolean updateRewind() {
+    final int frames = requestedRewindFrames.getAndSet(0);
+    if (frames == 0) {
+      rewindBuffer.capture(frameCount);
+      return true;
+    }
+    try {
+      // The frame just run has no snapshot, the last one is the end of the previous frame
+      frameCount = rewindBuffer.rewind(frames - 1);
+      isScheduleResetRequested = true;
+      return true;
+    } catch (InvalidStateException e) {
+      LOGGER.log(Level.SEVERE, "Rewind failed", e);
+      cpu.stop();
+      return false;
+    }
+  }
+
+  private void waitForNextFrame() {
+    final long deadline = scheduleStartNanos
+        + (long) ((frameCount - scheduleFirstFrame) * FRAME_NANOS);
+    long remaining = deadline - System.nanoTime();
+    if (remaining < -MAX_LATE_FRAMES * FRAME_NANOS) {
+      // Too late to catch up, the next frames are scheduled from now
+      resetSchedule();
+      return;
+    }
+    // Parking may return early, the deadline is checked again
+    while (remaining > 0 && isRunning && !isTurbo) {
+      LockSupport.parkNanos(this, remaining);
+      remaining = deadline - System.nanoTime();
+    }
+  }
+
+  private void resetSchedule() {
+    scheduleStartNanos = System.nanoTime();
+    scheduleFirstFrame = frameCount;
+  }
+
+  /**
+   * Stops the scheduler after the current frame.
+   */
+  public void stop() {
+    isRunning = false;
+  }
+
+  public boolean isTurbo() {
+    return isTurbo;
+  }
+
+  /**
+   * Switches between paced and turbo mode. Leaving turbo mode restarts the schedule from the
+   * current time.
+   *
+   * @param isTurbo true to run frames as fast as possible.
+   */
+  public void setTurbo(final boolean isTurbo) {
+    if (this.isTurbo && !isTurbo) {
+      isScheduleResetRequested = true;
+    }
+    this.isTurbo = isTurbo;
+  }
+
+  /**
+   * Sets the buffer receiving a snapshot after each frame. It must be set before the scheduler
+   * runs.
+   *
+   * @param rewindBuffer The rewind buffer of the CPU, null to disable rewind.
+   */
+  public void setRewindBuffer(final RewindBuffer rewindBuffer) {
+    this.rewindBuffer = rewindBuffer;
+  }
+
+  /**
+   * Requests to go back in time before the next frame, limited to the oldest snapshot kept. It is
+   * ignored if no rewind buffer is set.
+   *
+   * @param frames The number of frames to go back.
+   */
+  public void rewind(final int frames) {
+    requestedRewindFrames.addAndGet(Math.max(frames, 0));
+  }
+
+  /**
+   * Returns the number of the last frame run since the scheduler was created, going back on
+   * rewind.
+   */
+  public long getFrameCount() {
+    return frameCount;
+  }
+
+}
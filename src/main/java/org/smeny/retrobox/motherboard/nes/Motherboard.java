@@ -15,17 +15,34 @@
  */
 package org.smeny.retrobox.motherboard.nes;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.logging.Level;
+import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
-import org.smeny.retrobox.exception.ReadOutOfMemoryException;
+import org.smeny.retrobox.exception.InvalidStateException;
 import org.smeny.retrobox.exception.UnknownRomFormatException;
-import org.smeny.retrobox.exception.WriteOutOfMemoryException;
+import org.smeny.retrobox.motherboard.nes.audio.Apu_2A03;
 import org.smeny.retrobox.motherboard.nes.cartridge.Cartridge;
 import org.smeny.retrobox.motherboard.nes.cartridge.CartridgeReader;
+import org.smeny.retrobox.motherboard.nes.movie.Movie;
+import org.smeny.retrobox.motherboard.nes.movie.MoviePlayer;
+import org.smeny.retrobox.motherboard.nes.movie.MovieRecorder;
 import org.smeny.retrobox.motherboard.nes.processor.Core_2A03;
+import org.smeny.retrobox.motherboard.nes.processor.Decoder;
+import org.smeny.retrobox.motherboard.nes.processor.ExecutionMode;
+import org.smeny.retrobox.motherboard.nes.state.RewindBuffer;
+import org.smeny.retrobox.motherboard.nes.trace.TraceBuffer;
+import org.smeny.retrobox.motherboard.nes.trace.TraceFormatter;
+import org.smeny.retrobox.motherboard.nes.trace.TraceWriter;
+import org.smeny.retrobox.motherboard.nes.video.Ppu_2C02;
 
 /**
  * This class represents the Nintendo Entertainment System motherboard. All components will be
@@ -35,9 +52,51 @@ public final class Motherboard {
   /** Our default logger for this class. */
   private static final Logger LOGGER = Logger.getLogger(Motherboard.class.getName());
   /**
-   * Represents the maximum number of clock cycle the CPU will perform before stopping.
+   * Represents the number of frames the machine will run before stopping.
    */
-  private static final long CLOCK_CYCLE = 50;
+  private static final long FRAME_COUNT = 60;
+  /**
+   * Argument running the machine as fast as possible instead of at the NTSC frame rate.
+   */
+  private static final String TURBO_ARGUMENT = "--turbo";
+  /**
+   * Argument compiling the blocks of instructions often executed into JVM classes.
+   */
+  private static final String RECOMPILE_ARGUMENT = "--recompile";
+  /**
+   * Argument skipping the iterations of the loops waiting for something to change.
+   */
+  private static final String SKIP_IDLE_LOOPS_ARGUMENT = "--skip-idle-loops";
+  /**
+   * Argument prefix tracing the executed instructions into the file following it.
+   */
+  private static final String TRACE_ARGUMENT = "--trace=";
+  /**
+   * Number of instructions the trace buffer can hold before the oldest ones are lost.
+   */
+  private static final int TRACE_CAPACITY = 1 << 16;
+  /**
+   * Argument keeping snapshots of the last frames to rewind.
+   */
+  private static final String REWIND_ARGUMENT = "--rewind";
+  /** Memory given to the rewind snapshots of the machine. */
+  private static final int REWIND_BUDGET = 1 << 20;
+  /** Number of rewind snapshots, ten seconds of frames. */
+  private static final int REWIND_SNAPSHOTS = 600;
+  /** Number of frames between two full snapshots, the others holding the pages written. */
+  private static final int REWIND_KEYFRAME_INTERVAL = 60;
+  /**
+   * Argument prefix recording the frames run into the movie file following it.
+   */
+  private static final String RECORD_ARGUMENT = "--record=";
+  /**
+   * Argument prefix replaying the movie file following it, as fast as possible.
+   */
+  private static final String PLAY_ARGUMENT = "--play=";
+  /** Number of frames between two keyframes of the recorded movies. */
+  private static final int MOVIE_KEYFRAME_INTERVAL = 300;
+  /** Sample rate of the sound, in Hz. */
+  private static final int SAMPLE_RATE = 44100;
 
   /** Default private constructor. */
   private Motherboard() {
@@ -50,15 +109,107 @@ public final class Motherboard {
    */
   public static void main(final String[] args) {
     final InputStream inputStream = Motherboard.class.getResourceAsStream("/roms/cpu_test.nes");
-    System.setProperty("java.util.logging.config.file", "logging.properties");
+    try (InputStream logConfiguration = Motherboard.class.getResourceAsStream(
+        "/logging.properties")) {
+      LogManager.getLogManager().readConfiguration(logConfiguration);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Logging configuration not loaded", e);
+    }
     try {
       final Cartridge cart = CartridgeReader.loadCartridge(inputStream);
       final Core_2A03 cpu = new Core_2A03(cart);
-      cpu.emulate(CLOCK_CYCLE);
+      if (Arrays.asList(args).contains(RECOMPILE_ARGUMENT)) {
+        cpu.setExecutionMode(ExecutionMode.RECOMPILED);
+      }
+      cpu.setIdleLoopSkipping(Arrays.asList(args).contains(SKIP_IDLE_LOOPS_ARGUMENT));
+      // The devices are part of the states, they are created before anything saves one
+      new Ppu_2C02(cpu);
+      new Apu_2A03(cpu, SAMPLE_RATE);
+      if (runMovie(cpu, cart, args)) {
+        return;
+      }
+      final FrameScheduler scheduler = new FrameScheduler(cpu);
+      scheduler.setTurbo(Arrays.asList(args).contains(TURBO_ARGUMENT));
+      RewindBuffer rewindBuffer = null;
+      if (Arrays.asList(args).contains(REWIND_ARGUMENT)) {
+        rewindBuffer = new RewindBuffer(cpu, REWIND_BUDGET, REWIND_SNAPSHOTS,
+            REWIND_KEYFRAME_INTERVAL);
+        scheduler.setRewindBuffer(rewindBuffer);
+      }
+      final TraceWriter traceWriter = createTraceWriter(cpu, args);
+      try {
+        scheduler.runFrames(FRAME_COUNT);
+        if (rewindBuffer != null) {
+          LOGGER.info(String.format("%d rewind snapshots in %d bytes",
+              rewindBuffer.getSnapshotCount(), rewindBuffer.getUsedSize()));
+        }
+      } finally {
+        if (traceWriter != null) {
+          traceWriter.close();
+        }
+      }
     } catch (UnknownRomFormatException | IOException e) {
       LOGGER.log(Level.SEVERE, "Exception reading cartridge", e);
-    } catch (ReadOutOfMemoryException | WriteOutOfMemoryException e) {
-      LOGGER.log(Level.SEVERE, "Exception during cpu execution", e);
+    } catch (InvalidStateException e) {
+      LOGGER.log(Level.SEVERE, "Exception reading movie", e);
+    }
+  }
+
+  /**
+   * Records or plays a movie if the record or play argument is given. No controller is read yet,
+   * so the movies recorded have no button pressed. The PPU and the APU run along the CPU, their
+   * states being part of the keyframes.
+   *
+   * @return true if a movie was recorded or played.
+   */
+  private static boolean runMovie(final Core_2A03 cpu, final Cartridge cart, final String[] args)
+      throws IOException, InvalidStateException {
+    for (final String arg : args) {
+      if (arg.startsWith(RECORD_ARGUMENT)) {
+        final MovieRecorder recorder = new MovieRecorder(cpu, cart, MOVIE_KEYFRAME_INTERVAL);
+        long frameCount = 0;
+        while (frameCount < FRAME_COUNT && recorder.runFrame(0, 0)) {
+          frameCount++;
+        }
+        recorder.getMovie().write(Paths.get(arg.substring(RECORD_ARGUMENT.length())));
+        LOGGER.info(String.format("%d frames recorded", recorder.getMovie().getFrameCount()));
+        return true;
+      }
+      if (arg.startsWith(PLAY_ARGUMENT)) {
+        final Movie movie = Movie.read(Paths.get(arg.substring(PLAY_ARGUMENT.length())));
+        final MoviePlayer player = new MoviePlayer(cpu, cart, movie);
+        long frameCount = 0;
+        while (player.runFrame()) {
+          frameCount++;
+        }
+        LOGGER.info(String.format("%d frames played, first desynchronized frame %d", frameCount,
+            player.getFirstDesyncFrame()));
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Starts tracing the CPU if the trace argument is given.
+   *
+   * @return The started trace writer, null if the CPU is not traced.
+   */
+  private static TraceWriter createTraceWriter(final Core_2A03 cpu, final String[] args)
+      throws IOException {
+    for (final String arg : args) {
+      if (arg.startsWith(TRACE_ARGUMENT)) {
+        final Writer output = new OutputStreamWriter(
+            new FileOutputStream(arg.substring(TRACE_ARGUMENT.length())),
+            StandardCharsets.US_ASCII);
+        final TraceBuffer trace = new TraceBuffer(TRACE_CAPACITY);
+        final TraceWriter traceWriter = new TraceWriter(trace,
+            new TraceFormatter(new Decoder()), output);
+        traceWriter.start();
+        cpu.setTrace(trace);
+        return traceWriter;
+      }
     }
+    return null;
   }
 }
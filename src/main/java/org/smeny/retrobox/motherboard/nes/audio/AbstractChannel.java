@@ -0,0 +1,190 @@
+/**
+ * AbstractChannel
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class is the base of the sound channels of the APU. A channel is clocked by its timer, whose
+ * next clock is an absolute CPU cycle, and by the frame counter. The timer of a channel whose
+ * output cannot change is parked: it is not clocked until a register write or a frame counter clock
+ * makes the channel audible again.
+ *
+ * <p>The length counter, shared by all the channels but the DMC, silences the channel when it
+ * reaches 0.
+ *
+ * <p>The state of a channel starts with the timer and the length counter, the channels writing
+ * their own units after them.
+ *
+ * @author Stéphane Meny
+ */
+abstract class AbstractChannel {
+  /** Next clock of the timers that are not clocked. */
+  static final long PARKED = Long.MAX_VALUE;
+
+  /** Values loaded into the length counter, indexed by the high five bits of the last register. */
+  private static final int[] LENGTHS = {
+      10, 254, 20, 2, 40, 4, 80, 6, 160, 8, 60, 10, 14, 12, 26, 14,
+      12, 16, 24, 18, 48, 20, 96, 22, 192, 24, 72, 26, 16, 28, 32, 30};
+  private static final int LENGTH_INDEX_SHIFT = 3;
+  /** Size of the state of the timer and of the length counter. */
+  private static final int STATE_SIZE = 10;
+  private static final int ENABLED_FLAG = 0x01;
+  private static final int LENGTH_HALTED_FLAG = 0x02;
+  private static final int BYTE_MASK = 0xFF;
+
+  /** CPU cycle of the next timer clock, PARKED if the timer is not clocked. */
+  private long nextClock = PARKED;
+  private int lengthCounter;
+  private boolean isEnabled;
+  private boolean isLengthHalted;
+
+  /**
+   * Returns the CPU cycle of the next timer clock, {@link #PARKED} if the timer is not clocked.
+   */
+  final long getNextClock() {
+    return nextClock;
+  }
+
+  /**
+   * Runs the timer clock due at {@link #getNextClock()}, then schedules the next one unless the
+   * output of the channel can no longer change.
+   */
+  final void clock() {
+    clockTimer();
+    nextClock = isActive() ? nextClock + getTimerPeriod() : PARKED;
+  }
+
+  /**
+   * Schedules the timer of a parked channel again if its output can change.
+   *
+   * @param cycle The current CPU cycle.
+   */
+  final void wake(final long cycle) {
+    if (nextClock == PARKED && isActive()) {
+      nextClock = cycle + getTimerPeriod();
+    }
+  }
+
+  /**
+   * Moves the channel one step forward, at the end of a timer period.
+   */
+  protected abstract void clockTimer();
+
+  /**
+   * Returns the number of CPU cycles between two timer clocks.
+   */
+  protected abstract int getTimerPeriod();
+
+  /**
+   * Indicates if clocking the timer can change the output of the channel.
+   */
+  protected abstract boolean isActive();
+
+  /**
+   * Returns the output level of the channel, from 0 to 15, or to 127 for the DMC.
+   */
+  abstract int getOutput();
+
+  /**
+   * Writes a register of the channel.
+   *
+   * @param register The number of the register, from 0 to 3.
+   * @param data The value written.
+   */
+  abstract void writeRegister(int register, int data);
+
+  /**
+   * Clocks the envelope or the linear counter, four times a frame.
+   */
+  void clockQuarterFrame() {
+  }
+
+  /**
+   * Clocks the length counter and the sweep, twice a frame.
+   */
+  void clockHalfFrame() {
+    if (lengthCounter > 0 && !isLengthHalted) {
+      lengthCounter--;
+    }
+  }
+
+  /**
+   * Enables or disables the channel, a disabled channel having its length counter cleared.
+   *
+   * @param isEnabled true to enable the channel.
+   */
+  void setEnabled(final boolean isEnabled) {
+    this.isEnabled = isEnabled;
+    if (!isEnabled) {
+      lengthCounter = 0;
+    }
+  }
+
+  /**
+   * Indicates if the channel plays, its length counter not being 0.
+   */
+  boolean isPlaying() {
+    return lengthCounter > 0;
+  }
+
+  /**
+   * Loads the length counter, if the channel is enabled.
+   *
+   * @param data The value written in the last register of the channel.
+   */
+  protected final void loadLength(final int data) {
+    if (isEnabled) {
+      lengthCounter = LENGTHS[data >>> LENGTH_INDEX_SHIFT];
+    }
+  }
+
+  protected final void setLengthHalted(final boolean isLengthHalted) {
+    this.isLengthHalted = isLengthHalted;
+  }
+
+  /**
+   * Returns the size of the state of the channel.
+   */
+  int getStateSize() {
+    return STATE_SIZE;
+  }
+
+  /**
+   * Writes the state of the channel.
+   *
+   * @param buffer The buffer receiving the state.
+   */
+  void saveState(final ByteBuffer buffer) {
+    buffer.putLong(nextClock);
+    buffer.put((byte) lengthCounter);
+    buffer.put((byte) ((isEnabled ? ENABLED_FLAG : 0) | (isLengthHalted ? LENGTH_HALTED_FLAG : 0)));
+  }
+
+  /**
+   * Restores a state written by {@link #saveState(ByteBuffer)}.
+   *
+   * @param buffer The buffer holding the state.
+   */
+  void loadState(final ByteBuffer buffer) {
+    nextClock = buffer.getLong();
+    lengthCounter = buffer.get() & BYTE_MASK;
+    final int flags = buffer.get();
+    isEnabled = (flags & ENABLED_FLAG) != 0;
+    isLengthHalted = (flags & LENGTH_HALTED_FLAG) != 0;
+  }
+
+}
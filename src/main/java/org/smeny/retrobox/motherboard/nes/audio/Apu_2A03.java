@@ -0,0 +1,528 @@
+/**
+ * Apu_2A03
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.audio;
+
+import java.nio.ByteBuffer;
+
+import org.smeny.retrobox.exception.InvalidStateException;
+import org.smeny.retrobox.motherboard.nes.event.EventScheduler;
+import org.smeny.retrobox.motherboard.nes.memory.MemoryMappedDevice;
+import org.smeny.retrobox.motherboard.nes.memory.PagedMemoryController;
+import org.smeny.retrobox.motherboard.nes.processor.Core_2A03;
+import org.smeny.retrobox.motherboard.nes.state.StatefulDevice;
+
+/**
+ * This class emulates the Audio Processing Unit of the 2A03: two pulse channels, a triangle
+ * channel, a noise channel and a delta modulation channel, clocked by a frame counter.
+ *
+ * <p>The APU is not stepped along with the CPU. {@link #runTo(long)} visits in time order only
+ * the timer clocks of the channels and the steps of the frame counter, the timers of the silent
+ * channels being parked. When the output changes, the mixed amplitude is recorded with its CPU
+ * cycle, and {@link #endFrame(long)} synthesizes the band-limited samples of the whole frame at
+ * once. The channels are mixed through the non-linear tables of the NES mixer.
+ *
+ * <p>The register writes and reads take effect at the cycle the APU was run to. The frame counter
+ * restarts at once when written, without the delay of three or four cycles of the hardware.
+ *
+ * <p>When connected to a CPU, the APU maps its registers from 0x4000 to 0x4017, but the OAM DMA
+ * and the first controller port, and catches up with the CPU before each access. It also
+ * registers a deadline in its scheduler at the next frame
+ * interrupt step or DMC sample read, whichever comes first. It catches up with the CPU there, so
+ * that the sample bytes are read and the interrupts raised on time.
+ *
+ * <p>The state of a connected APU is saved with the state of the CPU: the channels and the frame
+ * counter. The synthesis is not saved: after a restore between two frames, the samples go on from
+ * the restored cycle with the restored channels.
+ *
+ * @author Stéphane Meny
+ */
+public final class Apu_2A03 implements MemoryMappedDevice, StatefulDevice {
+  /** Clock rate of the NTSC CPU in Hz. */
+  public static final double CLOCK_RATE = 21477272.0 / 12;
+  /** Longest frame, a tenth of a second, whose samples are all kept. */
+  public static final long MAX_FRAME_CYCLES = (long) (CLOCK_RATE / 10);
+
+  private static final int REGISTERS_OFFSET = 0x4000;
+  /** Register of the PPU among the APU registers, starting its OAM DMA. */
+  private static final int OAM_DMA = 0x4014;
+  /** Port of the first controller, among the APU registers. */
+  private static final int FIRST_CONTROLLER_PORT = 0x4016;
+  private static final int BYTE_MASK = 0xFF;
+  private static final int CHANNEL_REGISTER_MASK = 0x03;
+  private static final int CHANNEL_SHIFT = 2;
+  private static final int STATUS = 0x4015;
+  private static final int FRAME_COUNTER = 0x4017;
+  private static final int DMC_STATUS_BIT = 4;
+  private static final int FRAME_IRQ_FLAG = 0x40;
+  private static final int DMC_IRQ_FLAG = 0x80;
+  private static final int FIVE_STEP_FLAG = 0x80;
+  private static final int IRQ_INHIBIT_FLAG = 0x40;
+  /** Flag of the state set while the frame interrupt is raised. */
+  private static final int FRAME_IRQ_RAISED_FLAG = 0x01;
+  /** Size of the state before the channels: cycle, flags, sequence start and step. */
+  private static final int STATE_FIELDS_SIZE = 18;
+
+  /** Frame counter step clocking the envelopes and the linear counter. */
+  private static final int QUARTER = 1;
+  /** Frame counter step clocking the length counters and the sweeps. */
+  private static final int HALF = 2;
+  /** Frame counter step raising the frame interrupt. */
+  private static final int IRQ = 4;
+  /** Cycles of the steps of the four step sequence, from its start. */
+  private static final int[] FOUR_STEP_CYCLES = {7457, 14913, 22371, 29829};
+  private static final int[] FOUR_STEP_CLOCKS = {QUARTER, QUARTER | HALF, QUARTER,
+      QUARTER | HALF | IRQ};
+  private static final int FOUR_STEP_PERIOD = 29830;
+  private static final int[] FIVE_STEP_CYCLES = {7457, 14913, 22371, 29829, 37281};
+  private static final int[] FIVE_STEP_CLOCKS = {QUARTER, QUARTER | HALF, QUARTER, 0,
+      QUARTER | HALF};
+  private static final int FIVE_STEP_PERIOD = 37282;
+
+  /** Scale of the mixer tables, the highest mixed amplitude being about 1. */
+  private static final double AMPLITUDE = 30000;
+  private static final int PULSE_LEVELS = 31;
+  private static final int TND_LEVELS = 203;
+  /** Weights of the triangle and of the noise in the index of the second mixer table. */
+  private static final int TRIANGLE_WEIGHT = 3;
+  private static final int NOISE_WEIGHT = 2;
+  /** Amplitude of the sum of the two pulse outputs. */
+  private static final int[] PULSE_TABLE = new int[PULSE_LEVELS];
+  /** Amplitude of 3 triangle + 2 noise + DMC outputs. */
+  private static final int[] TND_TABLE = new int[TND_LEVELS];
+
+  static {
+    for (int i = 1; i < PULSE_LEVELS; i++) {
+      PULSE_TABLE[i] = (int) Math.round(AMPLITUDE * 95.52 / (8128.0 / i + 100));
+    }
+    for (int i = 1; i < TND_LEVELS; i++) {
+      TND_TABLE[i] = (int) Math.round(AMPLITUDE * 163.67 / (24329.0 / i + 100));
+    }
+  }
+
+  /** CPU receiving the interrupts, null if the APU is not connected. */
+  private final Core_2A03 cpu;
+  private final EventScheduler scheduler;
+  /** Event bringing the APU to its next frame interrupt or DMC sample read. */
+  private final int deadlineEvent;
+  private final PulseChannel pulse1 = new PulseChannel(true);
+  private final PulseChannel pulse2 = new PulseChannel(false);
+  private final TriangleChannel triangle = new TriangleChannel();
+  private final NoiseChannel noise = new NoiseChannel();
+  private final DmcChannel dmc;
+  /** Channels indexed by the bits of the status register. */
+  private final AbstractChannel[] channels;
+  private final BandLimitedBuffer buffer;
+  /** Samples of the last frame ended. */
+  private final short[] samples;
+  private int sampleCount;
+
+  /** CPU cycle the APU was run to. */
+  private long cycle;
+  /** CPU cycle where the current frame of samples started. */
+  private long frameStartCycle;
+  /** Mixed amplitude recorded last. */
+  private int amplitude;
+
+  private boolean isFiveStep;
+  private boolean isIrqInhibited;
+  private boolean isFrameIrqRaised;
+  /** CPU cycle where the current frame counter sequence started. */
+  private long sequenceStart;
+  private int sequenceStep;
+  /** CPU cycle of the next frame counter step. */
+  private long nextStepCycle = FOUR_STEP_CYCLES[0];
+
+  /**
+   * Creates an APU at power up, raising no interrupt.
+   *
+   * @param memory The memory controller of the CPU, where the DMC reads its samples.
+   * @param sampleRate The sample rate of the output in Hz.
+   */
+  public Apu_2A03(final PagedMemoryController memory, final int sampleRate) {
+    this(memory, null, sampleRate);
+  }
+
+  /**
+   * Creates an APU at power up, connected to a CPU whose IRQ line it drives.
+   *
+   * @param cpu The CPU, whose memory controller holds the DMC samples.
+   * @param sampleRate The sample rate of the output in Hz.
+   */
+  public Apu_2A03(final Core_2A03 cpu, final int sampleRate) {
+    this(cpu.getMemory(), cpu, sampleRate);
+  }
+
+  private Apu_2A03(final PagedMemoryController memory, final Core_2A03 cpu,
+      final int sampleRate) {
+    this.cpu = cpu;
+    if (cpu == null) {
+      scheduler = null;
+      deadlineEvent = 0;
+    } else {
+      scheduler = cpu.getEventScheduler();
+      deadlineEvent = scheduler.register(cycle -> {
+        runTo(cycle);
+        updateIrqLine();
+      });
+    }
+    dmc = new DmcChannel(memory);
+    if (cpu != null) {
+      for (int address = REGISTERS_OFFSET; address <= FRAME_COUNTER; address++) {
+        if (address != OAM_DMA && address != FIRST_CONTROLLER_PORT) {
+          memory.mapDeviceRegister(address, this);
+        }
+      }
+    }
+    channels = new AbstractChannel[] {pulse1, pulse2, triangle, noise, dmc};
+    if (cpu != null) {
+      cpu.addStatefulDevice(this);
+    }
+    final int maxSamples = BandLimitedBuffer.getMaxSamples(CLOCK_RATE, sampleRate,
+        MAX_FRAME_CYCLES);
+    buffer = new BandLimitedBuffer(CLOCK_RATE, sampleRate, maxSamples);
+    samples = new short[maxSamples];
+    scheduleDeadline();
+  }
+
+  /**
+   * Runs the APU until a CPU cycle. Nothing is run if the APU already reached it. The samples of
+   * frames longer than {@link #MAX_FRAME_CYCLES} are synthesized on the way, overwriting the
+   * samples of the previous frame.
+   *
+   * @param cpuCycle The CPU cycle count to reach.
+   */
+  public void runTo(final long cpuCycle) {
+    while (cpuCycle - frameStartCycle > MAX_FRAME_CYCLES) {
+      runEvents(frameStartCycle + MAX_FRAME_CYCLES);
+      endFrame(frameStartCycle + MAX_FRAME_CYCLES);
+    }
+    runEvents(cpuCycle);
+  }
+
+  /**
+   * Runs the APU until a CPU cycle then synthesizes the samples since the previous frame, which
+   * are given by {@link #getSamples()}.
+   *
+   * @param cpuCycle The CPU cycle count where the frame ends.
+   * @return The number of samples of the frame.
+   */
+  public int endFrame(final long cpuCycle) {
+    runTo(cpuCycle);
+    final long frameEnd = Math.max(cycle, frameStartCycle);
+    sampleCount = buffer.endFrame(frameEnd, samples);
+    frameStartCycle = frameEnd;
+    return sampleCount;
+  }
+
+  /**
+   * Synthesizes the samples of the frame, like {@link #endFrame(long)}.
+   */
+  @Override
+  public void completeFrame(final long cpuCycle) {
+    endFrame(cpuCycle);
+  }
+
+  /**
+   * Runs the timer clocks and the frame counter steps before a CPU cycle, in time order.
+   */
+  private void runEvents(final long cpuCycle) {
+    while (true) {
+      long time = nextStepCycle;
+      AbstractChannel next = null;
+      for (final AbstractChannel channel : channels) {
+        if (channel.getNextClock() < time) {
+          time = channel.getNextClock();
+          next = channel;
+        }
+      }
+      if (time >= cpuCycle) {
+        break;
+      }
+      cycle = time;
+      if (next == null) {
+        runFrameCounterStep();
+      } else {
+        next.clock();
+      }
+      updateAmplitude();
+    }
+    cycle = Math.max(cycle, cpuCycle);
+  }
+
+  /**
+   * Schedules the next frame interrupt step or DMC sample read. As the APU only runs the clocks
+   * before the cycle it is run to, the deadline is the cycle after them.
+   */
+  private void scheduleDeadline() {
+    if (cpu == null) {
+      return;
+    }
+    long deadline = dmc.getNextFetchCycle();
+    if (!isFiveStep && !isIrqInhibited) {
+      deadline = Math.min(deadline, sequenceStart + FOUR_STEP_CYCLES[FOUR_STEP_CYCLES.length - 1]);
+    }
+    scheduler.schedule(deadlineEvent, deadline == AbstractChannel.PARKED
+        ? EventScheduler.NEVER : deadline + 1);
+  }
+
+  /**
+   * Asserts the IRQ line of the CPU while an interrupt is raised, then schedules the next
+   * deadline.
+   */
+  private void updateIrqLine() {
+    if (cpu == null) {
+      return;
+    }
+    cpu.setIrqLine(Core_2A03.APU_IRQ, isIrqRaised());
+    scheduleDeadline();
+  }
+
+  private void runFrameCounterStep() {
+    final int[] clocks = isFiveStep ? FIVE_STEP_CLOCKS : FOUR_STEP_CLOCKS;
+    clockChannels(clocks[sequenceStep]);
+    if ((clocks[sequenceStep] & IRQ) != 0 && !isIrqInhibited) {
+      isFrameIrqRaised = true;
+    }
+    sequenceStep++;
+    if (sequenceStep == clocks.length) {
+      sequenceStep = 0;
+      sequenceStart += isFiveStep ? FIVE_STEP_PERIOD : FOUR_STEP_PERIOD;
+    }
+    final int[] stepCycles = isFiveStep ? FIVE_STEP_CYCLES : FOUR_STEP_CYCLES;
+    nextStepCycle = sequenceStart + stepCycles[sequenceStep];
+  }
+
+  private void clockChannels(final int clocks) {
+    for (final AbstractChannel channel : channels) {
+      if ((clocks & QUARTER) != 0) {
+        channel.clockQuarterFrame();
+      }
+      if ((clocks & HALF) != 0) {
+        channel.clockHalfFrame();
+      }
+      channel.wake(cycle);
+    }
+  }
+
+  /**
+   * Records the mixed amplitude of the channels at the current cycle, if it changed.
+   */
+  private void updateAmplitude() {
+    final int mixed = PULSE_TABLE[pulse1.getOutput() + pulse2.getOutput()]
+        + TND_TABLE[TRIANGLE_WEIGHT * triangle.getOutput() + NOISE_WEIGHT * noise.getOutput()
+            + dmc.getOutput()];
+    if (mixed != amplitude) {
+      buffer.addDelta(cycle, mixed - amplitude);
+      amplitude = mixed;
+    }
+  }
+
+  /**
+   * Reads a register of the APU: only the status at 0x4015 can be read, see
+   * {@link #readStatus()}.
+   *
+   * @param address The address of the register.
+   * @return The status, or {@link #OPEN_BUS} for the write only registers.
+   */
+  @Override
+  public int readRegister(final int address) {
+    return address == STATUS ? readStatus() : OPEN_BUS;
+  }
+
+  /**
+   * Returns 0: the status changes with the length counters and acknowledges the frame interrupt,
+   * and the other registers are not read by programs.
+   *
+   * @param address The address of the register.
+   * @return 0, no read being steady.
+   */
+  @Override
+  public long getSteadyReadCycle(final int address) {
+    return 0;
+  }
+
+  /**
+   * Writes a register of the APU, from 0x4000 to 0x4017. When connected, the APU catches up with
+   * the CPU first, otherwise it must have been run to the cycle of the write. Writes to other
+   * addresses are ignored.
+   *
+   * @param address The address of the register.
+   * @param data The value to write.
+   */
+  @Override
+  public void writeRegister(final int address, final int data) {
+    if (cpu != null) {
+      runTo(cpu.getCycleCount());
+    }
+    final int value = data & BYTE_MASK;
+    final int channel = (address - REGISTERS_OFFSET) >> CHANNEL_SHIFT;
+    if (address == STATUS) {
+      for (int i = 0; i < channels.length; i++) {
+        channels[i].setEnabled(((value >> i) & 1) != 0);
+      }
+    } else if (address == FRAME_COUNTER) {
+      writeFrameCounter(value);
+    } else if (channel >= 0 && channel < channels.length) {
+      channels[channel].writeRegister(address & CHANNEL_REGISTER_MASK, value);
+    } else {
+      return;
+    }
+    for (final AbstractChannel each : channels) {
+      each.wake(cycle);
+    }
+    updateAmplitude();
+    updateIrqLine();
+  }
+
+  /**
+   * Restarts the frame counter sequence, the five step sequence clocking all the units at once.
+   */
+  private void writeFrameCounter(final int value) {
+    isFiveStep = (value & FIVE_STEP_FLAG) != 0;
+    isIrqInhibited = (value & IRQ_INHIBIT_FLAG) != 0;
+    if (isIrqInhibited) {
+      isFrameIrqRaised = false;
+    }
+    sequenceStart = cycle;
+    sequenceStep = 0;
+    nextStepCycle = sequenceStart + (isFiveStep ? FIVE_STEP_CYCLES : FOUR_STEP_CYCLES)[0];
+    if (isFiveStep) {
+      clockChannels(QUARTER | HALF);
+    }
+  }
+
+  /**
+   * Reads the status register at 0x4015: the channels playing and the interrupts raised. The
+   * frame interrupt is acknowledged. When connected, the APU catches up with the CPU first,
+   * otherwise it must have been run to the cycle of the read.
+   *
+   * @return The value read.
+   */
+  public int readStatus() {
+    if (cpu != null) {
+      runTo(cpu.getCycleCount());
+    }
+    int status = 0;
+    for (int i = 0; i <= DMC_STATUS_BIT; i++) {
+      if (channels[i].isPlaying()) {
+        status |= 1 << i;
+      }
+    }
+    if (isFrameIrqRaised) {
+      status |= FRAME_IRQ_FLAG;
+    }
+    if (dmc.isIrqRaised()) {
+      status |= DMC_IRQ_FLAG;
+    }
+    isFrameIrqRaised = false;
+    updateIrqLine();
+    return status;
+  }
+
+  @Override
+  public int getMaximumStateSize() {
+    int size = STATE_FIELDS_SIZE;
+    for (final AbstractChannel channel : channels) {
+      size += channel.getStateSize();
+    }
+    return size;
+  }
+
+  /**
+   * Writes the state of the APU, which must have been run to the cycle of the CPU. Nothing is
+   * compressed.
+   *
+   * @param state The buffer receiving the state.
+   * @param isCompressed Ignored.
+   */
+  @Override
+  public void saveState(final ByteBuffer state, final boolean isCompressed) {
+    state.putLong(cycle);
+    state.put((byte) ((isFiveStep ? FIVE_STEP_FLAG : 0) | (isIrqInhibited ? IRQ_INHIBIT_FLAG : 0)
+        | (isFrameIrqRaised ? FRAME_IRQ_RAISED_FLAG : 0)));
+    state.putLong(sequenceStart);
+    state.put((byte) sequenceStep);
+    for (final AbstractChannel channel : channels) {
+      channel.saveState(state);
+    }
+  }
+
+  /**
+   * Restores a state written by {@link #saveState(ByteBuffer, boolean)}. When connected, the IRQ
+   * line of the CPU is set from the restored interrupts, and the next deadline is scheduled again.
+   *
+   * @param state The buffer holding the state.
+   * @param isCompressed Ignored.
+   * @throws InvalidStateException If the frame counter step is not valid.
+   */
+  @Override
+  public void loadState(final ByteBuffer state, final boolean isCompressed)
+      throws InvalidStateException {
+    final long savedCycle = state.getLong();
+    final int flags = state.get();
+    final long savedSequenceStart = state.getLong();
+    final int savedSequenceStep = state.get();
+    final int[] stepCycles = (flags & FIVE_STEP_FLAG) != 0 ? FIVE_STEP_CYCLES : FOUR_STEP_CYCLES;
+    if (savedSequenceStep < 0 || savedSequenceStep >= stepCycles.length) {
+      throw new InvalidStateException("Invalid frame counter step " + savedSequenceStep);
+    }
+    for (final AbstractChannel channel : channels) {
+      channel.loadState(state);
+    }
+
+    cycle = savedCycle;
+    isFiveStep = (flags & FIVE_STEP_FLAG) != 0;
+    isIrqInhibited = (flags & IRQ_INHIBIT_FLAG) != 0;
+    isFrameIrqRaised = (flags & FRAME_IRQ_RAISED_FLAG) != 0;
+    sequenceStart = savedSequenceStart;
+    sequenceStep = savedSequenceStep;
+    nextStepCycle = sequenceStart + stepCycles[sequenceStep];
+    frameStartCycle = cycle;
+    buffer.moveFrameStart(cycle);
+    updateAmplitude();
+    updateIrqLine();
+  }
+
+  /**
+   * Indicates if the frame counter or the DMC raises an interrupt.
+   */
+  public boolean isIrqRaised() {
+    return isFrameIrqRaised || dmc.isIrqRaised();
+  }
+
+  /**
+   * Returns the samples of the last frame ended, signed 16 bits mono. The array is reused by the
+   * next frames, only its first {@link #getSampleCount()} samples belong to the last frame.
+   */
+  public short[] getSamples() {
+    return samples;
+  }
+
+  /**
+   * Returns the number of samples of the last frame ended.
+   */
+  public int getSampleCount() {
+    return sampleCount;
+  }
+
+  /**
+   * Returns the CPU cycle the APU was run to.
+   */
+  public long getCycleCount() {
+    return cycle;
+  }
+
+}
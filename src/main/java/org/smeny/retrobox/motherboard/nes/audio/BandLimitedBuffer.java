@@ -0,0 +1,178 @@
+/**
+ * BandLimitedBuffer
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.audio;
+
+import java.util.Arrays;
+
+/**
+ * This class synthesizes band-limited samples from the changes of an amplitude stamped with CPU
+ * cycles. Each change adds a windowed sinc impulse, taken from a table for the fraction of sample
+ * where it happens, to a buffer of deltas. The samples are the running sum of the deltas, computed
+ * once per frame, so that no work is done for the cycles where the amplitude does not change.
+ *
+ * <p>The impulses are centered, which delays the output by half their width. A high-pass filter
+ * removes the DC offset of the output.
+ *
+ * @author Stéphane Meny
+ */
+final class BandLimitedBuffer {
+  /** Number of bits of the fraction of sample selecting an impulse. */
+  private static final int PHASE_BITS = 5;
+  private static final int PHASE_COUNT = 1 << PHASE_BITS;
+  /** Number of samples reached by an impulse. */
+  private static final int IMPULSE_WIDTH = 16;
+  /** Number of bits of the fixed point impulses, each one summing to 1 exactly. */
+  private static final int IMPULSE_BITS = 15;
+  /** Cutoff frequency of the impulses, as a fraction of the sample rate. */
+  private static final double CUTOFF = 0.45;
+  /** Number of bits of the fraction of the sample positions. */
+  private static final int FRACTION_BITS = 32;
+  /** Number of bits of the time constant of the high-pass filter, in samples. */
+  private static final int HIGH_PASS_BITS = 8;
+  /** Impulses indexed by the fraction of sample where the amplitude changes. */
+  private static final int[][] IMPULSES = createImpulses();
+
+  /** Samples per CPU cycle, in fixed point. */
+  private final long samplesPerCycle;
+  /** Deltas of the samples of the current frame, followed by the end of the last impulses. */
+  private final int[] deltas;
+  /** CPU cycle where the current frame starts. */
+  private long frameStart;
+  /** Position of the frame start after the first sample of the frame, in fixed point. */
+  private long frameOffset;
+  /** Running sum of the deltas, in fixed point. */
+  private int integrator;
+  /** Low-passed output, removed from the output with HIGH_PASS_BITS more bits. */
+  private int dcLevel;
+
+  /**
+   * Creates a buffer.
+   *
+   * @param clockRate The CPU clock rate in Hz.
+   * @param sampleRate The sample rate in Hz.
+   * @param maxSamples The maximum number of samples in a frame.
+   */
+  BandLimitedBuffer(final double clockRate, final int sampleRate, final int maxSamples) {
+    samplesPerCycle = Math.round(sampleRate / clockRate * (1L << FRACTION_BITS));
+    deltas = new int[maxSamples + IMPULSE_WIDTH];
+  }
+
+  /**
+   * Adds a change of the amplitude.
+   *
+   * @param cycle The CPU cycle of the change, in the current frame.
+   * @param delta The change of the amplitude, which must stay within 16 bits.
+   */
+  void addDelta(final long cycle, final int delta) {
+    final long position = getPosition(cycle);
+    final int index = (int) (position >>> FRACTION_BITS);
+    final int[] impulse = IMPULSES[(int) (position >>> (FRACTION_BITS - PHASE_BITS))
+        & (PHASE_COUNT - 1)];
+    for (int i = 0; i < IMPULSE_WIDTH; i++) {
+      deltas[index + i] += delta * impulse[i];
+    }
+  }
+
+  /**
+   * Ends the current frame, writing its samples, and starts the next one.
+   *
+   * @param cycle The CPU cycle where the frame ends.
+   * @param samples The array receiving the samples.
+   * @return The number of samples written.
+   */
+  int endFrame(final long cycle, final short[] samples) {
+    final long position = getPosition(cycle);
+    final int count = (int) (position >>> FRACTION_BITS);
+    for (int i = 0; i < count; i++) {
+      integrator += deltas[i];
+      final int sample = (integrator >> IMPULSE_BITS) - (dcLevel >> HIGH_PASS_BITS);
+      dcLevel += sample;
+      samples[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+    }
+    // The impulses of the last changes reach the next frame
+    System.arraycopy(deltas, count, deltas, 0, IMPULSE_WIDTH);
+    Arrays.fill(deltas, IMPULSE_WIDTH, count + IMPULSE_WIDTH, 0);
+    frameStart = cycle;
+    frameOffset = position - ((long) count << FRACTION_BITS);
+    return count;
+  }
+
+  /**
+   * Moves the start of the current frame to a CPU cycle, when the APU goes to another time on a
+   * state restore. The changes added to the frame are kept, so that the output stays continuous.
+   *
+   * @param cycle The CPU cycle where the current frame starts now.
+   */
+  void moveFrameStart(final long cycle) {
+    frameStart = cycle;
+  }
+
+  /**
+   * Returns the maximum number of samples of a number of cycles.
+   *
+   * @param clockRate The CPU clock rate in Hz.
+   * @param sampleRate The sample rate in Hz.
+   * @param cycles The number of cycles.
+   * @return The number of samples.
+   */
+  static int getMaxSamples(final double clockRate, final int sampleRate, final long cycles) {
+    return (int) Math.ceil(cycles * sampleRate / clockRate) + 1;
+  }
+
+  /**
+   * Returns the position of a CPU cycle after the first sample of the frame, in fixed point.
+   */
+  private long getPosition(final long cycle) {
+    return frameOffset + (cycle - frameStart) * samplesPerCycle;
+  }
+
+  /**
+   * Builds the band-limited impulses of each phase: windowed sinc functions centered half their
+   * width after the change, scaled so that they sum to 1 in fixed point.
+   */
+  private static int[][] createImpulses() {
+    final int[][] impulses = new int[PHASE_COUNT][IMPULSE_WIDTH];
+    final double halfWidth = IMPULSE_WIDTH / 2.0;
+    final double[] taps = new double[IMPULSE_WIDTH];
+    for (int phase = 0; phase < PHASE_COUNT; phase++) {
+      double sum = 0;
+      for (int i = 0; i < IMPULSE_WIDTH; i++) {
+        final double x = i + 1 - halfWidth - (double) phase / PHASE_COUNT;
+        final double sinc = x == 0 ? 1 : Math.sin(2 * Math.PI * CUTOFF * x)
+            / (2 * Math.PI * CUTOFF * x);
+        // Blackman window
+        final double window = Math.abs(x) >= halfWidth ? 0
+            : 0.42 + 0.5 * Math.cos(Math.PI * x / halfWidth)
+                + 0.08 * Math.cos(2 * Math.PI * x / halfWidth);
+        taps[i] = sinc * window;
+        sum += taps[i];
+      }
+      int total = 0;
+      int largest = 0;
+      for (int i = 0; i < IMPULSE_WIDTH; i++) {
+        impulses[phase][i] = (int) Math.round(taps[i] / sum * (1 << IMPULSE_BITS));
+        total += impulses[phase][i];
+        if (impulses[phase][i] > impulses[phase][largest]) {
+          largest = i;
+        }
+      }
+      // The rounding error goes to the largest tap, so that a step reaches its amplitude exactly
+      impulses[phase][largest] += (1 << IMPULSE_BITS) - total;
+    }
+    return impulses;
+  }
+
+}
@@ -0,0 +1,252 @@
+/**
+ * DmcChannel
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.audio;
+
+import java.nio.ByteBuffer;
+
+import org.smeny.retrobox.motherboard.nes.memory.PagedMemoryController;
+
+/**
+ * This class is the delta modulation channel of the APU. It plays 1 bit delta encoded samples read
+ * from the CPU memory, each bit moving a 7 bits output level up or down by 2. The level can also
+ * be written directly. An interrupt is raised at the end of a sample unless it loops.
+ *
+ * <p>The cycles stolen from the CPU by the sample reads are not emulated.
+ *
+ * @author Stéphane Meny
+ */
+final class DmcChannel extends AbstractChannel {
+  /** Timer periods in CPU cycles, indexed by the low bits of the first register. */
+  private static final int[] PERIODS = {
+      428, 380, 340, 320, 286, 254, 226, 214, 190, 160, 142, 128, 106, 84, 72, 54};
+  private static final int IRQ_ENABLED_FLAG = 0x80;
+  private static final int LOOP_FLAG = 0x40;
+  private static final int PERIOD_INDEX_MASK = 0x0F;
+  private static final int LEVEL_MASK = 0x7F;
+  /** Highest level the output can be raised from. */
+  private static final int MAX_RAISED_LEVEL = 125;
+  private static final int LEVEL_STEP = 2;
+  private static final int SAMPLE_ADDRESS_OFFSET = 0xC000;
+  private static final int SAMPLE_ADDRESS_SHIFT = 6;
+  private static final int SAMPLE_LENGTH_SHIFT = 4;
+  /** Address the sample reads wrap to after 0xFFFF. */
+  private static final int WRAP_ADDRESS = 0x8000;
+  private static final int LAST_ADDRESS = 0xFFFF;
+  private static final int BITS_PER_BYTE = 8;
+  /**
+   * Size of the state after the one of the base class: the flags, the period, the level, the
+   * sample address and length, the reader and the output unit.
+   */
+  private static final int STATE_SIZE = 14;
+  private static final int IRQ_RAISED_FLAG = 0x01;
+  private static final int SAMPLE_BUFFER_FULL_FLAG = 0x02;
+  private static final int SILENT_FLAG = 0x04;
+  private static final int BYTE_MASK = 0xFF;
+  private static final int WORD_MASK = 0xFFFF;
+  /** Mask of the number of bits left in the shift register, from 1 to 8. */
+  private static final int BITS_REMAINING_MASK = 0x0F;
+
+  private final PagedMemoryController memory;
+  private boolean isIrqEnabled;
+  private boolean isIrqRaised;
+  private boolean isLooped;
+  private int periodIndex;
+  private int level;
+  private int sampleAddress = SAMPLE_ADDRESS_OFFSET;
+  private int sampleLength = 1;
+  private int currentAddress;
+  private int bytesRemaining;
+  private int sampleBuffer;
+  private boolean isSampleBufferFull;
+  private int shiftRegister;
+  private int bitsRemaining = BITS_PER_BYTE;
+  /** True if no sample byte was available when the shift register was last loaded. */
+  private boolean isSilent = true;
+
+  /**
+   * Creates a DMC reading its samples through a memory controller.
+   *
+   * @param memory The memory controller of the CPU.
+   */
+  DmcChannel(final PagedMemoryController memory) {
+    this.memory = memory;
+  }
+
+  @Override
+  void writeRegister(final int register, final int data) {
+    switch (register) {
+      case 0:
+        isIrqEnabled = (data & IRQ_ENABLED_FLAG) != 0;
+        if (!isIrqEnabled) {
+          isIrqRaised = false;
+        }
+        isLooped = (data & LOOP_FLAG) != 0;
+        periodIndex = data & PERIOD_INDEX_MASK;
+        break;
+      case 1:
+        level = data & LEVEL_MASK;
+        break;
+      case 2:
+        sampleAddress = SAMPLE_ADDRESS_OFFSET | (data << SAMPLE_ADDRESS_SHIFT);
+        break;
+      default:
+        sampleLength = (data << SAMPLE_LENGTH_SHIFT) | 1;
+        break;
+    }
+  }
+
+  /**
+   * Starts the sample if enabled and none is playing, stops it otherwise. The interrupt is
+   * acknowledged.
+   */
+  @Override
+  void setEnabled(final boolean isEnabled) {
+    isIrqRaised = false;
+    if (!isEnabled) {
+      bytesRemaining = 0;
+    } else if (bytesRemaining == 0) {
+      restart();
+      fillSampleBuffer();
+    }
+  }
+
+  @Override
+  boolean isPlaying() {
+    return bytesRemaining > 0;
+  }
+
+  boolean isIrqRaised() {
+    return isIrqRaised;
+  }
+
+  /**
+   * Returns the CPU cycle of the timer clock reading the next sample byte, {@link #PARKED} if no
+   * byte is left to read.
+   */
+  long getNextFetchCycle() {
+    if (!isSampleBufferFull || bytesRemaining == 0 || getNextClock() == PARKED) {
+      return PARKED;
+    }
+    return getNextClock() + (long) (bitsRemaining - 1) * getTimerPeriod();
+  }
+
+  @Override
+  protected void clockTimer() {
+    if (!isSilent) {
+      if ((shiftRegister & 1) != 0) {
+        if (level <= MAX_RAISED_LEVEL) {
+          level += LEVEL_STEP;
+        }
+      } else if (level >= LEVEL_STEP) {
+        level -= LEVEL_STEP;
+      }
+      shiftRegister >>>= 1;
+    }
+    bitsRemaining--;
+    if (bitsRemaining == 0) {
+      bitsRemaining = BITS_PER_BYTE;
+      isSilent = !isSampleBufferFull;
+      if (isSampleBufferFull) {
+        shiftRegister = sampleBuffer;
+        isSampleBufferFull = false;
+        fillSampleBuffer();
+      }
+    }
+  }
+
+  @Override
+  protected int getTimerPeriod() {
+    return PERIODS[periodIndex];
+  }
+
+  @Override
+  protected boolean isActive() {
+    return !isSilent || isSampleBufferFull || bytesRemaining > 0;
+  }
+
+  @Override
+  int getOutput() {
+    return level;
+  }
+
+  @Override
+  int getStateSize() {
+    return super.getStateSize() + STATE_SIZE;
+  }
+
+  @Override
+  void saveState(final ByteBuffer buffer) {
+    super.saveState(buffer);
+    buffer.put((byte) ((isIrqEnabled ? IRQ_ENABLED_FLAG : 0) | (isLooped ? LOOP_FLAG : 0)
+        | (isIrqRaised ? IRQ_RAISED_FLAG : 0) | (isSampleBufferFull ? SAMPLE_BUFFER_FULL_FLAG : 0)
+        | (isSilent ? SILENT_FLAG : 0)));
+    buffer.put((byte) periodIndex);
+    buffer.put((byte) level);
+    buffer.putShort((short) sampleAddress);
+    buffer.putShort((short) sampleLength);
+    buffer.putShort((short) currentAddress);
+    buffer.putShort((short) bytesRemaining);
+    buffer.put((byte) sampleBuffer);
+    buffer.put((byte) shiftRegister);
+    buffer.put((byte) bitsRemaining);
+  }
+
+  @Override
+  void loadState(final ByteBuffer buffer) {
+    super.loadState(buffer);
+    final int flags = buffer.get();
+    isIrqEnabled = (flags & IRQ_ENABLED_FLAG) != 0;
+    isLooped = (flags & LOOP_FLAG) != 0;
+    isIrqRaised = (flags & IRQ_RAISED_FLAG) != 0;
+    isSampleBufferFull = (flags & SAMPLE_BUFFER_FULL_FLAG) != 0;
+    isSilent = (flags & SILENT_FLAG) != 0;
+    periodIndex = buffer.get() & PERIOD_INDEX_MASK;
+    level = buffer.get() & LEVEL_MASK;
+    sampleAddress = buffer.getShort() & WORD_MASK;
+    sampleLength = buffer.getShort() & WORD_MASK;
+    currentAddress = buffer.getShort() & WORD_MASK;
+    bytesRemaining = buffer.getShort() & WORD_MASK;
+    sampleBuffer = buffer.get() & BYTE_MASK;
+    shiftRegister = buffer.get() & BYTE_MASK;
+    bitsRemaining = buffer.get() & BITS_REMAINING_MASK;
+  }
+
+  private void restart() {
+    currentAddress = sampleAddress;
+    bytesRemaining = sampleLength;
+  }
+
+  /**
+   * Reads the next byte of the sample into the sample buffer, if it is empty.
+   */
+  private void fillSampleBuffer() {
+    if (isSampleBufferFull || bytesRemaining == 0) {
+      return;
+    }
+    sampleBuffer = memory.read8(currentAddress);
+    isSampleBufferFull = true;
+    currentAddress = currentAddress == LAST_ADDRESS ? WRAP_ADDRESS : currentAddress + 1;
+    bytesRemaining--;
+    if (bytesRemaining == 0) {
+      if (isLooped) {
+        restart();
+      } else if (isIrqEnabled) {
+        isIrqRaised = true;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,116 @@
+/**
+ * Envelope
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class is the volume envelope of the pulse and noise channels: either a constant volume, or
+ * a volume decaying from 15 to 0 at a rate set by the channel, looping back to 15 or not.
+ *
+ * @author Stéphane Meny
+ */
+final class Envelope {
+  private static final int LOOP_FLAG = 0x20;
+  private static final int CONSTANT_FLAG = 0x10;
+  private static final int PARAMETER_MASK = 0x0F;
+  private static final int MAX_DECAY = 15;
+  /** Size of the state: the flags, the parameter, the divider and the decay. */
+  static final int STATE_SIZE = 4;
+  private static final int STARTED_FLAG = 0x01;
+
+  private boolean isStarted;
+  private boolean isLooped;
+  private boolean isConstant;
+  /** Constant volume, or period of the decay divider. */
+  private int parameter;
+  private int divider;
+  private int decay;
+
+  /**
+   * Writes the envelope bits of the first register of the channel.
+   *
+   * @param data The value written.
+   */
+  void write(final int data) {
+    isLooped = (data & LOOP_FLAG) != 0;
+    isConstant = (data & CONSTANT_FLAG) != 0;
+    parameter = data & PARAMETER_MASK;
+  }
+
+  /**
+   * Restarts the decay from 15 at the next clock, when the length counter is loaded.
+   */
+  void restart() {
+    isStarted = true;
+  }
+
+  /**
+   * Clocks the envelope, four times a frame.
+   */
+  void clock() {
+    if (isStarted) {
+      isStarted = false;
+      decay = MAX_DECAY;
+      divider = parameter;
+    } else if (divider > 0) {
+      divider--;
+    } else {
+      divider = parameter;
+      if (decay > 0) {
+        decay--;
+      } else if (isLooped) {
+        decay = MAX_DECAY;
+      }
+    }
+  }
+
+  /**
+   * Returns the current volume, from 0 to 15.
+   */
+  int getVolume() {
+    return isConstant ? parameter : decay;
+  }
+
+  /**
+   * Writes the state of the envelope.
+   *
+   * @param buffer The buffer receiving the state.
+   */
+  void saveState(final ByteBuffer buffer) {
+    buffer.put((byte) ((isStarted ? STARTED_FLAG : 0) | (isLooped ? LOOP_FLAG : 0)
+        | (isConstant ? CONSTANT_FLAG : 0)));
+    buffer.put((byte) parameter);
+    buffer.put((byte) divider);
+    buffer.put((byte) decay);
+  }
+
+  /**
+   * Restores a state written by {@link #saveState(ByteBuffer)}.
+   *
+   * @param buffer The buffer holding the state.
+   */
+  void loadState(final ByteBuffer buffer) {
+    final int flags = buffer.get();
+    isStarted = (flags & STARTED_FLAG) != 0;
+    isLooped = (flags & LOOP_FLAG) != 0;
+    isConstant = (flags & CONSTANT_FLAG) != 0;
+    parameter = buffer.get() & PARAMETER_MASK;
+    divider = buffer.get() & PARAMETER_MASK;
+    decay = buffer.get() & MAX_DECAY;
+  }
+
+}
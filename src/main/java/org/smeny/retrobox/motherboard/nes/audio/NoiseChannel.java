@@ -0,0 +1,120 @@
+/**
+ * NoiseChannel
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class is the noise channel of the APU: the output of a 15 bits linear feedback shift
+ * register, with a volume envelope. In short mode the feedback is taken from another bit, so the
+ * sequence loops after 93 steps and sounds metallic.
+ *
+ * @author Stéphane Meny
+ */
+final class NoiseChannel extends AbstractChannel {
+  /** Timer periods in CPU cycles, indexed by the low bits of the third register. */
+  private static final int[] PERIODS = {
+      4, 8, 16, 32, 64, 96, 128, 160, 202, 254, 380, 508, 762, 1016, 2034, 4068};
+  private static final int LENGTH_HALT_FLAG = 0x20;
+  private static final int SHORT_MODE_FLAG = 0x80;
+  private static final int PERIOD_INDEX_MASK = 0x0F;
+  /** Bit of the shift register giving the feedback in short mode, bit 1 otherwise. */
+  private static final int SHORT_FEEDBACK_BIT = 6;
+  private static final int FEEDBACK_SHIFT = 14;
+  /**
+   * Size of the state after the one of the base class: the envelope, the shift register, the mode
+   * and the period.
+   */
+  private static final int STATE_SIZE = Envelope.STATE_SIZE + 4;
+  private static final int SHIFT_REGISTER_MASK = 0x7FFF;
+
+  private final Envelope envelope = new Envelope();
+  /** Shift register, loaded with 1 at power up. */
+  private int shiftRegister = 1;
+  private boolean isShortMode;
+  private int periodIndex;
+
+  @Override
+  void writeRegister(final int register, final int data) {
+    switch (register) {
+      case 0:
+        setLengthHalted((data & LENGTH_HALT_FLAG) != 0);
+        envelope.write(data);
+        break;
+      case 1:
+        break;
+      case 2:
+        isShortMode = (data & SHORT_MODE_FLAG) != 0;
+        periodIndex = data & PERIOD_INDEX_MASK;
+        break;
+      default:
+        loadLength(data);
+        envelope.restart();
+        break;
+    }
+  }
+
+  @Override
+  protected void clockTimer() {
+    final int feedback = (shiftRegister ^ (shiftRegister >>> (isShortMode ? SHORT_FEEDBACK_BIT
+        : 1))) & 1;
+    shiftRegister = (shiftRegister >>> 1) | (feedback << FEEDBACK_SHIFT);
+  }
+
+  @Override
+  protected int getTimerPeriod() {
+    return PERIODS[periodIndex];
+  }
+
+  @Override
+  protected boolean isActive() {
+    return isPlaying() && envelope.getVolume() > 0;
+  }
+
+  @Override
+  int getOutput() {
+    return isActive() && (shiftRegister & 1) == 0 ? envelope.getVolume() : 0;
+  }
+
+  @Override
+  void clockQuarterFrame() {
+    envelope.clock();
+  }
+
+  @Override
+  int getStateSize() {
+    return super.getStateSize() + STATE_SIZE;
+  }
+
+  @Override
+  void saveState(final ByteBuffer buffer) {
+    super.saveState(buffer);
+    envelope.saveState(buffer);
+    buffer.putShort((short) shiftRegister);
+    buffer.put((byte) (isShortMode ? SHORT_MODE_FLAG : 0));
+    buffer.put((byte) periodIndex);
+  }
+
+  @Override
+  void loadState(final ByteBuffer buffer) {
+    super.loadState(buffer);
+    envelope.loadState(buffer);
+    shiftRegister = buffer.getShort() & SHIFT_REGISTER_MASK;
+    isShortMode = (buffer.get() & SHORT_MODE_FLAG) != 0;
+    periodIndex = buffer.get() & PERIOD_INDEX_MASK;
+  }
+
+}
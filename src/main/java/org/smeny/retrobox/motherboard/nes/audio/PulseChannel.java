@@ -0,0 +1,190 @@
+/**
+ * PulseChannel
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class is one of the two pulse channels of the APU: a square wave of four duty cycles, with
+ * a volume envelope and a sweep unit bending its period.
+ *
+ * @author Stéphane Meny
+ */
+final class PulseChannel extends AbstractChannel {
+  /** Output of the eight steps of each duty cycle, one bit per step. */
+  private static final int[] DUTY_CYCLES = {0x02, 0x06, 0x1E, 0xF9};
+  private static final int STEP_MASK = 0x07;
+  private static final int DUTY_SHIFT = 6;
+  private static final int LENGTH_HALT_FLAG = 0x20;
+  private static final int SWEEP_ENABLED_FLAG = 0x80;
+  private static final int SWEEP_PERIOD_SHIFT = 4;
+  private static final int SWEEP_NEGATE_FLAG = 0x08;
+  private static final int SWEEP_FIELD_MASK = 0x07;
+  private static final int PERIOD_LOW_MASK = 0xFF;
+  private static final int PERIOD_HIGH_SHIFT = 8;
+  /** Periods below this one are silenced. */
+  private static final int MIN_PERIOD = 8;
+  /** Sweep targets above this period are silenced. */
+  private static final int MAX_PERIOD = 0x7FF;
+  /**
+   * Size of the state after the one of the base class: the envelope, the duty cycle, the step, the
+   * period and the sweep unit.
+   */
+  private static final int STATE_SIZE = Envelope.STATE_SIZE + 8;
+  private static final int DUTY_MASK = 0x03;
+  private static final int SWEEP_RELOADED_FLAG = 0x01;
+
+  /** True for the first channel, whose sweep negates with the one's complement. */
+  private final boolean isFirst;
+  private final Envelope envelope = new Envelope();
+  private int dutyCycle;
+  private int step;
+  private int period;
+  private boolean isSweepEnabled;
+  private boolean isSweepNegated;
+  private boolean isSweepReloaded;
+  private int sweepPeriod;
+  private int sweepShift;
+  private int sweepDivider;
+
+  /**
+   * Creates a pulse channel.
+   *
+   * @param isFirst true for the first channel, at 0x4000.
+   */
+  PulseChannel(final boolean isFirst) {
+    this.isFirst = isFirst;
+  }
+
+  @Override
+  void writeRegister(final int register, final int data) {
+    switch (register) {
+      case 0:
+        dutyCycle = data >>> DUTY_SHIFT;
+        setLengthHalted((data & LENGTH_HALT_FLAG) != 0);
+        envelope.write(data);
+        break;
+      case 1:
+        isSweepEnabled = (data & SWEEP_ENABLED_FLAG) != 0;
+        sweepPeriod = (data >>> SWEEP_PERIOD_SHIFT) & SWEEP_FIELD_MASK;
+        isSweepNegated = (data & SWEEP_NEGATE_FLAG) != 0;
+        sweepShift = data & SWEEP_FIELD_MASK;
+        isSweepReloaded = true;
+        break;
+      case 2:
+        period = (period & ~PERIOD_LOW_MASK) | data;
+        break;
+      default:
+        period = (period & PERIOD_LOW_MASK) | ((data & SWEEP_FIELD_MASK) << PERIOD_HIGH_SHIFT);
+        loadLength(data);
+        step = 0;
+        envelope.restart();
+        break;
+    }
+  }
+
+  @Override
+  protected void clockTimer() {
+    step = (step + 1) & STEP_MASK;
+  }
+
+  @Override
+  protected int getTimerPeriod() {
+    // The timer clocks the sequencer every other CPU cycle
+    return (period + 1) * 2;
+  }
+
+  @Override
+  protected boolean isActive() {
+    return isPlaying() && !isSweepMuted() && envelope.getVolume() > 0;
+  }
+
+  @Override
+  int getOutput() {
+    return isActive() && ((DUTY_CYCLES[dutyCycle] >>> step) & 1) != 0 ? envelope.getVolume() : 0;
+  }
+
+  @Override
+  void clockQuarterFrame() {
+    envelope.clock();
+  }
+
+  @Override
+  void clockHalfFrame() {
+    super.clockHalfFrame();
+    if (sweepDivider == 0 && isSweepEnabled && sweepShift > 0 && !isSweepMuted()) {
+      period = getSweepTarget();
+    }
+    if (sweepDivider == 0 || isSweepReloaded) {
+      sweepDivider = sweepPeriod;
+      isSweepReloaded = false;
+    } else {
+      sweepDivider--;
+    }
+  }
+
+  /**
+   * Returns the period the sweep unit moves to, which silences the channel when too high even if
+   * the sweep is disabled.
+   */
+  private int getSweepTarget() {
+    final int change = period >>> sweepShift;
+    if (isSweepNegated) {
+      return isFirst ? period - change - 1 : period - change;
+    }
+    return period + change;
+  }
+
+  private boolean isSweepMuted() {
+    return period < MIN_PERIOD || getSweepTarget() > MAX_PERIOD;
+  }
+
+  @Override
+  int getStateSize() {
+    return super.getStateSize() + STATE_SIZE;
+  }
+
+  @Override
+  void saveState(final ByteBuffer buffer) {
+    super.saveState(buffer);
+    envelope.saveState(buffer);
+    buffer.put((byte) dutyCycle);
+    buffer.put((byte) step);
+    buffer.putShort((short) period);
+    buffer.put((byte) ((isSweepEnabled ? SWEEP_ENABLED_FLAG : 0)
+        | (isSweepNegated ? SWEEP_NEGATE_FLAG : 0) | (isSweepReloaded ? SWEEP_RELOADED_FLAG : 0)));
+    buffer.put((byte) sweepPeriod);
+    buffer.put((byte) sweepShift);
+    buffer.put((byte) sweepDivider);
+  }
+
+  @Override
+  void loadState(final ByteBuffer buffer) {
+    super.loadState(buffer);
+    envelope.loadState(buffer);
+    dutyCycle = buffer.get() & DUTY_MASK;
+    step = buffer.get() & STEP_MASK;
+    period = buffer.getShort() & MAX_PERIOD;
+    final int flags = buffer.get();
+    isSweepEnabled = (flags & SWEEP_ENABLED_FLAG) != 0;
+    isSweepNegated = (flags & SWEEP_NEGATE_FLAG) != 0;
+    isSweepReloaded = (flags & SWEEP_RELOADED_FLAG) != 0;
+    sweepPeriod = buffer.get() & SWEEP_FIELD_MASK;
+    sweepShift = buffer.get() & SWEEP_FIELD_MASK;
+    sweepDivider = buffer.get() & SWEEP_FIELD_MASK;
+  }
+
+}
@@ -0,0 +1,137 @@
+/**
+ * TriangleChannel
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class is the triangle channel of the APU: a 32 steps triangle wave, gated by a linear
+ * counter as well as by the length counter. Its volume cannot be changed, and it holds its last
+ * step when it stops, so that it does not pop.
+ *
+ * @author Stéphane Meny
+ */
+final class TriangleChannel extends AbstractChannel {
+  /** Output of the 32 steps of the wave. */
+  private static final int[] SEQUENCE = {
+      15, 14, 13, 12, 11, 10, 9, 8, 7, 6, 5, 4, 3, 2, 1, 0,
+      0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15};
+  private static final int STEP_MASK = SEQUENCE.length - 1;
+  private static final int CONTROL_FLAG = 0x80;
+  private static final int LINEAR_RELOAD_MASK = 0x7F;
+  private static final int PERIOD_LOW_MASK = 0xFF;
+  private static final int PERIOD_HIGH_MASK = 0x07;
+  private static final int PERIOD_HIGH_SHIFT = 8;
+  /** Periods below this one are ultrasonic, the channel holds its step instead. */
+  private static final int MIN_PERIOD = 2;
+  /**
+   * Size of the state after the one of the base class: the step, the period and the linear
+   * counter.
+   */
+  private static final int STATE_SIZE = 6;
+  private static final int PERIOD_MASK = 0x7FF;
+  private static final int LINEAR_RELOADED_FLAG = 0x01;
+
+  private int step;
+  private int period;
+  /** Set by the control flag, which halts the length counter and keeps reloading the linear one. */
+  private boolean isControlled;
+  private boolean isLinearReloaded;
+  private int linearReload;
+  private int linearCounter;
+
+  @Override
+  void writeRegister(final int register, final int data) {
+    switch (register) {
+      case 0:
+        isControlled = (data & CONTROL_FLAG) != 0;
+        setLengthHalted(isControlled);
+        linearReload = data & LINEAR_RELOAD_MASK;
+        break;
+      case 1:
+        break;
+      case 2:
+        period = (period & ~PERIOD_LOW_MASK) | data;
+        break;
+      default:
+        period = (period & PERIOD_LOW_MASK) | ((data & PERIOD_HIGH_MASK) << PERIOD_HIGH_SHIFT);
+        loadLength(data);
+        isLinearReloaded = true;
+        break;
+    }
+  }
+
+  @Override
+  protected void clockTimer() {
+    step = (step + 1) & STEP_MASK;
+  }
+
+  @Override
+  protected int getTimerPeriod() {
+    return period + 1;
+  }
+
+  @Override
+  protected boolean isActive() {
+    return isPlaying() && linearCounter > 0 && period >= MIN_PERIOD;
+  }
+
+  @Override
+  int getOutput() {
+    return SEQUENCE[step];
+  }
+
+  @Override
+  void clockQuarterFrame() {
+    if (isLinearReloaded) {
+      linearCounter = linearReload;
+    } else if (linearCounter > 0) {
+      linearCounter--;
+    }
+    if (!isControlled) {
+      isLinearReloaded = false;
+    }
+  }
+
+  @Override
+  int getStateSize() {
+    return super.getStateSize() + STATE_SIZE;
+  }
+
+  @Override
+  void saveState(final ByteBuffer buffer) {
+    super.saveState(buffer);
+    buffer.put((byte) step);
+    buffer.putShort((short) period);
+    buffer.put((byte) ((isControlled ? CONTROL_FLAG : 0)
+        | (isLinearReloaded ? LINEAR_RELOADED_FLAG : 0)));
+    buffer.put((byte) linearReload);
+    buffer.put((byte) linearCounter);
+  }
+
+  @Override
+  void loadState(final ByteBuffer buffer) {
+    super.loadState(buffer);
+    step = buffer.get() & STEP_MASK;
+    period = buffer.getShort() & PERIOD_MASK;
+    final int flags = buffer.get();
+    isControlled = (flags & CONTROL_FLAG) != 0;
+    isLinearReloaded = (flags & LINEAR_RELOADED_FLAG) != 0;
+    linearReload = buffer.get() & LINEAR_RELOAD_MASK;
+    linearCounter = buffer.get() & LINEAR_RELOAD_MASK;
+  }
+
+}
@@ -15,7 +15,50 @@
  */
 package org.smeny.retrobox.motherboard.nes.cartridge;
 
+import java.nio.ByteBuffer;
+
+/**
+ * A Cartridge holds the header and the data of a ROM file. The data are kept as a read only buffer,
+ * usually mapped on the file, and banks are exposed as views of this buffer. The bank arrays used
+ * by the memory controllers are only copied from it the first time they are requested, and shared
+ * between cartridges with the same content.
+ *
+ * <p>Both the original iNES header and the NES 2.0 one are understood, the later adding large ROM
+ * sizes, exact RAM sizes and the submapper number.
+ *
+ * @author Stéphane Meny
+ */
 public class Cartridge {
+  /** Mask used to read a header byte as an unsigned value. */
+  private static final int BYTE_MASK = 0xFF;
+  /** Mask used to get the low nibble of a header byte. */
+  private static final int LOW_NIBBLE_MASK = 0x0F;
+  /** Mask used to get the high nibble of a header byte. */
+  private static final int HIGH_NIBBLE_MASK = 0xF0;
+  private static final int NIBBLE_SHIFT = 4;
+  private static final int BYTE_SHIFT = 8;
+  /** Bit of the first control byte set for a vertical mirroring. */
+  private static final int VERTICAL_MIRRORING_BIT = 0x01;
+  /** Bit of the first control byte set when the cartridge has a battery backed RAM. */
+  private static final int BATTERY_BIT = 0x02;
+  /** Bit of the first control byte set when a trainer precedes the program ROM. */
+  private static final int TRAINER_BIT = 0x04;
+  /** Bit of the first control byte set when the cartridge provides four name tables. */
+  private static final int FOUR_SCREEN_BIT = 0x08;
+  /** Bits of the second control byte identifying the header format. */
+  private static final int FORMAT_MASK = 0x0C;
+  private static final int NES_20_FORMAT = 0x08;
+  /** ROM size high bits meaning that the size is written as an exponent and a multiplier. */
+  private static final int EXPONENT_NOTATION = 0x0F;
+  private static final int EXPONENT_SHIFT = 2;
+  private static final int MULTIPLIER_MASK = 0x03;
+  /** Highest exponent whose size fits in a long, the multiplier taking up to three bits. */
+  private static final int HIGHEST_EXPONENT = Long.SIZE - 4;
+  /** A NES 2.0 RAM size is 64 bytes shifted left by its shift count, 0 meaning no RAM. */
+  private static final int RAM_SIZE_UNIT = 64;
+  /** Size of a program RAM page of the iNES format, 0 pages meaning one page. */
+  private static final int PROGRAM_RAM_PAGE_SIZE = 0x2000;
+
   /**
    * Contains all program data read from the cartridge. First index is the
    * program ROM bank number and second index is the offset in the bank.
@@ -34,7 +77,27 @@ public class Cartridge {
    */
   private byte[] header;
 
+  /** Read only data of the whole ROM file, null if the banks were set directly. */
+  private ByteBuffer romData;
+  /** Offset of the program ROM in the ROM data. */
+  private int programRomOffset;
+  /** Offset of the character ROM in the ROM data. */
+  private int characterRomOffset;
+  /** Trainer loaded at 0x7000 before the program starts, null if there is none. */
+  private byte[] trainer;
+
+  /**
+   * Returns the program ROM banks, copied from the ROM data on the first call unless another
+   * cartridge with the same program ROM is loaded, in which case its banks are shared.
+   *
+   * @return The 16KB program ROM banks, the last one being padded when the size is not a multiple
+   *         of 16KB.
+   */
   public byte[][] getProgramRom() {
+    if (programRom == null && romData != null) {
+      programRom = RomCache.getBanks(getRomView(programRomOffset, getProgramRomSize()),
+          CartridgeReader.PROGRAM_BANK_SIZE);
+    }
     return programRom;
   }
 
@@ -42,7 +105,17 @@ public class Cartridge {
     this.programRom = programRom;
   }
 
+  /**
+   * Returns the character ROM banks, copied from the ROM data on the first call unless another
+   * cartridge with the same character ROM is loaded, in which case its banks are shared.
+   *
+   * @return The 8KB character ROM banks, empty if the cartridge uses character RAM.
+   */
   public byte[][] getCharacterRom() {
+    if (characterRom == null && romData != null) {
+      characterRom = RomCache.getBanks(getRomView(characterRomOffset, getCharacterRomSize()),
+          CartridgeReader.CHARACTER_BANK_SIZE);
+    }
     return characterRom;
   }
 
@@ -50,6 +123,28 @@ public class Cartridge {
     this.characterRom = characterRom;
   }
 
+  /**
+   * Returns a read only view of a 16KB program ROM bank, without copying it.
+   *
+   * @param bank The bank number.
+   * @return The bank data.
+   */
+  public ByteBuffer getProgramRomBank(final int bank) {
+    return getBankView(programRomOffset, getProgramRomSize(), CartridgeReader.PROGRAM_BANK_SIZE,
+        bank);
+  }
+
+  /**
+   * Returns a read only view of a 8KB character ROM bank, without copying it.
+   *
+   * @param bank The bank number.
+   * @return The bank data.
+   */
+  public ByteBuffer getCharacterRomBank(final int bank) {
+    return getBankView(characterRomOffset, getCharacterRomSize(),
+        CartridgeReader.CHARACTER_BANK_SIZE, bank);
+  }
+
   public byte[] getHeader() {
     return header;
   }
@@ -58,12 +153,197 @@ public class Cartridge {
     this.header = header;
   }
 
+  public byte[] getTrainer() {
+    return trainer;
+  }
+
+  void setTrainer(final byte[] trainer) {
+    this.trainer = trainer;
+  }
+
+  /**
+   * Sets the data of the ROM file, the banks being views of it.
+   *
+   * @param romData The read only ROM data.
+   * @param programRomOffset The offset of the program ROM in the data.
+   * @param characterRomOffset The offset of the character ROM in the data.
+   */
+  void setRomData(final ByteBuffer romData, final int programRomOffset,
+      final int characterRomOffset) {
+    this.romData = romData;
+    this.programRomOffset = programRomOffset;
+    this.characterRomOffset = characterRomOffset;
+    programRom = null;
+    characterRom = null;
+  }
+
+  /**
+   * Indicates if the header uses the NES 2.0 format rather than the original iNES one.
+   */
+  public boolean isNes20Format() {
+    return (getHeaderByte(HeaderIndex.CONTROL_BYTE_TWO) & FORMAT_MASK) == NES_20_FORMAT;
+  }
+
+  public boolean hasTrainer() {
+    return (getHeaderByte(HeaderIndex.CONTROL_BYTE_ONE) & TRAINER_BIT) != 0;
+  }
+
+  public boolean hasBattery() {
+    return (getHeaderByte(HeaderIndex.CONTROL_BYTE_ONE) & BATTERY_BIT) != 0;
+  }
+
+  /**
+   * Returns the number of 16KB program ROM banks, a partial last bank counting as one bank.
+   */
   public int getProgramRomPageCount() {
-    return header[HeaderIndex.PRG_ROM_PAGE_COUNT.ordinal()];
+    return getPageCount(getProgramRomSize(), CartridgeReader.PROGRAM_BANK_SIZE);
   }
 
+  /**
+   * Returns the number of 8KB character ROM banks, a partial last bank counting as one bank.
+   */
   public int getCharacterRomPageCount() {
-    return header[HeaderIndex.CHR_ROM_PAGE_COUNT.ordinal()];
+    return getPageCount(getCharacterRomSize(), CartridgeReader.CHARACTER_BANK_SIZE);
+  }
+
+  /**
+   * Returns the size of the program ROM in bytes.
+   */
+  public long getProgramRomSize() {
+    return getRomSize(getHeaderByte(HeaderIndex.PRG_ROM_PAGE_COUNT),
+        getHeaderByte(HeaderIndex.ROM_SIZE_MSB) & LOW_NIBBLE_MASK,
+        CartridgeReader.PROGRAM_BANK_SIZE);
+  }
+
+  /**
+   * Returns the size of the character ROM in bytes, 0 if the cartridge uses character RAM.
+   */
+  public long getCharacterRomSize() {
+    return getRomSize(getHeaderByte(HeaderIndex.CHR_ROM_PAGE_COUNT),
+        getHeaderByte(HeaderIndex.ROM_SIZE_MSB) >> NIBBLE_SHIFT,
+        CartridgeReader.CHARACTER_BANK_SIZE);
+  }
+
+  /**
+   * Returns the size of the program RAM, battery backed or not, mapped from 0x6000.
+   */
+  public int getProgramRamSize() {
+    if (isNes20Format()) {
+      final int sizes = getHeaderByte(HeaderIndex.PRG_RAM_SIZE);
+      return getRamSize(sizes & LOW_NIBBLE_MASK) + getRamSize(sizes >> NIBBLE_SHIFT);
+    }
+    return Math.max(getHeaderByte(HeaderIndex.MAPPER_VARIANT), 1) * PROGRAM_RAM_PAGE_SIZE;
+  }
+
+  /**
+   * Returns the size of the character RAM, used when the cartridge has no character ROM.
+   */
+  public int getCharacterRamSize() {
+    if (isNes20Format()) {
+      final int sizes = getHeaderByte(HeaderIndex.CHR_RAM_SIZE);
+      return getRamSize(sizes & LOW_NIBBLE_MASK) + getRamSize(sizes >> NIBBLE_SHIFT);
+    }
+    return getCharacterRomSize() == 0 ? CartridgeReader.CHARACTER_BANK_SIZE : 0;
+  }
+
+  /**
+   * Returns the number of the mapper wired in the cartridge. Its low nibble is the high nibble of
+   * the first control byte, its next nibble the high nibble of the second control byte and, for
+   * NES 2.0, its high nibble the low nibble of the mapper variant byte.
+   *
+   * <p>Old iNES dumps have garbage, like a ripper name, from the second control byte. When the last
+   * header bytes are not zero the high nibble of the second control byte is ignored for them.
+   *
+   * @return The mapper number.
+   */
+  public int getMapperNumber() {
+    final int lowNibble = getHeaderByte(HeaderIndex.CONTROL_BYTE_ONE) >> NIBBLE_SHIFT;
+    final int middleNibble = getHeaderByte(HeaderIndex.CONTROL_BYTE_TWO) & HIGH_NIBBLE_MASK;
+    if (isNes20Format()) {
+      final int highNibble = getHeaderByte(HeaderIndex.MAPPER_VARIANT) & LOW_NIBBLE_MASK;
+      return (highNibble << BYTE_SHIFT) | middleNibble | lowNibble;
+    }
+    return hasDirtyHeader() ? lowNibble : middleNibble | lowNibble;
+  }
+
+  /**
+   * Returns the submapper number of a NES 2.0 header, 0 otherwise.
+   */
+  public int getSubmapperNumber() {
+    if (isNes20Format()) {
+      return getHeaderByte(HeaderIndex.MAPPER_VARIANT) >> NIBBLE_SHIFT;
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the name tables mirroring wired in the cartridge. Mappers able to switch it start
+   * with this one.
+   *
+   * @return The mirroring read in the first control byte.
+   */
+  public Mirroring getMirroring() {
+    final int control = getHeaderByte(HeaderIndex.CONTROL_BYTE_ONE);
+    if ((control & FOUR_SCREEN_BIT) != 0) {
+      return Mirroring.FOUR_SCREEN;
+    }
+    return (control & VERTICAL_MIRRORING_BIT) != 0 ? Mirroring.VERTICAL : Mirroring.HORIZONTAL;
+  }
+
+  private int getHeaderByte(final HeaderIndex index) {
+    return header[index.ordinal()] & BYTE_MASK;
+  }
+
+  /**
+   * Indicates if an iNES header has non zero bytes where the format defines none.
+   */
+  private boolean hasDirtyHeader() {
+    for (int i = HeaderIndex.TIMING.ordinal(); i < header.length; i++) {
+      if (header[i] != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Computes a ROM size from its header bytes. NES 2.0 adds high bits to the bank count, or when
+   * they are all set, reads the low byte as a 6 bits exponent and a 2 bits multiplier.
+   */
+  private long getRomSize(final int lowByte, final int highBits, final int bankSize) {
+    if (!isNes20Format()) {
+      return (long) lowByte * bankSize;
+    }
+    if (highBits == EXPONENT_NOTATION) {
+      final int exponent = lowByte >> EXPONENT_SHIFT;
+      final long multiplier = (lowByte & MULTIPLIER_MASK) * 2 + 1;
+      return exponent > HIGHEST_EXPONENT ? Long.MAX_VALUE : multiplier << exponent;
+    }
+    return (long) ((highBits << BYTE_SHIFT) | lowByte) * bankSize;
+  }
+
+  private static int getRamSize(final int shift) {
+    return shift == 0 ? 0 : RAM_SIZE_UNIT << shift;
+  }
+
+  private static int getPageCount(final long size, final int pageSize) {
+    return (int) ((size + pageSize - 1) / pageSize);
+  }
+
+  private ByteBuffer getBankView(final int romOffset, final long romSize, final int bankSize,
+      final int bank) {
+    final long bankOffset = (long) bank * bankSize;
+    if (bank < 0 || bankOffset >= romSize) {
+      throw new IndexOutOfBoundsException("Bank " + bank + " does not exist");
+    }
+    return getRomView(romOffset + (int) bankOffset, Math.min(bankSize, romSize - bankOffset));
+  }
+
+  private ByteBuffer getRomView(final int offset, final long size) {
+    final ByteBuffer view = romData.duplicate();
+    view.limit(offset + (int) size);
+    view.position(offset);
+    return view.slice();
   }
 
 }
@@ -15,12 +15,13 @@
  */
 package org.smeny.retrobox.motherboard.nes.cartridge;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 import org.smeny.retrobox.exception.UnknownRomFormatException;
 
@@ -28,6 +29,9 @@ import org.smeny.retrobox.exception.UnknownRomFormatException;
  * This class is responsible for handling accesses to a cartridge. It validates cartridge data, gets
  * the information header and returns both program and characters data in an Cartridge object.
  *
+ * <p>ROM files are memory mapped, so loading one does not copy its banks. Streams, like classpath
+ * resources, are read entirely in memory first.
+ *
  * @author Stéphane Meny
  */
 public final class CartridgeReader {
@@ -43,89 +47,126 @@ public final class CartridgeReader {
   private static final int INES_HEADER_SIZE = 0x0C;
 
   /**
-   * Standard size of a program ROM bank. Default size is 16kB.
+   * Size of the trainer following the header when the cartridge has one.
    */
-  public static final int PROGRAM_BANK_SIZE = 0x4000;
+  public static final int TRAINER_SIZE = 0x0200;
 
   /**
-   * Standard number of program ROM banks. Default number is 2.
+   * Standard size of a program ROM bank. Default size is 16kB.
    */
-  public static final int PROGRAM_BANK_NUMBER = 2;
+  public static final int PROGRAM_BANK_SIZE = 0x4000;
 
   /**
    * Standard size of a character ROM bank. Default size is 8kB.
    */
   public static final int CHARACTER_BANK_SIZE = 0x2000;
 
+  /**
+   * Size of the buffer used to read a stream.
+   */
+  private static final int STREAM_BUFFER_SIZE = 0x2000;
+
   /**
    * Private default constructor to prevent instantiation.
    */
   private CartridgeReader() {
   }
 
+  /**
+   * Loads a ROM file by mapping it in memory. The mapping stays valid once the file is closed.
+   *
+   * @param romFile The ROM file.
+   * @return The cartridge, whose banks are views of the mapped file.
+   * @throws IOException If the file cannot be read.
+   * @throws UnknownRomFormatException If the file is not a valid ROM.
+   */
   public static Cartridge loadCartridge(final File romFile)
       throws IOException, UnknownRomFormatException {
-    final FileInputStream fis = new FileInputStream(romFile);
-    return loadCartridge(fis);
+    try (FileChannel channel = FileChannel.open(romFile.toPath(), StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new UnknownRomFormatException("The rom file is too large");
+      }
+      return loadCartridge(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
   }
 
+  /**
+   * Loads a ROM from a stream, which is read entirely then closed.
+   *
+   * @param is The stream of the ROM.
+   * @return The cartridge.
+   * @throws IOException If the stream cannot be read.
+   * @throws UnknownRomFormatException If the stream does not contain a valid ROM.
+   */
   public static Cartridge loadCartridge(final InputStream is)
       throws IOException, UnknownRomFormatException {
-    final Cartridge cart = new Cartridge();
-    final BufferedInputStream bis = new BufferedInputStream(is);
-
-    // Ensures that the file read has a known format
-    if (validateNesRom(bis)) {
-      // Loads all needed information in the Cartridge object
-      loadRom(bis, cart);
-      // Finally closes the reader
-      bis.close();
-    } else {
-      bis.close();
-      throw new UnknownRomFormatException();
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    try (InputStream input = is) {
+      final byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+      int length;
+      while ((length = input.read(buffer)) != -1) {
+        data.write(buffer, 0, length);
+      }
     }
-
-    return cart;
+    return loadCartridge(ByteBuffer.wrap(data.toByteArray()));
   }
 
-  private static boolean validateNesRom(final BufferedInputStream bis) throws IOException {
-    boolean result = false;
-    byte[] readHeader = new byte[INES_VALIDATION_HEADER.length];
+  /**
+   * Loads a ROM from its data, from the position to the limit of the buffer. The data are not
+   * copied and must not be modified afterwards.
+   *
+   * @param romData The data of the ROM.
+   * @return The cartridge, whose banks are views of the data.
+   * @throws UnknownRomFormatException If the data are not a valid ROM or are truncated.
+   */
+  public static Cartridge loadCartridge(final ByteBuffer romData)
+      throws UnknownRomFormatException {
+    final ByteBuffer data = romData.slice().asReadOnlyBuffer();
 
-    // Reads the validation header
-    bis.read(readHeader, 0, readHeader.length);
-    if (Arrays.equals(readHeader, INES_VALIDATION_HEADER)) {
-      result = true;
+    // Ensures that the data read has a known format
+    if (!validateNesRom(data)) {
+      throw new UnknownRomFormatException();
     }
-    return result;
-  }
 
-  private static void loadRom(final BufferedInputStream bis, final Cartridge cartridge)
-      throws IOException {
     // Reads the remaining information from the header
+    final Cartridge cart = new Cartridge();
     final byte[] header = new byte[INES_HEADER_SIZE];
-    bis.read(header, 0, INES_HEADER_SIZE);
-    cartridge.setHeader(header);
-
-    final int progRomPageCount = cartridge.getProgramRomPageCount();
-    byte[][] programRom = new byte[PROGRAM_BANK_NUMBER][PROGRAM_BANK_SIZE];
-    // Loads each program ROM bank
-    for (int i = 0; i < progRomPageCount; i++) {
-      bis.read(programRom[i], 0, PROGRAM_BANK_SIZE);
+    data.position(INES_VALIDATION_HEADER.length);
+    data.get(header);
+    cart.setHeader(header);
+
+    // The trainer, if any, is between the header and the program ROM
+    if (cart.hasTrainer()) {
+      if (data.remaining() < TRAINER_SIZE) {
+        throw new UnknownRomFormatException("The rom is truncated");
+      }
+      final byte[] trainer = new byte[TRAINER_SIZE];
+      data.get(trainer);
+      cart.setTrainer(trainer);
     }
-    // If we have only one bank, set the bank at both bank addresses
-    if (progRomPageCount == 1) {
-      programRom[1] = programRom[0];
+
+    // Ensures that the file contains every bank, a short file would give corrupted banks
+    final int programRomOffset = data.position();
+    final long remainingSize = data.limit() - programRomOffset;
+    if (cart.getProgramRomSize() > remainingSize
+        || cart.getCharacterRomSize() > remainingSize - cart.getProgramRomSize()) {
+      throw new UnknownRomFormatException("The rom is truncated");
     }
-    cartridge.setProgramRom(programRom);
+    cart.setRomData(data, programRomOffset, programRomOffset + (int) cart.getProgramRomSize());
+
+    return cart;
+  }
 
-    final int charRomPageCount = cartridge.getCharacterRomPageCount();
-    byte[][] characterRom = new byte[charRomPageCount][CHARACTER_BANK_SIZE];
-    // Loads each character ROM bank
-    for (int i = 0; i < charRomPageCount; i++) {
-      bis.read(characterRom[i], 0, CHARACTER_BANK_SIZE);
+  private static boolean validateNesRom(final ByteBuffer data) {
+    if (data.remaining() < INES_VALIDATION_HEADER.length + INES_HEADER_SIZE) {
+      return false;
+    }
+    for (int i = 0; i < INES_VALIDATION_HEADER.length; i++) {
+      if (data.get(i) != INES_VALIDATION_HEADER[i]) {
+        return false;
+      }
     }
-    cartridge.setCharacterRom(characterRom);
+    return true;
   }
 
 }
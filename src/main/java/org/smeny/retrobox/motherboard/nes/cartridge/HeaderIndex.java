@@ -15,10 +15,30 @@
  */
 package org.smeny.retrobox.motherboard.nes.cartridge;
 
+/**
+ * Index of each byte of the header following the iNES validation header. Bytes from
+ * MAPPER_VARIANT are only meaningful in the NES 2.0 format, except the program RAM size of the
+ * original iNES format read in MAPPER_VARIANT.
+ */
 public enum HeaderIndex {
   PRG_ROM_PAGE_COUNT,
   CHR_ROM_PAGE_COUNT,
   CONTROL_BYTE_ONE,
-  CONTROL_BYTE_TWO
+  CONTROL_BYTE_TWO,
+  /** Mapper number high bits and submapper number, the program RAM page count for iNES. */
+  MAPPER_VARIANT,
+  /** High bits of the program (low nibble) and character (high nibble) ROM sizes. */
+  ROM_SIZE_MSB,
+  /** Program RAM (low nibble) and non volatile program RAM (high nibble) size shifts. */
+  PRG_RAM_SIZE,
+  /** Character RAM (low nibble) and non volatile character RAM (high nibble) size shifts. */
+  CHR_RAM_SIZE,
+  /** CPU and PPU timing, NTSC or PAL. */
+  TIMING,
+  /** Vs. System or extended console type. */
+  SYSTEM_TYPE,
+  /** Number of miscellaneous ROMs following the character ROM. */
+  MISCELLANEOUS_ROMS,
+  /** Default expansion device. */
+  EXPANSION_DEVICE
 }
-
@@ -0,0 +1,56 @@
+/**
+ * Mirroring
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.cartridge;
+
+/**
+ * A Mirroring tells how the four name tables seen by the PPU are mapped onto the video memory.
+ * The console only has memory for two name tables, the cartridge wires the other ones.
+ *
+ * @author Stéphane Meny
+ */
+public enum Mirroring {
+  /** Name tables 0 and 1 share the first table, 2 and 3 the second one. */
+  HORIZONTAL(0, 0, 1, 1),
+
+  /** Name tables 0 and 2 share the first table, 1 and 3 the second one. */
+  VERTICAL(0, 1, 0, 1),
+
+  /** All name tables are the first table. */
+  SINGLE_SCREEN_LOWER(0, 0, 0, 0),
+
+  /** All name tables are the second table. */
+  SINGLE_SCREEN_UPPER(1, 1, 1, 1),
+
+  /** The cartridge provides memory for the four name tables. */
+  FOUR_SCREEN(0, 1, 2, 3);
+
+  private final int[] tableIndexes;
+
+  private Mirroring(final int... tableIndexes) {
+    this.tableIndexes = tableIndexes;
+  }
+
+  /**
+   * Returns the table of video memory used for a name table.
+   *
+   * @param nameTable The name table number, from 0 to 3.
+   * @return The index of the table in video memory.
+   */
+  public int getTableIndex(final int nameTable) {
+    return tableIndexes[nameTable];
+  }
+
+}
@@ -0,0 +1,140 @@
+/**
+ * RomCache
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.cartridge;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class shares the ROM banks of cartridges with the same content, so that many instances of
+ * a ROM keep a single copy of its banks. Banks are identified by a digest of their content and
+ * only weakly referenced: they are released once no cartridge nor memory controller uses them.
+ *
+ * <p>Shared banks must never be written, which the memory controllers ensure by mapping them read
+ * only.
+ *
+ * @author Stéphane Meny
+ */
+final class RomCache {
+  /** Algorithm used to identify the content of a ROM. */
+  private static final String DIGEST_ALGORITHM = "SHA-256";
+
+  /** Banks already loaded, by content. */
+  private static final Map<Key, BanksReference> CACHE = new HashMap<>();
+  /** Queue receiving the references whose banks were released. */
+  private static final ReferenceQueue<byte[][]> RELEASED_BANKS = new ReferenceQueue<>();
+
+  /**
+   * Private default constructor to prevent instantiation.
+   */
+  private RomCache() {
+  }
+
+  /**
+   * Returns the banks holding the specified data, which are only copied if no loaded cartridge
+   * has the same content.
+   *
+   * @param data The ROM data, from its position to its limit.
+   * @param bankSize The size of a bank, the last one being padded with zeros.
+   * @return The banks shared by all the cartridges with this content.
+   */
+  static synchronized byte[][] getBanks(final ByteBuffer data, final int bankSize) {
+    removeReleasedBanks();
+    final Key key = new Key(digest(data.duplicate()), bankSize);
+    final BanksReference reference = CACHE.get(key);
+    byte[][] banks = reference == null ? null : reference.get();
+    if (banks == null) {
+      banks = copyBanks(data.duplicate(), bankSize);
+      CACHE.put(key, new BanksReference(key, banks));
+    }
+    return banks;
+  }
+
+  private static void removeReleasedBanks() {
+    BanksReference reference;
+    while ((reference = (BanksReference) RELEASED_BANKS.poll()) != null) {
+      // The key may already have been reused for a new copy of the banks
+      if (CACHE.get(reference.key) == reference) {
+        CACHE.remove(reference.key);
+      }
+    }
+  }
+
+  private static byte[] digest(final ByteBuffer data) {
+    try {
+      final MessageDigest messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+      messageDigest.update(data);
+      return messageDigest.digest();
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform has to support this algorithm
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static byte[][] copyBanks(final ByteBuffer data, final int bankSize) {
+    final byte[][] banks = new byte[(data.remaining() + bankSize - 1) / bankSize][bankSize];
+    for (final byte[] bank : banks) {
+      data.get(bank, 0, Math.min(bankSize, data.remaining()));
+    }
+    return banks;
+  }
+
+  /**
+   * Identifies banks by the digest of their content and their size.
+   */
+  private static final class Key {
+    private final byte[] digest;
+    private final int bankSize;
+
+    private Key(final byte[] digest, final int bankSize) {
+      this.digest = digest;
+      this.bankSize = bankSize;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      final Key key = (Key) other;
+      return bankSize == key.bankSize && Arrays.equals(digest, key.digest);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(digest) * 31 + bankSize;
+    }
+  }
+
+  /**
+   * Weak reference to shared banks, remembering its key to remove it once released.
+   */
+  private static final class BanksReference extends WeakReference<byte[][]> {
+    private final Key key;
+
+    private BanksReference(final Key key, final byte[][] banks) {
+      super(banks, RELEASED_BANKS);
+      this.key = key;
+    }
+  }
+
+}
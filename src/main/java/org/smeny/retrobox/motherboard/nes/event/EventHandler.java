@@ -0,0 +1,37 @@
+/**
+ * EventHandler
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.event;
+
+/**
+ * An EventHandler does what a peripheral has to do at a deadline registered in an
+ * {@link EventScheduler}: catching up with the CPU, raising an interrupt, then scheduling its next
+ * deadline if any.
+ *
+ * @author Stéphane Meny
+ */
+@FunctionalInterface
+public interface EventHandler {
+
+  /**
+   * Handles an event once the CPU reached its deadline, between two instructions. The event is no
+   * longer scheduled, the handler may schedule it again.
+   *
+   * @param cycle The CPU cycle the event was scheduled at, the CPU being at it or a few cycles
+   *        after.
+   */
+  void handleEvent(long cycle);
+
+}
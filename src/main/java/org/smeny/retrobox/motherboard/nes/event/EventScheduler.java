@@ -0,0 +1,207 @@
+/**
+ * EventScheduler
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.event;
+
+/**
+ * The Event Scheduler keeps the deadlines of the peripherals of a machine, in CPU cycles from
+ * power up: the vblank NMI of the PPU, the frame and DMC interrupts of the APU, the scanline IRQ of
+ * the mapper. The CPU runs without polling any device until the next deadline, then has the due
+ * events handled between two instructions.
+ *
+ * <p>Each peripheral registers its events once, getting their numbers. An event is scheduled at
+ * one deadline at most, scheduling it again moves its deadline. The deadlines are kept in a binary
+ * heap of event numbers held by primitive arrays, so scheduling allocates nothing and the next
+ * deadline is read from a field.
+ *
+ * <p>The deadlines are not saved in the states. Restoring a state cancels them all, then each
+ * peripheral schedules its own again from its restored state.
+ *
+ * @author Stéphane Meny
+ */
+public final class EventScheduler {
+  /** Deadline of the events which are not scheduled. */
+  public static final long NEVER = Long.MAX_VALUE;
+
+  /** Largest number of events registered. */
+  private static final int MAX_EVENTS = 16;
+  /** Position in the heap of the events which are not scheduled. */
+  private static final int NOT_QUEUED = -1;
+
+  private final EventHandler[] handlers = new EventHandler[MAX_EVENTS];
+  /** Deadline of each event, indexed by event number. */
+  private final long[] deadlines = new long[MAX_EVENTS];
+  /** The scheduled events, a binary heap ordered by deadline. */
+  private final int[] queue = new int[MAX_EVENTS];
+  /** Position of each event in the heap, indexed by event number. */
+  private final int[] positions = new int[MAX_EVENTS];
+  private int eventCount;
+  private int queueSize;
+  /** Deadline of the first event of the heap, NEVER if the heap is empty. */
+  private long nextDeadline = NEVER;
+
+  /**
+   * Registers an event, not scheduled yet.
+   *
+   * @param handler The handler called when the event is due.
+   * @return The number of the event.
+   * @throws IllegalStateException If too many events are registered.
+   */
+  public int register(final EventHandler handler) {
+    if (eventCount == MAX_EVENTS) {
+      throw new IllegalStateException("Too many events registered");
+    }
+    handlers[eventCount] = handler;
+    deadlines[eventCount] = NEVER;
+    positions[eventCount] = NOT_QUEUED;
+    return eventCount++;
+  }
+
+  /**
+   * Schedules an event, replacing its previous deadline.
+   *
+   * @param event The number of the event.
+   * @param cycle The CPU cycle when the event is due, {@link #NEVER} to cancel it.
+   */
+  public void schedule(final int event, final long cycle) {
+    if (cycle == NEVER) {
+      cancel(event);
+      return;
+    }
+    final long previousDeadline = deadlines[event];
+    deadlines[event] = cycle;
+    int position = positions[event];
+    if (position == NOT_QUEUED) {
+      position = queueSize++;
+      queue[position] = event;
+      positions[event] = position;
+    }
+    if (cycle < previousDeadline) {
+      moveUp(position);
+    } else {
+      moveDown(position);
+    }
+    nextDeadline = deadlines[queue[0]];
+  }
+
+  /**
+   * Cancels an event. Nothing is done if it is not scheduled.
+   *
+   * @param event The number of the event.
+   */
+  public void cancel(final int event) {
+    final int position = positions[event];
+    if (position == NOT_QUEUED) {
+      return;
+    }
+    deadlines[event] = NEVER;
+    positions[event] = NOT_QUEUED;
+    queueSize--;
+    if (position < queueSize) {
+      final int last = queue[queueSize];
+      queue[position] = last;
+      positions[last] = position;
+      moveDown(position);
+      moveUp(positions[last]);
+    }
+    nextDeadline = queueSize == 0 ? NEVER : deadlines[queue[0]];
+  }
+
+  /**
+   * Cancels all the events, when the machine goes to another time.
+   */
+  public void cancelAll() {
+    for (int i = 0; i < queueSize; i++) {
+      deadlines[queue[i]] = NEVER;
+      positions[queue[i]] = NOT_QUEUED;
+    }
+    queueSize = 0;
+    nextDeadline = NEVER;
+  }
+
+  /**
+   * Returns the deadline of an event, {@link #NEVER} if it is not scheduled.
+   *
+   * @param event The number of the event.
+   * @return The CPU cycle when the event is due.
+   */
+  public long getDeadline(final int event) {
+    return deadlines[event];
+  }
+
+  /**
+   * Returns the earliest deadline of the scheduled events, {@link #NEVER} if none is scheduled.
+   */
+  public long getNextDeadline() {
+    return nextDeadline;
+  }
+
+  /**
+   * Handles the events due at a CPU cycle, in deadline order, including the ones scheduled by the
+   * handlers meanwhile.
+   *
+   * @param cycle The current CPU cycle.
+   */
+  public void runDueEvents(final long cycle) {
+    while (nextDeadline <= cycle) {
+      final int event = queue[0];
+      final long deadline = nextDeadline;
+      cancel(event);
+      handlers[event].handleEvent(deadline);
+    }
+  }
+
+  private void moveUp(final int start) {
+    final int event = queue[start];
+    final long deadline = deadlines[event];
+    int position = start;
+    while (position > 0) {
+      final int parent = (position - 1) / 2;
+      if (deadlines[queue[parent]] <= deadline) {
+        break;
+      }
+      place(queue[parent], position);
+      position = parent;
+    }
+    place(event, position);
+  }
+
+  private void moveDown(final int start) {
+    final int event = queue[start];
+    final long deadline = deadlines[event];
+    int position = start;
+    while (true) {
+      int child = 2 * position + 1;
+      if (child >= queueSize) {
+        break;
+      }
+      if (child + 1 < queueSize && deadlines[queue[child + 1]] < deadlines[queue[child]]) {
+        child++;
+      }
+      if (deadline <= deadlines[queue[child]]) {
+        break;
+      }
+      place(queue[child], position);
+      position = child;
+    }
+    place(event, position);
+  }
+
+  private void place(final int event, final int position) {
+    queue[position] = event;
+    positions[event] = position;
+  }
+
+}
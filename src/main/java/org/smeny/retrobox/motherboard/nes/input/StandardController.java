@@ -0,0 +1,112 @@
+/**
+ * StandardController
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.input;
+
+/**
+ * This class emulates the standard controller plugged in a port of the console. While the strobe
+ * is set the controller keeps loading the state of its buttons; once cleared, each read of the
+ * port returns the next button, from A to Right, then 1 after the eighth.
+ *
+ * <p>The buttons pressed are set from outside, usually once per frame, so the same sequence of
+ * button states always gives the same execution.
+ *
+ * @author Stéphane Meny
+ */
+public final class StandardController {
+  public static final int BUTTON_A = 0x01;
+  public static final int BUTTON_B = 0x02;
+  public static final int BUTTON_SELECT = 0x04;
+  public static final int BUTTON_START = 0x08;
+  public static final int BUTTON_UP = 0x10;
+  public static final int BUTTON_DOWN = 0x20;
+  public static final int BUTTON_LEFT = 0x40;
+  public static final int BUTTON_RIGHT = 0x80;
+  /** Size of the controller in a state. */
+  public static final int STATE_SIZE = 2;
+
+  private static final int BYTE_MASK = 0xFF;
+  /** Bit shifted in after the last button, the serial line being pulled up. */
+  private static final int SHIFTED_IN_BIT = 0x80;
+
+  /** Buttons pressed, a bit per button. */
+  private int buttons;
+  /** Buttons not read yet, the next one in the lowest bit. */
+  private int shiftRegister;
+  private boolean isStrobe;
+
+  /**
+   * Returns the buttons pressed.
+   */
+  public int getButtons() {
+    return buttons;
+  }
+
+  /**
+   * Sets the buttons pressed.
+   *
+   * @param buttons The buttons pressed, a combination of the BUTTON constants.
+   */
+  public void setButtons(final int buttons) {
+    this.buttons = buttons & BYTE_MASK;
+  }
+
+  /**
+   * Sets or clears the strobe, which is the lowest bit written to 0x4016.
+   *
+   * @param isStrobe true to keep loading the buttons.
+   */
+  public void setStrobe(final boolean isStrobe) {
+    if (this.isStrobe && !isStrobe) {
+      shiftRegister = buttons;
+    }
+    this.isStrobe = isStrobe;
+  }
+
+  /**
+   * Reads the serial line of the controller, shifting to the next button.
+   *
+   * @return The state of the current button, 1 if pressed.
+   */
+  public int read() {
+    if (isStrobe) {
+      return buttons & BUTTON_A;
+    }
+    final int bit = shiftRegister & 1;
+    shiftRegister = (shiftRegister >>> 1) | SHIFTED_IN_BIT;
+    return bit;
+  }
+
+  /**
+   * Returns the controller state: the buttons not read yet and the strobe. The buttons pressed
+   * are an input of the machine, they are not part of it.
+   *
+   * @return The two bytes of the state, packed in the lowest bits.
+   */
+  public int getState() {
+    return (shiftRegister << Byte.SIZE) | (isStrobe ? 1 : 0);
+  }
+
+  /**
+   * Restores a state returned by {@link #getState()}.
+   *
+   * @param state The two bytes of the state.
+   */
+  public void setState(final int state) {
+    shiftRegister = (state >>> Byte.SIZE) & BYTE_MASK;
+    isStrobe = (state & 1) != 0;
+  }
+
+}
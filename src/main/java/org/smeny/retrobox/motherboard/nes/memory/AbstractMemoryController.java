@@ -99,8 +99,20 @@ public abstract class AbstractMemoryController {
    * @param charRom The Character ROM that the controller have to handle.
    */
   public AbstractMemoryController(final byte[][] progRom, final byte[][] charRom) {
-    memoryTable = new byte[MEMORY_SIZE];
-    videoMemoryTable = new byte[VIDEO_MEMORY_SIZE];
+    this(progRom, charRom, MEMORY_SIZE, VIDEO_MEMORY_SIZE);
+  }
+
+  /**
+   * Constructor for controllers which only allocate the memory really present in the console.
+   * @param progRom The Program ROM that the controller have to handle.
+   * @param charRom The Character ROM that the controller have to handle.
+   * @param memorySize The size of the memory table.
+   * @param videoMemorySize The size of the video memory table.
+   */
+  protected AbstractMemoryController(final byte[][] progRom, final byte[][] charRom,
+      final int memorySize, final int videoMemorySize) {
+    memoryTable = new byte[memorySize];
+    videoMemoryTable = new byte[videoMemorySize];
     programRom = progRom;
     characterRom = charRom;
   }
@@ -147,7 +159,7 @@ public abstract class AbstractMemoryController {
    * @return true is the offset is reachable, false otherwise.
    */
   public final boolean isMemoryAccessible(final int offset) {
-    return (offset >= 0) && (offset < HIGHEST_MEMORY_OFFSET);
+    return (offset >= 0) && (offset <= HIGHEST_MEMORY_OFFSET);
   }
 
   /**
@@ -186,6 +198,39 @@ public abstract class AbstractMemoryController {
    */
   public abstract int readMemory(final int offset) throws ReadOutOfMemoryException;
 
+  /**
+   * Reads a byte in memory, the offset being wrapped around the CPU address space. This is the
+   * method used by the CPU to fetch operation codes and operands.
+   * @param offset The offset where are located the data to read
+   * @return The data read in memory as a byte.
+   * @throws ReadOutOfMemoryException If the memory cannot be read at this offset.
+   */
+  public int read8(final int offset) throws ReadOutOfMemoryException {
+    return readMemory(offset & HIGHEST_MEMORY_OFFSET);
+  }
+
+  /**
+   * Reads a little endian 16 bits value in memory, the least significant byte being at the
+   * specified offset.
+   * @param offset The offset of the least significant byte.
+   * @return The 16 bits value read.
+   * @throws ReadOutOfMemoryException If the memory cannot be read at this offset.
+   */
+  public int read16(final int offset) throws ReadOutOfMemoryException {
+    return read8(offset) | (read8(offset + 1) << Byte.SIZE);
+  }
+
+  /**
+   * Reads a little endian 16 bits pointer in zero page. The most significant byte of a pointer
+   * located at 0x00FF is read at 0x0000, as done by the CPU.
+   * @param offset The offset of the least significant byte in zero page.
+   * @return The 16 bits pointer read.
+   * @throws ReadOutOfMemoryException If the memory cannot be read at this offset.
+   */
+  public int read16ZeroPage(final int offset) throws ReadOutOfMemoryException {
+    return read8(offset & BYTE_MASK) | (read8((offset + 1) & BYTE_MASK) << Byte.SIZE);
+  }
+
   /**
    * Defines the method used when the video memory have to be accessed.
    * @param offset The offset where are located the data to read
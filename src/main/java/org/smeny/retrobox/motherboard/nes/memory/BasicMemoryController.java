@@ -74,7 +74,7 @@ public class BasicMemoryController extends AbstractMemoryController {
       } else {
         // We are in PRG ROM second bank
         final int prgOffset = offset - secondBankOffset;
-        byteRead &= getProgramRom()[1][prgOffset];
+        byteRead &= getProgramRom()[getProgramRom().length - 1][prgOffset];
       }
     } else {
       throw new ReadOutOfMemoryException(offset, MEMORY_TAG);
@@ -0,0 +1,34 @@
+/**
+ * BusFaultPolicy
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.memory;
+
+/**
+ * A BusFaultPolicy tells what the memory does when the CPU or the PPU writes where nothing can be
+ * written, like the program ROM of a cartridge without mapper. The access itself never fails, the
+ * written value is simply lost as on the real bus.
+ *
+ * @author Stéphane Meny
+ */
+public enum BusFaultPolicy {
+  /** Faults are ignored. */
+  IGNORE,
+
+  /** Faults are counted. */
+  COUNT,
+
+  /** Faults are counted and the CPU halts before its next instruction. */
+  HALT
+}
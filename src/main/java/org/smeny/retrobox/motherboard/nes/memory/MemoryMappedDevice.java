@@ -0,0 +1,55 @@
+/**
+ * MemoryMappedDevice
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.memory;
+
+/**
+ * A MemoryMappedDevice is a chip whose registers are mapped in the CPU address space, like the PPU
+ * or the APU. The {@link PagedMemoryController} gives it the accesses to its registers, the other
+ * accesses never reaching it.
+ *
+ * @author Stéphane Meny
+ */
+public interface MemoryMappedDevice {
+  /** Returned by the write only registers which read as the open bus of the CPU. */
+  int OPEN_BUS = -1;
+
+  /**
+   * Reads a register of the device.
+   *
+   * @param address The address read, inside the CPU address space.
+   * @return The value of the register, from 0 to 0xFF, or {@link #OPEN_BUS}.
+   */
+  int readRegister(int address);
+
+  /**
+   * Writes a register of the device.
+   *
+   * @param address The address written, inside the CPU address space.
+   * @param data The value written.
+   */
+  void writeRegister(int address, int data);
+
+  /**
+   * Returns the CPU cycle until which reading a register again gives the value it gave last and
+   * changes nothing, so that a loop polling the register can be skipped up to there.
+   *
+   * @param address The address of the register, already read by the program.
+   * @return The first cycle where a read may give another value or change the device, 0 if any
+   *         read may.
+   */
+  long getSteadyReadCycle(int address);
+
+}
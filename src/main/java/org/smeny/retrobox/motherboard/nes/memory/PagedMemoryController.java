@@ -0,0 +1,1297 @@
+/**
+ * PagedMemoryController
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.memory;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.smeny.retrobox.exception.InvalidStateException;
+import org.smeny.retrobox.motherboard.nes.cartridge.Cartridge;
+import org.smeny.retrobox.motherboard.nes.cartridge.CartridgeReader;
+import org.smeny.retrobox.motherboard.nes.cartridge.Mirroring;
+import org.smeny.retrobox.motherboard.nes.input.StandardController;
+import org.smeny.retrobox.motherboard.nes.state.StateFormat;
+
+/**
+ * The class PagedMemoryController maps the 64KB CPU address space through a table of 256 pages of
+ * 256 bytes. Each page points to a backing array and an offset in it, so a read is one table
+ * lookup and one array access whatever the memory behind the address is. Pages backed by ROM
+ * have no write array, a write to them is given to {@link #writeReadOnlyMemory(int, int)}.
+ *
+ * <p>Only the memory present in the console is allocated. The 2KB work RAM is mirrored from
+ * 0x0000 to 0x1FFF, the program RAM of the cartridge is mapped from 0x6000, the first program ROM
+ * bank from 0x8000 and the last one from 0xC000. The page of the registers at 0x4000 has no
+ * backing array, its reads are decoded register by register: the two controller ports are there.
+ * The PPU and the APU map themselves as {@link MemoryMappedDevice}s: the pages of the PPU
+ * registers lose their backing array too, and the APU registers are decoded in the page at 0x4000.
+ * So only the accesses to the registers take the slow path, where the devices catch up with the
+ * CPU, the RAM and ROM accesses staying one array access. Registers without device read as an
+ * open bus and writes to them are ignored.
+ *
+ * <p>The video memory is mapped the same way with 1KB pages: pattern tables from the character
+ * ROM (or RAM) then the 2KB of name tables, or 4KB for four screens cartridges, following the
+ * cartridge mirroring. Subclasses remap pages to switch banks, no data is ever copied.
+ *
+ * <p>Accesses never fail: offsets are wrapped around the address spaces and a write where nothing
+ * can be written is a bus fault, handled following the {@link BusFaultPolicy}. So, unlike the
+ * other controllers, no exception is thrown on the memory accesses of the CPU.
+ *
+ * <p>Each write also marks the RAM page it reaches as dirty, which costs one table lookup, so that
+ * delta states only hold the pages written since the previous state.
+ *
+ * <p>The CPU keeps the instructions it decodes in ROM in tables parallel to the pages of each ROM
+ * array, mapped with the same pages. A bank switch remaps the decoded instructions with the bank,
+ * so nothing has to be flushed, and switching back to a bank finds its instructions already
+ * decoded. A table is only allocated when the first instruction of its page is decoded, and the
+ * tables of a ROM array are shared by all the controllers mapping it, like its banks are shared by
+ * the cartridges. Pages of RAM or registers have no such table, their code is decoded on each
+ * execution. The code the CPU compiles from ROM is kept and remapped the same way, in tables of
+ * the controller only allocated when a block of their page is compiled.
+ *
+ * <p>The pattern tiles are kept decoded for the PPU the same way, in tables of pixels parallel to
+ * the video pages of each character ROM or RAM array. The tables of a character ROM array are
+ * shared by all the controllers mapping it, and a page of ROM is decoded whole when its first
+ * tile is drawn. The tables of the character RAM belong to the controller: they are allocated when
+ * a tile of their page is first drawn, and a tile is decoded again after a write to it.
+ *
+ * @author Stéphane Meny
+ */
+public class PagedMemoryController extends AbstractMemoryController {
+  /** Returned by {@link #getClocksToIrq()} when the mapper raises no scanline IRQ. */
+  public static final int NO_IRQ = -1;
+  /** Number of bits of an offset addressing a byte inside a page. */
+  protected static final int PAGE_SHIFT = 8;
+  /** Size of a page in bytes. */
+  protected static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+  /** Number of pages needed to map the whole CPU address space. */
+  protected static final int PAGE_COUNT = (HIGHEST_MEMORY_OFFSET + 1) >> PAGE_SHIFT;
+  /** Number of bits of an offset addressing a byte inside a video page. */
+  protected static final int VIDEO_PAGE_SHIFT = 10;
+  /** Size of a video page in bytes, which is the smallest character bank size. */
+  protected static final int VIDEO_PAGE_SIZE = 1 << VIDEO_PAGE_SHIFT;
+  /** Number of video pages needed to map the whole PPU address space. */
+  protected static final int VIDEO_PAGE_COUNT = HIGHEST_VIDEO_MEMORY_OFFSET >> VIDEO_PAGE_SHIFT;
+  /** Number of video pages holding the pattern tables. */
+  protected static final int PATTERN_PAGE_COUNT = CartridgeReader.CHARACTER_BANK_SIZE
+      >> VIDEO_PAGE_SHIFT;
+  /** Offset of the palette in the PPU address space. */
+  protected static final int PALETTE_OFFSET = 0x3F00;
+  /** Size of the work RAM, mirrored up to 0x1FFF. */
+  protected static final int WORK_RAM_SIZE = 0x0800;
+  /** Offset of the program RAM in the CPU address space. */
+  protected static final int PROGRAM_RAM_OFFSET = 0x6000;
+  /** Size of the program RAM window. */
+  protected static final int PROGRAM_RAM_SIZE = 0x2000;
+  /** Offset of the first register, after the mirrors of the work RAM. */
+  private static final int REGISTERS_OFFSET = 0x2000;
+  /** Port of the first controller, writes to it set the strobe of both controllers. */
+  private static final int FIRST_CONTROLLER_PORT = 0x4016;
+  private static final int SECOND_CONTROLLER_PORT = 0x4017;
+  /** Bits of the controller ports left from the open bus, the high byte of their address. */
+  private static final int CONTROLLER_OPEN_BUS_BITS = 0x40;
+  /** Page of the APU, OAM DMA and controller registers. */
+  private static final int IO_REGISTERS_PAGE = 0x40;
+  /** Number of registers of the page at 0x4000, the rest of the page being open bus. */
+  private static final int IO_REGISTER_COUNT = 0x20;
+  /** Offset where the trainer of a cartridge is loaded. */
+  private static final int TRAINER_OFFSET = 0x7000;
+  /** Size of the palette. */
+  private static final int PALETTE_SIZE = 0x20;
+  /** Size of a pattern tile in bytes, two bit planes of eight rows. */
+  private static final int TILE_SIZE = 16;
+  /** Number of bits shifting the offset of a tile byte to the offset of its decoded pixels. */
+  private static final int TILE_PIXEL_SHIFT = 2;
+  private static final int TILE_WIDTH = 8;
+  private static final int TILE_HEIGHT = 8;
+  /** Offset of the high bit plane of a tile row from its low bit plane. */
+  private static final int TILE_PLANE_OFFSET = 8;
+  /** Value of the first pixel of the tiles to decode. */
+  private static final byte INVALID_PIXEL = -1;
+  /** Value read on an open bus page. */
+  private static final byte OPEN_BUS_VALUE = (byte) 0xFF;
+  /** Page read where nothing is mapped, shared by all the controllers as it is never written. */
+  private static final byte[] OPEN_BUS_PAGE = new byte[PAGE_SIZE];
+  /**
+   * Instructions decoded in each page of each ROM array mapped by a controller, released with the
+   * array. An instruction always decodes to the same value, so the controllers share them.
+   */
+  private static final Map<byte[], int[][]> SHARED_INSTRUCTIONS = new WeakHashMap<>();
+  /**
+   * Pixels decoded from each video page of each character ROM array mapped by a controller,
+   * released with the array. A page is published once decoded whole, so the controllers share them
+   * whatever thread they run on.
+   */
+  private static final Map<byte[], AtomicReferenceArray<byte[]>> SHARED_TILES =
+      new WeakHashMap<>();
+
+  static {
+    Arrays.fill(OPEN_BUS_PAGE, OPEN_BUS_VALUE);
+  }
+
+  /** Mask used to get the offset of a byte inside its page. */
+  private static final int PAGE_OFFSET_MASK = PAGE_SIZE - 1;
+  /** Mask used to get the offset of a byte inside its video page. */
+  private static final int VIDEO_PAGE_OFFSET_MASK = VIDEO_PAGE_SIZE - 1;
+  /** Mask used to keep an address inside the CPU address space. */
+  private static final int ADDRESS_MASK = HIGHEST_MEMORY_OFFSET;
+  /** Mask used to keep an address inside the PPU address space. */
+  private static final int VIDEO_ADDRESS_MASK = HIGHEST_VIDEO_MEMORY_OFFSET - 1;
+  /** Number of name tables seen by the PPU, each one being a video page. */
+  private static final int NAME_TABLE_COUNT = 4;
+  /** Mask used to get the index of a palette entry, the palette being 32 bytes long. */
+  private static final int PALETTE_INDEX_MASK = 0x1F;
+  /** Entries 0x10, 0x14, 0x18 and 0x1C of the palette mirror entries 0x00, 0x04, 0x08, 0x0C. */
+  private static final int PALETTE_MIRROR_MASK = 0x13;
+  private static final int PALETTE_MIRROR_VALUE = 0x10;
+  private static final int MOST_SIGNIFICANT_BYTE_SHIFT = 8;
+  /** Mirrorings indexed by ordinal, as saved in the states. */
+  private static final Mirroring[] MIRRORINGS = Mirroring.values();
+  /** Size of the mirroring, of the controllers and of the registers size in a state. */
+  private static final int STATE_FIELDS_SIZE = 3 + 2 * StandardController.STATE_SIZE;
+
+  /*
+   * Dirty bits, one per RAM page: 256 bytes pages of the work RAM then of the program RAM, 1KB
+   * pages of the name tables then of the character RAM.
+   */
+  private static final int WORK_RAM_FIRST_BIT = 0;
+  private static final int PROGRAM_RAM_FIRST_BIT = WORK_RAM_FIRST_BIT
+      + (WORK_RAM_SIZE >> PAGE_SHIFT);
+  private static final int NAME_TABLE_FIRST_BIT = PROGRAM_RAM_FIRST_BIT
+      + (PROGRAM_RAM_SIZE >> PAGE_SHIFT);
+  private static final int CHARACTER_RAM_FIRST_BIT = NAME_TABLE_FIRST_BIT + NAME_TABLE_COUNT;
+  private static final int DIRTY_BIT_COUNT = CHARACTER_RAM_FIRST_BIT + PATTERN_PAGE_COUNT;
+
+  /** Backing array of each page, used for reads. Null for the pages of registers. */
+  private final byte[][] readPages = new byte[PAGE_COUNT][];
+  /** Backing array of each page, used for writes. Null if the page is read only. */
+  private final byte[][] writePages = new byte[PAGE_COUNT][];
+  /** Device mapped on each page of registers, null if none is. */
+  private final MemoryMappedDevice[] devicePages = new MemoryMappedDevice[PAGE_COUNT];
+  /** Device mapped on each register of the page at 0x4000, null if none is. */
+  private final MemoryMappedDevice[] ioDevices = new MemoryMappedDevice[IO_REGISTER_COUNT];
+  /** Offset of the first byte of each page in its backing array. */
+  private final int[] pageOffsets = new int[PAGE_COUNT];
+  /** Tables of the ROM behind each page, null if the page is not backed by ROM. */
+  private final DecodedRom[] romPages = new DecodedRom[PAGE_COUNT];
+  /** Instructions decoded in the ROM behind each page, null until one is decoded in the page. */
+  private final int[][] decodedPages = new int[PAGE_COUNT][];
+  /** Code compiled from the ROM behind each page, null until some is compiled in the page. */
+  private final Object[][] compiledPages = new Object[PAGE_COUNT][];
+  /** Instructions decoded and code compiled from each ROM array mapped so far. */
+  private final Map<byte[], DecodedRom> decodedRoms = new IdentityHashMap<>();
+  /** Number of page mappings, changed by each bank switch. */
+  private int mappingCount;
+
+  /** Backing array of each video page, used for reads. */
+  private final byte[][] readVideoPages = new byte[VIDEO_PAGE_COUNT][];
+  /** Backing array of each video page, used for writes. Null if the page is read only. */
+  private final byte[][] writeVideoPages = new byte[VIDEO_PAGE_COUNT][];
+  /** Offset of the first byte of each video page in its backing array. */
+  private final int[] videoPageOffsets = new int[VIDEO_PAGE_COUNT];
+  /**
+   * Pixels decoded from the tiles behind each video page, null for the name tables and until a tile
+   * of the page is drawn.
+   */
+  private final byte[][] tilePages = new byte[VIDEO_PAGE_COUNT][];
+  /** Pixels decoded from each character ROM array mapped so far, shared by the controllers. */
+  private final Map<byte[], AtomicReferenceArray<byte[]>> romTiles = new IdentityHashMap<>();
+  /** Pixels decoded from each video page of the character RAM, null until a tile is drawn. */
+  private final byte[][] ramTiles = new byte[PATTERN_PAGE_COUNT][];
+
+  /**
+   * Character RAM used in place of the character ROM when the cartridge has none, null otherwise.
+   */
+  private final byte[] characterRam;
+
+  /** Program RAM of the cartridge, null if it has none. */
+  private final byte[] programRam;
+
+  /** Palette of the PPU. */
+  private final byte[] palette = new byte[PALETTE_SIZE];
+
+  /** Current mirroring of the name tables. */
+  private Mirroring mirroring;
+
+  /** Controllers plugged in the two ports. */
+  private final StandardController[] controllers = {
+      new StandardController(), new StandardController()};
+
+  /** Dirty bit of the RAM page behind each page, 0 if the page is not backed by RAM. */
+  private final long[] pageDirtyBits = new long[PAGE_COUNT];
+  /** Dirty bit of the RAM page behind each video page, 0 if the page is not backed by RAM. */
+  private final long[] videoPageDirtyBits = new long[VIDEO_PAGE_COUNT];
+  /** RAM pages written since the dirty pages were cleared. */
+  private long dirtyPages;
+  /** Dirty bits of all the RAM pages of the controller. */
+  private final long allPages;
+
+  /** What to do when something is written where nothing can be written. */
+  private BusFaultPolicy faultPolicy = BusFaultPolicy.COUNT;
+  private long faultCount;
+  private int lastFaultAddress;
+  private boolean isHaltRequested;
+  /** Called before a write to the scanline counter of the mapper, null if nobody listens. */
+  private Runnable scanlineCounterListener;
+
+  /**
+   * Default constructor based on the MemoryController one, with an horizontal mirroring and 8KB
+   * of program RAM.
+   *
+   * @param progRom The Program ROM that the controller have to handle.
+   * @param charRom The Character ROM that the controller have to handle.
+   */
+  public PagedMemoryController(final byte[][] progRom, final byte[][] charRom) {
+    this(progRom, charRom, Mirroring.HORIZONTAL, PROGRAM_RAM_SIZE);
+  }
+
+  /**
+   * Constructor using a cartridge. Its trainer, if any, is loaded at 0x7000.
+   */
+  public PagedMemoryController(final Cartridge cart) {
+    this(cart.getProgramRom(), cart.getCharacterRom(), cart.getMirroring(),
+        cart.hasTrainer() ? PROGRAM_RAM_SIZE : cart.getProgramRamSize());
+    if (cart.hasTrainer()) {
+      System.arraycopy(cart.getTrainer(), 0, programRam, TRAINER_OFFSET - PROGRAM_RAM_OFFSET,
+          CartridgeReader.TRAINER_SIZE);
+    }
+  }
+
+  /**
+   * Maps the allocated memory, the first and the last program ROM banks, the first character bank
+   * and the name tables.
+   *
+   * @param progRom The Program ROM that the controller have to handle.
+   * @param charRom The Character ROM that the controller have to handle, may be empty.
+   * @param mirroring The name tables mirroring.
+   * @param programRamSize The size of the program RAM, only the first 8KB being mapped.
+   */
+  protected PagedMemoryController(final byte[][] progRom, final byte[][] charRom,
+      final Mirroring mirroring, final int programRamSize) {
+    super(progRom, charRom, WORK_RAM_SIZE, getNameTablesSize(mirroring));
+    mapMirroredPages(0, REGISTERS_OFFSET >> PAGE_SHIFT, getMemoryTable(), true);
+    mapMirroredPages(REGISTERS_OFFSET >> PAGE_SHIFT,
+        (PROGRAM_RAM_OFFSET - REGISTERS_OFFSET) >> PAGE_SHIFT, OPEN_BUS_PAGE, false);
+    readPages[FIRST_CONTROLLER_PORT >> PAGE_SHIFT] = null;
+    if (programRamSize > 0) {
+      programRam = new byte[Math.max(PAGE_SIZE, Math.min(programRamSize, PROGRAM_RAM_SIZE))];
+      mapMirroredPages(PROGRAM_RAM_OFFSET >> PAGE_SHIFT, PROGRAM_RAM_SIZE >> PAGE_SHIFT,
+          programRam, true);
+    } else {
+      programRam = null;
+      mapMirroredPages(PROGRAM_RAM_OFFSET >> PAGE_SHIFT, PROGRAM_RAM_SIZE >> PAGE_SHIFT,
+          OPEN_BUS_PAGE, false);
+    }
+
+    final int romPageCount = CartridgeReader.PROGRAM_BANK_SIZE >> PAGE_SHIFT;
+    final int romFirstPage = MEMORY_SIZE >> PAGE_SHIFT;
+    mapPages(romFirstPage, romPageCount, progRom[0], 0, false);
+    mapPages(romFirstPage + romPageCount, romPageCount, progRom[progRom.length - 1], 0, false);
+
+    if (charRom.length == 0) {
+      characterRam = new byte[CartridgeReader.CHARACTER_BANK_SIZE];
+      mapVideoPages(0, PATTERN_PAGE_COUNT, characterRam, 0, true);
+    } else {
+      characterRam = null;
+      mapVideoPages(0, PATTERN_PAGE_COUNT, charRom[0], 0, false);
+    }
+    setMirroring(mirroring);
+
+    long pages = 0;
+    for (int bit = 0; bit < DIRTY_BIT_COUNT; bit++) {
+      if (getDirtyPageMemory(bit) != null) {
+        pages |= 1L << bit;
+      }
+    }
+    allPages = pages;
+    dirtyPages = allPages;
+  }
+
+  /**
+   * Maps consecutive pages of the address space onto an array. Only the page table is updated,
+   * data are never copied.
+   *
+   * @param firstPage The first page to map, which is the high byte of its first address.
+   * @param pageCount The number of pages to map.
+   * @param data The array backing the pages.
+   * @param dataOffset The offset in the array of the first byte of the first page.
+   * @param isWritable true if the CPU can write into the pages.
+   */
+  protected final void mapPages(final int firstPage, final int pageCount, final byte[] data,
+      final int dataOffset, final boolean isWritable) {
+    final DecodedRom decoded = isWritable ? null : getDecodedRom(data);
+    for (int i = 0; i < pageCount; i++) {
+      final int page = firstPage + i;
+      readPages[page] = data;
+      writePages[page] = isWritable ? data : null;
+      pageOffsets[page] = dataOffset + (i << PAGE_SHIFT);
+      pageDirtyBits[page] = isWritable ? getDirtyBit(data, pageOffsets[page]) : 0;
+      romPages[page] = decoded;
+      decodedPages[page] = decoded == null ? null
+          : decoded.instructions[pageOffsets[page] >> PAGE_SHIFT];
+      compiledPages[page] = decoded == null || decoded.code == null ? null
+          : decoded.code[pageOffsets[page] >> PAGE_SHIFT];
+    }
+    mappingCount++;
+  }
+
+  /**
+   * Maps consecutive pages of the address space onto an array smaller than them, which is repeated
+   * as many times as needed.
+   *
+   * @param firstPage The first page to map, which is the high byte of its first address.
+   * @param pageCount The number of pages to map.
+   * @param data The array backing the pages, whose size is a multiple of the page size.
+   * @param isWritable true if the CPU can write into the pages.
+   */
+  protected final void mapMirroredPages(final int firstPage, final int pageCount,
+      final byte[] data, final boolean isWritable) {
+    for (int i = 0; i < pageCount; i++) {
+      mapPages(firstPage + i, 1, data, (i << PAGE_SHIFT) % data.length, isWritable);
+    }
+  }
+
+  /**
+   * Maps consecutive video pages of 1KB onto an array. Only the page table is updated, data are
+   * never copied.
+   *
+   * @param firstPage The first video page to map.
+   * @param pageCount The number of video pages to map.
+   * @param data The array backing the pages.
+   * @param dataOffset The offset in the array of the first byte of the first page.
+   * @param isWritable true if the PPU can write into the pages.
+   */
+  protected final void mapVideoPages(final int firstPage, final int pageCount, final byte[] data,
+      final int dataOffset, final boolean isWritable) {
+    for (int i = 0; i < pageCount; i++) {
+      final int page = firstPage + i;
+      readVideoPages[page] = data;
+      writeVideoPages[page] = isWritable ? data : null;
+      videoPageOffsets[page] = dataOffset + (i << VIDEO_PAGE_SHIFT);
+      videoPageDirtyBits[page] = isWritable ? getVideoDirtyBit(data, videoPageOffsets[page]) : 0;
+      tilePages[page] = page < PATTERN_PAGE_COUNT ? findTilePage(page) : null;
+    }
+  }
+
+  /**
+   * Maps the four name tables, and their mirror from 0x3000, onto the video memory.
+   *
+   * @param mirroring The mirroring to apply.
+   */
+  protected final void setMirroring(final Mirroring mirroring) {
+    this.mirroring = mirroring;
+    final int nameTableFirstPage = PATTERN_PAGE_COUNT;
+    for (int i = 0; i < NAME_TABLE_COUNT; i++) {
+      final int dataOffset = mirroring.getTableIndex(i) << VIDEO_PAGE_SHIFT;
+      mapVideoPages(nameTableFirstPage + i, 1, getVideoMemoryTable(), dataOffset, true);
+      mapVideoPages(nameTableFirstPage + NAME_TABLE_COUNT + i, 1, getVideoMemoryTable(),
+          dataOffset, true);
+    }
+  }
+
+  /**
+   * Returns the character RAM used as pattern tables when the cartridge has no character ROM.
+   *
+   * @return The character RAM, null if the cartridge has a character ROM.
+   */
+  protected final byte[] getCharacterRam() {
+    return characterRam;
+  }
+
+  @Override
+  public final int read8(final int offset) {
+    final int address = offset & ADDRESS_MASK;
+    final int page = address >>> PAGE_SHIFT;
+    final byte[] data = readPages[page];
+    if (data == null) {
+      return readRegister(address);
+    }
+    return data[pageOffsets[page] + (address & PAGE_OFFSET_MASK)] & BYTE_MASK;
+  }
+
+  /**
+   * Returns the instruction decoded by the CPU at an address of ROM.
+   *
+   * @param offset The address of the instruction.
+   * @return The decoded instruction, 0 if none was decoded there or the address is not in ROM.
+   */
+  public final int readDecodedInstruction(final int offset) {
+    final int address = offset & ADDRESS_MASK;
+    final int page = address >>> PAGE_SHIFT;
+    final int[] decoded = decodedPages[page];
+    return decoded == null ? 0 : decoded[address & PAGE_OFFSET_MASK];
+  }
+
+  /**
+   * Keeps an instruction decoded by the CPU, if it lies in a page of ROM. Instructions running
+   * over the end of their page are not kept, the next page being possibly switched alone.
+   *
+   * @param offset The address of the instruction.
+   * @param instruction The decoded instruction, not 0.
+   * @param length The number of bytes of the instruction.
+   */
+  public final void writeDecodedInstruction(final int offset, final int instruction,
+      final int length) {
+    final int address = offset & ADDRESS_MASK;
+    final int page = address >>> PAGE_SHIFT;
+    if ((address & PAGE_OFFSET_MASK) + length > PAGE_SIZE) {
+      return;
+    }
+    int[] decoded = decodedPages[page];
+    if (decoded == null) {
+      final DecodedRom rom = romPages[page];
+      if (rom == null) {
+        return;
+      }
+      decoded = rom.getInstructions(pageOffsets[page] >> PAGE_SHIFT);
+      decodedPages[page] = decoded;
+    }
+    decoded[address & PAGE_OFFSET_MASK] = instruction;
+  }
+
+  /**
+   * Indicates if reading an address can change the state of a device, like the controller ports
+   * shifting their buttons out.
+   *
+   * @param offset The address read.
+   * @return true if the address is read through a register.
+   */
+  public final boolean hasReadSideEffect(final int offset) {
+    return readPages[(offset & ADDRESS_MASK) >>> PAGE_SHIFT] == null;
+  }
+
+  /**
+   * Returns the CPU cycle until which reading an address again gives the value it gave last and
+   * changes nothing. Memory only changes when written, the registers of a device are steady up to
+   * the cycle the device tells and the controller ports never are.
+   *
+   * @param offset The address, already read by the program.
+   * @return The first cycle where a read may give another value or have an effect, 0 if any read
+   *         may.
+   */
+  public final long getSteadyReadCycle(final int offset) {
+    final int address = offset & ADDRESS_MASK;
+    if (readPages[address >>> PAGE_SHIFT] != null) {
+      return Long.MAX_VALUE;
+    }
+    if (address == FIRST_CONTROLLER_PORT || address == SECOND_CONTROLLER_PORT) {
+      return 0;
+    }
+    final MemoryMappedDevice device = getDevice(address);
+    return device == null ? Long.MAX_VALUE : device.getSteadyReadCycle(address);
+  }
+
+  /**
+   * Indicates if an address is in ROM, whose content cannot change while it stays mapped.
+   *
+   * @param offset The address.
+   * @return true if the address is mapped to ROM.
+   */
+  public final boolean isRom(final int offset) {
+    return romPages[(offset & ADDRESS_MASK) >>> PAGE_SHIFT] != null;
+  }
+
+  /**
+   * Returns the code compiled by the CPU from an address of ROM.
+   *
+   * @param offset The address of the code.
+   * @return The code, null if none was compiled there or the address is not in ROM.
+   */
+  public final Object readCompiledCode(final int offset) {
+    final int address = offset & ADDRESS_MASK;
+    final int page = address >>> PAGE_SHIFT;
+    final Object[] compiled = compiledPages[page];
+    return compiled == null ? null : compiled[address & PAGE_OFFSET_MASK];
+  }
+
+  /**
+   * Keeps code compiled by the CPU from an address of ROM. The code must not depend on bytes
+   * beyond the end of its page, the next page being possibly switched alone.
+   *
+   * @param offset The address of the code.
+   * @param code The compiled code, null to forget it.
+   * @return false if the address is not in ROM, so the code cannot be kept.
+   */
+  public final boolean writeCompiledCode(final int offset, final Object code) {
+    final int address = offset & ADDRESS_MASK;
+    final int page = address >>> PAGE_SHIFT;
+    Object[] compiled = compiledPages[page];
+    if (compiled == null) {
+      final DecodedRom rom = romPages[page];
+      if (rom == null) {
+        return false;
+      }
+      compiled = rom.getCode(pageOffsets[page] >> PAGE_SHIFT);
+      compiledPages[page] = compiled;
+    }
+    compiled[address & PAGE_OFFSET_MASK] = code;
+    return true;
+  }
+
+  /**
+   * Returns the number of page mappings done so far. It changes on each bank switch, so code
+   * running from ROM can check that its pages were not switched.
+   */
+  public final int getMappingCount() {
+    return mappingCount;
+  }
+
+  /**
+   * Reads a little endian 16 bits value. When both bytes are in the same page, which is almost
+   * always the case, only one page lookup is done.
+   *
+   * @see AbstractMemoryController#read16(int)
+   */
+  @Override
+  public final int read16(final int offset) {
+    final int address = offset & ADDRESS_MASK;
+    final int page = address >>> PAGE_SHIFT;
+    final byte[] data = readPages[page];
+    if ((address & PAGE_OFFSET_MASK) == PAGE_OFFSET_MASK || data == null) {
+      // The high byte is in the next page, or the bytes are registers read one by one
+      return read8(address) | (read8(address + 1) << MOST_SIGNIFICANT_BYTE_SHIFT);
+    }
+    final int index = pageOffsets[page] + (address & PAGE_OFFSET_MASK);
+    final int lowByte = data[index] & BYTE_MASK;
+    return lowByte | ((data[index + 1] & BYTE_MASK) << MOST_SIGNIFICANT_BYTE_SHIFT);
+  }
+
+  /**
+   * Reads a little endian 16 bits pointer in zero page, the high byte being read at the beginning
+   * of the zero page when the low byte is at its end.
+   *
+   * @see AbstractMemoryController#read16ZeroPage(int)
+   */
+  @Override
+  public final int read16ZeroPage(final int offset) {
+    final byte[] data = readPages[0];
+    final int pageOffset = pageOffsets[0];
+    final int lowByte = data[pageOffset + (offset & PAGE_OFFSET_MASK)] & BYTE_MASK;
+    final int highByte = data[pageOffset + ((offset + 1) & PAGE_OFFSET_MASK)] & BYTE_MASK;
+    return lowByte | (highByte << MOST_SIGNIFICANT_BYTE_SHIFT);
+  }
+
+  /**
+   * Reads the memory at the specified offset through the page table. The offset is wrapped around
+   * the 16 bits address space, so the read never fails.
+   *
+   * @param offset The offset where is the data to read.
+   * @return The value read in memory.
+   * @see AbstractMemoryController#readMemory(int)
+   */
+  @Override
+  public final int readMemory(final int offset) {
+    return read8(offset);
+  }
+
+  /**
+   * Writes the specified data into memory at the specified offset.
+   *
+   * @param offset The offset where is the data to read.
+   * @param data The value to write in memory.
+   * @see #write8(int, int)
+   */
+  @Override
+  public final void writeMemory(final int offset, final int data) {
+    write8(offset, data);
+  }
+
+  /**
+   * Writes a byte through the page table. The offset is wrapped around the 16 bits address space
+   * and writes to a read only page are given to {@link #writeReadOnlyMemory(int, int)}, so the
+   * write never fails.
+   *
+   * @param offset The offset where is the data to write.
+   * @param data The value to write in memory.
+   */
+  public final void write8(final int offset, final int data) {
+    final int address = offset & ADDRESS_MASK;
+    final int page = address >>> PAGE_SHIFT;
+    final byte[] pageData = writePages[page];
+    if (pageData == null) {
+      writeReadOnlyMemory(address, data);
+    } else {
+      pageData[pageOffsets[page] + (address & PAGE_OFFSET_MASK)] = (byte) (data & BYTE_MASK);
+      dirtyPages |= pageDirtyBits[page];
+    }
+  }
+
+  /**
+   * Reads a register of a page without backing array. The controller ports are read first, then
+   * the devices mapped, the other registers reading as an open bus.
+   *
+   * @param offset The offset read, inside the address space.
+   * @return The value of the register.
+   */
+  private int readRegister(final int offset) {
+    if (offset == FIRST_CONTROLLER_PORT || offset == SECOND_CONTROLLER_PORT) {
+      return CONTROLLER_OPEN_BUS_BITS | controllers[offset - FIRST_CONTROLLER_PORT].read();
+    }
+    final MemoryMappedDevice device = getDevice(offset);
+    final int value = device == null ? MemoryMappedDevice.OPEN_BUS : device.readRegister(offset);
+    return value == MemoryMappedDevice.OPEN_BUS ? OPEN_BUS_VALUE & BYTE_MASK : value & BYTE_MASK;
+  }
+
+  /**
+   * Handles a write into a read only page. Writes to the first controller port set the strobe of
+   * the controllers, writes to the registers of a device are given to it, writes to the other
+   * registers are ignored and writes to the program ROM are bus faults. Mappers override it to
+   * catch writes to their registers, mapped over the program ROM.
+   *
+   * @param offset The offset written, inside the address space.
+   * @param data The value written.
+   */
+  protected void writeReadOnlyMemory(final int offset, final int data) {
+    if (offset >= MEMORY_SIZE) {
+      reportFault(offset);
+    } else if (offset == FIRST_CONTROLLER_PORT) {
+      final boolean isStrobe = (data & 1) != 0;
+      for (final StandardController controller : controllers) {
+        controller.setStrobe(isStrobe);
+      }
+    } else {
+      final MemoryMappedDevice device = getDevice(offset);
+      if (device != null) {
+        device.writeRegister(offset, data & BYTE_MASK);
+      }
+    }
+  }
+
+  private MemoryMappedDevice getDevice(final int offset) {
+    final int page = offset >>> PAGE_SHIFT;
+    if (page != IO_REGISTERS_PAGE) {
+      return devicePages[page];
+    }
+    final int register = offset & PAGE_OFFSET_MASK;
+    return register < IO_REGISTER_COUNT ? ioDevices[register] : null;
+  }
+
+  /**
+   * Maps a device on whole pages of registers, like the PPU registers mirrored from 0x2000 to
+   * 0x3FFF. The pages lose their backing array, so that all their accesses reach the device.
+   *
+   * @param firstPage The first page to map, which is the high byte of its first address.
+   * @param pageCount The number of pages to map.
+   * @param device The device handling the accesses.
+   */
+  public final void mapDevicePages(final int firstPage, final int pageCount,
+      final MemoryMappedDevice device) {
+    for (int page = firstPage; page < firstPage + pageCount; page++) {
+      readPages[page] = null;
+      writePages[page] = null;
+      pageDirtyBits[page] = 0;
+      romPages[page] = null;
+      decodedPages[page] = null;
+      compiledPages[page] = null;
+      devicePages[page] = device;
+    }
+    mappingCount++;
+  }
+
+  /**
+   * Maps a device on a register of the page at 0x4000, shared by the APU, the OAM DMA and the
+   * controller ports. The reads of the controller ports and the strobe writes stay with the
+   * controllers.
+   *
+   * @param offset The address of the register, from 0x4000 to 0x401F.
+   * @param device The device handling the accesses.
+   * @throws IllegalArgumentException If the address is not a register of the page.
+   */
+  public final void mapDeviceRegister(final int offset, final MemoryMappedDevice device) {
+    if (offset >>> PAGE_SHIFT != IO_REGISTERS_PAGE
+        || (offset & PAGE_OFFSET_MASK) >= IO_REGISTER_COUNT) {
+      throw new IllegalArgumentException(String.format("%04X is not an I/O register", offset));
+    }
+    ioDevices[offset & PAGE_OFFSET_MASK] = device;
+  }
+
+  /**
+   * Returns the controller plugged in a port.
+   *
+   * @param port The port, 0 for the first one or 1 for the second one.
+   */
+  public final StandardController getController(final int port) {
+    return controllers[port];
+  }
+
+  /**
+   * Reads the video memory at the specified offset through the video page table. The offset is
+   * wrapped around the 14 bits PPU address space, so the read never fails.
+   *
+   * @param offset The offset where is the data to read.
+   * @return The value read in video memory.
+   * @see AbstractMemoryController#readVideoMemory(int)
+   */
+  @Override
+  public final int readVideoMemory(final int offset) {
+    final int address = offset & VIDEO_ADDRESS_MASK;
+    if (address >= PALETTE_OFFSET) {
+      return palette[getPaletteIndex(address)] & BYTE_MASK;
+    }
+    final int page = address >>> VIDEO_PAGE_SHIFT;
+    return readVideoPages[page][videoPageOffsets[page] + (address & VIDEO_PAGE_OFFSET_MASK)]
+        & BYTE_MASK;
+  }
+
+  /**
+   * Writes the specified data into video memory at the specified offset. The offset is wrapped
+   * around the 14 bits PPU address space and writes to the character ROM are bus faults.
+   *
+   * @param offset The offset where is the data to read.
+   * @param data The value to write in video memory.
+   * @see AbstractMemoryController#writeVideoMemory(int, int)
+   */
+  @Override
+  public final void writeVideoMemory(final int offset, final int data) {
+    final int address = offset & VIDEO_ADDRESS_MASK;
+    if (address >= PALETTE_OFFSET) {
+      palette[getPaletteIndex(address)] = (byte) (data & BYTE_MASK);
+      return;
+    }
+    final int page = address >>> VIDEO_PAGE_SHIFT;
+    final byte[] pageData = writeVideoPages[page];
+    if (pageData == null) {
+      reportFault(address);
+    } else {
+      final int dataOffset = videoPageOffsets[page] + (address & VIDEO_PAGE_OFFSET_MASK);
+      pageData[dataOffset] = (byte) (data & BYTE_MASK);
+      dirtyPages |= videoPageDirtyBits[page];
+      final byte[] tiles = tilePages[page];
+      if (tiles != null) {
+        tiles[(address & VIDEO_PAGE_OFFSET_MASK & -TILE_SIZE) << TILE_PIXEL_SHIFT] = INVALID_PIXEL;
+      }
+    }
+  }
+
+  /**
+   * Returns the pixels decoded from the pattern tiles behind the video page of an address. Each
+   * tile takes 64 bytes holding the colors of its pixels, from 0 to 3, row by row. A tile is
+   * decoded by {@link #decodeTile(int)} before its pixels are read, which also allocates them.
+   *
+   * @param offset An address in the pattern tables.
+   * @return The decoded pixels.
+   */
+  public final byte[] getTilePixels(final int offset) {
+    return tilePages[(offset & VIDEO_ADDRESS_MASK) >>> VIDEO_PAGE_SHIFT];
+  }
+
+  /**
+   * Decodes the pattern tile at an address, unless it was decoded since its last write.
+   *
+   * @param offset The address of the first byte of the tile in the pattern tables.
+   * @return The offset of the first pixel of the tile in {@link #getTilePixels(int)}.
+   */
+  public final int decodeTile(final int offset) {
+    final int address = offset & VIDEO_ADDRESS_MASK;
+    final int page = address >>> VIDEO_PAGE_SHIFT;
+    final int tileOffset = address & VIDEO_PAGE_OFFSET_MASK & -TILE_SIZE;
+    final int pixelOffset = tileOffset << TILE_PIXEL_SHIFT;
+    byte[] pixels = tilePages[page];
+    if (pixels == null) {
+      pixels = createTilePage(page);
+      tilePages[page] = pixels;
+    }
+    if (pixels[pixelOffset] == INVALID_PIXEL) {
+      decodeTile(readVideoPages[page], videoPageOffsets[page] + tileOffset, pixels, pixelOffset);
+    }
+    return pixelOffset;
+  }
+
+  /**
+   * Decodes the two bit planes of a tile into its 64 pixels.
+   *
+   * @param data The array holding the tile.
+   * @param dataOffset The offset of the tile in the array.
+   * @param pixels The array receiving the pixels.
+   * @param pixelOffset The offset of the first pixel in the array.
+   */
+  private static void decodeTile(final byte[] data, final int dataOffset, final byte[] pixels,
+      final int pixelOffset) {
+    int pixel = pixelOffset;
+    for (int row = 0; row < TILE_HEIGHT; row++) {
+      final int low = data[dataOffset + row];
+      final int high = data[dataOffset + row + TILE_PLANE_OFFSET];
+      for (int bit = TILE_WIDTH - 1; bit >= 0; bit--) {
+        pixels[pixel++] = (byte) (((low >> bit) & 1) | (((high >> bit) & 1) << 1));
+      }
+    }
+  }
+
+  /**
+   * Records a write where nothing can be written, following the fault policy.
+   *
+   * @param offset The offset written.
+   */
+  protected final void reportFault(final int offset) {
+    switch (faultPolicy) {
+      case HALT:
+        isHaltRequested = true;
+        faultCount++;
+        lastFaultAddress = offset;
+        break;
+      case COUNT:
+        faultCount++;
+        lastFaultAddress = offset;
+        break;
+      default:
+        break;
+    }
+  }
+
+  public BusFaultPolicy getFaultPolicy() {
+    return faultPolicy;
+  }
+
+  public void setFaultPolicy(final BusFaultPolicy faultPolicy) {
+    this.faultPolicy = faultPolicy;
+  }
+
+  /**
+   * Returns the number of faults since the controller was created, only counted when the policy
+   * is not {@link BusFaultPolicy#IGNORE}.
+   */
+  public long getFaultCount() {
+    return faultCount;
+  }
+
+  /**
+   * Returns the offset of the last fault counted.
+   */
+  public int getLastFaultAddress() {
+    return lastFaultAddress;
+  }
+
+  /**
+   * Indicates if a fault happened under the {@link BusFaultPolicy#HALT} policy, the CPU checking
+   * it before each instruction.
+   */
+  public boolean isHaltRequested() {
+    return isHaltRequested;
+  }
+
+  /**
+   * Clears a halt request, to resume the execution after a fault.
+   */
+  public void clearHaltRequest() {
+    isHaltRequested = false;
+  }
+
+  /**
+   * Indicates if the mapper asserts the CPU IRQ line, never for the controllers without scanline
+   * counter.
+   */
+  public boolean isIrqPending() {
+    return false;
+  }
+
+  /**
+   * Clocks the scanline counter of the mapper, which the PPU does once per scanline when
+   * rendering. Controllers without scanline counter ignore it.
+   */
+  public void clockScanlineCounter() {
+  }
+
+  /**
+   * Returns the number of scanline counter clocks until the mapper raises an IRQ, {@link #NO_IRQ}
+   * if it raises none until its registers are written.
+   */
+  public int getClocksToIrq() {
+    return NO_IRQ;
+  }
+
+  /**
+   * Sets the listener called before each write to the scanline counter, so that the PPU clocking
+   * the counter catches up with the CPU first, then predicts the next IRQ again.
+   *
+   * @param listener The listener, null to remove it.
+   */
+  public final void setScanlineCounterListener(final Runnable listener) {
+    scanlineCounterListener = listener;
+  }
+
+  /**
+   * Tells the listener that the scanline counter is about to be written.
+   */
+  protected final void fireScanlineCounterWrite() {
+    if (scanlineCounterListener != null) {
+      scanlineCounterListener.run();
+    }
+  }
+
+  /**
+   * Returns the largest size of the memory state, full or delta, when nothing can be compressed.
+   */
+  public final int getMaximumStateSize() {
+    // The dirty pages mask of a delta state is larger than its array lengths
+    return Long.BYTES + StateFormat.getMaximumArraySize(getMemoryTable())
+        + StateFormat.getMaximumArraySize(programRam)
+        + StateFormat.getMaximumArraySize(getVideoMemoryTable())
+        + StateFormat.getMaximumArraySize(characterRam)
+        + StateFormat.getMaximumArraySize(palette) + STATE_FIELDS_SIZE + getRegistersSize();
+  }
+
+  /**
+   * Forgets the pages written so far, the next delta state holding only the pages written from
+   * now.
+   */
+  public final void clearDirtyPages() {
+    dirtyPages = 0;
+  }
+
+  /**
+   * Returns the number of RAM pages written since the dirty pages were cleared.
+   */
+  public final int getDirtyPageCount() {
+    return Long.bitCount(dirtyPages);
+  }
+
+  /**
+   * Writes the memory state: the RAMs, the mirroring, the controllers and the registers of the
+   * mapper, which give back the mapped banks. The ROMs are not saved.
+   *
+   * @param buffer The buffer receiving the state.
+   * @param isCompressed true to compress the RAMs.
+   */
+  public final void saveState(final ByteBuffer buffer, final boolean isCompressed) {
+    StateFormat.writeArray(buffer, getMemoryTable(), isCompressed);
+    StateFormat.writeArray(buffer, programRam, isCompressed);
+    StateFormat.writeArray(buffer, getVideoMemoryTable(), isCompressed);
+    StateFormat.writeArray(buffer, characterRam, isCompressed);
+    saveMappingState(buffer, isCompressed);
+  }
+
+  /**
+   * Writes a delta state: the RAM pages written since the previous delta state or since the dirty
+   * pages were cleared, then the palette, the mirroring, the controllers and the registers of the
+   * mapper. The dirty pages are cleared.
+   *
+   * @param buffer The buffer receiving the state.
+   * @param isCompressed true to compress the pages.
+   */
+  public final void saveDirtyPages(final ByteBuffer buffer, final boolean isCompressed) {
+    final long pages = dirtyPages;
+    buffer.putLong(pages);
+    for (long remaining = pages; remaining != 0; remaining &= remaining - 1) {
+      final int bit = Long.numberOfTrailingZeros(remaining);
+      StateFormat.writeBytes(buffer, getDirtyPageMemory(bit), getDirtyPageOffset(bit),
+          getDirtyPageSize(bit), isCompressed);
+    }
+    saveMappingState(buffer, isCompressed);
+    dirtyPages = 0;
+  }
+
+  /**
+   * Restores a memory state written by {@link #saveState} into the existing RAMs, then remaps the
+   * banks. If the state is invalid, the memory may be partially restored.
+   *
+   * @param buffer The buffer holding the state.
+   * @param isCompressed true if the RAMs were compressed.
+   * @throws InvalidStateException If the state was saved with another cartridge.
+   */
+  public final void loadState(final ByteBuffer buffer, final boolean isCompressed)
+      throws InvalidStateException {
+    StateFormat.readArray(buffer, getMemoryTable(), isCompressed);
+    StateFormat.readArray(buffer, programRam, isCompressed);
+    StateFormat.readArray(buffer, getVideoMemoryTable(), isCompressed);
+    StateFormat.readArray(buffer, characterRam, isCompressed);
+    invalidateTiles();
+    loadMappingState(buffer, isCompressed);
+    dirtyPages = allPages;
+  }
+
+  /**
+   * Restores a delta state written by {@link #saveDirtyPages} on top of the state it follows. The
+   * restored pages are marked as written.
+   *
+   * @param buffer The buffer holding the state.
+   * @param isCompressed true if the pages were compressed.
+   * @throws InvalidStateException If the state was saved with another cartridge.
+   */
+  public final void loadDirtyPages(final ByteBuffer buffer, final boolean isCompressed)
+      throws InvalidStateException {
+    final long pages = buffer.getLong();
+    if ((pages & ~allPages) != 0) {
+      throw new InvalidStateException("Memory size mismatch, the state is from another cartridge");
+    }
+    for (long remaining = pages; remaining != 0; remaining &= remaining - 1) {
+      final int bit = Long.numberOfTrailingZeros(remaining);
+      StateFormat.readBytes(buffer, getDirtyPageMemory(bit), getDirtyPageOffset(bit),
+          getDirtyPageSize(bit), isCompressed);
+    }
+    invalidateTiles();
+    loadMappingState(buffer, isCompressed);
+    dirtyPages |= pages;
+  }
+
+  private void saveMappingState(final ByteBuffer buffer, final boolean isCompressed) {
+    StateFormat.writeArray(buffer, palette, isCompressed);
+    buffer.put((byte) mirroring.ordinal());
+    for (final StandardController controller : controllers) {
+      buffer.putShort((short) controller.getState());
+    }
+    buffer.putShort((short) getRegistersSize());
+    saveRegisters(buffer);
+  }
+
+  private void loadMappingState(final ByteBuffer buffer, final boolean isCompressed)
+      throws InvalidStateException {
+    StateFormat.readArray(buffer, palette, isCompressed);
+    final int mirroringIndex = buffer.get();
+    if (mirroringIndex < 0 || mirroringIndex >= MIRRORINGS.length) {
+      throw new InvalidStateException("Unknown mirroring " + mirroringIndex);
+    }
+    for (final StandardController controller : controllers) {
+      controller.setState(buffer.getShort());
+    }
+    if (buffer.getShort() != getRegistersSize()) {
+      throw new InvalidStateException("Mapper mismatch, the state is from another cartridge");
+    }
+    setMirroring(MIRRORINGS[mirroringIndex]);
+    loadRegisters(buffer);
+  }
+
+  /**
+   * Returns the number of bytes written by {@link #saveRegisters(ByteBuffer)}, none by default.
+   */
+  protected int getRegistersSize() {
+    return 0;
+  }
+
+  /**
+   * Writes the registers of the mapper in a state. Controllers without register write nothing.
+   *
+   * @param buffer The buffer receiving the state.
+   */
+  protected void saveRegisters(final ByteBuffer buffer) {
+  }
+
+  /**
+   * Reads the registers written by {@link #saveRegisters(ByteBuffer)} and maps the banks they
+   * select.
+   *
+   * @param buffer The buffer holding the state.
+   */
+  protected void loadRegisters(final ByteBuffer buffer) {
+  }
+
+  /**
+   * Returns the instructions decoded and the code compiled from an array of ROM, null if the array
+   * can be written, even when it is mapped read only.
+   */
+  private DecodedRom getDecodedRom(final byte[] data) {
+    if (data == getMemoryTable() || data == programRam || data == OPEN_BUS_PAGE) {
+      return null;
+    }
+    return decodedRoms.computeIfAbsent(data, rom -> new DecodedRom(getSharedInstructions(rom)));
+  }
+
+  /**
+   * Returns the tables of the instructions decoded in the pages of an array of ROM, shared by all
+   * the controllers mapping the array.
+   */
+  private static int[][] getSharedInstructions(final byte[] rom) {
+    synchronized (SHARED_INSTRUCTIONS) {
+      return SHARED_INSTRUCTIONS.computeIfAbsent(rom,
+          data -> new int[(data.length + PAGE_SIZE - 1) >> PAGE_SHIFT][]);
+    }
+  }
+
+  /**
+   * Returns the pixels already decoded from the tiles behind a pattern page, null if none were.
+   */
+  private byte[] findTilePage(final int page) {
+    final byte[] data = readVideoPages[page];
+    final int index = videoPageOffsets[page] >> VIDEO_PAGE_SHIFT;
+    if (data == characterRam) {
+      return ramTiles[index];
+    }
+    return getRomTiles(data).get(index);
+  }
+
+  /**
+   * Returns the pixels decoded from the tiles behind a pattern page, allocating them the first
+   * time. A page of ROM is decoded whole, a page of RAM has all its tiles to decode.
+   */
+  private byte[] createTilePage(final int page) {
+    final byte[] data = readVideoPages[page];
+    final int index = videoPageOffsets[page] >> VIDEO_PAGE_SHIFT;
+    if (data == characterRam) {
+      if (ramTiles[index] == null) {
+        ramTiles[index] = new byte[VIDEO_PAGE_SIZE << TILE_PIXEL_SHIFT];
+        Arrays.fill(ramTiles[index], INVALID_PIXEL);
+      }
+      return ramTiles[index];
+    }
+    final AtomicReferenceArray<byte[]> tiles = getRomTiles(data);
+    final byte[] decoded = tiles.get(index);
+    if (decoded != null) {
+      return decoded;
+    }
+    final byte[] pixels = new byte[VIDEO_PAGE_SIZE << TILE_PIXEL_SHIFT];
+    for (int tile = 0; tile < VIDEO_PAGE_SIZE; tile += TILE_SIZE) {
+      decodeTile(data, videoPageOffsets[page] + tile, pixels, tile << TILE_PIXEL_SHIFT);
+    }
+    // Another controller may have decoded the same page meanwhile, its pixels are the same
+    return tiles.compareAndSet(index, null, pixels) ? pixels : tiles.get(index);
+  }
+
+  /**
+   * Returns the pixels decoded from the pages of an array of character ROM, shared by all the
+   * controllers mapping the array.
+   */
+  private AtomicReferenceArray<byte[]> getRomTiles(final byte[] rom) {
+    return romTiles.computeIfAbsent(rom, data -> {
+      synchronized (SHARED_TILES) {
+        return SHARED_TILES.computeIfAbsent(data,
+            key -> new AtomicReferenceArray<>(key.length >> VIDEO_PAGE_SHIFT));
+      }
+    });
+  }
+
+  /**
+   * Marks all the tiles of the character RAM as to decode, once it has been restored.
+   */
+  private void invalidateTiles() {
+    for (final byte[] pixels : ramTiles) {
+      if (pixels != null) {
+        Arrays.fill(pixels, INVALID_PIXEL);
+      }
+    }
+  }
+
+  /**
+   * Returns the dirty bit of a CPU page backed by RAM.
+   */
+  private long getDirtyBit(final byte[] data, final int dataOffset) {
+    if (data == getMemoryTable()) {
+      return 1L << (WORK_RAM_FIRST_BIT + (dataOffset >> PAGE_SHIFT));
+    }
+    if (data == programRam) {
+      return 1L << (PROGRAM_RAM_FIRST_BIT + (dataOffset >> PAGE_SHIFT));
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the dirty bit of a video page backed by RAM.
+   */
+  private long getVideoDirtyBit(final byte[] data, final int dataOffset) {
+    if (data == getVideoMemoryTable()) {
+      return 1L << (NAME_TABLE_FIRST_BIT + (dataOffset >> VIDEO_PAGE_SHIFT));
+    }
+    if (data == characterRam) {
+      return 1L << (CHARACTER_RAM_FIRST_BIT + (dataOffset >> VIDEO_PAGE_SHIFT));
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the RAM holding the page of a dirty bit, null if the controller has no such page.
+   */
+  private byte[] getDirtyPageMemory(final int bit) {
+    final byte[] memory;
+    if (bit < PROGRAM_RAM_FIRST_BIT) {
+      memory = getMemoryTable();
+    } else if (bit < NAME_TABLE_FIRST_BIT) {
+      memory = programRam;
+    } else if (bit < CHARACTER_RAM_FIRST_BIT) {
+      memory = getVideoMemoryTable();
+    } else {
+      memory = characterRam;
+    }
+    return memory != null && getDirtyPageOffset(bit) < memory.length ? memory : null;
+  }
+
+  private static int getDirtyPageOffset(final int bit) {
+    if (bit < PROGRAM_RAM_FIRST_BIT) {
+      return (bit - WORK_RAM_FIRST_BIT) << PAGE_SHIFT;
+    } else if (bit < NAME_TABLE_FIRST_BIT) {
+      return (bit - PROGRAM_RAM_FIRST_BIT) << PAGE_SHIFT;
+    } else if (bit < CHARACTER_RAM_FIRST_BIT) {
+      return (bit - NAME_TABLE_FIRST_BIT) << VIDEO_PAGE_SHIFT;
+    }
+    return (bit - CHARACTER_RAM_FIRST_BIT) << VIDEO_PAGE_SHIFT;
+  }
+
+  private static int getDirtyPageSize(final int bit) {
+    return bit < NAME_TABLE_FIRST_BIT ? PAGE_SIZE : VIDEO_PAGE_SIZE;
+  }
+
+  /**
+   * Returns the index of a palette entry, applying the mirrors of the palette.
+   */
+  private static int getPaletteIndex(final int offset) {
+    final int index = offset & PALETTE_INDEX_MASK;
+    if ((index & PALETTE_MIRROR_MASK) == PALETTE_MIRROR_VALUE) {
+      return index & ~PALETTE_MIRROR_VALUE;
+    }
+    return index;
+  }
+
+  /**
+   * Returns the size of the name tables memory, 2KB in the console or 4KB when the cartridge
+   * provides the other two.
+   */
+  private static int getNameTablesSize(final Mirroring mirroring) {
+    final int tableCount = mirroring == Mirroring.FOUR_SCREEN ? NAME_TABLE_COUNT
+        : NAME_TABLE_COUNT / 2;
+    return tableCount * VIDEO_PAGE_SIZE;
+  }
+
+  /**
+   * Tables parallel to the pages of an array of ROM, each one indexed like its page and allocated
+   * when it is first written.
+   */
+  private static final class DecodedRom {
+    /**
+     * Instructions decoded by the CPUs, 0 where none is decoded yet. The tables are shared with the
+     * other controllers, which only ever write the same values, so they are not synchronised: an
+     * instruction missed by a controller is only decoded again.
+     */
+    private final int[][] instructions;
+    /** Code compiled by the CPU of this controller, null until the first block is compiled. */
+    private Object[][] code;
+
+    private DecodedRom(final int[][] instructions) {
+      this.instructions = instructions;
+    }
+
+    private int[] getInstructions(final int romPage) {
+      int[] page = instructions[romPage];
+      if (page == null) {
+        page = new int[PAGE_SIZE];
+        instructions[romPage] = page;
+      }
+      return page;
+    }
+
+    private Object[] getCode(final int romPage) {
+      if (code == null) {
+        code = new Object[instructions.length][];
+      }
+      Object[] page = code[romPage];
+      if (page == null) {
+        page = new Object[PAGE_SIZE];
+        code[romPage] = page;
+      }
+      return page;
+    }
+  }
+
+}
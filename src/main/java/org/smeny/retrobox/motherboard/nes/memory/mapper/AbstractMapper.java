@@ -0,0 +1,183 @@
+/**
+ * AbstractMapper
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.memory.mapper;
+
+import org.smeny.retrobox.motherboard.nes.cartridge.Cartridge;
+import org.smeny.retrobox.motherboard.nes.cartridge.CartridgeReader;
+import org.smeny.retrobox.motherboard.nes.memory.PagedMemoryController;
+
+/**
+ * The class AbstractMapper is the base of the memory mappers wired in cartridges. A mapper catches
+ * the CPU writes over the program ROM and uses them to switch program and character banks. A bank
+ * switch only changes the page tables of the controller, no data is copied.
+ *
+ * <p>Bank numbers given to the mapping methods are wrapped to the number of banks of the cartridge,
+ * as the unused high bits of bank registers are not wired.
+ *
+ * @author Stéphane Meny
+ */
+public abstract class AbstractMapper extends PagedMemoryController {
+  /** Size of a program bank switched by 8KB mappers. */
+  protected static final int PROGRAM_BANK_8K_SIZE = 0x2000;
+  /** Size of the smallest character bank. */
+  protected static final int CHARACTER_BANK_1K_SIZE = 0x0400;
+  /** Offset of the first program ROM byte in the CPU address space. */
+  protected static final int PROGRAM_ROM_OFFSET = 0x8000;
+
+  private static final int PROGRAM_PAGES_8K = PROGRAM_BANK_8K_SIZE >> PAGE_SHIFT;
+  private static final int PROGRAM_FIRST_PAGE = PROGRAM_ROM_OFFSET >> PAGE_SHIFT;
+  private static final int PROGRAM_8K_PER_16K = CartridgeReader.PROGRAM_BANK_SIZE
+      / PROGRAM_BANK_8K_SIZE;
+  private static final int CHARACTER_1K_PER_8K = CartridgeReader.CHARACTER_BANK_SIZE
+      / CHARACTER_BANK_1K_SIZE;
+  private static final int CHARACTER_1K_PER_4K = CHARACTER_1K_PER_8K / 2;
+
+  /** Number of 8KB program banks of the cartridge. */
+  private final int programBank8kCount;
+  /** Number of 1KB character banks of the cartridge, or of its character RAM. */
+  private final int characterBank1kCount;
+
+  /**
+   * Default constructor mapping the memory like a cartridge without mapper.
+   *
+   * @param cart The cartridge the mapper is wired in.
+   */
+  protected AbstractMapper(final Cartridge cart) {
+    super(cart);
+    programBank8kCount = getProgramRom().length * PROGRAM_8K_PER_16K;
+    characterBank1kCount = Math.max(getCharacterRom().length, 1) * CHARACTER_1K_PER_8K;
+  }
+
+  /**
+   * Writes to the program ROM reach the mapper registers.
+   *
+   * @see PagedMemoryController#writeReadOnlyMemory(int, int)
+   */
+  @Override
+  protected final void writeReadOnlyMemory(final int offset, final int data) {
+    if (offset >= PROGRAM_ROM_OFFSET) {
+      writeRegister(offset, data & BYTE_MASK);
+    } else {
+      super.writeReadOnlyMemory(offset, data);
+    }
+  }
+
+  /**
+   * Handles a write to a mapper register.
+   *
+   * @param offset The offset written, from 0x8000 to 0xFFFF.
+   * @param data The value written.
+   */
+  protected abstract void writeRegister(final int offset, final int data);
+
+  /**
+   * Returns the number of 16KB program banks of the cartridge.
+   */
+  protected final int getProgramBank16kCount() {
+    return programBank8kCount / PROGRAM_8K_PER_16K;
+  }
+
+  /**
+   * Returns the number of 8KB program banks of the cartridge.
+   */
+  protected final int getProgramBank8kCount() {
+    return programBank8kCount;
+  }
+
+  /**
+   * Returns the number of 1KB character banks of the cartridge.
+   */
+  protected final int getCharacterBank1kCount() {
+    return characterBank1kCount;
+  }
+
+  /**
+   * Maps a 8KB program bank in one of the four 8KB slots from 0x8000.
+   *
+   * @param slot The slot number, from 0 to 3.
+   * @param bank The 8KB bank number.
+   */
+  protected final void mapProgramBank8k(final int slot, final int bank) {
+    final int wrappedBank = Math.floorMod(bank, programBank8kCount);
+    mapPages(PROGRAM_FIRST_PAGE + slot * PROGRAM_PAGES_8K, PROGRAM_PAGES_8K,
+        getProgramRom()[wrappedBank / PROGRAM_8K_PER_16K],
+        (wrappedBank % PROGRAM_8K_PER_16K) * PROGRAM_BANK_8K_SIZE, false);
+  }
+
+  /**
+   * Maps a 16KB program bank at 0x8000 or 0xC000.
+   *
+   * @param slot The slot number, 0 for 0x8000 and 1 for 0xC000.
+   * @param bank The 16KB bank number.
+   */
+  protected final void mapProgramBank16k(final int slot, final int bank) {
+    final int firstBank = bank * PROGRAM_8K_PER_16K;
+    final int firstSlot = slot * PROGRAM_8K_PER_16K;
+    for (int i = 0; i < PROGRAM_8K_PER_16K; i++) {
+      mapProgramBank8k(firstSlot + i, firstBank + i);
+    }
+  }
+
+  /**
+   * Maps a 32KB program bank from 0x8000.
+   *
+   * @param bank The 32KB bank number.
+   */
+  protected final void mapProgramBank32k(final int bank) {
+    mapProgramBank16k(0, bank * 2);
+    mapProgramBank16k(1, bank * 2 + 1);
+  }
+
+  /**
+   * Maps a 1KB character bank in one of the eight 1KB slots of the pattern tables.
+   *
+   * @param slot The slot number, from 0 to 7.
+   * @param bank The 1KB bank number.
+   */
+  protected final void mapCharacterBank1k(final int slot, final int bank) {
+    final int wrappedBank = Math.floorMod(bank, characterBank1kCount);
+    final int dataOffset = (wrappedBank % CHARACTER_1K_PER_8K) * CHARACTER_BANK_1K_SIZE;
+    if (getCharacterRam() != null) {
+      mapVideoPages(slot, 1, getCharacterRam(), dataOffset, true);
+    } else {
+      mapVideoPages(slot, 1, getCharacterRom()[wrappedBank / CHARACTER_1K_PER_8K], dataOffset,
+          false);
+    }
+  }
+
+  /**
+   * Maps a 4KB character bank at 0x0000 or 0x1000 of the video memory.
+   *
+   * @param slot The slot number, 0 for 0x0000 and 1 for 0x1000.
+   * @param bank The 4KB bank number.
+   */
+  protected final void mapCharacterBank4k(final int slot, final int bank) {
+    for (int i = 0; i < CHARACTER_1K_PER_4K; i++) {
+      mapCharacterBank1k(slot * CHARACTER_1K_PER_4K + i, bank * CHARACTER_1K_PER_4K + i);
+    }
+  }
+
+  /**
+   * Maps a 8KB character bank as both pattern tables.
+   *
+   * @param bank The 8KB bank number.
+   */
+  protected final void mapCharacterBank8k(final int bank) {
+    mapCharacterBank4k(0, bank * 2);
+    mapCharacterBank4k(1, bank * 2 + 1);
+  }
+
+}
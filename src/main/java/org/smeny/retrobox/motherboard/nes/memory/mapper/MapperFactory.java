@@ -0,0 +1,65 @@
+/**
+ * MapperFactory
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.memory.mapper;
+
+import org.smeny.retrobox.exception.UnknownRomFormatException;
+import org.smeny.retrobox.motherboard.nes.cartridge.Cartridge;
+
+/**
+ * This class creates the mapper wired in a cartridge from the mapper number of its header.
+ *
+ * @author Stéphane Meny
+ */
+public final class MapperFactory {
+  private static final int NROM = 0;
+  private static final int MMC1 = 1;
+  private static final int UXROM = 2;
+  private static final int CNROM = 3;
+  private static final int MMC3 = 4;
+
+  /**
+   * Private default constructor to prevent instantiation.
+   */
+  private MapperFactory() {
+  }
+
+  /**
+   * Creates the memory controller of a cartridge.
+   *
+   * @param cart The cartridge loaded.
+   * @return The mapper handling the cartridge memory.
+   * @throws UnknownRomFormatException If the mapper of the cartridge is not supported.
+   */
+  public static AbstractMapper createMapper(final Cartridge cart)
+      throws UnknownRomFormatException {
+    switch (cart.getMapperNumber()) {
+      case NROM:
+        return new Mapper_NROM(cart);
+      case MMC1:
+        return new Mapper_MMC1(cart);
+      case UXROM:
+        return new Mapper_UxROM(cart);
+      case CNROM:
+        return new Mapper_CNROM(cart);
+      case MMC3:
+        return new Mapper_MMC3(cart);
+      default:
+        throw new UnknownRomFormatException("Mapper " + cart.getMapperNumber()
+            + " is not supported");
+    }
+  }
+
+}
@@ -0,0 +1,60 @@
+/**
+ * Mapper_CNROM
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.memory.mapper;
+
+import java.nio.ByteBuffer;
+
+import org.smeny.retrobox.motherboard.nes.cartridge.Cartridge;
+
+/**
+ * Mapper 3, CNROM boards. The program ROM is fixed like without mapper and any write to it selects
+ * the 8KB character bank.
+ *
+ * @author Stéphane Meny
+ */
+public class Mapper_CNROM extends AbstractMapper {
+
+  private static final int REGISTERS_SIZE = 1;
+
+  private int characterBank;
+
+  public Mapper_CNROM(final Cartridge cart) {
+    super(cart);
+  }
+
+  @Override
+  protected void writeRegister(final int offset, final int data) {
+    characterBank = data;
+    mapCharacterBank8k(characterBank);
+  }
+
+  @Override
+  protected int getRegistersSize() {
+    return REGISTERS_SIZE;
+  }
+
+  @Override
+  protected void saveRegisters(final ByteBuffer buffer) {
+    buffer.put((byte) characterBank);
+  }
+
+  @Override
+  protected void loadRegisters(final ByteBuffer buffer) {
+    characterBank = buffer.get() & BYTE_MASK;
+    mapCharacterBank8k(characterBank);
+  }
+
+}
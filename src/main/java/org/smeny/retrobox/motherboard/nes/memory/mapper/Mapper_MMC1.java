@@ -0,0 +1,162 @@
+/**
+ * Mapper_MMC1
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.memory.mapper;
+
+import java.nio.ByteBuffer;
+
+import org.smeny.retrobox.motherboard.nes.cartridge.Cartridge;
+import org.smeny.retrobox.motherboard.nes.cartridge.Mirroring;
+
+/**
+ * Mapper 1, MMC1 boards (SxROM). Registers are written one bit at a time through a serial shift
+ * register: the fifth write copies the five bits received into the register selected by bits 13
+ * and 14 of its offset. A write with bit 7 set resets the shift register.
+ *
+ * <p>The control register selects the mirroring, the program mode (32KB, or 16KB with the first or
+ * the last bank fixed) and the character mode (one 8KB bank or two 4KB banks).
+ *
+ * @author Stéphane Meny
+ */
+public class Mapper_MMC1 extends AbstractMapper {
+  /** Value of the shift register when empty, the bit reaching bit 0 marks the fifth write. */
+  private static final int SHIFT_REGISTER_EMPTY = 0x10;
+  private static final int SHIFT_REGISTER_INPUT_SHIFT = 4;
+  private static final int RESET_BIT = 0x80;
+  private static final int DATA_BIT = 0x01;
+  private static final int REGISTER_SELECT_SHIFT = 13;
+  private static final int REGISTER_SELECT_MASK = 0x03;
+
+  private static final int CONTROL_REGISTER = 0;
+  private static final int CHARACTER_REGISTER_ZERO = 1;
+  private static final int CHARACTER_REGISTER_ONE = 2;
+  private static final int PROGRAM_REGISTER = 3;
+
+  private static final int MIRRORING_MASK = 0x03;
+  private static final int PROGRAM_MODE_SHIFT = 2;
+  private static final int PROGRAM_MODE_MASK = 0x03;
+  /** Program mode bits set at reset, 16KB banks with the last one fixed at 0xC000. */
+  private static final int PROGRAM_MODE_RESET = PROGRAM_MODE_MASK << PROGRAM_MODE_SHIFT;
+  private static final int PROGRAM_MODE_FIX_FIRST = 2;
+  private static final int PROGRAM_MODE_FIX_LAST = 3;
+  private static final int CHARACTER_MODE_4K_BIT = 0x10;
+  private static final int PROGRAM_BANK_MASK = 0x0F;
+  /** The shift register and the four registers, one byte each. */
+  private static final int REGISTERS_SIZE = 5;
+
+  /** Mirroring selected by the two low bits of the control register. */
+  private static final Mirroring[] MIRRORINGS = {Mirroring.SINGLE_SCREEN_LOWER,
+      Mirroring.SINGLE_SCREEN_UPPER, Mirroring.VERTICAL, Mirroring.HORIZONTAL};
+
+  private int shiftRegister = SHIFT_REGISTER_EMPTY;
+  private int control = PROGRAM_MODE_RESET;
+  private int characterBankZero;
+  private int characterBankOne;
+  private int programBank;
+
+  public Mapper_MMC1(final Cartridge cart) {
+    super(cart);
+  }
+
+  @Override
+  protected void writeRegister(final int offset, final int data) {
+    if ((data & RESET_BIT) != 0) {
+      shiftRegister = SHIFT_REGISTER_EMPTY;
+      control |= PROGRAM_MODE_RESET;
+      updateProgramBanks();
+      return;
+    }
+
+    final boolean isLastWrite = (shiftRegister & DATA_BIT) != 0;
+    shiftRegister = (shiftRegister >> 1) | ((data & DATA_BIT) << SHIFT_REGISTER_INPUT_SHIFT);
+    if (isLastWrite) {
+      final int value = shiftRegister;
+      shiftRegister = SHIFT_REGISTER_EMPTY;
+      switch ((offset >> REGISTER_SELECT_SHIFT) & REGISTER_SELECT_MASK) {
+        case CONTROL_REGISTER:
+          control = value;
+          setMirroring(MIRRORINGS[control & MIRRORING_MASK]);
+          updateProgramBanks();
+          updateCharacterBanks();
+          break;
+        case CHARACTER_REGISTER_ZERO:
+          characterBankZero = value;
+          updateCharacterBanks();
+          break;
+        case CHARACTER_REGISTER_ONE:
+          characterBankOne = value;
+          updateCharacterBanks();
+          break;
+        default:
+          programBank = value & PROGRAM_BANK_MASK;
+          updateProgramBanks();
+          break;
+      }
+    }
+  }
+
+  @Override
+  protected int getRegistersSize() {
+    return REGISTERS_SIZE;
+  }
+
+  @Override
+  protected void saveRegisters(final ByteBuffer buffer) {
+    buffer.put((byte) shiftRegister);
+    buffer.put((byte) control);
+    buffer.put((byte) characterBankZero);
+    buffer.put((byte) characterBankOne);
+    buffer.put((byte) programBank);
+  }
+
+  @Override
+  protected void loadRegisters(final ByteBuffer buffer) {
+    shiftRegister = buffer.get() & BYTE_MASK;
+    control = buffer.get() & BYTE_MASK;
+    characterBankZero = buffer.get() & BYTE_MASK;
+    characterBankOne = buffer.get() & BYTE_MASK;
+    programBank = buffer.get() & BYTE_MASK;
+    updateProgramBanks();
+    updateCharacterBanks();
+  }
+
+  private void updateProgramBanks() {
+    switch ((control >> PROGRAM_MODE_SHIFT) & PROGRAM_MODE_MASK) {
+      case PROGRAM_MODE_FIX_FIRST:
+        mapProgramBank16k(0, 0);
+        mapProgramBank16k(1, programBank);
+        break;
+      case PROGRAM_MODE_FIX_LAST:
+        mapProgramBank16k(0, programBank);
+        mapProgramBank16k(1, getProgramBank16kCount() - 1);
+        break;
+      default:
+        // 32KB mode, the low bit of the bank number is ignored
+        mapProgramBank32k(programBank >> 1);
+        break;
+    }
+  }
+
+  private void updateCharacterBanks() {
+    if ((control & CHARACTER_MODE_4K_BIT) != 0) {
+      mapCharacterBank4k(0, characterBankZero);
+      mapCharacterBank4k(1, characterBankOne);
+    } else {
+      // 8KB mode, the low bit of the bank number is ignored
+      mapCharacterBank8k(characterBankZero >> 1);
+    }
+  }
+
+}
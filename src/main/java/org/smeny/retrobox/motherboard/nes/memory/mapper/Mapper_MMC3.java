@@ -0,0 +1,222 @@
+/**
+ * Mapper_MMC3
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.memory.mapper;
+
+import java.nio.ByteBuffer;
+
+import org.smeny.retrobox.motherboard.nes.cartridge.Cartridge;
+import org.smeny.retrobox.motherboard.nes.cartridge.Mirroring;
+
+/**
+ * Mapper 4, MMC3 boards (TxROM). Eight bank registers R0 to R7 are selected by a write at an even
+ * offset from 0x8000 and written at the following odd offset. R0 and R1 select 2KB character
+ * banks, R2 to R5 1KB character banks, R6 and R7 8KB program banks. The last program bank is fixed
+ * at 0xE000, the second last one at 0xC000 or 0x8000 depending on the program mode.
+ *
+ * <p>The mapper also counts the scanlines through {@link #clockScanlineCounter()} and raises an
+ * IRQ when its counter reaches zero. The PPU is told before each write to the counter registers,
+ * so that it clocks the counter up to the write first.
+ *
+ * @author Stéphane Meny
+ */
+public class Mapper_MMC3 extends AbstractMapper {
+  /** Bits 13 and 14 of the offset, with bit 0, select the register written. */
+  private static final int REGISTER_SELECT_MASK = 0xE001;
+  private static final int BANK_SELECT = 0x8000;
+  private static final int BANK_DATA = 0x8001;
+  private static final int MIRRORING = 0xA000;
+  private static final int PROGRAM_RAM_PROTECT = 0xA001;
+  private static final int IRQ_LATCH = 0xC000;
+  private static final int IRQ_RELOAD = 0xC001;
+  private static final int IRQ_DISABLE = 0xE000;
+
+  private static final int BANK_REGISTER_COUNT = 8;
+  private static final int BANK_REGISTER_MASK = 0x07;
+  private static final int PROGRAM_MODE_BIT = 0x40;
+  private static final int CHARACTER_INVERSION_BIT = 0x80;
+  private static final int HORIZONTAL_MIRRORING_BIT = 0x01;
+  /** Character slot of the 1KB banks, XORed with this value when the character mode is inverted. */
+  private static final int CHARACTER_INVERSION_SLOT = 4;
+  private static final int FIRST_PROGRAM_REGISTER = 6;
+  /** The bank registers, the bank select, the IRQ latch and counter, then the IRQ flags. */
+  private static final int REGISTERS_SIZE = BANK_REGISTER_COUNT + 4;
+  private static final int IRQ_RELOAD_FLAG = 0x01;
+  private static final int IRQ_ENABLED_FLAG = 0x02;
+  private static final int IRQ_PENDING_FLAG = 0x04;
+
+  private final int[] bankRegisters = new int[BANK_REGISTER_COUNT];
+  private final boolean hasFourScreens;
+  private int bankSelect;
+
+  private int irqLatch;
+  private int irqCounter;
+  private boolean isIrqReloadRequested;
+  private boolean isIrqEnabled;
+  private boolean isIrqPending;
+
+  public Mapper_MMC3(final Cartridge cart) {
+    super(cart);
+    hasFourScreens = cart.getMirroring() == Mirroring.FOUR_SCREEN;
+    updateProgramBanks();
+    updateCharacterBanks();
+  }
+
+  @Override
+  protected void writeRegister(final int offset, final int data) {
+    switch (offset & REGISTER_SELECT_MASK) {
+      case BANK_SELECT:
+        bankSelect = data;
+        updateProgramBanks();
+        updateCharacterBanks();
+        break;
+      case BANK_DATA:
+        bankRegisters[bankSelect & BANK_REGISTER_MASK] = data;
+        if ((bankSelect & BANK_REGISTER_MASK) >= FIRST_PROGRAM_REGISTER) {
+          updateProgramBanks();
+        } else {
+          updateCharacterBanks();
+        }
+        break;
+      case MIRRORING:
+        if (!hasFourScreens) {
+          final boolean isHorizontal = (data & HORIZONTAL_MIRRORING_BIT) != 0;
+          setMirroring(isHorizontal ? Mirroring.HORIZONTAL : Mirroring.VERTICAL);
+        }
+        break;
+      case PROGRAM_RAM_PROTECT:
+        // The program RAM is always enabled and writable
+        break;
+      case IRQ_LATCH:
+        fireScanlineCounterWrite();
+        irqLatch = data;
+        break;
+      case IRQ_RELOAD:
+        fireScanlineCounterWrite();
+        irqCounter = 0;
+        isIrqReloadRequested = true;
+        break;
+      case IRQ_DISABLE:
+        fireScanlineCounterWrite();
+        isIrqEnabled = false;
+        isIrqPending = false;
+        break;
+      default:
+        fireScanlineCounterWrite();
+        isIrqEnabled = true;
+        break;
+    }
+  }
+
+  /**
+   * Clocks the scanline counter, which the PPU does once per visible scanline when rendering is
+   * enabled. The counter is reloaded from the latch when it is zero or when a reload was
+   * requested, otherwise it is decremented. An IRQ is raised when it becomes zero.
+   */
+  @Override
+  public final void clockScanlineCounter() {
+    if (irqCounter == 0 || isIrqReloadRequested) {
+      irqCounter = irqLatch;
+      isIrqReloadRequested = false;
+    } else {
+      irqCounter--;
+    }
+    if (irqCounter == 0 && isIrqEnabled) {
+      isIrqPending = true;
+    }
+  }
+
+  /**
+   * Indicates if the mapper asserts the CPU IRQ line. It is released by a write at 0xE000.
+   *
+   * @return true if an IRQ is pending.
+   */
+  @Override
+  public final boolean isIrqPending() {
+    return isIrqPending;
+  }
+
+  /**
+   * Returns the number of clocks until an IRQ is raised: the counter reaches zero after its value
+   * of clocks, or after the latch plus one when the next clock reloads it.
+   */
+  @Override
+  public final int getClocksToIrq() {
+    if (!isIrqEnabled) {
+      return NO_IRQ;
+    }
+    if (irqCounter == 0 || isIrqReloadRequested) {
+      return irqLatch + 1;
+    }
+    return irqCounter;
+  }
+
+  @Override
+  protected int getRegistersSize() {
+    return REGISTERS_SIZE;
+  }
+
+  @Override
+  protected void saveRegisters(final ByteBuffer buffer) {
+    for (final int bankRegister : bankRegisters) {
+      buffer.put((byte) bankRegister);
+    }
+    buffer.put((byte) bankSelect);
+    buffer.put((byte) irqLatch);
+    buffer.put((byte) irqCounter);
+    buffer.put((byte) ((isIrqReloadRequested ? IRQ_RELOAD_FLAG : 0)
+        | (isIrqEnabled ? IRQ_ENABLED_FLAG : 0) | (isIrqPending ? IRQ_PENDING_FLAG : 0)));
+  }
+
+  @Override
+  protected void loadRegisters(final ByteBuffer buffer) {
+    for (int i = 0; i < BANK_REGISTER_COUNT; i++) {
+      bankRegisters[i] = buffer.get() & BYTE_MASK;
+    }
+    bankSelect = buffer.get() & BYTE_MASK;
+    irqLatch = buffer.get() & BYTE_MASK;
+    irqCounter = buffer.get() & BYTE_MASK;
+    final int irqFlags = buffer.get();
+    isIrqReloadRequested = (irqFlags & IRQ_RELOAD_FLAG) != 0;
+    isIrqEnabled = (irqFlags & IRQ_ENABLED_FLAG) != 0;
+    isIrqPending = (irqFlags & IRQ_PENDING_FLAG) != 0;
+    updateProgramBanks();
+    updateCharacterBanks();
+  }
+
+  private void updateProgramBanks() {
+    final int secondLastBank = getProgramBank8kCount() - 2;
+    final boolean isFirstSlotFixed = (bankSelect & PROGRAM_MODE_BIT) != 0;
+    mapProgramBank8k(0, isFirstSlotFixed ? secondLastBank : bankRegisters[FIRST_PROGRAM_REGISTER]);
+    mapProgramBank8k(1, bankRegisters[FIRST_PROGRAM_REGISTER + 1]);
+    mapProgramBank8k(2, isFirstSlotFixed ? bankRegisters[FIRST_PROGRAM_REGISTER] : secondLastBank);
+    mapProgramBank8k(3, getProgramBank8kCount() - 1);
+  }
+
+  private void updateCharacterBanks() {
+    final int inversion = (bankSelect & CHARACTER_INVERSION_BIT) != 0
+        ? CHARACTER_INVERSION_SLOT : 0;
+    // R0 and R1 are 2KB banks, their low bit is ignored
+    for (int i = 0; i < 2; i++) {
+      final int bank = bankRegisters[i] & ~1;
+      mapCharacterBank1k((i * 2) ^ inversion, bank);
+      mapCharacterBank1k((i * 2 + 1) ^ inversion, bank + 1);
+    }
+    for (int i = 0; i < 4; i++) {
+      mapCharacterBank1k((CHARACTER_INVERSION_SLOT + i) ^ inversion, bankRegisters[2 + i]);
+    }
+  }
+
+}
@@ -0,0 +1,42 @@
+/**
+ * Mapper_NROM
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.memory.mapper;
+
+import org.smeny.retrobox.motherboard.nes.cartridge.Cartridge;
+
+/**
+ * Mapper 0, cartridges without mapper. The program ROM is 16KB mirrored or 32KB, the character
+ * ROM 8KB, and nothing can be switched.
+ *
+ * @author Stéphane Meny
+ */
+public class Mapper_NROM extends AbstractMapper {
+
+  public Mapper_NROM(final Cartridge cart) {
+    super(cart);
+  }
+
+  /**
+   * There is no register, writing the program ROM is a bus fault.
+   *
+   * @see AbstractMapper#writeRegister(int, int)
+   */
+  @Override
+  protected void writeRegister(final int offset, final int data) {
+    reportFault(offset);
+  }
+
+}
@@ -0,0 +1,287 @@
+/**
+ * Movie
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.movie;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.smeny.retrobox.exception.InvalidStateException;
+import org.smeny.retrobox.motherboard.nes.cartridge.Cartridge;
+
+/**
+ * A Movie holds the buttons pressed on both controllers at each frame, from a starting state, so
+ * a session can be replayed exactly. Every keyframe interval a compressed save state is embedded:
+ * keyframe k is the state before frame k times the interval, so seeking to a frame only replays
+ * the frames following the keyframe before it.
+ *
+ * <p>A movie is bound to its cartridge by a SHA-256 hash of the cartridge header and of its ROMs,
+ * it cannot be played with another one.
+ *
+ * <p>The file starts with a header: the magic number, the format version, the hash, the keyframe
+ * interval, the number of frames, the cycle where the first frame starts and the number of
+ * keyframes. The index follows, the offset and the length of each keyframe in the file, then two
+ * bytes of buttons per frame and the keyframes. Reading a movie does not decode its keyframes,
+ * they are only restored when a frame is sought.
+ *
+ * @author Stéphane Meny
+ */
+public final class Movie {
+  /** Size of the cartridge hash. */
+  public static final int HASH_SIZE = 32;
+
+  /** "RBMV" in ASCII. */
+  private static final int MAGIC = 0x52424D56;
+  /** Version of the format, to increase on any change of the layout. */
+  private static final int VERSION = 1;
+  private static final String HASH_ALGORITHM = "SHA-256";
+  private static final int HEADER_SIZE = 2 * Integer.BYTES + HASH_SIZE + 2 * Integer.BYTES
+      + Long.BYTES + Integer.BYTES;
+  /** Size of an index entry, the offset and the length of a keyframe. */
+  private static final int INDEX_ENTRY_SIZE = 2 * Integer.BYTES;
+  /** Size of the buttons of a frame, one byte per controller. */
+  private static final int FRAME_SIZE = 2;
+  private static final int BYTE_MASK = 0xFF;
+  private static final int INITIAL_FRAME_CAPACITY = 1 << 12;
+
+  private final byte[] cartridgeHash;
+  private final int keyframeInterval;
+  private final long firstCycle;
+  /** Buttons of each frame, first controller then second one. */
+  private byte[] inputs;
+  private int frameCount;
+  /** States before the frames multiple of the keyframe interval. */
+  private final List<ByteBuffer> keyframes = new ArrayList<>();
+
+  /**
+   * Creates an empty movie.
+   *
+   * @param cartridgeHash The hash of the cartridge, as returned by {@link #hashCartridge}.
+   * @param keyframeInterval The number of frames between two keyframes.
+   * @param firstCycle The CPU cycle count where the first frame starts.
+   */
+  public Movie(final byte[] cartridgeHash, final int keyframeInterval, final long firstCycle) {
+    if (keyframeInterval <= 0) {
+      throw new IllegalArgumentException("Invalid keyframe interval " + keyframeInterval);
+    }
+    this.cartridgeHash = cartridgeHash.clone();
+    this.keyframeInterval = keyframeInterval;
+    this.firstCycle = firstCycle;
+    this.inputs = new byte[INITIAL_FRAME_CAPACITY * FRAME_SIZE];
+  }
+
+  /**
+   * Computes the hash identifying a cartridge, from its header, its program ROM and its
+   * character ROM.
+   *
+   * @param cart The cartridge.
+   * @return The hash, HASH_SIZE bytes long.
+   */
+  public static byte[] hashCartridge(final Cartridge cart) {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance(HASH_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform provides SHA-256
+      throw new IllegalStateException(e);
+    }
+    digest.update(cart.getHeader());
+    for (final byte[] bank : cart.getProgramRom()) {
+      digest.update(bank);
+    }
+    for (final byte[] bank : cart.getCharacterRom()) {
+      digest.update(bank);
+    }
+    return digest.digest();
+  }
+
+  /**
+   * Checks that the movie was recorded with a cartridge.
+   *
+   * @param cart The cartridge.
+   * @throws InvalidStateException If the movie was recorded with another cartridge.
+   */
+  public void checkCartridge(final Cartridge cart) throws InvalidStateException {
+    if (!MessageDigest.isEqual(cartridgeHash, hashCartridge(cart))) {
+      throw new InvalidStateException("The movie was recorded with another cartridge");
+    }
+  }
+
+  public int getKeyframeInterval() {
+    return keyframeInterval;
+  }
+
+  /**
+   * Returns the CPU cycle count where the first frame starts.
+   */
+  public long getFirstCycle() {
+    return firstCycle;
+  }
+
+  /**
+   * Returns the number of frames recorded.
+   */
+  public int getFrameCount() {
+    return frameCount;
+  }
+
+  /**
+   * Returns the buttons pressed on a controller during a frame.
+   *
+   * @param frame The frame, from 0.
+   * @param port The port of the controller, 0 or 1.
+   * @return The buttons, a combination of the StandardController BUTTON constants.
+   */
+  public int getButtons(final int frame, final int port) {
+    if (frame < 0 || frame >= frameCount) {
+      throw new IndexOutOfBoundsException("Frame " + frame + " of " + frameCount);
+    }
+    return inputs[frame * FRAME_SIZE + port] & BYTE_MASK;
+  }
+
+  /**
+   * Returns the number of keyframes.
+   */
+  public int getKeyframeCount() {
+    return keyframes.size();
+  }
+
+  /**
+   * Returns a keyframe, positioned at the start of its state.
+   *
+   * @param index The index of the keyframe, the state before the frame index times the interval.
+   * @return A read only view of the state.
+   */
+  ByteBuffer getKeyframe(final int index) {
+    return keyframes.get(index).duplicate();
+  }
+
+  /**
+   * Appends the buttons of a frame.
+   *
+   * @param firstButtons The buttons pressed on the first controller.
+   * @param secondButtons The buttons pressed on the second controller.
+   */
+  void addFrame(final int firstButtons, final int secondButtons) {
+    if ((frameCount + 1) * FRAME_SIZE > inputs.length) {
+      inputs = Arrays.copyOf(inputs, inputs.length * 2);
+    }
+    inputs[frameCount * FRAME_SIZE] = (byte) firstButtons;
+    inputs[frameCount * FRAME_SIZE + 1] = (byte) secondButtons;
+    frameCount++;
+  }
+
+  /**
+   * Appends a keyframe, which must be the state before the next frame multiple of the interval.
+   *
+   * @param state The save state, kept as is.
+   */
+  void addKeyframe(final byte[] state) {
+    keyframes.add(ByteBuffer.wrap(state).asReadOnlyBuffer());
+  }
+
+  /**
+   * Writes the movie into a file.
+   *
+   * @param path The file, replaced if it exists.
+   * @throws IOException If the file cannot be written.
+   */
+  public void write(final Path path) throws IOException {
+    final int indexSize = keyframes.size() * INDEX_ENTRY_SIZE;
+    int size = HEADER_SIZE + indexSize + frameCount * FRAME_SIZE;
+    for (final ByteBuffer keyframe : keyframes) {
+      size += keyframe.remaining();
+    }
+
+    final ByteBuffer buffer = ByteBuffer.allocate(size);
+    buffer.putInt(MAGIC);
+    buffer.putShort((short) VERSION);
+    buffer.putShort((short) 0);
+    buffer.put(cartridgeHash);
+    buffer.putInt(keyframeInterval);
+    buffer.putInt(frameCount);
+    buffer.putLong(firstCycle);
+    buffer.putInt(keyframes.size());
+    int offset = HEADER_SIZE + indexSize + frameCount * FRAME_SIZE;
+    for (final ByteBuffer keyframe : keyframes) {
+      buffer.putInt(offset);
+      buffer.putInt(keyframe.remaining());
+      offset += keyframe.remaining();
+    }
+    buffer.put(inputs, 0, frameCount * FRAME_SIZE);
+    for (final ByteBuffer keyframe : keyframes) {
+      buffer.put(keyframe.duplicate());
+    }
+    Files.write(path, buffer.array());
+  }
+
+  /**
+   * Reads a movie from a file. Only the header and the index are checked, the keyframes are read
+   * as they are restored.
+   *
+   * @param path The file.
+   * @return The movie.
+   * @throws IOException If the file cannot be read.
+   * @throws InvalidStateException If the file is not a valid movie.
+   */
+  public static Movie read(final Path path) throws IOException, InvalidStateException {
+    final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path)).asReadOnlyBuffer();
+    if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+      throw new InvalidStateException("Not a movie");
+    }
+    final int version = buffer.getShort();
+    if (version != VERSION) {
+      throw new InvalidStateException("Unsupported movie version " + version);
+    }
+    buffer.getShort();
+    final byte[] cartridgeHash = new byte[HASH_SIZE];
+    buffer.get(cartridgeHash);
+    final int keyframeInterval = buffer.getInt();
+    final int frameCount = buffer.getInt();
+    final long firstCycle = buffer.getLong();
+    final int keyframeCount = buffer.getInt();
+    if (keyframeInterval <= 0 || frameCount < 0
+        || keyframeCount != frameCount / keyframeInterval + 1
+        || buffer.remaining() < (long) keyframeCount * INDEX_ENTRY_SIZE
+            + (long) frameCount * FRAME_SIZE) {
+      throw new InvalidStateException("Truncated or corrupted movie");
+    }
+
+    final Movie movie = new Movie(cartridgeHash, keyframeInterval, firstCycle);
+    for (int i = 0; i < keyframeCount; i++) {
+      final int offset = buffer.getInt();
+      final int length = buffer.getInt();
+      if (offset < 0 || length < 0 || offset > buffer.limit() - length) {
+        throw new InvalidStateException("Keyframe " + i + " out of the movie");
+      }
+      final ByteBuffer keyframe = buffer.duplicate();
+      keyframe.position(offset);
+      keyframe.limit(offset + length);
+      movie.keyframes.add(keyframe.slice());
+    }
+    movie.inputs = new byte[Math.max(frameCount, 1) * FRAME_SIZE];
+    buffer.get(movie.inputs, 0, frameCount * FRAME_SIZE);
+    movie.frameCount = frameCount;
+    return movie;
+  }
+
+}
@@ -0,0 +1,135 @@
+/**
+ * MoviePlayer
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.movie;
+
+import java.nio.ByteBuffer;
+
+import org.smeny.retrobox.exception.InvalidStateException;
+import org.smeny.retrobox.motherboard.nes.FrameScheduler;
+import org.smeny.retrobox.motherboard.nes.cartridge.Cartridge;
+import org.smeny.retrobox.motherboard.nes.memory.PagedMemoryController;
+import org.smeny.retrobox.motherboard.nes.processor.Core_2A03;
+
+/**
+ * This class replays a {@link Movie} on a CPU frame by frame. Seeking restores the keyframe
+ * before the frame sought then replays the frames following it, at most a keyframe interval.
+ *
+ * <p>Each time a keyframe is reached by playing, the state of the CPU is compared with it: a
+ * difference means the emulation is no longer deterministic, or has changed since the recording,
+ * and the first frame where it happened is kept.
+ *
+ * <p>The CPU must run along the devices it was recorded with, created before the player. Their
+ * frames are completed after each frame played.
+ *
+ * @author Stéphane Meny
+ */
+public final class MoviePlayer {
+  private final Core_2A03 cpu;
+  private final Movie movie;
+  /** Buffer receiving the states compared with the keyframes. */
+  private final ByteBuffer stateBuffer;
+  /** Next frame to play. */
+  private int frame;
+  /** First frame whose state differs from its keyframe, -1 if none. */
+  private int firstDesyncFrame = -1;
+
+  /**
+   * Prepares a CPU to play a movie from its first frame.
+   *
+   * @param cpu The CPU to drive.
+   * @param cart The cartridge of the CPU.
+   * @param movie The movie to play.
+   * @throws InvalidStateException If the movie was recorded with another cartridge or its first
+   *         keyframe is not valid.
+   */
+  public MoviePlayer(final Core_2A03 cpu, final Cartridge cart, final Movie movie)
+      throws InvalidStateException {
+    movie.checkCartridge(cart);
+    this.cpu = cpu;
+    this.movie = movie;
+    this.stateBuffer = ByteBuffer.allocate(cpu.getMaximumStateSize());
+    seek(0);
+  }
+
+  /**
+   * Moves to a frame, the next one played.
+   *
+   * @param target The frame, from 0 to the frame count of the movie.
+   * @throws InvalidStateException If the keyframe before the frame is not valid.
+   */
+  public void seek(final int target) throws InvalidStateException {
+    if (target < 0 || target > movie.getFrameCount()) {
+      throw new IndexOutOfBoundsException("Frame " + target + " of " + movie.getFrameCount());
+    }
+    final int keyframe = target / movie.getKeyframeInterval();
+    cpu.loadState(movie.getKeyframe(keyframe));
+    frame = keyframe * movie.getKeyframeInterval();
+    while (frame < target) {
+      // A stopped CPU still moves to the next frame
+      runFrame();
+    }
+  }
+
+  /**
+   * Plays the next frame.
+   *
+   * @return false if the movie is over or the CPU is stopped.
+   */
+  public boolean runFrame() {
+    if (frame >= movie.getFrameCount()) {
+      return false;
+    }
+    final PagedMemoryController memory = cpu.getMemory();
+    memory.getController(0).setButtons(movie.getButtons(frame, 0));
+    memory.getController(1).setButtons(movie.getButtons(frame, 1));
+    final long budget = FrameScheduler.getFrameEndCycle(movie.getFirstCycle(), frame + 1)
+        - cpu.getCycleCount();
+    final boolean isRunning = budget <= 0 || cpu.run(budget) > 0;
+    cpu.completeFrame();
+
+    frame++;
+    if (frame % movie.getKeyframeInterval() == 0 && firstDesyncFrame < 0 && !isSynchronized()) {
+      firstDesyncFrame = frame;
+    }
+    return isRunning;
+  }
+
+  /**
+   * Returns the next frame to play.
+   */
+  public int getFrame() {
+    return frame;
+  }
+
+  /**
+   * Returns the first frame where the state of the CPU differed from the keyframe recorded, -1 if
+   * the replay matched the recording so far.
+   */
+  public int getFirstDesyncFrame() {
+    return firstDesyncFrame;
+  }
+
+  /**
+   * Compares the state of the CPU with the keyframe of the current frame.
+   */
+  private boolean isSynchronized() {
+    stateBuffer.clear();
+    cpu.saveState(stateBuffer, true);
+    stateBuffer.flip();
+    return stateBuffer.equals(movie.getKeyframe(frame / movie.getKeyframeInterval()));
+  }
+
+}
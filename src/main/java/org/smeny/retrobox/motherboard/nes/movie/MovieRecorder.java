@@ -0,0 +1,94 @@
+/**
+ * MovieRecorder
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.movie;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.smeny.retrobox.motherboard.nes.FrameScheduler;
+import org.smeny.retrobox.motherboard.nes.cartridge.Cartridge;
+import org.smeny.retrobox.motherboard.nes.memory.PagedMemoryController;
+import org.smeny.retrobox.motherboard.nes.processor.Core_2A03;
+
+/**
+ * This class drives a CPU frame by frame, recording the buttons pressed at each frame into a
+ * {@link Movie} and a keyframe every keyframe interval. Frames have the lengths the
+ * {@link FrameScheduler} gives them, counted from the cycle where the recording starts, so the
+ * movie replays the same cycles whatever drove the CPU before.
+ *
+ * <p>The keyframes hold the state of the devices running along the CPU, so they must be created
+ * before the recorder. Their frames are completed before each frame is recorded.
+ *
+ * @author Stéphane Meny
+ */
+public final class MovieRecorder {
+  private final Core_2A03 cpu;
+  private final Movie movie;
+  /** Buffer receiving the keyframes before they are copied at their size. */
+  private final ByteBuffer stateBuffer;
+
+  /**
+   * Starts recording from the current state of a CPU, which is the first keyframe.
+   *
+   * @param cpu The CPU to drive.
+   * @param cart The cartridge of the CPU, identifying the movie.
+   * @param keyframeInterval The number of frames between two keyframes.
+   */
+  public MovieRecorder(final Core_2A03 cpu, final Cartridge cart, final int keyframeInterval) {
+    this.cpu = cpu;
+    this.movie = new Movie(Movie.hashCartridge(cart), keyframeInterval, cpu.getCycleCount());
+    this.stateBuffer = ByteBuffer.allocate(cpu.getMaximumStateSize());
+    movie.addKeyframe(saveState());
+  }
+
+  /**
+   * Runs a frame with buttons pressed and records it.
+   *
+   * @param firstButtons The buttons pressed on the first controller during the frame.
+   * @param secondButtons The buttons pressed on the second controller during the frame.
+   * @return false if the CPU is stopped, the frame being recorded anyway.
+   */
+  public boolean runFrame(final int firstButtons, final int secondButtons) {
+    final int frame = movie.getFrameCount();
+    final PagedMemoryController memory = cpu.getMemory();
+    memory.getController(0).setButtons(firstButtons);
+    memory.getController(1).setButtons(secondButtons);
+    final long budget = FrameScheduler.getFrameEndCycle(movie.getFirstCycle(), frame + 1)
+        - cpu.getCycleCount();
+    final boolean isRunning = budget <= 0 || cpu.run(budget) > 0;
+    cpu.completeFrame();
+
+    movie.addFrame(firstButtons, secondButtons);
+    if (movie.getFrameCount() % movie.getKeyframeInterval() == 0) {
+      movie.addKeyframe(saveState());
+    }
+    return isRunning;
+  }
+
+  /**
+   * Returns the movie recorded so far. It keeps growing as frames are recorded.
+   */
+  public Movie getMovie() {
+    return movie;
+  }
+
+  private byte[] saveState() {
+    stateBuffer.clear();
+    cpu.saveState(stateBuffer, true);
+    return Arrays.copyOf(stateBuffer.array(), stateBuffer.position());
+  }
+
+}
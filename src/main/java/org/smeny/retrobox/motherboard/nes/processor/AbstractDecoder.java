@@ -28,9 +28,67 @@ public abstract class AbstractDecoder {
     this.opcodeTable = opcodeTable;
   }
 
+  /**
+   * Builds the dispatch table of the CPU: each slot holds the operation bound by the ALU for the
+   * operation code at the same index. Undefined operation codes are bound as well so that the
+   * table can be indexed by any byte value without check.
+   *
+   * @param alu The ALU the operations are bound to.
+   * @return The dispatch table, indexed by operation code.
+   */
+  public final Operation[] createDispatchTable(final ArithmeticAndLogicalUnit alu) {
+    final Operation[] dispatchTable = new Operation[opcodeTable.length];
+    for (int i = 0; i < dispatchTable.length; i++) {
+      dispatchTable[i] = alu.bind(opcodeTable[i]);
+    }
+    return dispatchTable;
+  }
+
+  /**
+   * Builds the table of the base cycles of each operation code, undefined operation codes taking
+   * no cycle.
+   *
+   * @return The cycle table, indexed by operation code.
+   */
+  public final int[] createCycleTable() {
+    final int[] cycleTable = new int[opcodeTable.length];
+    for (int i = 0; i < cycleTable.length; i++) {
+      cycleTable[i] = opcodeTable[i] == null ? 0 : opcodeTable[i].getCycles();
+    }
+    return cycleTable;
+  }
+
+  /**
+   * Builds the table of the cycles added by each operation code when a page is crossed.
+   *
+   * @return The page crossing cycle table, indexed by operation code.
+   */
+  public final int[] createPageCrossCycleTable() {
+    final int[] cycleTable = new int[opcodeTable.length];
+    for (int i = 0; i < cycleTable.length; i++) {
+      cycleTable[i] = opcodeTable[i] != null && opcodeTable[i].hasPageCrossPenalty() ? 1 : 0;
+    }
+    return cycleTable;
+  }
+
+  /**
+   * Builds the table of the operand size of each operation code, undefined operation codes having
+   * no operand.
+   *
+   * @return The operand size table, indexed by operation code.
+   */
+  public final int[] createOperandSizeTable() {
+    final int[] sizeTable = new int[opcodeTable.length];
+    for (int i = 0; i < sizeTable.length; i++) {
+      sizeTable[i] = opcodeTable[i] == null ? 0
+          : opcodeTable[i].getAddressingMode().getOperandSize();
+    }
+    return sizeTable;
+  }
+
   public final OperationCode getOpcode(final int index) {
     OperationCode opcode = null;
-    if (index >= 0 && (index - 1) < opcodeTable.length) {
+    if (index >= 0 && index < opcodeTable.length) {
       opcode = opcodeTable[index];
     }
     return opcode;
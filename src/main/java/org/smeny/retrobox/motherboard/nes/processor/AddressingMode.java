@@ -29,7 +29,7 @@ public enum AddressingMode {
   ABSOLUTE_X_INDEXED(2),
   ABSOLUTE_Y_INDEXED(2),
   INDIRECT_X_PREINDEXED(1),
-  INDIRECT_Y_POSTINDEXED(2);
+  INDIRECT_Y_POSTINDEXED(1);
 
   private int operandSize;
 
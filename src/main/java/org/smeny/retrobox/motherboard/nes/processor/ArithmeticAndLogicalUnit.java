@@ -15,232 +15,630 @@
  */
 package org.smeny.retrobox.motherboard.nes.processor;
 
-import org.smeny.retrobox.exception.ReadOutOfMemoryException;
 import org.smeny.retrobox.exception.UnknownOperationException;
-import org.smeny.retrobox.exception.WriteOutOfMemoryException;
 import org.smeny.retrobox.motherboard.nes.memory.AbstractMemoryController;
-import org.smeny.retrobox.motherboard.nes.register.Register;
 import org.smeny.retrobox.motherboard.nes.register.flags.FlagsRegister_2A03;
 
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
+/**
+ * The ALU binds each operation code to an {@link Operation}: the instruction semantics and the
+ * addressing mode are fused into one handler when the dispatch table is built, so no switch is
+ * evaluated while the CPU is running.
+ *
+ * @author Stéphane Meny
+ */
 public final class ArithmeticAndLogicalUnit {
 
   /** Mask used to get the last byte on an integer. */
   private static final int BYTE_MASK = 0xFF;
+  /** Mask used to get the two last bytes on an integer (16 bits address). */
+  private static final int WORD_MASK = 0xFFFF;
+  /** Mask used to get the high byte of an address (its page). */
+  private static final int PAGE_MASK = 0xFF00;
   private static final byte MOST_SIGNIFICANT_BYTE_SHIFT = 8;
-
-  /** Our default logger for this class. */
-  private static final Logger LOGGER = Logger.getLogger(Core_2A03.class.getName());
-
-  private Core_2A03 cpu;
-  private AddressingMode currentAddressingMode;
-  private InstructionSet currentInstructionSet;
+  /** Mask used to get the sign bit of a byte value. */
+  private static final int SIGN_MASK = 0x80;
+  /** Mask used to get the sixth bit of a byte value, copied into overflow by BIT. */
+  private static final int BIT_SIX_MASK = 0x40;
+  /** Offset of the stack page in memory. */
+  private static final int STACK_PAGE = 0x0100;
+  /** Address of the vector used by BRK and IRQ interrupts. */
+  private static final int IRQ_VECTOR = 0xFFFE;
+
+  /** Break bit of the status byte, only set in the status pushed by BRK and PHP. */
+  private static final int BREAK_BIT = 0x10;
+  /** Cycles added when a branch is taken. */
+  private static final int TAKEN_BRANCH_CYCLES = 1;
+
+  private final Core_2A03 cpu;
+  /** Tells if arithmetic results are read from {@link ArithmeticTables} or computed. */
+  private final boolean useLookupTables;
 
   public ArithmeticAndLogicalUnit(Core_2A03 cpu) {
-    this.cpu = cpu;
+    this(cpu, ArithmeticMode.COMPUTED);
   }
 
-  private void refreshCurrentState() {
-    OperationCode opcode = cpu.getCurrentOpCode();
-    currentInstructionSet = opcode.getInstruction();
-    currentAddressingMode = opcode.getAddressingMode();
+  public ArithmeticAndLogicalUnit(Core_2A03 cpu, ArithmeticMode mode) {
+    this.cpu = cpu;
+    this.useLookupTables = mode == ArithmeticMode.LOOKUP_TABLES;
   }
 
-  public void performInstruction()
-      throws UnknownOperationException, ReadOutOfMemoryException, WriteOutOfMemoryException {
-    refreshCurrentState();
-    LOGGER.log(Level.INFO, currentInstructionSet.name() + " " + currentAddressingMode.name());
-    switch (currentInstructionSet) {
+  /**
+   * Binds an operation code to its executable operation. Unknown operation codes and unsupported
+   * addressing modes are bound to an operation throwing an {@link UnknownOperationException}, so
+   * the error is only raised if the operation is really executed.
+   *
+   * @param opcode The operation code to bind, may be null for an undefined operation code.
+   * @return The operation performing the instruction with its addressing mode.
+   */
+  public Operation bind(final OperationCode opcode) {
+    if (opcode == null || opcode.getInstruction() == null) {
+      return unknown("Operation code " + opcode + " is not implemented");
+    }
+    switch (opcode.getInstruction()) {
       case ADC:
-        additionWithCarry();
-        break;
+      case AND:
       case BIT:
-        testBitsInMemoryWithAccumulator();
-        break;
-      case CLC:
-        cpu.getStatusRegister().clearCarryFlag();
-        break;
-      case JMP:
-        jump();
-        break;
+      case CMP:
+      case CPX:
+      case CPY:
+      case EOR:
+      case LDA:
       case LDX:
-        loadX();
-        break;
+      case LDY:
+      case ORA:
+      case SBC:
+        return bindRead(opcode);
+      case STA:
       case STX:
-        storeX();
-        break;
-      case JSR:
-        jumpSavingReturn();
-        break;
-      case NOP:
-        // Nothing to do
-        break;
-      case SEC:
-        cpu.getStatusRegister().setCarryFlag();
-        break;
-      case BCS:
-        branchOnCarrySet();
-        break;
+      case STY:
+        return bindWrite(opcode);
+      case ASL:
+      case LSR:
+      case ROL:
+      case ROR:
+      case INC:
+      case DEC:
+        return bindReadModifyWrite(opcode);
       case BCC:
-        branchOnCarryClear();
-        break;
+      case BCS:
       case BEQ:
-        branchOnZeroSet();
-        break;
+      case BMI:
       case BNE:
-        branchOnZeroClear();
-        break;
+      case BPL:
+      case BVC:
+      case BVS:
+        return bindBranch(opcode);
+      case JMP:
+      case JSR:
+        return bindJump(opcode);
+      default:
+        return bindImplied(opcode);
+    }
+  }
+
+  /**
+   * Binds instructions reading a value from memory (or from the operand itself) and combining it
+   * with a register.
+   */
+  private Operation bindRead(final OperationCode opcode) {
+    switch (opcode.getInstruction()) {
+      case ADC:
+        switch (opcode.getAddressingMode()) {
+          case IMMEDIATE: return () -> addWithCarry(immediate());
+          case ZERO_PAGE: return () -> addWithCarry(read(zeroPage()));
+          case ZERO_PAGE_X_INDEXED: return () -> addWithCarry(read(zeroPageX()));
+          case ABSOLUTE: return () -> addWithCarry(read(absolute()));
+          case ABSOLUTE_X_INDEXED: return () -> addWithCarry(read(absoluteX()));
+          case ABSOLUTE_Y_INDEXED: return () -> addWithCarry(read(absoluteY()));
+          case INDIRECT_X_PREINDEXED: return () -> addWithCarry(read(indirectX()));
+          case INDIRECT_Y_POSTINDEXED: return () -> addWithCarry(read(indirectY()));
+          default: return unsupported(opcode);
+        }
+      case AND:
+        switch (opcode.getAddressingMode()) {
+          case IMMEDIATE: return () -> logicalAnd(immediate());
+          case ZERO_PAGE: return () -> logicalAnd(read(zeroPage()));
+          case ZERO_PAGE_X_INDEXED: return () -> logicalAnd(read(zeroPageX()));
+          case ABSOLUTE: return () -> logicalAnd(read(absolute()));
+          case ABSOLUTE_X_INDEXED: return () -> logicalAnd(read(absoluteX()));
+          case ABSOLUTE_Y_INDEXED: return () -> logicalAnd(read(absoluteY()));
+          case INDIRECT_X_PREINDEXED: return () -> logicalAnd(read(indirectX()));
+          case INDIRECT_Y_POSTINDEXED: return () -> logicalAnd(read(indirectY()));
+          default: return unsupported(opcode);
+        }
+      case BIT:
+        switch (opcode.getAddressingMode()) {
+          case ZERO_PAGE: return () -> testBits(read(zeroPage()));
+          case ABSOLUTE: return () -> testBits(read(absolute()));
+          default: return unsupported(opcode);
+        }
+      case CMP:
+        switch (opcode.getAddressingMode()) {
+          case IMMEDIATE: return () -> compare(accumulator(), immediate());
+          case ZERO_PAGE: return () -> compare(accumulator(), read(zeroPage()));
+          case ZERO_PAGE_X_INDEXED: return () -> compare(accumulator(), read(zeroPageX()));
+          case ABSOLUTE: return () -> compare(accumulator(), read(absolute()));
+          case ABSOLUTE_X_INDEXED: return () -> compare(accumulator(), read(absoluteX()));
+          case ABSOLUTE_Y_INDEXED: return () -> compare(accumulator(), read(absoluteY()));
+          case INDIRECT_X_PREINDEXED: return () -> compare(accumulator(), read(indirectX()));
+          case INDIRECT_Y_POSTINDEXED: return () -> compare(accumulator(), read(indirectY()));
+          default: return unsupported(opcode);
+        }
+      case CPX:
+        switch (opcode.getAddressingMode()) {
+          case IMMEDIATE: return () -> compare(registerX(), immediate());
+          case ZERO_PAGE: return () -> compare(registerX(), read(zeroPage()));
+          case ABSOLUTE: return () -> compare(registerX(), read(absolute()));
+          default: return unsupported(opcode);
+        }
+      case CPY:
+        switch (opcode.getAddressingMode()) {
+          case IMMEDIATE: return () -> compare(registerY(), immediate());
+          case ZERO_PAGE: return () -> compare(registerY(), read(zeroPage()));
+          case ABSOLUTE: return () -> compare(registerY(), read(absolute()));
+          default: return unsupported(opcode);
+        }
+      case EOR:
+        switch (opcode.getAddressingMode()) {
+          case IMMEDIATE: return () -> exclusiveOr(immediate());
+          case ZERO_PAGE: return () -> exclusiveOr(read(zeroPage()));
+          case ZERO_PAGE_X_INDEXED: return () -> exclusiveOr(read(zeroPageX()));
+          case ABSOLUTE: return () -> exclusiveOr(read(absolute()));
+          case ABSOLUTE_X_INDEXED: return () -> exclusiveOr(read(absoluteX()));
+          case ABSOLUTE_Y_INDEXED: return () -> exclusiveOr(read(absoluteY()));
+          case INDIRECT_X_PREINDEXED: return () -> exclusiveOr(read(indirectX()));
+          case INDIRECT_Y_POSTINDEXED: return () -> exclusiveOr(read(indirectY()));
+          default: return unsupported(opcode);
+        }
       case LDA:
-        loadAccumulatorWithMemory();
-        break;
+        switch (opcode.getAddressingMode()) {
+          case IMMEDIATE: return () -> loadAccumulator(immediate());
+          case ZERO_PAGE: return () -> loadAccumulator(read(zeroPage()));
+          case ZERO_PAGE_X_INDEXED: return () -> loadAccumulator(read(zeroPageX()));
+          case ABSOLUTE: return () -> loadAccumulator(read(absolute()));
+          case ABSOLUTE_X_INDEXED: return () -> loadAccumulator(read(absoluteX()));
+          case ABSOLUTE_Y_INDEXED: return () -> loadAccumulator(read(absoluteY()));
+          case INDIRECT_X_PREINDEXED: return () -> loadAccumulator(read(indirectX()));
+          case INDIRECT_Y_POSTINDEXED: return () -> loadAccumulator(read(indirectY()));
+          default: return unsupported(opcode);
+        }
+      case LDX:
+        switch (opcode.getAddressingMode()) {
+          case IMMEDIATE: return () -> loadX(immediate());
+          case ZERO_PAGE: return () -> loadX(read(zeroPage()));
+          case ZERO_PAGE_Y_INDEXED: return () -> loadX(read(zeroPageY()));
+          case ABSOLUTE: return () -> loadX(read(absolute()));
+          case ABSOLUTE_Y_INDEXED: return () -> loadX(read(absoluteY()));
+          default: return unsupported(opcode);
+        }
+      case LDY:
+        switch (opcode.getAddressingMode()) {
+          case IMMEDIATE: return () -> loadY(immediate());
+          case ZERO_PAGE: return () -> loadY(read(zeroPage()));
+          case ZERO_PAGE_X_INDEXED: return () -> loadY(read(zeroPageX()));
+          case ABSOLUTE: return () -> loadY(read(absolute()));
+          case ABSOLUTE_X_INDEXED: return () -> loadY(read(absoluteX()));
+          default: return unsupported(opcode);
+        }
+      case ORA:
+        switch (opcode.getAddressingMode()) {
+          case IMMEDIATE: return () -> logicalOr(immediate());
+          case ZERO_PAGE: return () -> logicalOr(read(zeroPage()));
+          case ZERO_PAGE_X_INDEXED: return () -> logicalOr(read(zeroPageX()));
+          case ABSOLUTE: return () -> logicalOr(read(absolute()));
+          case ABSOLUTE_X_INDEXED: return () -> logicalOr(read(absoluteX()));
+          case ABSOLUTE_Y_INDEXED: return () -> logicalOr(read(absoluteY()));
+          case INDIRECT_X_PREINDEXED: return () -> logicalOr(read(indirectX()));
+          case INDIRECT_Y_POSTINDEXED: return () -> logicalOr(read(indirectY()));
+          default: return unsupported(opcode);
+        }
+      case SBC:
+        switch (opcode.getAddressingMode()) {
+          case IMMEDIATE: return () -> subtractWithBorrow(immediate());
+          case ZERO_PAGE: return () -> subtractWithBorrow(read(zeroPage()));
+          case ZERO_PAGE_X_INDEXED: return () -> subtractWithBorrow(read(zeroPageX()));
+          case ABSOLUTE: return () -> subtractWithBorrow(read(absolute()));
+          case ABSOLUTE_X_INDEXED: return () -> subtractWithBorrow(read(absoluteX()));
+          case ABSOLUTE_Y_INDEXED: return () -> subtractWithBorrow(read(absoluteY()));
+          case INDIRECT_X_PREINDEXED: return () -> subtractWithBorrow(read(indirectX()));
+          case INDIRECT_Y_POSTINDEXED: return () -> subtractWithBorrow(read(indirectY()));
+          default: return unsupported(opcode);
+        }
+      default:
+        return unsupported(opcode);
+    }
+  }
+
+  /**
+   * Binds instructions storing a register in memory.
+   */
+  private Operation bindWrite(final OperationCode opcode) {
+    switch (opcode.getInstruction()) {
       case STA:
-        storeAccumulatorInMemory();
-        break;
+        switch (opcode.getAddressingMode()) {
+          case ZERO_PAGE: return () -> write(zeroPage(), accumulator());
+          case ZERO_PAGE_X_INDEXED: return () -> write(zeroPageX(), accumulator());
+          case ABSOLUTE: return () -> write(absolute(), accumulator());
+          case ABSOLUTE_X_INDEXED: return () -> write(absoluteX(), accumulator());
+          case ABSOLUTE_Y_INDEXED: return () -> write(absoluteY(), accumulator());
+          case INDIRECT_X_PREINDEXED: return () -> write(indirectX(), accumulator());
+          case INDIRECT_Y_POSTINDEXED: return () -> write(indirectY(), accumulator());
+          default: return unsupported(opcode);
+        }
+      case STX:
+        switch (opcode.getAddressingMode()) {
+          case ZERO_PAGE: return () -> write(zeroPage(), registerX());
+          case ZERO_PAGE_Y_INDEXED: return () -> write(zeroPageY(), registerX());
+          case ABSOLUTE: return () -> write(absolute(), registerX());
+          default: return unsupported(opcode);
+        }
+      case STY:
+        switch (opcode.getAddressingMode()) {
+          case ZERO_PAGE: return () -> write(zeroPage(), registerY());
+          case ZERO_PAGE_X_INDEXED: return () -> write(zeroPageX(), registerY());
+          case ABSOLUTE: return () -> write(absolute(), registerY());
+          default: return unsupported(opcode);
+        }
       default:
-        throw new UnknownOperationException(
-            "Instruction Set " + currentInstructionSet + " is not implemented");
+        return unsupported(opcode);
     }
   }
 
-  private int getSourceValue() throws ReadOutOfMemoryException, UnknownOperationException {
-    int sourceValue;
-    int operand = cpu.getCurrentOperand();
-    AbstractMemoryController memory = cpu.getMemory();
-    int x, y, firstOffset, secondOffset;
-
-    switch (currentAddressingMode) {
-      case IMMEDIATE:
-        sourceValue = operand;
-        break;
-      case ZERO_PAGE:
-      case ABSOLUTE:
-        sourceValue = memory.readMemory(operand);
-        break;
-      case ZERO_PAGE_X_INDEXED:
-      case ABSOLUTE_X_INDEXED:
-        x = cpu.getRegisterX().getRegisterData();
-        sourceValue = memory.readMemory(operand + x);
-        break;
-      case ABSOLUTE_Y_INDEXED:
-        y = cpu.getRegisterY().getRegisterData();
-        sourceValue = memory.readMemory(operand + y);
-        break;
-      case INDIRECT_X_PREINDEXED:
-        x = cpu.getRegisterX().getRegisterData();
-        firstOffset = (operand + x) & BYTE_MASK;
-        secondOffset = memory.readMemory(firstOffset + 1) << MOST_SIGNIFICANT_BYTE_SHIFT;
-        secondOffset += memory.readMemory(firstOffset);
-        sourceValue = memory.readMemory(secondOffset);
-        break;
-      case INDIRECT_Y_POSTINDEXED:
-        y = cpu.getRegisterY().getRegisterData();
-        firstOffset = memory.readMemory(operand + 1) << MOST_SIGNIFICANT_BYTE_SHIFT;
-        firstOffset += memory.readMemory(operand);
-        secondOffset = firstOffset + y;
-        sourceValue = memory.readMemory(secondOffset);
-        break;
+  /**
+   * Binds instructions reading a value, modifying it and writing it back to memory or to the
+   * accumulator.
+   */
+  private Operation bindReadModifyWrite(final OperationCode opcode) {
+    switch (opcode.getInstruction()) {
+      case ASL:
+        switch (opcode.getAddressingMode()) {
+          case ACCUMULATOR: return () -> setAccumulator(shiftLeft(accumulator()));
+          case ZERO_PAGE: return () -> shiftLeftInMemory(zeroPage());
+          case ZERO_PAGE_X_INDEXED: return () -> shiftLeftInMemory(zeroPageX());
+          case ABSOLUTE: return () -> shiftLeftInMemory(absolute());
+          case ABSOLUTE_X_INDEXED: return () -> shiftLeftInMemory(absoluteX());
+          default: return unsupported(opcode);
+        }
+      case LSR:
+        switch (opcode.getAddressingMode()) {
+          case ACCUMULATOR: return () -> setAccumulator(shiftRight(accumulator()));
+          case ZERO_PAGE: return () -> shiftRightInMemory(zeroPage());
+          case ZERO_PAGE_X_INDEXED: return () -> shiftRightInMemory(zeroPageX());
+          case ABSOLUTE: return () -> shiftRightInMemory(absolute());
+          case ABSOLUTE_X_INDEXED: return () -> shiftRightInMemory(absoluteX());
+          default: return unsupported(opcode);
+        }
+      case ROL:
+        switch (opcode.getAddressingMode()) {
+          case ACCUMULATOR: return () -> setAccumulator(rotateLeft(accumulator()));
+          case ZERO_PAGE: return () -> rotateLeftInMemory(zeroPage());
+          case ZERO_PAGE_X_INDEXED: return () -> rotateLeftInMemory(zeroPageX());
+          case ABSOLUTE: return () -> rotateLeftInMemory(absolute());
+          case ABSOLUTE_X_INDEXED: return () -> rotateLeftInMemory(absoluteX());
+          default: return unsupported(opcode);
+        }
+      case ROR:
+        switch (opcode.getAddressingMode()) {
+          case ACCUMULATOR: return () -> setAccumulator(rotateRight(accumulator()));
+          case ZERO_PAGE: return () -> rotateRightInMemory(zeroPage());
+          case ZERO_PAGE_X_INDEXED: return () -> rotateRightInMemory(zeroPageX());
+          case ABSOLUTE: return () -> rotateRightInMemory(absolute());
+          case ABSOLUTE_X_INDEXED: return () -> rotateRightInMemory(absoluteX());
+          default: return unsupported(opcode);
+        }
+      case INC:
+        switch (opcode.getAddressingMode()) {
+          case ZERO_PAGE: return () -> incrementInMemory(zeroPage());
+          case ZERO_PAGE_X_INDEXED: return () -> incrementInMemory(zeroPageX());
+          case ABSOLUTE: return () -> incrementInMemory(absolute());
+          case ABSOLUTE_X_INDEXED: return () -> incrementInMemory(absoluteX());
+          default: return unsupported(opcode);
+        }
+      case DEC:
+        switch (opcode.getAddressingMode()) {
+          case ZERO_PAGE: return () -> decrementInMemory(zeroPage());
+          case ZERO_PAGE_X_INDEXED: return () -> decrementInMemory(zeroPageX());
+          case ABSOLUTE: return () -> decrementInMemory(absolute());
+          case ABSOLUTE_X_INDEXED: return () -> decrementInMemory(absoluteX());
+          default: return unsupported(opcode);
+        }
       default:
-        throw new UnknownOperationException(
-            currentAddressingMode + " is not possible to retrieve source value");
+        return unsupported(opcode);
     }
-    return sourceValue;
   }
 
-  private void jump() throws UnknownOperationException {
-    int operandValue = cpu.getCurrentOperand();
+  /**
+   * Binds the conditional branches. The relative offset is read with the operation code, so the
+   * program counter already points to the next instruction when the branch is not taken.
+   */
+  private Operation bindBranch(final OperationCode opcode) {
+    if (opcode.getAddressingMode() != AddressingMode.RELATIVE) {
+      return unsupported(opcode);
+    }
+    final FlagsRegister_2A03 sr = cpu.getStatusRegister();
+    switch (opcode.getInstruction()) {
+      case BCC: return () -> branch(!sr.isCarryFlagSet());
+      case BCS: return () -> branch(sr.isCarryFlagSet());
+      case BEQ: return () -> branch(sr.isZeroFlagSet());
+      case BMI: return () -> branch(sr.isNegativeFlagSet());
+      case BNE: return () -> branch(!sr.isZeroFlagSet());
+      case BPL: return () -> branch(!sr.isNegativeFlagSet());
+      case BVC: return () -> branch(!sr.isOverflowFlagSet());
+      case BVS: return () -> branch(sr.isOverflowFlagSet());
+      default: return unsupported(opcode);
+    }
+  }
 
-    switch (currentAddressingMode) {
-      case RELATIVE:
-        cpu.getProgramCounter().increment(operandValue);
-        break;
-      case ABSOLUTE:
-        cpu.getProgramCounter().setRegisterData(operandValue);
-        break;
+  /**
+   * Binds the unconditional jumps.
+   */
+  private Operation bindJump(final OperationCode opcode) {
+    switch (opcode.getInstruction()) {
+      case JMP:
+        switch (opcode.getAddressingMode()) {
+          case ABSOLUTE: return () -> cpu.setProgramCounter(absolute());
+          case INDIRECT: return () -> cpu.setProgramCounter(indirect());
+          default: return unsupported(opcode);
+        }
+      case JSR:
+        if (opcode.getAddressingMode() != AddressingMode.ABSOLUTE) {
+          return unsupported(opcode);
+        }
+        return () -> {
+          final int target = absolute();
+          // The return address pushed is the last byte of the JSR instruction
+          push16((cpu.getProgramCounter() - 1) & WORD_MASK);
+          cpu.setProgramCounter(target);
+        };
       default:
-        throw new UnknownOperationException(
-            currentAddressingMode + " is not implemented for jump instruction");
+        return unsupported(opcode);
+    }
+  }
+
+  /**
+   * Binds instructions which do not need any operand: flags, transfers, stack and returns.
+   */
+  private Operation bindImplied(final OperationCode opcode) {
+    final AddressingMode mode = opcode.getAddressingMode();
+    if (mode != AddressingMode.IMPLIED) {
+      return unsupported(opcode);
+    }
+    final FlagsRegister_2A03 sr = cpu.getStatusRegister();
+    switch (opcode.getInstruction()) {
+      case BRK:
+        return () -> {
+          // BRK skips a padding byte so that the return address is two bytes after the opcode
+          push16((cpu.getProgramCounter() + 1) & WORD_MASK);
+          push(sr.toByte() | BREAK_BIT);
+          sr.setIrqDisableFlag();
+          cpu.setProgramCounter(read16(IRQ_VECTOR));
+        };
+      case CLC: return sr::clearCarryFlag;
+      case CLD: return sr::clearDecimalModeFlag;
+      case CLI:
+        return () -> {
+          sr.clearIrqDisableFlag();
+          cpu.pollInterrupts(1);
+        };
+      case CLV: return sr::clearOverflowFlag;
+      case SEC: return sr::setCarryFlag;
+      case SED: return sr::setDecimalModeFlag;
+      case SEI: return sr::setIrqDisableFlag;
+      case DEX: return () -> setRegisterX(decrement(registerX()));
+      case DEY: return () -> setRegisterY(decrement(registerY()));
+      case INX: return () -> setRegisterX(increment(registerX()));
+      case INY: return () -> setRegisterY(increment(registerY()));
+      case NOP: return () -> { };
+      case PHA: return () -> push(accumulator());
+      case PHP: return () -> push(sr.toByte() | BREAK_BIT);
+      case PLA: return () -> loadAccumulator(pull());
+      case PLP:
+        return () -> {
+          sr.fromByte(pull());
+          cpu.pollInterrupts(1);
+        };
+      case RTI:
+        return () -> {
+          sr.fromByte(pull());
+          cpu.setProgramCounter(pull16());
+          cpu.pollInterrupts(0);
+        };
+      case RTS: return () -> cpu.setProgramCounter(pull16() + 1);
+      case TAX: return () -> loadX(accumulator());
+      case TAY: return () -> loadY(accumulator());
+      case TSX: return () -> loadX(cpu.getStackPointer());
+      case TXA: return () -> loadAccumulator(registerX());
+      case TXS: return () -> cpu.setStackPointer(registerX());
+      case TYA: return () -> loadAccumulator(registerY());
+      default: return unsupported(opcode);
     }
+  }
 
+  private static Operation unsupported(final OperationCode opcode) {
+    return unknown(opcode.getAddressingMode() + " is not implemented for instruction "
+        + opcode.getInstruction());
   }
 
-  private void loadX() throws UnknownOperationException {
-    int operandValue = cpu.getCurrentOperand();
+  private static Operation unknown(final String message) {
+    return () -> {
+      throw new UnknownOperationException(message);
+    };
+  }
 
-    switch (currentAddressingMode) {
-      case IMMEDIATE:
-        // Nothing to do, the load the value read directly into index X register
-        break;
-      default:
-        throw new UnknownOperationException(
-            currentAddressingMode + " is not implemented for load index X instruction");
-    }
+  // Addressing modes: each method takes the operand and returns the effective value or address
 
-    // Set the status register with the needed flags
-    FlagsRegister_2A03 sr = cpu.getStatusRegister();
-    sr.setNegativeFlag(operandValue);
-    sr.setZeroFlag(operandValue);
-    // Sets the X index register
-    cpu.getRegisterX().setRegisterData(operandValue);
+  private int immediate() {
+    return cpu.getCurrentOperand();
   }
 
-  private void storeX() throws UnknownOperationException, WriteOutOfMemoryException {
-    int operandAddress = cpu.getCurrentOperand();
+  private int zeroPage() {
+    return cpu.getCurrentOperand();
+  }
 
-    switch (currentAddressingMode) {
-      case ABSOLUTE:
-      case ZERO_PAGE:
-        int xValue = cpu.getRegisterX().getRegisterData();
-        cpu.getMemory().writeMemory(operandAddress, xValue);
-        break;
-      default:
-        throw new UnknownOperationException(
-            currentAddressingMode + " is not implemented for store index X instruction");
-    }
+  private int zeroPageX() {
+    return (cpu.getCurrentOperand() + registerX()) & BYTE_MASK;
+  }
+
+  private int zeroPageY() {
+    return (cpu.getCurrentOperand() + registerY()) & BYTE_MASK;
   }
 
-  private void jumpSavingReturn() throws UnknownOperationException, WriteOutOfMemoryException {
-    int currentOffset = cpu.getProgramCounter().getRegisterData();
-    AbstractMemoryController memory = cpu.getMemory();
-    Register stackPointer = cpu.getStackPointer();
+  private int absolute() {
+    return cpu.getCurrentOperand();
+  }
 
-    int highByte = (currentOffset >> MOST_SIGNIFICANT_BYTE_SHIFT) & BYTE_MASK;
-    int lowByte = currentOffset & BYTE_MASK;
+  private int absoluteX() {
+    return indexed(cpu.getCurrentOperand(), registerX());
+  }
 
-    memory.writeMemory(stackPointer.getRegisterData(), highByte);
-    stackPointer.decrement();
-    memory.writeMemory(stackPointer.getRegisterData(), lowByte);
+  private int absoluteY() {
+    return indexed(cpu.getCurrentOperand(), registerY());
+  }
 
-    if (currentAddressingMode != AddressingMode.ABSOLUTE) {
-      throw new UnknownOperationException(
-          currentAddressingMode + " is not implemented for jump with return address saving");
-    } else {
-      jump();
-    }
+  /**
+   * Reads the pointer in zero page at operand + X. The pointer never leaves the zero page.
+   */
+  private int indirectX() {
+    return cpu.getMemory().read16ZeroPage(cpu.getCurrentOperand() + registerX());
   }
 
-  private void branchOnCarrySet() throws UnknownOperationException {
-    if (cpu.getStatusRegister().isCarryFlagSet()) {
-      jump();
-    }
+  /**
+   * Reads the pointer in zero page at operand and adds Y to it.
+   */
+  private int indirectY() {
+    final int pointer = cpu.getMemory().read16ZeroPage(cpu.getCurrentOperand());
+    return indexed(pointer, registerY());
+  }
+
+  /**
+   * Adds an index to a base address, the operation taking one more cycle when a page is crossed
+   * if it has a page crossing penalty.
+   */
+  private int indexed(final int baseAddress, final int index) {
+    final int address = (baseAddress + index) & WORD_MASK;
+    cpu.checkPageCross(baseAddress, address);
+    return address;
   }
 
-  private void branchOnCarryClear() throws UnknownOperationException {
-    if (!cpu.getStatusRegister().isCarryFlagSet()) {
-      jump();
+  /**
+   * Reads the pointer used by the indirect jump. As on the original CPU, the high byte of the
+   * pointer is read in the same page when the pointer low byte is 0xFF.
+   */
+  private int indirect() {
+    final int pointer = cpu.getCurrentOperand();
+    final int highOffset = (pointer & PAGE_MASK) | ((pointer + 1) & BYTE_MASK);
+    return read(pointer) | (read(highOffset) << MOST_SIGNIFICANT_BYTE_SHIFT);
+  }
+
+  // Memory and stack accesses
+
+  /**
+   * Pushes the program counter and the status, then jumps to the address held by an interrupt
+   * vector with interrupts disabled. Unlike BRK, the pushed status has no break bit.
+   *
+   * @param vector The address of the vector.
+   */
+  void interrupt(final int vector) {
+    final FlagsRegister_2A03 sr = cpu.getStatusRegister();
+    push16(cpu.getProgramCounter());
+    push(sr.toByte());
+    sr.setIrqDisableFlag();
+    cpu.setProgramCounter(read16(vector));
+  }
+
+  private int read(final int offset) {
+    return cpu.getMemory().read8(offset);
+  }
+
+  private int read16(final int offset) {
+    return cpu.getMemory().read16(offset);
+  }
+
+  private void write(final int offset, final int value) {
+    cpu.getMemory().write8(offset, value);
+  }
+
+  private void push(final int value) {
+    final int sp = cpu.getStackPointer();
+    write(STACK_PAGE | sp, value & BYTE_MASK);
+    cpu.setStackPointer(sp - 1);
+  }
+
+  private void push16(final int value) {
+    push(value >> MOST_SIGNIFICANT_BYTE_SHIFT);
+    push(value);
+  }
+
+  private int pull() {
+    final int sp = (cpu.getStackPointer() + 1) & BYTE_MASK;
+    cpu.setStackPointer(sp);
+    return read(STACK_PAGE | sp);
+  }
+
+  private int pull16() {
+    final int lowByte = pull();
+    return lowByte | (pull() << MOST_SIGNIFICANT_BYTE_SHIFT);
+  }
+
+  // Registers
+
+  private int accumulator() {
+    return cpu.getAccumulator();
+  }
+
+  private void setAccumulator(final int value) {
+    cpu.setAccumulator(value);
+  }
+
+  private int registerX() {
+    return cpu.getRegisterX();
+  }
+
+  private void setRegisterX(final int value) {
+    cpu.setRegisterX(value);
+  }
+
+  private int registerY() {
+    return cpu.getRegisterY();
+  }
+
+  private void setRegisterY(final int value) {
+    cpu.setRegisterY(value);
+  }
+
+  private void setCarry(final boolean isSet) {
+    final FlagsRegister_2A03 sr = cpu.getStatusRegister();
+    if (isSet) {
+      sr.setCarryFlag();
+    } else {
+      sr.clearCarryFlag();
     }
   }
 
-  private void branchOnZeroSet() throws UnknownOperationException {
-    if (cpu.getStatusRegister().isZeroFlagSet()) {
-      jump();
+  private void setOverflow(final boolean isSet) {
+    final FlagsRegister_2A03 sr = cpu.getStatusRegister();
+    if (isSet) {
+      sr.setOverflowFlag();
+    } else {
+      sr.clearOverflowFlag();
     }
   }
 
-  private void branchOnZeroClear() throws UnknownOperationException {
-    if (!cpu.getStatusRegister().isZeroFlagSet()) {
-      jump();
+  private void setZeroAndNegative(final int value) {
+    cpu.getStatusRegister().setZeroAndNegativeFlags(value);
+  }
+
+  // Instructions
+
+  private void branch(final boolean condition) {
+    // The offset is a signed byte relative to the next instruction
+    final int offset = (byte) cpu.getCurrentOperand();
+    if (condition) {
+      // A taken branch takes one more cycle, and another one to reach a different page
+      final int nextAddress = cpu.getProgramCounter();
+      cpu.setProgramCounter(nextAddress + offset);
+      cpu.addCycles(TAKEN_BRANCH_CYCLES);
+      cpu.checkPageCross(nextAddress, cpu.getProgramCounter());
     }
   }
 
@@ -248,101 +646,178 @@ public final class ArithmeticAndLogicalUnit {
    * Computes an addition between a value from memory, the value contained inside the accumulator
    * and the remaining carry.
    */
-  private void additionWithCarry() throws ReadOutOfMemoryException, UnknownOperationException {
-    int carry = 0;
-    int srcValue = getSourceValue();
-    FlagsRegister_2A03 sr = cpu.getStatusRegister();
-    Register accumulator = cpu.getAccumulator();
-    int accValue = accumulator.getRegisterData();
-
-    // Sets the carry if there is one
-    if (sr.isCarryFlagSet()) {
-      carry = 1;
+  private void addWithCarry(final int srcValue) {
+    final FlagsRegister_2A03 sr = cpu.getStatusRegister();
+    final int accValue = accumulator();
+    final int carry = sr.isCarryFlagSet() ? 1 : 0;
+
+    if (useLookupTables) {
+      final int entry = ArithmeticTables.ADD_WITH_CARRY[
+          (carry << ArithmeticTables.ADDITION_CARRY_SHIFT)
+          | (accValue << ArithmeticTables.ADDITION_ACCUMULATOR_SHIFT) | srcValue];
+      setOverflow((entry & ArithmeticTables.OVERFLOW_OUT) != 0);
+      setAccumulator(fromTable(entry));
+      return;
     }
+
     // Computes addition and computes overflow
-    int result = accValue + srcValue + carry;
-    int overflow = (~(accValue ^ srcValue)) & (accValue ^ result);
-    if (overflow > 0) {
-      sr.setOverflowFlag();
-    } else {
-      sr.clearOverflowFlag();
-    }
+    final int result = accValue + srcValue + carry;
+    final int overflow = (~(accValue ^ srcValue)) & (accValue ^ result) & SIGN_MASK;
+    setOverflow(overflow != 0);
 
     // Sets every resulting flags
     sr.setCarryFlag(result);
-    sr.setZeroFlag(result);
-    sr.setNegativeFlag(result);
+    setZeroAndNegative(result);
 
     // Sets the result in the accumulator
-    accumulator.setRegisterData(result);
+    setAccumulator(result);
   }
 
-  private void loadAccumulatorWithMemory()
-      throws ReadOutOfMemoryException, UnknownOperationException {
-    int srcValue = getSourceValue();
-    FlagsRegister_2A03 statusRegister = cpu.getStatusRegister();
-    Register accumulator = cpu.getAccumulator();
-
-    // Sets every resulting flags
-    statusRegister.setZeroFlag(srcValue);
-    statusRegister.setNegativeFlag(srcValue);
-    accumulator.setRegisterData(srcValue);
+  /**
+   * The subtraction is an addition with the complement of the value from memory, the carry being
+   * the inverted borrow.
+   */
+  private void subtractWithBorrow(final int srcValue) {
+    addWithCarry(srcValue ^ BYTE_MASK);
   }
 
-  private void storeAccumulatorInMemory()
-      throws ReadOutOfMemoryException, UnknownOperationException, WriteOutOfMemoryException {
-    int srcValue = getSourceValue();
-    AbstractMemoryController memory = cpu.getMemory();
-    Register accumulator = cpu.getAccumulator();
+  private void logicalAnd(final int memoryValue) {
+    final int result = accumulator() & memoryValue;
+    setZeroAndNegative(result);
+    setAccumulator(result);
+  }
 
-    memory.writeMemory(srcValue, accumulator.getRegisterData());
+  private void logicalOr(final int memoryValue) {
+    final int result = accumulator() | memoryValue;
+    setZeroAndNegative(result);
+    setAccumulator(result);
   }
 
-  private void logicalAnd(final byte memoryValue) {
-    Register accumulator = cpu.getAccumulator();
-    int accumulatorValue = accumulator.getRegisterData();
-    FlagsRegister_2A03 statusRegister = cpu.getStatusRegister();
+  private void exclusiveOr(final int memoryValue) {
+    final int result = accumulator() ^ memoryValue;
+    setZeroAndNegative(result);
+    setAccumulator(result);
+  }
 
-    // Computes logical AND
-    accumulatorValue &= memoryValue;
+  private void compare(final int registerValue, final int memoryValue) {
+    setCarry(registerValue >= memoryValue);
+    setZeroAndNegative(registerValue - memoryValue);
+  }
 
-    // Sets every resulting flags
-    statusRegister.setZeroFlag(accumulatorValue);
-    statusRegister.setNegativeFlag(accumulatorValue);
+  private void testBits(final int memoryValue) {
+    final FlagsRegister_2A03 sr = cpu.getStatusRegister();
+    sr.setNegativeFlag(memoryValue);
+    setOverflow((memoryValue & BIT_SIX_MASK) != 0);
+    sr.setZeroFlag(memoryValue & accumulator());
+  }
 
-    // Sets the result on one byte
-    accumulator.setRegisterData(accumulatorValue & BYTE_MASK);
+  private void loadAccumulator(final int value) {
+    setZeroAndNegative(value);
+    setAccumulator(value);
   }
 
-  private void arithmeticShiftLeft(final byte memoryValue) {
-    FlagsRegister_2A03 statusRegister = cpu.getStatusRegister();
+  private void loadX(final int value) {
+    setZeroAndNegative(value);
+    setRegisterX(value);
+  }
 
-    statusRegister.setCarryFlag(memoryValue);
-    int result = memoryValue << 1;
+  private void loadY(final int value) {
+    setZeroAndNegative(value);
+    setRegisterY(value);
+  }
 
-    // Code the value from memory on an unsigned byte
-    int unsignedMemoryValue = memoryValue & BYTE_MASK;
+  private int shiftLeft(final int value) {
+    if (useLookupTables) {
+      return fromTable(ArithmeticTables.SHIFT_LEFT[value]);
+    }
+    final int result = (value << 1) & BYTE_MASK;
+    setCarry((value & SIGN_MASK) != 0);
+    setZeroAndNegative(result);
+    return result;
+  }
 
-    // TODO Finish implementing this instruction
+  private int shiftRight(final int value) {
+    if (useLookupTables) {
+      return fromTable(ArithmeticTables.SHIFT_RIGHT[value]);
+    }
+    final int result = value >> 1;
+    setCarry((value & 1) != 0);
+    setZeroAndNegative(result);
+    return result;
   }
 
-  private void testBitsInMemoryWithAccumulator()
-      throws ReadOutOfMemoryException, UnknownOperationException {
-    switch (currentAddressingMode) {
-      case ABSOLUTE:
-      case ZERO_PAGE:
-        FlagsRegister_2A03 statusRegister = cpu.getStatusRegister();
-        Register accumulator = cpu.getAccumulator();
-        int srcValue = getSourceValue();
+  private int rotateLeft(final int value) {
+    final int carry = cpu.getStatusRegister().isCarryFlagSet() ? 1 : 0;
+    if (useLookupTables) {
+      return fromTable(
+          ArithmeticTables.ROTATE_LEFT[(carry << ArithmeticTables.SHIFT_CARRY_SHIFT) | value]);
+    }
+    final int result = ((value << 1) | carry) & BYTE_MASK;
+    setCarry((value & SIGN_MASK) != 0);
+    setZeroAndNegative(result);
+    return result;
+  }
 
-        statusRegister.setNegativeFlag(srcValue);
-        // statusRegister.setOverflowFlag(0x40 & srcValue);   /* Copy bit 6 to OVERFLOW flag. */
-        statusRegister.setZeroFlag(srcValue & accumulator.getRegisterData());
-        break;
-      default:
-        throw new UnknownOperationException(
-            currentAddressingMode + " is not implemented test bits in memory instruction");
+  private int rotateRight(final int value) {
+    final boolean isCarrySet = cpu.getStatusRegister().isCarryFlagSet();
+    if (useLookupTables) {
+      final int carry = isCarrySet ? 1 : 0;
+      return fromTable(
+          ArithmeticTables.ROTATE_RIGHT[(carry << ArithmeticTables.SHIFT_CARRY_SHIFT) | value]);
     }
+    final int result = (value >> 1) | (isCarrySet ? SIGN_MASK : 0);
+    setCarry((value & 1) != 0);
+    setZeroAndNegative(result);
+    return result;
+  }
+
+  /**
+   * Sets carry, zero and negative flags from an entry of {@link ArithmeticTables}.
+   *
+   * @param entry The table entry.
+   * @return The result stored in the entry.
+   */
+  private int fromTable(final int entry) {
+    final int result = entry & ArithmeticTables.RESULT_MASK;
+    setCarry((entry & ArithmeticTables.CARRY_OUT) != 0);
+    setZeroAndNegative(result);
+    return result;
+  }
+
+  private int increment(final int value) {
+    final int result = (value + 1) & BYTE_MASK;
+    setZeroAndNegative(result);
+    return result;
+  }
+
+  private int decrement(final int value) {
+    final int result = (value - 1) & BYTE_MASK;
+    setZeroAndNegative(result);
+    return result;
+  }
+
+  private void shiftLeftInMemory(final int offset) {
+    write(offset, shiftLeft(read(offset)));
+  }
+
+  private void shiftRightInMemory(final int offset) {
+    write(offset, shiftRight(read(offset)));
+  }
+
+  private void rotateLeftInMemory(final int offset) {
+    write(offset, rotateLeft(read(offset)));
+  }
+
+  private void rotateRightInMemory(final int offset) {
+    write(offset, rotateRight(read(offset)));
+  }
+
+  private void incrementInMemory(final int offset) {
+    write(offset, increment(read(offset)));
+  }
+
+  private void decrementInMemory(final int offset) {
+    write(offset, decrement(read(offset)));
   }
 
 }
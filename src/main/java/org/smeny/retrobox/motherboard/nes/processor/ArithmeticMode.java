@@ -0,0 +1,30 @@
+/**
+ * ArithmeticMode
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.processor;
+
+/**
+ * An Arithmetic Mode tells the ALU how results and flags of arithmetic, shift and rotate
+ * instructions are obtained. Both modes give the same results, see {@link ArithmeticTables}.
+ *
+ * @author Stéphane Meny
+ */
+public enum ArithmeticMode {
+  /** Results and flags are computed by the ALU for each instruction. */
+  COMPUTED,
+
+  /** Results and flags are read from tables built once when the class is loaded. */
+  LOOKUP_TABLES;
+}
@@ -0,0 +1,102 @@
+/**
+ * ArithmeticTables
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.processor;
+
+/**
+ * Precomputed results of the 2A03 arithmetic, shift and rotate instructions, used by the ALU in
+ * {@link ArithmeticMode#LOOKUP_TABLES} mode. Each entry holds the 8 bits result in its low byte,
+ * the resulting carry in {@link #CARRY_OUT} and, for additions, the overflow in
+ * {@link #OVERFLOW_OUT}.
+ *
+ * <p>Zero and negative flags are not stored: they are evaluated lazily by the flags register from
+ * the result itself. Subtractions use the addition table with the complemented operand, since
+ * this is what the hardware does.
+ *
+ * @author Stéphane Meny
+ */
+final class ArithmeticTables {
+  /** Mask used to get the result stored in an entry. */
+  static final int RESULT_MASK = 0xFF;
+  /** Bit of an entry holding the resulting carry. */
+  static final int CARRY_OUT = 0x100;
+  /** Bit of an entry holding the resulting overflow. */
+  static final int OVERFLOW_OUT = 0x200;
+
+  /** Shift of the carry in an addition index. */
+  static final int ADDITION_CARRY_SHIFT = 16;
+  /** Shift of the accumulator in an addition index. */
+  static final int ADDITION_ACCUMULATOR_SHIFT = 8;
+  /** Shift of the carry in a shift or rotate index. */
+  static final int SHIFT_CARRY_SHIFT = 8;
+
+  private static final int VALUE_COUNT = 0x100;
+  private static final int SIGN_MASK = 0x80;
+
+  /** Additions, indexed by carry &lt;&lt; 16 | accumulator &lt;&lt; 8 | operand. */
+  static final char[] ADD_WITH_CARRY = new char[2 * VALUE_COUNT * VALUE_COUNT];
+  /** Arithmetic shifts left, indexed by value (the carry is not used). */
+  static final char[] SHIFT_LEFT = new char[VALUE_COUNT];
+  /** Logical shifts right, indexed by value (the carry is not used). */
+  static final char[] SHIFT_RIGHT = new char[VALUE_COUNT];
+  /** Rotations left, indexed by carry &lt;&lt; 8 | value. */
+  static final char[] ROTATE_LEFT = new char[2 * VALUE_COUNT];
+  /** Rotations right, indexed by carry &lt;&lt; 8 | value. */
+  static final char[] ROTATE_RIGHT = new char[2 * VALUE_COUNT];
+
+  static {
+    for (int carry = 0; carry < 2; carry++) {
+      for (int accumulator = 0; accumulator < VALUE_COUNT; accumulator++) {
+        for (int operand = 0; operand < VALUE_COUNT; operand++) {
+          final int sum = accumulator + operand + carry;
+          // Overflow when both operands have the same sign and the result has another one
+          final boolean overflow = ((accumulator ^ sum) & (operand ^ sum) & SIGN_MASK) != 0;
+          final int index = (carry << ADDITION_CARRY_SHIFT)
+              | (accumulator << ADDITION_ACCUMULATOR_SHIFT) | operand;
+          ADD_WITH_CARRY[index] = entry(sum & RESULT_MASK, sum > RESULT_MASK, overflow);
+        }
+      }
+    }
+    for (int value = 0; value < VALUE_COUNT; value++) {
+      final boolean highBit = (value & SIGN_MASK) != 0;
+      final boolean lowBit = (value & 1) != 0;
+      SHIFT_LEFT[value] = entry((value << 1) & RESULT_MASK, highBit, false);
+      SHIFT_RIGHT[value] = entry(value >> 1, lowBit, false);
+      for (int carry = 0; carry < 2; carry++) {
+        final int index = (carry << SHIFT_CARRY_SHIFT) | value;
+        ROTATE_LEFT[index] = entry(((value << 1) | carry) & RESULT_MASK, highBit, false);
+        ROTATE_RIGHT[index] = entry((value >> 1) | (carry * SIGN_MASK), lowBit, false);
+      }
+    }
+  }
+
+  /**
+   * Private default constructor to prevent instantiation.
+   */
+  private ArithmeticTables() {
+  }
+
+  private static char entry(final int result, final boolean carry, final boolean overflow) {
+    int entry = result;
+    if (carry) {
+      entry |= CARRY_OUT;
+    }
+    if (overflow) {
+      entry |= OVERFLOW_OUT;
+    }
+    return (char) entry;
+  }
+
+}
@@ -0,0 +1,411 @@
+/**
+ * BlockClassWriter
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.processor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the class file of a {@link CompiledBlock}. The class holds the CPU and the operation of
+ * each instruction in static final fields, so the JIT compiler sees the operations as constants and
+ * inlines them. Its execute method sets the CPU state of each instruction, as
+ * {@link Core_2A03#beginCompiledInstruction(int, int, int, int, int, int)}, then executes the
+ * operation. After the instructions which can switch banks or fault, it returns early if
+ * {@link Core_2A03#isBlockInterrupted()}.
+ *
+ * <p>The static fields are initialised from the array returned by
+ * {@link BlockCompiler#takeConstants()}: the CPU, then the operation of each instruction.
+ *
+ * <p>The class file is written for Java 8, with the stack map frames of the early returns.
+ *
+ * @author Stéphane Meny
+ */
+final class BlockClassWriter {
+  private static final int MAGIC = 0xCAFEBABE;
+  private static final int MAJOR_VERSION = 52;
+
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_INTEGER = 3;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_FIELDREF = 9;
+  private static final int CONSTANT_METHODREF = 10;
+  private static final int CONSTANT_INTERFACE_METHODREF = 11;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+  private static final int ACC_PUBLIC = 0x0001;
+  private static final int ACC_PRIVATE = 0x0002;
+  private static final int ACC_STATIC = 0x0008;
+  private static final int ACC_FINAL = 0x0010;
+  private static final int ACC_SUPER = 0x0020;
+
+  private static final int ICONST_0 = 0x03;
+  private static final int BIPUSH = 0x10;
+  private static final int SIPUSH = 0x11;
+  private static final int LDC = 0x12;
+  private static final int LDC_W = 0x13;
+  private static final int ALOAD_0 = 0x2A;
+  private static final int AALOAD = 0x32;
+  private static final int ASTORE_0 = 0x4B;
+  private static final int IFEQ = 0x99;
+  private static final int IRETURN = 0xAC;
+  private static final int RETURN = 0xB1;
+  private static final int GETSTATIC = 0xB2;
+  private static final int PUTSTATIC = 0xB3;
+  private static final int INVOKEVIRTUAL = 0xB6;
+  private static final int INVOKESPECIAL = 0xB7;
+  private static final int INVOKESTATIC = 0xB8;
+  private static final int INVOKEINTERFACE = 0xB9;
+  private static final int CHECKCAST = 0xC0;
+
+  /** Stack map frame with the locals of the previous frame and an empty stack. */
+  private static final int SAME_FRAME_MAX = 63;
+  private static final int SAME_FRAME_EXTENDED = 251;
+  /** Largest constant index loaded by ldc, ldc_w loading the others. */
+  private static final int LDC_MAX_INDEX = 0xFF;
+  /** Largest value pushed by iconst. */
+  private static final int ICONST_MAX = 5;
+
+  /** Stack used by execute: the CPU and the six values given to each instruction. */
+  private static final int EXECUTE_MAX_STACK = 7;
+  /** Stack used by the static initialiser: the constant array and an index. */
+  private static final int INITIALISER_MAX_STACK = 2;
+
+  private static final String PACKAGE = "org/smeny/retrobox/motherboard/nes/processor/";
+  /** Name of the classes, hidden classes getting a unique suffix when defined. */
+  private static final String CLASS_NAME = PACKAGE + "GeneratedBlock";
+  private static final String CPU_CLASS = PACKAGE + "Core_2A03";
+  private static final String OPERATION_CLASS = PACKAGE + "Operation";
+  private static final String CPU_FIELD = "CPU";
+  private static final String OPERATION_FIELD = "OP";
+
+  private final ByteArrayOutputStream constantBytes = new ByteArrayOutputStream();
+  private final DataOutputStream constantPool = new DataOutputStream(constantBytes);
+  /** Index of each constant already in the pool, by kind and value. */
+  private final Map<String, Integer> constantIndexes = new HashMap<>();
+  private int constantCount = 1;
+
+  private final ByteArrayOutputStream executeBytes = new ByteArrayOutputStream();
+  private final DataOutputStream executeCode = new DataOutputStream(executeBytes);
+  /** Offsets in the execute method of the instructions following an early return. */
+  private final List<Integer> frameOffsets = new ArrayList<>();
+  private int instructionCount;
+
+  /**
+   * Adds an instruction to the block.
+   *
+   * @param opcode The operation code.
+   * @param operand The operand read with the operation code.
+   * @param offset The offset of the instruction from the start of the block.
+   * @param length The length of the instruction.
+   * @param cycles The base cycles of the operation.
+   * @param pageCrossCycles The cycles added by the operation on a page crossing.
+   * @param isInterruptible true to return after the instruction if it interrupts the block.
+   */
+  void addInstruction(final int opcode, final int operand, final int offset, final int length,
+      final int cycles, final int pageCrossCycles, final boolean isInterruptible) {
+    try {
+      executeCode.writeByte(GETSTATIC);
+      executeCode.writeShort(fieldReference(CPU_FIELD, cpuType()));
+      pushInt(executeCode, opcode);
+      pushInt(executeCode, operand);
+      pushInt(executeCode, offset);
+      pushInt(executeCode, length);
+      pushInt(executeCode, cycles);
+      pushInt(executeCode, pageCrossCycles);
+      executeCode.writeByte(INVOKEVIRTUAL);
+      executeCode.writeShort(memberReference(CONSTANT_METHODREF, CPU_CLASS,
+          "beginCompiledInstruction", "(IIIIII)V"));
+      executeCode.writeByte(GETSTATIC);
+      executeCode.writeShort(fieldReference(OPERATION_FIELD + instructionCount,
+          operationType()));
+      executeCode.writeByte(INVOKEINTERFACE);
+      executeCode.writeShort(memberReference(CONSTANT_INTERFACE_METHODREF, OPERATION_CLASS,
+          "execute", "()V"));
+      executeCode.writeByte(1);
+      executeCode.writeByte(0);
+      instructionCount++;
+      if (isInterruptible) {
+        executeCode.writeByte(GETSTATIC);
+        executeCode.writeShort(fieldReference(CPU_FIELD, cpuType()));
+        executeCode.writeByte(INVOKEVIRTUAL);
+        executeCode.writeShort(memberReference(CONSTANT_METHODREF, CPU_CLASS,
+            "isBlockInterrupted", "()Z"));
+        // Branches over the early return, whose size depends on the count pushed
+        final int branchOffset = executeBytes.size();
+        final ByteArrayOutputStream earlyReturn = new ByteArrayOutputStream();
+        final DataOutputStream earlyReturnCode = new DataOutputStream(earlyReturn);
+        pushInt(earlyReturnCode, instructionCount);
+        earlyReturnCode.writeByte(IRETURN);
+        executeCode.writeByte(IFEQ);
+        executeCode.writeShort(3 + earlyReturn.size());
+        earlyReturn.writeTo(executeCode);
+        frameOffsets.add(branchOffset + 3 + earlyReturn.size());
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Returns the class file of the block with the instructions added so far.
+   */
+  byte[] toByteArray() {
+    try {
+      final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+      final DataOutputStream methods = new DataOutputStream(methodBytes);
+      writeInitialiser(methods);
+      writeConstructor(methods);
+      writeExecute(methods);
+
+      final ByteArrayOutputStream fieldBytes = new ByteArrayOutputStream();
+      final DataOutputStream fields = new DataOutputStream(fieldBytes);
+      writeField(fields, CPU_FIELD, cpuType());
+      for (int i = 0; i < instructionCount; i++) {
+        writeField(fields, OPERATION_FIELD + i, operationType());
+      }
+
+      final int thisClass = classReference(CLASS_NAME);
+      final int superClass = classReference("java/lang/Object");
+      final int blockInterface = classReference(PACKAGE + "CompiledBlock");
+
+      final ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+      final DataOutputStream classFile = new DataOutputStream(classBytes);
+      classFile.writeInt(MAGIC);
+      classFile.writeShort(0);
+      classFile.writeShort(MAJOR_VERSION);
+      classFile.writeShort(constantCount);
+      constantBytes.writeTo(classFile);
+      classFile.writeShort(ACC_FINAL | ACC_SUPER);
+      classFile.writeShort(thisClass);
+      classFile.writeShort(superClass);
+      classFile.writeShort(1);
+      classFile.writeShort(blockInterface);
+      classFile.writeShort(1 + instructionCount);
+      fieldBytes.writeTo(classFile);
+      classFile.writeShort(3);
+      methodBytes.writeTo(classFile);
+      classFile.writeShort(0);
+      return classBytes.toByteArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void writeField(final DataOutputStream fields, final String name,
+      final String descriptor) throws IOException {
+    fields.writeShort(ACC_PRIVATE | ACC_STATIC | ACC_FINAL);
+    fields.writeShort(utf8(name));
+    fields.writeShort(utf8(descriptor));
+    fields.writeShort(0);
+  }
+
+  /**
+   * Writes the static initialiser, setting the static fields from the constants of the block.
+   */
+  private void writeInitialiser(final DataOutputStream methods) throws IOException {
+    final ByteArrayOutputStream codeBytes = new ByteArrayOutputStream();
+    final DataOutputStream code = new DataOutputStream(codeBytes);
+    code.writeByte(INVOKESTATIC);
+    code.writeShort(memberReference(CONSTANT_METHODREF, PACKAGE + "BlockCompiler",
+        "takeConstants", "()[Ljava/lang/Object;"));
+    code.writeByte(ASTORE_0);
+    for (int i = 0; i <= instructionCount; i++) {
+      final boolean isCpu = i == 0;
+      code.writeByte(ALOAD_0);
+      pushInt(code, i);
+      code.writeByte(AALOAD);
+      code.writeByte(CHECKCAST);
+      code.writeShort(classReference(isCpu ? CPU_CLASS : OPERATION_CLASS));
+      code.writeByte(PUTSTATIC);
+      code.writeShort(isCpu ? fieldReference(CPU_FIELD, cpuType())
+          : fieldReference(OPERATION_FIELD + (i - 1), operationType()));
+    }
+    code.writeByte(RETURN);
+    writeMethod(methods, ACC_STATIC, "<clinit>", "()V", INITIALISER_MAX_STACK, codeBytes, null);
+  }
+
+  private void writeConstructor(final DataOutputStream methods) throws IOException {
+    final ByteArrayOutputStream codeBytes = new ByteArrayOutputStream();
+    final DataOutputStream code = new DataOutputStream(codeBytes);
+    code.writeByte(ALOAD_0);
+    code.writeByte(INVOKESPECIAL);
+    code.writeShort(memberReference(CONSTANT_METHODREF, "java/lang/Object", "<init>", "()V"));
+    code.writeByte(RETURN);
+    writeMethod(methods, ACC_PUBLIC, "<init>", "()V", 1, codeBytes, null);
+  }
+
+  private void writeExecute(final DataOutputStream methods) throws IOException {
+    pushInt(executeCode, instructionCount);
+    executeCode.writeByte(IRETURN);
+    ByteArrayOutputStream stackMapBytes = null;
+    if (!frameOffsets.isEmpty()) {
+      stackMapBytes = new ByteArrayOutputStream();
+      final DataOutputStream stackMap = new DataOutputStream(stackMapBytes);
+      stackMap.writeShort(frameOffsets.size());
+      int previousOffset = -1;
+      for (final int offset : frameOffsets) {
+        final int delta = offset - previousOffset - 1;
+        if (delta <= SAME_FRAME_MAX) {
+          stackMap.writeByte(delta);
+        } else {
+          stackMap.writeByte(SAME_FRAME_EXTENDED);
+          stackMap.writeShort(delta);
+        }
+        previousOffset = offset;
+      }
+    }
+    writeMethod(methods, ACC_PUBLIC, "execute", "()I", EXECUTE_MAX_STACK, executeBytes,
+        stackMapBytes);
+  }
+
+  private void writeMethod(final DataOutputStream methods, final int access, final String name,
+      final String descriptor, final int maxStack, final ByteArrayOutputStream code,
+      final ByteArrayOutputStream stackMap) throws IOException {
+    final int codeName = utf8("Code");
+    final int stackMapName = stackMap == null ? 0 : utf8("StackMapTable");
+    methods.writeShort(access);
+    methods.writeShort(utf8(name));
+    methods.writeShort(utf8(descriptor));
+    methods.writeShort(1);
+    methods.writeShort(codeName);
+    final int stackMapSize = stackMap == null ? 0 : 6 + stackMap.size();
+    methods.writeInt(12 + code.size() + stackMapSize);
+    methods.writeShort(maxStack);
+    methods.writeShort(1);
+    methods.writeInt(code.size());
+    code.writeTo(methods);
+    methods.writeShort(0);
+    if (stackMap == null) {
+      methods.writeShort(0);
+    } else {
+      methods.writeShort(1);
+      methods.writeShort(stackMapName);
+      methods.writeInt(stackMap.size());
+      stackMap.writeTo(methods);
+    }
+  }
+
+  private void pushInt(final DataOutputStream code, final int value) throws IOException {
+    if (value >= 0 && value <= ICONST_MAX) {
+      code.writeByte(ICONST_0 + value);
+    } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+      code.writeByte(BIPUSH);
+      code.writeByte(value);
+    } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+      code.writeByte(SIPUSH);
+      code.writeShort(value);
+    } else {
+      final int index = integer(value);
+      if (index <= LDC_MAX_INDEX) {
+        code.writeByte(LDC);
+        code.writeByte(index);
+      } else {
+        code.writeByte(LDC_W);
+        code.writeShort(index);
+      }
+    }
+  }
+
+  private static String cpuType() {
+    return "L" + CPU_CLASS + ";";
+  }
+
+  private static String operationType() {
+    return "L" + OPERATION_CLASS + ";";
+  }
+
+  // Constant pool: each constant is only added once and its index returned
+
+  private int utf8(final String value) throws IOException {
+    final String key = CONSTANT_UTF8 + ":" + value;
+    final Integer index = constantIndexes.get(key);
+    if (index != null) {
+      return index;
+    }
+    constantPool.writeByte(CONSTANT_UTF8);
+    constantPool.writeUTF(value);
+    return addConstant(key);
+  }
+
+  private int integer(final int value) throws IOException {
+    final String key = CONSTANT_INTEGER + ":" + value;
+    final Integer index = constantIndexes.get(key);
+    if (index != null) {
+      return index;
+    }
+    constantPool.writeByte(CONSTANT_INTEGER);
+    constantPool.writeInt(value);
+    return addConstant(key);
+  }
+
+  private int classReference(final String name) throws IOException {
+    final String key = CONSTANT_CLASS + ":" + name;
+    final Integer index = constantIndexes.get(key);
+    if (index != null) {
+      return index;
+    }
+    final int nameIndex = utf8(name);
+    constantPool.writeByte(CONSTANT_CLASS);
+    constantPool.writeShort(nameIndex);
+    return addConstant(key);
+  }
+
+  private int nameAndType(final String name, final String descriptor) throws IOException {
+    final String key = CONSTANT_NAME_AND_TYPE + ":" + name + ":" + descriptor;
+    final Integer index = constantIndexes.get(key);
+    if (index != null) {
+      return index;
+    }
+    final int nameIndex = utf8(name);
+    final int descriptorIndex = utf8(descriptor);
+    constantPool.writeByte(CONSTANT_NAME_AND_TYPE);
+    constantPool.writeShort(nameIndex);
+    constantPool.writeShort(descriptorIndex);
+    return addConstant(key);
+  }
+
+  private int fieldReference(final String name, final String descriptor) throws IOException {
+    return memberReference(CONSTANT_FIELDREF, CLASS_NAME, name, descriptor);
+  }
+
+  private int memberReference(final int kind, final String owner, final String name,
+      final String descriptor) throws IOException {
+    final String key = kind + ":" + owner + ":" + name + ":" + descriptor;
+    final Integer index = constantIndexes.get(key);
+    if (index != null) {
+      return index;
+    }
+    final int ownerIndex = classReference(owner);
+    final int nameAndTypeIndex = nameAndType(name, descriptor);
+    constantPool.writeByte(kind);
+    constantPool.writeShort(ownerIndex);
+    constantPool.writeShort(nameAndTypeIndex);
+    return addConstant(key);
+  }
+
+  private int addConstant(final String key) {
+    final int index = constantCount++;
+    constantIndexes.put(key, index);
+    return index;
+  }
+
+}
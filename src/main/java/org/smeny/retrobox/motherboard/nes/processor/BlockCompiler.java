@@ -0,0 +1,341 @@
+/**
+ * BlockCompiler
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.processor;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.smeny.retrobox.exception.UnknownOperationException;
+import org.smeny.retrobox.motherboard.nes.memory.PagedMemoryController;
+
+/**
+ * The Block Compiler runs the CPU in {@link ExecutionMode#RECOMPILED} mode. It counts how often
+ * the program enters each block of instructions in ROM, a block ending with a branch, a jump, a
+ * return or a break. Once a block has been entered often enough, it is compiled into a hidden JVM
+ * class, see {@link BlockClassWriter}, which the JIT compiler then compiles with the operations of
+ * its instructions inlined.
+ *
+ * <p>A compiled block is kept by the memory controller next to the ROM it was read from, so it
+ * stays valid whatever the bank switches: it is found again when its bank is mapped back. Blocks
+ * never cross the end of a page, which could be switched alone, and are only compiled from ROM, so
+ * they are never modified: code running from RAM is always interpreted. A block returns early when
+ * one of its writes switches banks or faults, or when an event is scheduled meanwhile, like an
+ * interrupt.
+ *
+ * <p>The compiled instructions update the CPU state like the interpreter, so the blocks are cycle
+ * exact. A block only runs if all its instructions would be started before the end of the cycle
+ * budget, otherwise the interpreter runs them one by one.
+ *
+ * <p>Hidden classes appeared with Java 15: on older runtimes {@link #isSupported()} is false and
+ * the CPU keeps interpreting.
+ *
+ * @author Stéphane Meny
+ */
+final class BlockCompiler {
+  /** Largest number of instructions of a block. */
+  private static final int MAX_BLOCK_LENGTH = 24;
+  /** Number of times a block is entered before being compiled. */
+  private static final int COMPILE_THRESHOLD = 256;
+  /** Mask used to detect that two addresses are in different pages. */
+  private static final int PAGE_MASK = 0xFF00;
+  /** First address of the registers and cartridge space, where a write can switch banks. */
+  private static final int REGISTERS_ADDRESS = 0x2000;
+  private static final int BYTE_MASK = 0xFF;
+  private static final int WORD_MASK = 0xFFFF;
+
+  /** Our default logger for this class. */
+  private static final Logger LOGGER = Logger.getLogger(BlockCompiler.class.getName());
+  /** Lookup defining the hidden classes in this package. */
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+  /** The defineHiddenClass method of the lookup, null if not available. */
+  private static final Method DEFINE_HIDDEN_CLASS;
+  /** The empty array of class options given to defineHiddenClass. */
+  private static final Object CLASS_OPTIONS;
+  /** Constants of the block being defined, taken by the static initialiser of its class. */
+  private static final ThreadLocal<Object[]> CONSTANTS = new ThreadLocal<>();
+
+  static {
+    Method method = null;
+    Object options = null;
+    try {
+      final Class<?> optionClass =
+          Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+      options = Array.newInstance(optionClass, 0);
+      method = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class,
+          boolean.class, options.getClass());
+    } catch (ClassNotFoundException | NoSuchMethodException e) {
+      method = null;
+    }
+    DEFINE_HIDDEN_CLASS = method;
+    CLASS_OPTIONS = options;
+  }
+
+  private final Core_2A03 cpu;
+  private final PagedMemoryController memory;
+  private final Decoder decoder;
+  private final Operation[] dispatchTable;
+  private final int[] cycleTable;
+  private final int[] pageCrossCycleTable;
+  /** Tells if each operation code ends a block, indexed by operation code. */
+  private final boolean[] isBlockEnd;
+  /** Tells that the last instructions were run by a block, so a new block may start. */
+  private boolean isAfterBlock;
+  /** Number of blocks compiled so far. */
+  private int compiledBlockCount;
+
+  /**
+   * Builds the compiler of the blocks of a CPU.
+   *
+   * @param cpu The CPU executing the blocks.
+   * @param decoder The decoder of the operation codes.
+   * @param dispatchTable The operations bound for the CPU, indexed by operation code.
+   * @param cycleTable The base cycles of each operation code.
+   * @param pageCrossCycleTable The cycles added by each operation code on a page crossing.
+   */
+  BlockCompiler(final Core_2A03 cpu, final Decoder decoder, final Operation[] dispatchTable,
+      final int[] cycleTable, final int[] pageCrossCycleTable) {
+    this.cpu = cpu;
+    this.memory = cpu.getMemory();
+    this.decoder = decoder;
+    this.dispatchTable = dispatchTable;
+    this.cycleTable = cycleTable;
+    this.pageCrossCycleTable = pageCrossCycleTable;
+    isBlockEnd = new boolean[dispatchTable.length];
+    for (int i = 0; i < isBlockEnd.length; i++) {
+      final OperationCode opcode = decoder.getOpcode(i);
+      isBlockEnd[i] = opcode == null || isBlockEnd(opcode.getInstruction());
+    }
+    isAfterBlock = true;
+  }
+
+  /**
+   * Indicates if hidden classes can be defined by the running JVM.
+   */
+  static boolean isSupported() {
+    return DEFINE_HIDDEN_CLASS != null;
+  }
+
+  /**
+   * Returns the number of blocks compiled so far.
+   */
+  int getCompiledBlockCount() {
+    return compiledBlockCount;
+  }
+
+  /**
+   * Returns the constants of the block being defined: the CPU, then the operation of each
+   * instruction. Called once by the static initialiser of each block class.
+   */
+  static Object[] takeConstants() {
+    final Object[] constants = CONSTANTS.get();
+    CONSTANTS.remove();
+    return constants;
+  }
+
+  /**
+   * Executes the block starting at the program counter, if it is compiled and fits in the limits.
+   * A block is only looked for where the previous instruction ended a block, the entry of a
+   * block being counted to compile it.
+   *
+   * @param lastCycle The cycle before which every instruction of the block must start.
+   * @param instructionLimit The largest number of instructions to execute.
+   * @return The number of instructions executed, 0 if the next instruction must be interpreted.
+   * @throws UnknownOperationException If an operation code of the block is not implemented.
+   */
+  int execute(final long lastCycle, final long instructionLimit)
+      throws UnknownOperationException {
+    if (!isAfterBlock && !isBlockEnd[cpu.getCurrentOpCodeValue()]) {
+      return 0;
+    }
+    isAfterBlock = false;
+    if (!cpu.canBypassInterpreter()) {
+      return 0;
+    }
+    final int address = cpu.getProgramCounter();
+    BlockEntry entry = (BlockEntry) memory.readCompiledCode(address);
+    if (entry == null) {
+      entry = new BlockEntry();
+      if (!memory.writeCompiledCode(address, entry)) {
+        return 0;
+      }
+    }
+    if (entry.block == null) {
+      entry.visitCount++;
+      if (entry.visitCount < COMPILE_THRESHOLD) {
+        return 0;
+      }
+      compile(address, entry);
+      if (entry.block == null) {
+        return 0;
+      }
+    }
+    if (cpu.getCycleCount() + entry.leadCycles >= lastCycle
+        || entry.instructionCount > instructionLimit) {
+      return 0;
+    }
+    cpu.beginBlock();
+    final int instructionCount = entry.block.execute();
+    isAfterBlock = true;
+    return instructionCount;
+  }
+
+  /**
+   * Compiles the block starting at an address of ROM. Blocks of a single instruction are not worth
+   * compiling and are never tried again, like the blocks which cannot be defined.
+   */
+  private void compile(final int address, final BlockEntry entry) {
+    entry.visitCount = Integer.MIN_VALUE;
+    final BlockClassWriter writer = new BlockClassWriter();
+    final Operation[] operations = new Operation[MAX_BLOCK_LENGTH];
+    int instructionCount = 0;
+    int leadCycles = 0;
+    int lastCycles = 0;
+    int offset = 0;
+    while (instructionCount < MAX_BLOCK_LENGTH) {
+      final int instructionAddress = address + offset;
+      if (((instructionAddress ^ address) & PAGE_MASK) != 0) {
+        break;
+      }
+      final int instruction = cpu.readInstruction(instructionAddress);
+      final int opcode = instruction & BYTE_MASK;
+      final int operand = (instruction >>> Core_2A03.OPERAND_SHIFT) & WORD_MASK;
+      final int length = (instruction >>> Core_2A03.LENGTH_SHIFT) & Core_2A03.LENGTH_MASK;
+      final OperationCode operationCode = decoder.getOpcode(opcode);
+      if (operationCode == null || operationCode.getInstruction() == null
+          || (((instructionAddress + length - 1) ^ address) & PAGE_MASK) != 0) {
+        break;
+      }
+      final boolean isLast = isBlockEnd[opcode] || instructionCount == MAX_BLOCK_LENGTH - 1;
+      writer.addInstruction(opcode, operand, offset, length, cycleTable[opcode],
+          pageCrossCycleTable[opcode], !isLast && isInterruptible(operationCode, operand));
+      operations[instructionCount++] = dispatchTable[opcode];
+      leadCycles += lastCycles;
+      lastCycles = cycleTable[opcode] + pageCrossCycleTable[opcode];
+      offset += length;
+      if (isBlockEnd[opcode]) {
+        break;
+      }
+    }
+    if (instructionCount < 2) {
+      return;
+    }
+    final Object[] constants = new Object[instructionCount + 1];
+    constants[0] = cpu;
+    System.arraycopy(operations, 0, constants, 1, instructionCount);
+    try {
+      entry.block = define(writer.toByteArray(), constants);
+      entry.instructionCount = instructionCount;
+      entry.leadCycles = leadCycles;
+      compiledBlockCount++;
+    } catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+      LOGGER.log(Level.SEVERE, String.format("Block at %04X not compiled", address), e);
+    }
+  }
+
+  private static CompiledBlock define(final byte[] classFile, final Object[] constants)
+      throws ReflectiveOperationException {
+    CONSTANTS.set(constants);
+    try {
+      final MethodHandles.Lookup lookup =
+          (MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke(LOOKUP, classFile, true, CLASS_OPTIONS);
+      return (CompiledBlock) lookup.lookupClass().getDeclaredConstructor().newInstance();
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof LinkageError) {
+        throw (LinkageError) e.getCause();
+      }
+      throw e;
+    } finally {
+      CONSTANTS.remove();
+    }
+  }
+
+  private static boolean isBlockEnd(final InstructionSet instruction) {
+    if (instruction == null) {
+      return true;
+    }
+    switch (instruction) {
+      case BCC:
+      case BCS:
+      case BEQ:
+      case BMI:
+      case BNE:
+      case BPL:
+      case BVC:
+      case BVS:
+      case BRK:
+      case JMP:
+      case JSR:
+      case RTI:
+      case RTS:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Indicates if an instruction can switch banks or fault, by writing out of the zero page, or
+   * enable a pending IRQ. The stack and the absolute addresses below the registers are in RAM.
+   */
+  private static boolean isInterruptible(final OperationCode opcode, final int operand) {
+    switch (opcode.getInstruction()) {
+      case CLI:
+      case PLP:
+        return true;
+      case STA:
+      case STX:
+      case STY:
+      case ASL:
+      case LSR:
+      case ROL:
+      case ROR:
+      case INC:
+      case DEC:
+        break;
+      default:
+        return false;
+    }
+    switch (opcode.getAddressingMode()) {
+      case ACCUMULATOR:
+      case ZERO_PAGE:
+      case ZERO_PAGE_X_INDEXED:
+      case ZERO_PAGE_Y_INDEXED:
+        return false;
+      case ABSOLUTE:
+        return operand >= REGISTERS_ADDRESS;
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * The compilation state of the block starting at an address of ROM.
+   */
+  private static final class BlockEntry {
+    /** Number of times the block was entered, negative once compiled or rejected. */
+    private int visitCount;
+    /** The compiled block, null if not compiled. */
+    private CompiledBlock block;
+    private int instructionCount;
+    /** Largest number of cycles taken by the instructions before the last one. */
+    private int leadCycles;
+  }
+
+}
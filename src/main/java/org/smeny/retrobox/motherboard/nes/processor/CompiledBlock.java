@@ -0,0 +1,37 @@
+/**
+ * CompiledBlock
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.processor;
+
+import org.smeny.retrobox.exception.UnknownOperationException;
+
+/**
+ * A Compiled Block executes a sequence of instructions compiled by the {@link BlockCompiler}, from
+ * the program counter of the CPU.
+ *
+ * @author Stéphane Meny
+ */
+interface CompiledBlock {
+
+  /**
+   * Executes the instructions of the block, or the first ones when an instruction switches banks
+   * or halts the CPU.
+   *
+   * @return The number of instructions executed.
+   * @throws UnknownOperationException If an operation code is not implemented.
+   */
+  int execute() throws UnknownOperationException;
+
+}
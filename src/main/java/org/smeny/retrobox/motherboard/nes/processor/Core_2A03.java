@@ -15,34 +15,81 @@
  */
 package org.smeny.retrobox.motherboard.nes.processor;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.smeny.retrobox.exception.ReadOutOfMemoryException;
+import org.smeny.retrobox.exception.InvalidStateException;
 import org.smeny.retrobox.exception.UnknownOperationException;
-import org.smeny.retrobox.exception.WriteOutOfMemoryException;
+import org.smeny.retrobox.exception.UnknownRomFormatException;
 import org.smeny.retrobox.motherboard.nes.cartridge.Cartridge;
-import org.smeny.retrobox.motherboard.nes.memory.AbstractMemoryController;
-import org.smeny.retrobox.motherboard.nes.memory.BasicMemoryController;
-import org.smeny.retrobox.motherboard.nes.register.Register;
+import org.smeny.retrobox.motherboard.nes.event.EventScheduler;
+import org.smeny.retrobox.motherboard.nes.memory.PagedMemoryController;
+import org.smeny.retrobox.motherboard.nes.memory.mapper.MapperFactory;
 import org.smeny.retrobox.motherboard.nes.register.flags.FlagsRegister_2A03;
+import org.smeny.retrobox.motherboard.nes.state.StateFormat;
+import org.smeny.retrobox.motherboard.nes.state.StatefulDevice;
+import org.smeny.retrobox.motherboard.nes.trace.TraceBuffer;
 
 /**
  * This class represents the Central Processing Unit of the NES. The CPU is a 2A03 processor based
  * on the Ricoh 6502 processor. Note that 2A03 CPU is Little Endian, this means that the least
  * significant byte (LSB) will be stored in the lowest memory address.
  *
+ * <p>The CPU owns the {@link EventScheduler} of the machine. It runs without polling the
+ * peripherals until the next deadline, then has the due events handled between two instructions.
+ * The interrupts are events too: an NMI requested or an IRQ line asserted while interrupts are
+ * enabled schedules the interrupt sequence before the next instruction.
+ *
  * @author Stéphane Meny
  */
 public final class Core_2A03 extends AbstractCore {
+  /** IRQ line of the APU, raised by its frame counter and its DMC. */
+  public static final int APU_IRQ = 0x01;
 
   private static final OperationCode RESET =
       new OperationCode(InstructionSet.JMP, AddressingMode.ABSOLUTE);
   private static final int RESET_ADDRESS = 0xFFFC;
   private static final int CPU_START_ADDRESS = 0xC000;
-  private static final int STACK_START_ADDRESS = 0x01FF;
+  /** Stack pointer after power up, the reset sequence having pushed three bytes from 0x00. */
+  private static final int STACK_START_ADDRESS = 0x01FD;
+  /** Status after power up: interrupts disabled (and the unused bit read as set). */
+  private static final int POWER_UP_STATUS = 0x24;
+  /** Cycles taken by the reset sequence. */
+  private static final int RESET_CYCLES = 7;
+  private static final int NMI_VECTOR = 0xFFFA;
+  private static final int IRQ_VECTOR = 0xFFFE;
+  /** Cycles taken by the interrupt sequence. */
+  private static final int INTERRUPT_CYCLES = 7;
+  /** Mask used to detect that two addresses are in different pages. */
+  private static final int PAGE_MASK = 0xFF00;
   private static final byte MOST_SIGNIFICANT_BYTE_SHIFT = 8;
+  /** Mask keeping an 8 bits register value in range. */
+  private static final int BYTE_MASK = 0xFF;
+  /** Mask keeping a 16 bits register value in range. */
+  private static final int WORD_MASK = 0xFFFF;
   private static final String SPACE = " ";
+  /**
+   * Size of the CPU section of a state: program counter, A, X, Y, stack pointer, status, power
+   * and NMI flags, current operation code and operand, last instruction offset and cycle count.
+   */
+  private static final int CPU_STATE_SIZE = 21;
+  /*
+   * A decoded instruction is packed in an int: the operation code in the low byte, the operand in
+   * the next 16 bits, then the length of the instruction. The highest bit is always set, so a
+   * decoded instruction is never 0.
+   */
+  private static final int DECODED_FLAG = 0x80000000;
+  static final int OPERAND_SHIFT = 8;
+  static final int LENGTH_SHIFT = 24;
+  static final int LENGTH_MASK = 0x03;
+  private static final int POWERED_ON_FLAG = 0x01;
+  private static final int RESET_FLAG = 0x02;
+  private static final int NMI_PENDING_FLAG = 0x04;
 
   /** Our default logger for this class. */
   private static final Logger LOGGER = Logger.getLogger(Core_2A03.class.getName());
@@ -50,92 +97,712 @@ public final class Core_2A03 extends AbstractCore {
   /** The status register where each resulting flag is stored. */
   private FlagsRegister_2A03 statusRegister;
 
+  /*
+   * Registers are stored as plain integers, always kept in range by their setter: 8 bits for the
+   * accumulator, the index registers and the stack pointer, 16 bits for the program counter.
+   */
+
   /** The accumulator where data are read/stored. */
-  private Register accumulator;
+  private int accumulator;
 
-  private Register programCounter;
-  private Register registerX;
-  private Register registerY;
-  private Register stackPointer;
-  private AbstractMemoryController memory;
+  private int programCounter;
+  private int registerX;
+  private int registerY;
+  /** Offset of the top of the stack in the stack page (0x0100). */
+  private int stackPointer;
+  private PagedMemoryController memory;
   private boolean isPoweredOn;
   private boolean isReset;
   private Decoder decoder;
   private ArithmeticAndLogicalUnit alu;
-  private OperationCode currentOpCode;
+  /** Operations bound by the ALU, indexed by operation code. */
+  private Operation[] dispatchTable;
+  /** Operation jumping to the address stored in the reset vector. */
+  private Operation resetOperation;
+  private int currentOpCode;
   private int currentOperand;
-  private int currentOperandSize;
   private int lastInstructionOffset;
 
-  public Core_2A03(Cartridge cart) {
-    accumulator = Register.getRegister16();
-    registerX = Register.getRegister8();
-    registerY = Register.getRegister8();
-    stackPointer = Register.getRegister8();
+  /** Base cycles of each operation, indexed by operation code. */
+  private int[] cycleTable;
+  /** Cycles added on a page crossing by each operation, indexed by operation code. */
+  private int[] pageCrossCycleTable;
+  /** Operand size of each operation, indexed by operation code. */
+  private int[] operandSizeTable;
+  /** Cycles added on a page crossing by the current operation. */
+  private int pageCrossCycles;
+  /** Total number of cycles executed since power up. */
+  private long cycleCount;
+  /** Buffer recording the executed instructions, null when tracing is disabled. */
+  private TraceBuffer trace;
+  /** Compiler of the blocks of instructions, null until the blocks are first compiled. */
+  private BlockCompiler blockCompiler;
+  private ExecutionMode executionMode = ExecutionMode.INTERPRETED;
+  /** Detector of the idle loops to skip, null if idle loops are interpreted. */
+  private IdleLoopDetector idleLoopDetector;
+  /** Number of jumps, branches, calls and returns taken, wrapping around. */
+  private int jumpCount;
+  /** Address of the compiled block being executed. */
+  private int blockAddress;
+  /** Number of page mappings when the compiled block was entered. */
+  private int blockMappingCount;
+  /** Next deadline of the scheduler when the compiled block was entered. */
+  private long blockDeadline;
+  /** Deadlines of the peripherals, and of the interrupt sequence. */
+  private final EventScheduler scheduler = new EventScheduler();
+  /** Event running the interrupt sequence between two instructions. */
+  private final int interruptEvent;
+  private boolean isNmiPending;
+  /** IRQ lines asserted by the peripherals, one bit each. */
+  private int irqLines;
+  /** Devices whose state follows the memory in the states, in the order they were added. */
+  private final List<StatefulDevice> statefulDevices = new ArrayList<>();
+
+  public Core_2A03(Cartridge cart) throws UnknownRomFormatException {
+    this(cart, ArithmeticMode.COMPUTED);
+  }
+
+  /**
+   * Builds the CPU with an explicit arithmetic mode, both modes giving the same results.
+   *
+   * @param cart The cartridge to run.
+   * @param arithmeticMode How the ALU obtains arithmetic results and flags.
+   * @throws UnknownRomFormatException If the mapper of the cartridge is not supported.
+   */
+  public Core_2A03(Cartridge cart, ArithmeticMode arithmeticMode)
+      throws UnknownRomFormatException {
     statusRegister = new FlagsRegister_2A03();
-    memory = new BasicMemoryController(cart);
+    memory = MapperFactory.createMapper(cart);
     isPoweredOn = true;
     isReset = false;
-    programCounter = Register.getRegister16();
     decoder = new Decoder();
-    alu = new ArithmeticAndLogicalUnit(this);
+    alu = new ArithmeticAndLogicalUnit(this, arithmeticMode);
+    dispatchTable = decoder.createDispatchTable(alu);
+    resetOperation = alu.bind(RESET);
+    cycleTable = decoder.createCycleTable();
+    pageCrossCycleTable = decoder.createPageCrossCycleTable();
+    operandSizeTable = decoder.createOperandSizeTable();
+    interruptEvent = scheduler.register(cycle -> serviceInterrupt());
+    powerUp();
   }
 
-  private void readNextInstruction() throws ReadOutOfMemoryException {
-    lastInstructionOffset = programCounter.getRegisterData();
-    int instructionCode = memory.readMemory(lastInstructionOffset);
-    programCounter.increment();
+  /**
+   * Sets the registers to their power up state. The program starts at 0xC000, where the test
+   * cartridges start when run without PPU, and the cycle counter at 0.
+   */
+  private void powerUp() {
+    programCounter = CPU_START_ADDRESS;
+    stackPointer = STACK_START_ADDRESS & BYTE_MASK;
+    statusRegister.fromByte(POWER_UP_STATUS);
+    cycleCount = 0;
+  }
+
+  /**
+   * Reads the instruction at the program counter, its operation code and its operand, moves the
+   * program counter after it and returns the operation to execute. Instructions in ROM are only
+   * decoded once, then read back from the memory controller.
+   */
+  private Operation readNextInstruction() {
+    final int address = programCounter;
+    final int instruction = readInstruction(address);
+    lastInstructionOffset = address;
+    currentOpCode = instruction & BYTE_MASK;
+    currentOperand = (instruction >>> OPERAND_SHIFT) & WORD_MASK;
+    programCounter = (address + ((instruction >>> LENGTH_SHIFT) & LENGTH_MASK)) & WORD_MASK;
+    cycleCount += cycleTable[currentOpCode];
+    pageCrossCycles = pageCrossCycleTable[currentOpCode];
+    return checkReset(dispatchTable[currentOpCode]);
+  }
 
-    currentOpCode = decoder.getOpcode(instructionCode);
-    checkReset();
-    readOperand();
+  /**
+   * Reads an instruction from memory and keeps it decoded if it is in ROM.
+   *
+   * @param address The address of the operation code.
+   * @return The decoded instruction.
+   */
+  private int decodeInstruction(final int address) {
+    final int opcode = memory.read8(address);
+    final int operandSize = operandSizeTable[opcode];
+    int operand = 0;
+    if (operandSize == 1) {
+      operand = memory.read8(address + 1);
+    } else if (operandSize == 2) {
+      operand = memory.read16(address + 1);
+    }
+    final int length = operandSize + 1;
+    final int instruction = DECODED_FLAG | (length << LENGTH_SHIFT) | (operand << OPERAND_SHIFT)
+        | opcode;
+    memory.writeDecodedInstruction(address, instruction, length);
+    return instruction;
   }
 
-  private void checkReset() {
+  private Operation checkReset(final Operation operation) {
     if (isReset) {
       isReset = false;
-      currentOpCode = RESET;
-      programCounter.setRegisterData(RESET_ADDRESS);
-    }
-  }
-
-  public void emulate(final long clockCount)
-      throws ReadOutOfMemoryException, WriteOutOfMemoryException {
-    long remainingClock = clockCount;
-    programCounter.setRegisterData(CPU_START_ADDRESS);
-    stackPointer.setRegisterData(STACK_START_ADDRESS);
-
-    while (isPoweredOn && remainingClock > 0) {
-      readNextInstruction();
-      // Debug CPU values
-      LOGGER.log(Level.INFO, this.toString());
-      // Perform the decoded instruction and set program counter to next instruction
-      try {
-        alu.performInstruction();
-      } catch (UnknownOperationException e) {
-        LOGGER.log(Level.SEVERE, "Error when performing instruction", e);
-        System.exit(1);
+      currentOperand = memory.read16(RESET_ADDRESS);
+      programCounter = RESET_ADDRESS + 2;
+      cycleCount += RESET_CYCLES - cycleTable[currentOpCode];
+      pageCrossCycles = 0;
+      return resetOperation;
+    }
+    return operation;
+  }
+
+  /**
+   * Requests a non maskable interrupt, serviced before the next instruction. The PPU requests it
+   * when vblank starts.
+   */
+  public void requestNmi() {
+    isNmiPending = true;
+    pollInterrupts(0);
+  }
+
+  /**
+   * Asserts or releases an IRQ line. The IRQ is serviced before the next instruction if
+   * interrupts are enabled, otherwise once they are enabled, as long as a line is asserted.
+   *
+   * @param line The bit of the line, like {@link #APU_IRQ}.
+   * @param isAsserted true to assert the line, false to release it.
+   */
+  public void setIrqLine(final int line, final boolean isAsserted) {
+    if (isAsserted) {
+      irqLines |= line;
+      pollInterrupts(0);
+    } else {
+      irqLines &= ~line;
+    }
+  }
+
+  /**
+   * Schedules the interrupt sequence if an NMI is pending or an IRQ is asserted while interrupts
+   * are enabled. The IRQ of the mapper is read from the memory controller, which releases it by
+   * itself, so the peripheral raising it calls this method.
+   */
+  public void pollInterrupts() {
+    pollInterrupts(0);
+  }
+
+  /**
+   * Schedules the interrupt sequence if an interrupt must be serviced.
+   *
+   * @param delay The cycles to wait before servicing it: 1 lets the next instruction run, as
+   *        after CLI and PLP whose change of the interrupt flag is only seen one instruction later.
+   */
+  void pollInterrupts(final int delay) {
+    if (!isNmiPending && !(isIrqAsserted() && !statusRegister.isIrqDisableFlagSet())) {
+      return;
+    }
+    final long cycle = cycleCount + delay;
+    if (scheduler.getDeadline(interruptEvent) > cycle) {
+      scheduler.schedule(interruptEvent, cycle);
+    }
+  }
+
+  private boolean isIrqAsserted() {
+    return irqLines != 0 || memory.isIrqPending();
+  }
+
+  /**
+   * Runs the interrupt sequence, the NMI taking precedence: the program counter and the status are
+   * pushed, then the program jumps to the address of the vector of the interrupt.
+   */
+  private void serviceInterrupt() {
+    if (!isPoweredOn) {
+      return;
+    }
+    final int vector;
+    if (isNmiPending) {
+      isNmiPending = false;
+      vector = NMI_VECTOR;
+    } else if (isIrqAsserted() && !statusRegister.isIrqDisableFlagSet()) {
+      vector = IRQ_VECTOR;
+    } else {
+      return;
+    }
+    alu.interrupt(vector);
+    cycleCount += INTERRUPT_CYCLES;
+  }
+
+  /**
+   * Returns the scheduler of the machine, where the peripherals register their deadlines.
+   */
+  public EventScheduler getEventScheduler() {
+    return scheduler;
+  }
+
+  /**
+   * Executes instructions until the number of instructions is reached, the CPU is stopped or the
+   * memory requests a halt after a bus fault. The execution goes on from the current state.
+   *
+   * @param instructionCount The number of instructions to execute.
+   */
+  public void emulate(final long instructionCount) {
+    resetIdleLoop();
+    long remainingInstructions = instructionCount;
+    while (remainingInstructions > 0) {
+      final long deadline = scheduler.getNextDeadline();
+      if (deadline <= cycleCount) {
+        scheduler.runDueEvents(cycleCount);
+        continue;
+      }
+      long executedInstructions = isIdleLoopCandidate()
+          ? idleLoopDetector.skip(deadline, remainingInstructions) : 0;
+      if (executedInstructions == 0) {
+        executedInstructions = executeBlock(deadline, remainingInstructions);
+      }
+      if (executedInstructions == 0) {
+        if (!step()) {
+          break;
+        }
+        executedInstructions = 1;
+      }
+      remainingInstructions -= executedInstructions;
+    }
+  }
+
+  /**
+   * Executes instructions until the cycle budget is consumed, the CPU is stopped or the memory
+   * requests a halt after a bus fault. The execution goes on from the current state, so a program
+   * can be run by slices. The last instruction is always completed, so the budget may be exceeded
+   * by a few cycles, which should be deducted from the next budget. The events due meanwhile are
+   * handled between two instructions, the instructions before their deadline being run without
+   * consulting the scheduler again.
+   *
+   * @param cycleBudget The number of cycles to execute.
+   * @return The number of cycles actually executed.
+   */
+  public long run(final long cycleBudget) {
+    final long firstCycle = cycleCount;
+    final long lastCycle = firstCycle + cycleBudget;
+    resetIdleLoop();
+    while (cycleCount < lastCycle) {
+      final long deadline = scheduler.getNextDeadline();
+      if (deadline <= cycleCount) {
+        scheduler.runDueEvents(cycleCount);
+        continue;
+      }
+      final long segmentEnd = Math.min(lastCycle, deadline);
+      if (isIdleLoopCandidate() && idleLoopDetector.skip(segmentEnd, Long.MAX_VALUE) > 0) {
+        continue;
+      }
+      if (executeBlock(segmentEnd, Long.MAX_VALUE) == 0 && !step()) {
+        break;
+      }
+    }
+    return cycleCount - firstCycle;
+  }
+
+  /**
+   * Indicates if idle loops are skipped and the last instruction jumped backward, so it may close
+   * an idle loop.
+   */
+  private boolean isIdleLoopCandidate() {
+    return idleLoopDetector != null && programCounter <= lastInstructionOffset;
+  }
+
+  private void resetIdleLoop() {
+    if (idleLoopDetector != null) {
+      idleLoopDetector.reset();
+    }
+  }
+
+  /**
+   * Executes the compiled block starting at the program counter, in recompiled mode.
+   *
+   * @param lastCycle The cycle before which every instruction of the block must start.
+   * @param instructionLimit The largest number of instructions to execute.
+   * @return The number of instructions executed, 0 if the next instruction must be interpreted.
+   */
+  private int executeBlock(final long lastCycle, final long instructionLimit) {
+    if (executionMode != ExecutionMode.RECOMPILED) {
+      return 0;
+    }
+    try {
+      return blockCompiler.execute(lastCycle, instructionLimit);
+    } catch (UnknownOperationException e) {
+      LOGGER.log(Level.SEVERE, "Error when performing instruction", e);
+      stop();
+      // The CPU is stopped, so the count only has to tell that the block was run
+      return 1;
+    }
+  }
+
+  /**
+   * Executes one instruction.
+   *
+   * @return false if the CPU is stopped or halted, so nothing was executed.
+   */
+  private boolean step() {
+    if (!isPoweredOn) {
+      return false;
+    }
+    if (memory.isHaltRequested()) {
+      LOGGER.log(Level.SEVERE, String.format("Halted after a bus fault at %04X",
+          memory.getLastFaultAddress()));
+      isPoweredOn = false;
+      return false;
+    }
+    if (trace == null) {
+      executeNextInstruction();
+    } else {
+      trace.begin(programCounter, accumulator, registerX, registerY, statusRegister.toByte(),
+          stackPointer, cycleCount);
+      executeNextInstruction();
+      trace.end(currentOpCode, currentOperand);
+    }
+    return true;
+  }
+
+  private void executeNextInstruction() {
+    final Operation operation = readNextInstruction();
+    // Perform the decoded instruction and set program counter to next instruction
+    try {
+      operation.execute();
+    } catch (UnknownOperationException e) {
+      LOGGER.log(Level.SEVERE, "Error when performing instruction", e);
+      stop();
+    }
+  }
+
+  /**
+   * Records the state before each instruction in a trace buffer, or stops tracing.
+   *
+   * @param trace The buffer receiving the trace, null to disable tracing.
+   */
+  public void setTrace(final TraceBuffer trace) {
+    this.trace = trace;
+  }
+
+  /**
+   * Selects how instructions are executed, both modes giving the same results. In recompiled mode,
+   * the blocks of instructions often executed from ROM are compiled into JVM classes. It needs
+   * hidden classes, from Java 15: on older runtimes the CPU stays interpreted.
+   *
+   * @param executionMode The execution mode.
+   */
+  public void setExecutionMode(final ExecutionMode executionMode) {
+    if (executionMode == ExecutionMode.RECOMPILED && !BlockCompiler.isSupported()) {
+      LOGGER.warning("Hidden classes are not supported, instructions stay interpreted");
+      return;
+    }
+    if (executionMode == ExecutionMode.RECOMPILED && blockCompiler == null) {
+      blockCompiler = new BlockCompiler(this, decoder, dispatchTable, cycleTable,
+          pageCrossCycleTable);
+    }
+    this.executionMode = executionMode;
+  }
+
+  public ExecutionMode getExecutionMode() {
+    return executionMode;
+  }
+
+  /**
+   * Enables or disables the skipping of idle loops, where the program waits reading memory
+   * without side effect. The iterations of such a loop are all the same, so they are skipped up
+   * to the end of the cycle budget, with the same results as when they are interpreted.
+   *
+   * @param isSkipping true to skip idle loops.
+   */
+  public void setIdleLoopSkipping(final boolean isSkipping) {
+    idleLoopDetector = isSkipping ? new IdleLoopDetector(this, decoder) : null;
+  }
+
+  public boolean isIdleLoopSkipping() {
+    return idleLoopDetector != null;
+  }
+
+  /**
+   * Indicates if a compiled block can be run or an idle loop skipped instead of interpreting the
+   * next instruction: the CPU is running, neither reset nor traced.
+   */
+  boolean canBypassInterpreter() {
+    return isPoweredOn && !isReset && trace == null && !memory.isHaltRequested();
+  }
+
+  /**
+   * Returns the instruction at an address, decoded as by the interpreter.
+   *
+   * @param address The address of the operation code.
+   * @return The operation code, the operand and the length of the instruction, packed.
+   */
+  int readInstruction(final int address) {
+    final int instruction = memory.readDecodedInstruction(address);
+    return instruction == 0 ? decodeInstruction(address) : instruction;
+  }
+
+  /**
+   * Starts a compiled block at the program counter.
+   */
+  void beginBlock() {
+    blockAddress = programCounter;
+    blockMappingCount = memory.getMappingCount();
+    blockDeadline = scheduler.getNextDeadline();
+  }
+
+  /**
+   * Sets the CPU state before an instruction of a compiled block, as when the instruction is read
+   * by the interpreter.
+   *
+   * @param opcode The operation code.
+   * @param operand The operand.
+   * @param offset The offset of the instruction from the start of the block.
+   * @param length The length of the instruction.
+   * @param cycles The base cycles of the operation.
+   * @param pageCross The cycles added by the operation on a page crossing.
+   */
+  void beginCompiledInstruction(final int opcode, final int operand, final int offset,
+      final int length, final int cycles, final int pageCross) {
+    final int address = blockAddress + offset;
+    lastInstructionOffset = address;
+    currentOpCode = opcode;
+    currentOperand = operand;
+    programCounter = (address + length) & WORD_MASK;
+    cycleCount += cycles;
+    pageCrossCycles = pageCross;
+  }
+
+  /**
+   * Indicates if the compiled block must return after a write: the CPU was stopped or halted,
+   * banks were switched, an event was scheduled, like an interrupt, or a DMA stalled the CPU up to
+   * the next deadline.
+   */
+  boolean isBlockInterrupted() {
+    return !isPoweredOn || memory.isHaltRequested()
+        || memory.getMappingCount() != blockMappingCount
+        || scheduler.getNextDeadline() != blockDeadline || cycleCount >= blockDeadline;
+  }
+
+  /**
+   * Returns the operation code of the last instruction executed.
+   */
+  int getCurrentOpCodeValue() {
+    return currentOpCode;
+  }
+
+  /**
+   * Returns the address of the last instruction executed.
+   */
+  int getLastInstructionOffset() {
+    return lastInstructionOffset;
+  }
+
+  /**
+   * Adds the cycles of skipped instructions.
+   *
+   * @param cycles The cycles to add.
+   */
+  void skipCycles(final long cycles) {
+    cycleCount += cycles;
+  }
+
+  /**
+   * Adds the page crossing penalty of the current operation if both addresses are in different
+   * pages. Operations without penalty, like stores, always take their extra cycle in their base
+   * count.
+   *
+   * @param baseAddress The address before indexing.
+   * @param effectiveAddress The indexed address.
+   */
+  void checkPageCross(final int baseAddress, final int effectiveAddress) {
+    if (((baseAddress ^ effectiveAddress) & PAGE_MASK) != 0) {
+      cycleCount += pageCrossCycles;
+    }
+  }
+
+  /**
+   * Adds cycles to the current operation, used by taken branches.
+   *
+   * @param cycles The cycles to add.
+   */
+  void addCycles(final int cycles) {
+    cycleCount += cycles;
+  }
+
+  /**
+   * Suspends the CPU while a DMA uses the bus, during the current instruction.
+   *
+   * @param cycles The cycles the CPU is suspended.
+   */
+  public void stall(final int cycles) {
+    cycleCount += cycles;
+  }
+
+  /**
+   * Returns the number of cycles executed since power up.
+   */
+  public long getCycleCount() {
+    return cycleCount;
+  }
+
+  /**
+   * Returns the largest size of a state, to allocate the buffers given to
+   * {@link #saveState(ByteBuffer, boolean)}.
+   */
+  public int getMaximumStateSize() {
+    int size = StateFormat.HEADER_SIZE + CPU_STATE_SIZE + memory.getMaximumStateSize() + 1;
+    for (final StatefulDevice device : statefulDevices) {
+      size += Integer.BYTES + device.getMaximumStateSize();
+    }
+    return size;
+  }
+
+  /**
+   * Adds a device whose state is saved and restored with the state of the CPU, after the memory.
+   * A state is only restored by a CPU having the same devices, added in the same order. The
+   * buffers sized by {@link #getMaximumStateSize()} must be allocated once all the devices are
+   * added.
+   *
+   * @param device The device, usually connected to this CPU.
+   */
+  public void addStatefulDevice(final StatefulDevice device) {
+    statefulDevices.add(device);
+  }
+
+  /**
+   * Completes the frame just run by the devices added with {@link #addStatefulDevice}, bringing
+   * them to the current cycle: the PPU draws its last scanlines and the APU synthesizes the
+   * samples of the frame.
+   */
+  public void completeFrame() {
+    for (final StatefulDevice device : statefulDevices) {
+      device.completeFrame(cycleCount);
+    }
+  }
+
+  /**
+   * Writes the state of the CPU, of its memory and of its devices at the position of a buffer,
+   * which is moved after the state. The state is written in big endian whatever the order of the
+   * buffer.
+   *
+   * @param buffer The buffer receiving the state.
+   * @param isCompressed true to compress the memory.
+   * @throws java.nio.BufferOverflowException If the buffer is too small.
+   */
+  public void saveState(final ByteBuffer buffer, final boolean isCompressed) {
+    saveState(buffer, isCompressed, false);
+  }
+
+  /**
+   * Writes a delta state, holding the CPU and device states and only the memory pages written
+   * since the previous delta state, or since the dirty pages of the memory were cleared. It is
+   * restored on top of the state it follows.
+   *
+   * @param buffer The buffer receiving the state.
+   * @param isCompressed true to compress the memory pages.
+   * @throws java.nio.BufferOverflowException If the buffer is too small.
+   * @see PagedMemoryController#clearDirtyPages()
+   */
+  public void saveDeltaState(final ByteBuffer buffer, final boolean isCompressed) {
+    saveState(buffer, isCompressed, true);
+  }
+
+  private void saveState(final ByteBuffer buffer, final boolean isCompressed,
+      final boolean isDelta) {
+    final ByteOrder order = buffer.order();
+    buffer.order(ByteOrder.BIG_ENDIAN);
+    try {
+      StateFormat.writeHeader(buffer, (isCompressed ? StateFormat.COMPRESSED_FLAG : 0)
+          | (isDelta ? StateFormat.DELTA_FLAG : 0));
+      buffer.putShort((short) programCounter);
+      buffer.put((byte) accumulator);
+      buffer.put((byte) registerX);
+      buffer.put((byte) registerY);
+      buffer.put((byte) stackPointer);
+      buffer.put((byte) statusRegister.toByte());
+      buffer.put((byte) ((isPoweredOn ? POWERED_ON_FLAG : 0) | (isReset ? RESET_FLAG : 0)
+          | (isNmiPending ? NMI_PENDING_FLAG : 0)));
+      buffer.put((byte) currentOpCode);
+      buffer.putShort((short) currentOperand);
+      buffer.putShort((short) lastInstructionOffset);
+      buffer.putLong(cycleCount);
+      if (isDelta) {
+        memory.saveDirtyPages(buffer, isCompressed);
+      } else {
+        memory.saveState(buffer, isCompressed);
       }
-      remainingClock--;
+      buffer.put((byte) statefulDevices.size());
+      for (final StatefulDevice device : statefulDevices) {
+        // The largest size of a device tells it from the other ones
+        buffer.putInt(device.getMaximumStateSize());
+        device.saveState(buffer, isCompressed);
+      }
+    } finally {
+      buffer.order(order);
     }
   }
 
-  private void readOperand() throws ReadOutOfMemoryException {
-    // Reads the remaining operand at the program counter address
-    int operandValue = 0;
-    currentOperandSize = currentOpCode.getAddressingMode().getOperandSize();
-    for (int i = 0; i < currentOperandSize; i++) {
-      int offset = programCounter.getRegisterData();
-      int currentByte = memory.readMemory(offset);
-      // Shifts the current read byte depending of its position
-      for (int j = 0; j < i; j++) {
-        currentByte = currentByte << MOST_SIGNIFICANT_BYTE_SHIFT;
+  /**
+   * Restores a state written by {@link #saveState(ByteBuffer, boolean)} or
+   * {@link #saveDeltaState(ByteBuffer, boolean)} from the position of a buffer, which is moved after
+   * the state. Registers, memory and devices are restored in place. The scheduled events are all
+   * cancelled, then the devices schedule their deadlines again and assert their IRQ lines. If the
+   * memory or device part of the state is invalid, they may be partially restored and the CPU
+   * should be restored from a valid state.
+   *
+   * @param buffer The buffer holding the state.
+   * @throws InvalidStateException If the state is not valid or was saved with another cartridge
+   *         or other devices.
+   */
+  public void loadState(final ByteBuffer buffer) throws InvalidStateException {
+    final ByteOrder order = buffer.order();
+    buffer.order(ByteOrder.BIG_ENDIAN);
+    try {
+      final int flags = StateFormat.readHeader(buffer);
+      final boolean isCompressed = (flags & StateFormat.COMPRESSED_FLAG) != 0;
+      if (buffer.remaining() < CPU_STATE_SIZE) {
+        throw new InvalidStateException("Truncated save state");
+      }
+      final int savedProgramCounter = buffer.getShort() & WORD_MASK;
+      final int savedAccumulator = buffer.get() & BYTE_MASK;
+      final int savedRegisterX = buffer.get() & BYTE_MASK;
+      final int savedRegisterY = buffer.get() & BYTE_MASK;
+      final int savedStackPointer = buffer.get() & BYTE_MASK;
+      final int savedStatus = buffer.get() & BYTE_MASK;
+      final int powerFlags = buffer.get();
+      final int savedOpCode = buffer.get() & BYTE_MASK;
+      final int savedOperand = buffer.getShort() & WORD_MASK;
+      final int savedInstructionOffset = buffer.getShort() & WORD_MASK;
+      final long savedCycleCount = buffer.getLong();
+      if ((flags & StateFormat.DELTA_FLAG) != 0) {
+        memory.loadDirtyPages(buffer, isCompressed);
+      } else {
+        memory.loadState(buffer, isCompressed);
+      }
+      if (buffer.get() != statefulDevices.size()) {
+        throw new InvalidStateException("Device mismatch, the state is from another machine");
+      }
+      // The deadlines and the IRQ lines of the abandoned time are dropped, the devices set them
+      scheduler.cancelAll();
+      irqLines = 0;
+      for (final StatefulDevice device : statefulDevices) {
+        if (buffer.getInt() != device.getMaximumStateSize()) {
+          throw new InvalidStateException("Device mismatch, the state is from another machine");
+        }
+        device.loadState(buffer, isCompressed);
       }
-      // Reorder the operand value while the last byte read
-      operandValue += currentByte;
-      programCounter.increment();
+
+      // The registers are only changed once the whole state is read
+      programCounter = savedProgramCounter;
+      accumulator = savedAccumulator;
+      registerX = savedRegisterX;
+      registerY = savedRegisterY;
+      stackPointer = savedStackPointer;
+      statusRegister.fromByte(savedStatus);
+      isPoweredOn = (powerFlags & POWERED_ON_FLAG) != 0;
+      isReset = (powerFlags & RESET_FLAG) != 0;
+      isNmiPending = (powerFlags & NMI_PENDING_FLAG) != 0;
+      currentOpCode = savedOpCode;
+      currentOperand = savedOperand;
+      lastInstructionOffset = savedInstructionOffset;
+      cycleCount = savedCycleCount;
+      // The devices may have polled the interrupts before the registers were restored
+      scheduler.cancel(interruptEvent);
+      pollInterrupts(0);
+    } catch (BufferUnderflowException e) {
+      throw new InvalidStateException("Truncated save state");
+    } finally {
+      buffer.order(order);
     }
-    currentOperand = operandValue;
   }
 
   public void stop() {
@@ -146,63 +813,113 @@ public final class Core_2A03 extends AbstractCore {
     isReset = true;
   }
 
-  public AbstractMemoryController getMemory() {
+  public PagedMemoryController getMemory() {
     return memory;
   }
 
-  public Register getProgramCounter() {
+  public int getProgramCounter() {
     return programCounter;
   }
 
+  /**
+   * Sets the program counter, wrapping around the 16 bits address space.
+   *
+   * @param address The new program counter value.
+   */
+  void setProgramCounter(final int address) {
+    programCounter = address & WORD_MASK;
+    jumpCount++;
+  }
+
+  /**
+   * Returns the number of jumps, branches, calls and returns taken, wrapping around.
+   */
+  int getJumpCount() {
+    return jumpCount;
+  }
+
+  /**
+   * Returns the number of blocks compiled in recompiled mode, 0 if the CPU never was in it.
+   */
+  int getCompiledBlockCount() {
+    return blockCompiler == null ? 0 : blockCompiler.getCompiledBlockCount();
+  }
+
+  /**
+   * Returns the operand of the current instruction, read with its operation code: one byte or
+   * two bytes depending on its addressing mode.
+   */
   public int getCurrentOperand() {
     return currentOperand;
   }
 
   public int getCurrentOperandSize() {
-    return currentOperandSize;
+    final OperationCode opcode = getCurrentOpCode();
+    return opcode == null ? 0 : opcode.getAddressingMode().getOperandSize();
   }
 
   public OperationCode getCurrentOpCode() {
-    return currentOpCode;
+    return decoder.getOpcode(currentOpCode);
   }
 
   public FlagsRegister_2A03 getStatusRegister() {
     return statusRegister;
   }
 
-  public Register getRegisterX() {
+  public int getRegisterX() {
     return registerX;
   }
 
-  public Register getRegisterY() {
+  void setRegisterX(final int value) {
+    registerX = value & BYTE_MASK;
+  }
+
+  public int getRegisterY() {
     return registerY;
   }
 
-  public Register getStackPointer() {
+  void setRegisterY(final int value) {
+    registerY = value & BYTE_MASK;
+  }
+
+  public int getStackPointer() {
     return stackPointer;
   }
 
-  public Register getAccumulator() {
+  /**
+   * Sets the stack pointer, wrapping around the stack page.
+   *
+   * @param value The new offset of the top of the stack.
+   */
+  void setStackPointer(final int value) {
+    stackPointer = value & BYTE_MASK;
+  }
+
+  public int getAccumulator() {
     return accumulator;
   }
 
+  void setAccumulator(final int value) {
+    accumulator = value & BYTE_MASK;
+  }
+
   @Override
   public String toString() {
     StringBuilder sbuilder = new StringBuilder();
     sbuilder.append(Integer.toHexString(lastInstructionOffset).toUpperCase());
     sbuilder.append(SPACE);
-    sbuilder.append(currentOpCode.getCode());
+    sbuilder.append(Integer.toHexString(currentOpCode).toUpperCase());
     sbuilder.append(SPACE);
     sbuilder.append(Integer.toHexString(currentOperand));
     sbuilder.append(SPACE);
     sbuilder.append("A:");
-    sbuilder.append(Integer.toHexString(accumulator.getRegisterData()).toUpperCase());
+    sbuilder.append(Integer.toHexString(accumulator).toUpperCase());
     sbuilder.append(SPACE);
     sbuilder.append("X:");
-    sbuilder.append(Integer.toHexString(registerX.getRegisterData()).toUpperCase());
+    sbuilder.append(Integer.toHexString(registerX).toUpperCase());
     sbuilder.append(SPACE);
     sbuilder.append("Y:");
-    sbuilder.append(Integer.toHexString(registerY.getRegisterData()).toUpperCase());
+    sbuilder.append(Integer.toHexString(registerY).toUpperCase());
     return sbuilder.toString();
   }
 
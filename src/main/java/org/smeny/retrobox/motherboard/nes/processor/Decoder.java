@@ -23,8 +23,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public final class Decoder extends AbstractDecoder {
-  /** Highest value an operation code can have. */
-  private static final int HIGHER_OPCODE = 0xFF;
+  /** Number of operation codes, an operation code being coded on one byte. */
+  private static final int OPCODE_COUNT = 0x100;
   /** Base use for parsing an hexadecimal value. */
   private static final int HEX_PARSE_BASE = 16;
   /** Separator used in our property file. */
@@ -46,22 +46,22 @@ public final class Decoder extends AbstractDecoder {
   protected void initialise() {
     final Properties properties = new Properties();
     final InputStream inputStream = Decoder.class.getClassLoader().getResourceAsStream(OPCODE_FILE);
-    setOpcodeTable(new OperationCode[HIGHER_OPCODE]);
+    setOpcodeTable(new OperationCode[OPCODE_COUNT]);
     // We parse our property file to get all CPU operations
     try {
       properties.load(inputStream);
     } catch (IOException e) {
       LOGGER.log(Level.SEVERE, "Error during 2A03 decoder initialisation", e);
     }
-    final OperationCode[] opcodeTable = new OperationCode[HIGHER_OPCODE];
+    final OperationCode[] opcodeTable = new OperationCode[OPCODE_COUNT];
     // We get each operation code
     for (final Enumeration<Object> keys = properties.keys(); keys.hasMoreElements(); ) {
       final String opcode = (String) keys.nextElement();
       final String[] dataTable = ((String) properties.get(opcode)).split(OPCODE_SEPARATOR);
       // Removes the 0x part for parsing
       final int index = Integer.parseInt(opcode.substring(2), HEX_PARSE_BASE);
-      if (index >= 0 && index < HIGHER_OPCODE) {
-        opcodeTable[index] = new OperationCode(opcode, dataTable[0], dataTable[1]);
+      if (index >= 0 && index < OPCODE_COUNT) {
+        opcodeTable[index] = new OperationCode(opcode, dataTable[0], dataTable[1], dataTable[2]);
       }
     }
     setOpcodeTable(opcodeTable);
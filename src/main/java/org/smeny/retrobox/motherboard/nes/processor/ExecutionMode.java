@@ -0,0 +1,33 @@
+/**
+ * ExecutionMode
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.processor;
+
+/**
+ * An Execution Mode tells the CPU how instructions are executed. Both modes give the same results,
+ * cycle for cycle.
+ *
+ * @author Stéphane Meny
+ */
+public enum ExecutionMode {
+  /** Each instruction is decoded, then executed through the dispatch table. */
+  INTERPRETED,
+
+  /**
+   * The blocks of instructions often executed from ROM are compiled into JVM classes, the other
+   * instructions being interpreted. See {@link Core_2A03#setExecutionMode(ExecutionMode)}.
+   */
+  RECOMPILED;
+}
@@ -0,0 +1,323 @@
+/**
+ * IdleLoopDetector
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.processor;
+
+import org.smeny.retrobox.motherboard.nes.memory.PagedMemoryController;
+
+/**
+ * The Idle Loop Detector skips the iterations of the loops where a program waits for something to
+ * change, like <code>LDA $2002 / BPL</code> or <code>JMP *</code>. A loop is idle when its body is
+ * a short run of instructions which only read and change registers, closed by a backward branch or
+ * jump, and when an iteration ends with the registers it started with. The loop may read memory,
+ * and device registers whose reads stay steady up to a cycle the device tells, like the PPU status
+ * until it next changes. Nothing written, nothing else can change before the next event, so the
+ * following iterations are all the same: their cycles are added at once, up to the end of the
+ * cycle budget where the caller can change the machine, or up to the cycle where a register read
+ * may change.
+ *
+ * <p>The iterations skipped are whole, so the CPU state is the same as if they had been
+ * interpreted. The detector compares the state at the end of two consecutive iterations, told
+ * apart by the number of jumps of the CPU: the loop being straight, a single jump separates them.
+ * Each run of the CPU starts with no loop known, as the machine may have been changed between two
+ * runs.
+ *
+ * @author Stéphane Meny
+ */
+final class IdleLoopDetector {
+  /** Largest distance in bytes between the start of a loop and its closing instruction. */
+  private static final int MAX_LOOP_LENGTH = 16;
+  /** Offset of the last byte possibly read by an absolute indexed addressing. */
+  private static final int MAX_INDEX = 0xFF;
+  private static final int BYTE_MASK = 0xFF;
+  private static final int WORD_MASK = 0xFFFF;
+  /** Value of the loop bounds when no loop is known. */
+  private static final int NO_LOOP = -1;
+  /** Largest number of registers read by a loop, each read being a three bytes instruction. */
+  private static final int MAX_REGISTER_READS = MAX_LOOP_LENGTH / 3 + 1;
+
+  private final Core_2A03 cpu;
+  private final PagedMemoryController memory;
+  private final Decoder decoder;
+  /** Tells if each operation code can close a loop, indexed by operation code. */
+  private final boolean[] isLoopEnd;
+
+  /** Address of the first instruction of the loop. */
+  private int loopStart = NO_LOOP;
+  /** Address of the instruction closing the loop. */
+  private int loopEnd = NO_LOOP;
+  /** Number of instructions of an iteration, 0 if the loop is not idle. */
+  private int loopInstructionCount;
+  /** Addresses of the device registers read by the loop. */
+  private final int[] registerReads = new int[MAX_REGISTER_READS];
+  private int registerReadCount;
+
+  /*
+   * Last loop counted in ROM, found again when the program enters it again while its banks stay
+   * mapped.
+   */
+  private int countedStart = NO_LOOP;
+  private int countedEnd = NO_LOOP;
+  private int countedMappingCount;
+  private int countedInstructionCount;
+  private final int[] countedRegisterReads = new int[MAX_REGISTER_READS];
+  private int countedRegisterReadCount;
+
+  /*
+   * Registers, cycle count and jump count at the end of the last iteration.
+   */
+  private long snapshotCycle;
+  private int snapshotJumpCount;
+  private int snapshotAccumulator;
+  private int snapshotRegisterX;
+  private int snapshotRegisterY;
+  private int snapshotStackPointer;
+  private int snapshotStatus;
+
+  /**
+   * Builds the detector of the idle loops of a CPU.
+   *
+   * @param cpu The CPU running the loops.
+   * @param decoder The decoder of the operation codes.
+   */
+  IdleLoopDetector(final Core_2A03 cpu, final Decoder decoder) {
+    this.cpu = cpu;
+    this.memory = cpu.getMemory();
+    this.decoder = decoder;
+    isLoopEnd = new boolean[BYTE_MASK + 1];
+    for (int i = 0; i < isLoopEnd.length; i++) {
+      final OperationCode opcode = decoder.getOpcode(i);
+      isLoopEnd[i] = opcode != null && opcode.getInstruction() != null
+          && (opcode.getAddressingMode() == AddressingMode.RELATIVE
+              || opcode.getInstruction() == InstructionSet.JMP
+                  && opcode.getAddressingMode() == AddressingMode.ABSOLUTE);
+    }
+  }
+
+  /**
+   * Forgets the loop being watched.
+   */
+  void reset() {
+    loopStart = NO_LOOP;
+    loopEnd = NO_LOOP;
+    loopInstructionCount = 0;
+    registerReadCount = 0;
+  }
+
+  /**
+   * Skips the iterations of the idle loop the CPU is running, if any. Consulted after each
+   * backward jump or branch, the instruction closing a loop.
+   *
+   * @param lastCycle The cycle before which every skipped instruction must start.
+   * @param instructionLimit The largest number of instructions to skip.
+   * @return The number of instructions skipped.
+   */
+  long skip(final long lastCycle, final long instructionLimit) {
+    final int target = cpu.getProgramCounter();
+    final int end = cpu.getLastInstructionOffset();
+    if (!isLoopEnd[cpu.getCurrentOpCodeValue()] || end - target > MAX_LOOP_LENGTH
+        || !cpu.canBypassInterpreter()) {
+      reset();
+      return 0;
+    }
+    if (target != loopStart || end != loopEnd) {
+      loopStart = target;
+      loopEnd = end;
+      loopInstructionCount = getIdleInstructionCount(target, end);
+      takeSnapshot();
+      return 0;
+    }
+    // The loop is straight, so a single jump since the snapshot means a single iteration
+    if (loopInstructionCount == 0 || cpu.getJumpCount() != snapshotJumpCount + 1
+        || !isSnapshotState()) {
+      takeSnapshot();
+      return 0;
+    }
+    // The registers are read before the end of each iteration, so before their steady cycle
+    final long cycleCount = cpu.getCycleCount();
+    final long iterationCycles = cycleCount - snapshotCycle;
+    final long iterations = Math.min(
+        (Math.min(lastCycle, getSteadyReadCycle()) - cycleCount) / iterationCycles,
+        instructionLimit / loopInstructionCount);
+    takeSnapshot();
+    if (iterations <= 0) {
+      return 0;
+    }
+    cpu.skipCycles(iterations * iterationCycles);
+    snapshotCycle = cpu.getCycleCount();
+    return iterations * loopInstructionCount;
+  }
+
+  /**
+   * Returns the number of instructions of a loop if it is idle, counted again unless it is the
+   * last loop counted in ROM.
+   */
+  private int getIdleInstructionCount(final int start, final int end) {
+    if (start == countedStart && end == countedEnd
+        && memory.getMappingCount() == countedMappingCount) {
+      System.arraycopy(countedRegisterReads, 0, registerReads, 0, countedRegisterReadCount);
+      registerReadCount = countedRegisterReadCount;
+      return countedInstructionCount;
+    }
+    final int instructionCount = countIdleInstructions(start, end);
+    if (memory.isRom(start) && memory.isRom(end)) {
+      countedStart = start;
+      countedEnd = end;
+      countedMappingCount = memory.getMappingCount();
+      countedInstructionCount = instructionCount;
+      System.arraycopy(registerReads, 0, countedRegisterReads, 0, registerReadCount);
+      countedRegisterReadCount = registerReadCount;
+    }
+    return instructionCount;
+  }
+
+  /**
+   * Returns the cycle until which the registers read by the loop give the values they gave in the
+   * last iteration, the end of time if it reads none.
+   */
+  private long getSteadyReadCycle() {
+    long cycle = Long.MAX_VALUE;
+    for (int i = 0; i < registerReadCount; i++) {
+      cycle = Math.min(cycle, memory.getSteadyReadCycle(registerReads[i]));
+    }
+    return cycle;
+  }
+
+  /**
+   * Counts the instructions of a loop if it is idle: straight, without write or unsteady read, and
+   * closed by the instruction at its end. The device registers it reads are recorded.
+   *
+   * @param start The address of the first instruction of the loop.
+   * @param end The address of the instruction closing the loop.
+   * @return The number of instructions of the loop, 0 if it is not idle.
+   */
+  private int countIdleInstructions(final int start, final int end) {
+    registerReadCount = 0;
+    int instructionCount = 0;
+    int address = start;
+    while (address <= end) {
+      if (memory.hasReadSideEffect(address) || memory.hasReadSideEffect(address + 2)) {
+        return 0;
+      }
+      final int instruction = cpu.readInstruction(address);
+      final int opcode = instruction & BYTE_MASK;
+      final int operand = (instruction >>> Core_2A03.OPERAND_SHIFT) & WORD_MASK;
+      final OperationCode operationCode = decoder.getOpcode(opcode);
+      if (operationCode == null || operationCode.getInstruction() == null) {
+        return 0;
+      }
+      instructionCount++;
+      if (address == end) {
+        return isLoopEnd[opcode] ? instructionCount : 0;
+      }
+      if (!isIdleInstruction(operationCode, operand)) {
+        return 0;
+      }
+      address += (instruction >>> Core_2A03.LENGTH_SHIFT) & Core_2A03.LENGTH_MASK;
+    }
+    return 0;
+  }
+
+  /**
+   * Indicates if an instruction only changes registers, reading memory without side effect.
+   */
+  private boolean isIdleInstruction(final OperationCode opcode, final int operand) {
+    switch (opcode.getInstruction()) {
+      case ADC:
+      case AND:
+      case BIT:
+      case CMP:
+      case CPX:
+      case CPY:
+      case EOR:
+      case LDA:
+      case LDX:
+      case LDY:
+      case ORA:
+      case SBC:
+        return isSteadyRead(opcode.getAddressingMode(), operand);
+      case ASL:
+      case LSR:
+      case ROL:
+      case ROR:
+        return opcode.getAddressingMode() == AddressingMode.ACCUMULATOR;
+      case CLC:
+      case CLD:
+      case CLI:
+      case CLV:
+      case SEC:
+      case SED:
+      case SEI:
+      case DEX:
+      case DEY:
+      case INX:
+      case INY:
+      case NOP:
+      case TAX:
+      case TAY:
+      case TSX:
+      case TXA:
+      case TXS:
+      case TYA:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Indicates if the addresses read by an addressing mode may read the same at each iteration.
+   * Zero page addresses are in RAM, a register read with an absolute addressing is recorded, its
+   * device telling until when it is steady, indexed reads must not reach registers and indirect
+   * addressings are never idle.
+   */
+  private boolean isSteadyRead(final AddressingMode mode, final int operand) {
+    switch (mode) {
+      case IMMEDIATE:
+      case ZERO_PAGE:
+      case ZERO_PAGE_X_INDEXED:
+      case ZERO_PAGE_Y_INDEXED:
+        return true;
+      case ABSOLUTE:
+        if (memory.hasReadSideEffect(operand)) {
+          registerReads[registerReadCount++] = operand;
+        }
+        return true;
+      case ABSOLUTE_X_INDEXED:
+      case ABSOLUTE_Y_INDEXED:
+        return !memory.hasReadSideEffect(operand) && !memory.hasReadSideEffect(operand + MAX_INDEX);
+      default:
+        return false;
+    }
+  }
+
+  private void takeSnapshot() {
+    snapshotCycle = cpu.getCycleCount();
+    snapshotJumpCount = cpu.getJumpCount();
+    snapshotAccumulator = cpu.getAccumulator();
+    snapshotRegisterX = cpu.getRegisterX();
+    snapshotRegisterY = cpu.getRegisterY();
+    snapshotStackPointer = cpu.getStackPointer();
+    snapshotStatus = cpu.getStatusRegister().toByte();
+  }
+
+  private boolean isSnapshotState() {
+    return cpu.getAccumulator() == snapshotAccumulator && cpu.getRegisterX() == snapshotRegisterX
+        && cpu.getRegisterY() == snapshotRegisterY
+        && cpu.getStackPointer() == snapshotStackPointer
+        && cpu.getStatusRegister().toByte() == snapshotStatus;
+  }
+
+}
@@ -0,0 +1,38 @@
+/**
+ * Operation
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.processor;
+
+import org.smeny.retrobox.exception.UnknownOperationException;
+
+/**
+ * An Operation is the executable form of an operation code. The instruction and its addressing
+ * mode are resolved once when the operation is bound by the ALU, so executing it only resolves the
+ * operand, computes the result and updates the CPU state.
+ *
+ * @author Stéphane Meny
+ */
+@FunctionalInterface
+public interface Operation {
+
+  /**
+   * Executes the operation on the CPU it was bound to. The operand must have been read with the
+   * operation code, and the program counter must point to the next instruction.
+   *
+   * @throws UnknownOperationException If the operation code is not implemented.
+   */
+  void execute() throws UnknownOperationException;
+
+}
@@ -23,9 +23,19 @@ public class OperationCode {
   /** Our default logger for this class. */
   private static final Logger LOGGER = Logger.getLogger(OperationCode.class.getName());
 
+  /** Marker following the cycle count of operations taking one more cycle on a page crossing. */
+  private static final String PAGE_CROSS_MARKER = "*";
+
   private InstructionSet instruction;
   private AddressingMode addressingMode;
   private String code;
+  /** Number of cycles taken by the operation, without penalty. */
+  private int cycles;
+  /**
+   * Indicates if the operation takes one more cycle when its effective address crosses a page,
+   * or for a branch, when it is taken.
+   */
+  private boolean hasPageCrossPenalty;
 
   public OperationCode(final String code, final String instruction, final String addressingMode) {
     try {
@@ -38,6 +48,27 @@ public class OperationCode {
     }
   }
 
+  /**
+   * Builds an operation code with its timing.
+   *
+   * @param code The operation code, as written in the opcodes file.
+   * @param instruction The instruction name.
+   * @param addressingMode The addressing mode name.
+   * @param cycles The cycle count, followed by '*' if a page crossing takes one more cycle.
+   */
+  public OperationCode(final String code, final String instruction, final String addressingMode,
+      final String cycles) {
+    this(code, instruction, addressingMode);
+    try {
+      this.hasPageCrossPenalty = cycles.endsWith(PAGE_CROSS_MARKER);
+      final int length = cycles.length() - (hasPageCrossPenalty ? PAGE_CROSS_MARKER.length() : 0);
+      this.cycles = Integer.parseInt(cycles.substring(0, length));
+    } catch (NumberFormatException nfe) {
+      final String errorMsg = "Error decoding cycles of opcode " + this;
+      LOGGER.log(Level.SEVERE, errorMsg, nfe);
+    }
+  }
+
   public OperationCode(final InstructionSet instruction, final AddressingMode addressingMode) {
     this.instruction = instruction;
     this.addressingMode = addressingMode;
@@ -59,6 +90,22 @@ public class OperationCode {
     this.addressingMode = addressingMode;
   }
 
+  public int getCycles() {
+    return cycles;
+  }
+
+  public void setCycles(int cycles) {
+    this.cycles = cycles;
+  }
+
+  public boolean hasPageCrossPenalty() {
+    return hasPageCrossPenalty;
+  }
+
+  public void setPageCrossPenalty(boolean hasPageCrossPenalty) {
+    this.hasPageCrossPenalty = hasPageCrossPenalty;
+  }
+
   public String getCode() {
     return code;
   }
@@ -15,18 +15,12 @@
  */
 package org.smeny.retrobox.motherboard.nes.register;
 
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
 /**
  * Represents a 8 or 16 bits register that can be accessed and modified.
  *
  * @author Stéphane Meny
  */
 public final class Register {
-  /** Our default logger for this class. */
-  private static final Logger LOGGER = Logger.getLogger(Register.class.getName());
-
   /**
    * Mask used to get the first byte from the register.
    */
@@ -137,30 +131,26 @@ public final class Register {
     increment(1);
   }
 
+  /**
+   * Increments the register, wrapping around its size like the hardware register does.
+   *
+   * @param times The value to add to the register.
+   */
   public void increment(final int times) {
-    for (int i = 0; i < times; i++) {
-      if (registerData < (1 << registerSize)) {
-        registerData++;
-      } else {
-        LOGGER.log(Level.SEVERE, "Buffer overflow in register during increment");
-        System.exit(1);
-      }
-    }
+    setRegisterData(registerData + times);
   }
 
   public void decrement() {
     decrement(1);
   }
 
+  /**
+   * Decrements the register, wrapping around its size like the hardware register does.
+   *
+   * @param times The value to subtract from the register.
+   */
   public void decrement(final int times) {
-    for (int i = 0; i < times; i++) {
-      if (registerData > 0) {
-        registerData--;
-      } else {
-        LOGGER.log(Level.SEVERE, "Value under zero in register during decrement");
-        System.exit(1);
-      }
-    }
+    setRegisterData(registerData - times);
   }
 
 }
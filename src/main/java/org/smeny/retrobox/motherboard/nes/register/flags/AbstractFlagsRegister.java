@@ -15,11 +15,13 @@
  */
 package org.smeny.retrobox.motherboard.nes.register.flags;
 
-import java.util.BitSet;
-
 /**
  * The flags register of a CPU stores all flags needed to compute arithmetic operations. Only simple
  * logic should be included here or in potential subclasses.
+ *
+ * <p>Flags are packed in a single integer laid out like the hardware register. The zero and
+ * negative flags are not computed when they are set: the value they are set from is kept and the
+ * flag is only evaluated when it is read, since most instructions update them but few read them.
  */
 public abstract class AbstractFlagsRegister<T extends Enum<T> & IFlags> {
   /**
@@ -31,10 +33,32 @@ public abstract class AbstractFlagsRegister<T extends Enum<T> & IFlags> {
    */
   protected static final int UNSIGNED_BYTE_MAX_VALUE = 0xFF;
   /**
-   * Flags from CPU are contained inside a BitSet class. It is a optimized structure to handle set
-   * and clear operations on bits.
+   * Value kept for the zero flag when it is explicitly cleared: any value with a non null low byte.
+   */
+  private static final int NOT_ZERO_VALUE = 1;
+  /**
+   * Mask keeping only the bits of the register.
+   */
+  private final int registerMask;
+  /**
+   * Flags other than zero and negative, each flag being at its position in the register.
+   */
+  private int statusData;
+  /**
+   * Last value the zero flag was set from, the flag is set if its low byte is null.
    */
-  private final BitSet statusData;
+  private int zeroValue;
+  /**
+   * Last value the negative flag was set from, the flag is set if its sign bit is set.
+   */
+  private int negativeValue;
+  /**
+   * Masks of the flags shared by all CPUs, resolved once from the enumeration.
+   */
+  private final int carryMask;
+  private final int zeroMask;
+  private final int overflowMask;
+  private final int negativeMask;
   /**
    * Class of parameter type T is passed in the constructor because of the type erasure caused by
    * generics.
@@ -42,40 +66,86 @@ public abstract class AbstractFlagsRegister<T extends Enum<T> & IFlags> {
   private final Class<T> enumClass;
 
   /**
-   * Default constructor that will initialize the BitSet structure and set its size.
+   * Default constructor that resolves the position of each flag and clears the register.
+   *
+   * @param size Size of the register in bits.
+   * @param c Enumeration of the flags of the register.
+   * @param overflowFlagName Name of the flag holding the overflow.
+   * @param negativeFlagName Name of the flag holding the sign of the result.
    */
-  protected AbstractFlagsRegister(int size, Class<T> c) {
-    statusData = new BitSet(size);
+  protected AbstractFlagsRegister(int size, Class<T> c, String overflowFlagName,
+      String negativeFlagName) {
     enumClass = c;
+    registerMask = (1 << size) - 1;
+    carryMask = getMask(IFlags.CARRY);
+    zeroMask = getMask(IFlags.ZERO);
+    overflowMask = getMask(overflowFlagName);
+    negativeMask = getMask(negativeFlagName);
+    statusData = 0;
+    zeroValue = NOT_ZERO_VALUE;
+    negativeValue = 0;
   }
 
-  private int getPosition(String flagName) {
+  /**
+   * Resolves the mask of a flag from its name. This lookup is meant to be done once, when the
+   * register is built, never while flags are accessed.
+   *
+   * @param flagName Name of the flag, matching an enumeration instance.
+   * @return The mask of the flag in the register.
+   */
+  protected final int getMask(String flagName) {
     T enumInstance = Enum.valueOf(enumClass, flagName);
-    return enumInstance.getPosition();
+    return 1 << enumInstance.getPosition();
   }
 
-  protected boolean isFlagSet(String flagName) {
-    return statusData.get(getPosition(flagName));
+  protected final boolean isFlagSet(int mask) {
+    return (statusData & mask) != 0;
   }
 
-  protected void setFlag(String flagName) {
-    statusData.set(getPosition(flagName));
+  protected final void setFlag(int mask) {
+    statusData |= mask;
   }
 
-  protected void clearFlag(String flagName) {
-    statusData.clear(getPosition(flagName));
+  protected final void clearFlag(int mask) {
+    statusData &= ~mask;
+  }
 
+  /**
+   * Returns the register packed in a byte, with the zero and negative flags evaluated.
+   *
+   * @return The value of the register.
+   */
+  public int toByte() {
+    int value = statusData;
+    if (isZeroFlagSet()) {
+      value |= zeroMask;
+    }
+    if (isNegativeFlagSet()) {
+      value |= negativeMask;
+    }
+    return value;
+  }
+
+  /**
+   * Sets every flag of the register from a packed value.
+   *
+   * @param value The value of the register.
+   */
+  public void fromByte(int value) {
+    statusData = value & registerMask & ~(zeroMask | negativeMask);
+    zeroValue = (value & zeroMask) != 0 ? 0 : NOT_ZERO_VALUE;
+    negativeValue = (value & negativeMask) != 0 ? BYTE_SIGN_MASK : 0;
   }
 
-  public boolean isCarryFlagSet() throws IllegalArgumentException {
-    return isFlagSet(IFlags.CARRY);
+  public boolean isCarryFlagSet() {
+    return (statusData & carryMask) != 0;
   }
 
-  public void setCarryFlag() throws IllegalArgumentException {
-    setFlag(IFlags.CARRY);
+  public void setCarryFlag() {
+    statusData |= carryMask;
   }
 
-  public void setCarryFlag(int value) throws IllegalArgumentException {
+  public void setCarryFlag(int value) {
     if (value > UNSIGNED_BYTE_MAX_VALUE) {
       setCarryFlag();
     } else {
@@ -83,60 +153,63 @@ public abstract class AbstractFlagsRegister<T extends Enum<T> & IFlags> {
     }
   }
 
-  public void clearCarryFlag() throws IllegalArgumentException {
-    clearFlag(IFlags.CARRY);
+  public void clearCarryFlag() {
+    statusData &= ~carryMask;
   }
 
-  public boolean isZeroFlagSet() throws IllegalArgumentException {
-    return isFlagSet(IFlags.ZERO);
+  public boolean isZeroFlagSet() {
+    return (zeroValue & UNSIGNED_BYTE_MAX_VALUE) == 0;
   }
 
-  public void setZeroFlag() throws IllegalArgumentException {
-    setFlag(IFlags.ZERO);
+  public void setZeroFlag() {
+    zeroValue = 0;
   }
 
-  public void setZeroFlag(int value) throws IllegalArgumentException {
-    if (value == 0) {
-      setZeroFlag();
-    } else {
-      clearZeroFlag();
-    }
+  public void setZeroFlag(int value) {
+    zeroValue = value;
   }
 
-  public void clearZeroFlag() throws IllegalArgumentException {
-    clearFlag(IFlags.ZERO);
+  public void clearZeroFlag() {
+    zeroValue = NOT_ZERO_VALUE;
   }
 
-  public boolean isOverflowFlagSet() throws IllegalArgumentException {
-    return isFlagSet(IFlags.OVERFLOW);
+  public boolean isOverflowFlagSet() {
+    return (statusData & overflowMask) != 0;
   }
 
-  public void setOverflowFlag() throws IllegalArgumentException {
-    setFlag(IFlags.OVERFLOW);
+  public void setOverflowFlag() {
+    statusData |= overflowMask;
   }
 
-  public void clearOverflowFlag() throws IllegalArgumentException {
-    clearFlag(IFlags.OVERFLOW);
+  public void clearOverflowFlag() {
+    statusData &= ~overflowMask;
   }
 
-  public boolean isNegativeFlagSet() throws IllegalArgumentException {
-    return isFlagSet(IFlags.NEGATIVE);
+  public boolean isNegativeFlagSet() {
+    return (negativeValue & BYTE_SIGN_MASK) != 0;
   }
 
-  public void setNegativeFlag() throws IllegalArgumentException {
-    setFlag(IFlags.NEGATIVE);
+  public void setNegativeFlag() {
+    negativeValue = BYTE_SIGN_MASK;
   }
 
-  public void setNegativeFlag(int value) throws IllegalArgumentException {
-    if ((value & BYTE_SIGN_MASK) == BYTE_SIGN_MASK) {
-      setNegativeFlag();
-    } else {
-      clearNegativeFlag();
-    }
+  public void setNegativeFlag(int value) {
+    negativeValue = value;
   }
 
-  public void clearNegativeFlag() throws IllegalArgumentException {
-    clearFlag(IFlags.NEGATIVE);
+  public void clearNegativeFlag() {
+    negativeValue = 0;
+  }
+
+  /**
+   * Sets both zero and negative flags from the result of an operation. Flags are evaluated when
+   * they are read.
+   *
+   * @param value The result of the operation.
+   */
+  public void setZeroAndNegativeFlags(int value) {
+    zeroValue = value;
+    negativeValue = value;
   }
 
 }
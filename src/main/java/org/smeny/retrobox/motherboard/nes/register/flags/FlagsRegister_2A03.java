@@ -22,7 +22,60 @@ public final class FlagsRegister_2A03 extends AbstractFlagsRegister<Flags_2A03>
    */
   private static final int STATUS_REGISTER_SIZE = 8;
 
+  /**
+   * The fifth bit of the register is not wired and is always read as set.
+   */
+  private static final int UNUSED_MASK = 0x20;
+
+  private final int irqDisableMask;
+  private final int decimalModeMask;
+  private final int breakCommandMask;
+
   public FlagsRegister_2A03() {
-    super(STATUS_REGISTER_SIZE, Flags_2A03.class);
+    super(STATUS_REGISTER_SIZE, Flags_2A03.class, IFlags.OVERFLOW, IFlags.NEGATIVE);
+    irqDisableMask = getMask(IFlags.IRQ_DISABLE);
+    decimalModeMask = getMask(IFlags.DECIMAL_MODE);
+    breakCommandMask = getMask(IFlags.BREAK_COMMAND);
+  }
+
+  /**
+   * Returns the register as read by PHP, the unused bit being always set. The break flag only
+   * exists on the stack, the caller sets it when needed.
+   */
+  @Override
+  public int toByte() {
+    return super.toByte() | UNUSED_MASK;
+  }
+
+  /**
+   * Sets the register as done by PLP and RTI: break and unused bits are not stored.
+   */
+  @Override
+  public void fromByte(int value) {
+    super.fromByte(value & ~(UNUSED_MASK | breakCommandMask));
+  }
+
+  public boolean isIrqDisableFlagSet() {
+    return isFlagSet(irqDisableMask);
+  }
+
+  public void setIrqDisableFlag() {
+    setFlag(irqDisableMask);
+  }
+
+  public void clearIrqDisableFlag() {
+    clearFlag(irqDisableMask);
+  }
+
+  public boolean isDecimalModeFlagSet() {
+    return isFlagSet(decimalModeMask);
+  }
+
+  public void setDecimalModeFlag() {
+    setFlag(decimalModeMask);
+  }
+
+  public void clearDecimalModeFlag() {
+    clearFlag(decimalModeMask);
   }
 }
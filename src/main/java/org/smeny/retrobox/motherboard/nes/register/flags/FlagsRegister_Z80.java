@@ -22,74 +22,52 @@ public final class FlagsRegister_Z80 extends AbstractFlagsRegister<Flags_Z80> {
    */
   private static final int STATUS_REGISTER_SIZE = 8;
 
-  public FlagsRegister_Z80() {
-    super(STATUS_REGISTER_SIZE, Flags_Z80.class);
-  }
-
-  @Override
-  public boolean isOverflowFlagSet() throws IllegalArgumentException {
-    return isFlagSet(IFlags.PARITY_OVERFLOW);
-  }
-
-  @Override
-  public void setOverflowFlag() throws IllegalArgumentException {
-    setFlag(IFlags.PARITY_OVERFLOW);
-  }
-
-  @Override
-  public void clearOverflowFlag() throws IllegalArgumentException {
-    clearFlag(IFlags.PARITY_OVERFLOW);
-  }
+  private final int halfCarryMask;
+  private final int substractMask;
 
-  public boolean isParityFlagSet() throws IllegalArgumentException {
-    return isFlagSet(IFlags.PARITY_OVERFLOW);
-  }
-
-  public void setParityFlag() throws IllegalArgumentException {
-    setFlag(IFlags.PARITY_OVERFLOW);
-  }
-
-  public void clearParityFlag() throws IllegalArgumentException {
-    clearFlag(IFlags.PARITY_OVERFLOW);
+  /**
+   * The parity and the overflow share the same flag, and the negative flag is called sign.
+   */
+  public FlagsRegister_Z80() {
+    super(STATUS_REGISTER_SIZE, Flags_Z80.class, IFlags.PARITY_OVERFLOW, IFlags.SIGN);
+    halfCarryMask = getMask(IFlags.HALF_CARRY);
+    substractMask = getMask(IFlags.ADD_SUBSTRACT);
   }
 
-  @Override
-  public boolean isNegativeFlagSet() throws IllegalArgumentException {
-    return isFlagSet(IFlags.SIGN);
+  public boolean isParityFlagSet() {
+    return isOverflowFlagSet();
   }
 
-  @Override
-  public void setNegativeFlag() throws IllegalArgumentException {
-    setFlag(IFlags.SIGN);
+  public void setParityFlag() {
+    setOverflowFlag();
   }
 
-  @Override
-  public void clearNegativeFlag() throws IllegalArgumentException {
-    clearFlag(IFlags.SIGN);
+  public void clearParityFlag() {
+    clearOverflowFlag();
   }
 
-  public boolean isHalfCarryFlagSet() throws IllegalArgumentException {
-    return isFlagSet(IFlags.HALF_CARRY);
+  public boolean isHalfCarryFlagSet() {
+    return isFlagSet(halfCarryMask);
   }
 
-  public void setHalfCarryFlag() throws IllegalArgumentException {
-    setFlag(IFlags.HALF_CARRY);
+  public void setHalfCarryFlag() {
+    setFlag(halfCarryMask);
   }
 
-  public void clearHalfCarryFlag() throws IllegalArgumentException {
-    clearFlag(IFlags.HALF_CARRY);
+  public void clearHalfCarryFlag() {
+    clearFlag(halfCarryMask);
   }
 
-  public boolean isSubstractFlagSet() throws IllegalArgumentException {
-    return isFlagSet(IFlags.ADD_SUBSTRACT);
+  public boolean isSubstractFlagSet() {
+    return isFlagSet(substractMask);
   }
 
-  public void setSubstractFlag() throws IllegalArgumentException {
-    setFlag(IFlags.ADD_SUBSTRACT);
+  public void setSubstractFlag() {
+    setFlag(substractMask);
   }
 
-  public void clearSubstractFlag() throws IllegalArgumentException {
-    clearFlag(IFlags.ADD_SUBSTRACT);
+  public void clearSubstractFlag() {
+    clearFlag(substractMask);
   }
 
 }
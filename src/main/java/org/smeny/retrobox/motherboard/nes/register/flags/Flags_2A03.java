@@ -42,11 +42,21 @@ enum Flags_2A03 implements IFlags {
    */
   DECIMAL_MODE(3),
 
+  /**
+   * The break flag only exists in the status pushed on the stack, it tells a BRK from an IRQ.
+   */
   BREAK_COMMAND(4),
 
-  OVERFLOW(5),
+  /**
+   * The overflow flag is set when a signed arithmetic operation gives an out of range result. Bit
+   * 5 is not used by the processor.
+   */
+  OVERFLOW(6),
 
-  NEGATIVE(6);
+  /**
+   * The negative flag holds the sign bit of the last result.
+   */
+  NEGATIVE(7);
 
   private Flags_2A03(int pos) {
     position = pos;
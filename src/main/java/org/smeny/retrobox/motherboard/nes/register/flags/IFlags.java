@@ -17,7 +17,8 @@ package org.smeny.retrobox.motherboard.nes.register.flags;
 
 /**
  * This interface is used to define flags used in a flags register. Each String constant must match an enum instance name which is
- * implementing this interface. This is because these strings will be used to retrieve enum instances.
+ * implementing this interface. This is because these strings will be used to retrieve enum instances
+ * when a flags register is built.
  */
 interface IFlags {
 
@@ -26,6 +27,9 @@ interface IFlags {
   public static final String PARITY_OVERFLOW = "PARITY_OVERFLOW";
   public static final String HALF_CARRY = "HALF_CARRY";
   public static final String ZERO = "ZERO";
+  public static final String IRQ_DISABLE = "IRQ_DISABLE";
+  public static final String DECIMAL_MODE = "DECIMAL_MODE";
+  public static final String BREAK_COMMAND = "BREAK_COMMAND";
   public static final String OVERFLOW = "OVERFLOW";
   public static final String NEGATIVE = "NEGATIVE";
   public static final String SIGN = "SIGN";
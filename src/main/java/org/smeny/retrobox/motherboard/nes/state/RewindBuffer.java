@@ -0,0 +1,219 @@
+/**
+ * RewindBuffer
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.state;
+
+import java.nio.ByteBuffer;
+
+import org.smeny.retrobox.exception.InvalidStateException;
+import org.smeny.retrobox.motherboard.nes.processor.Core_2A03;
+
+/**
+ * A RewindBuffer keeps the recent snapshots of a CPU in a fixed memory budget, to go back in time.
+ * Snapshots are compressed keyframes, full states taken at a regular interval, and between them
+ * delta states holding only the memory pages written since the previous snapshot. A snapshot is
+ * restored by loading the keyframe before it then the deltas up to it.
+ *
+ * <p>All snapshots are written into one preallocated ring. When it is full, the oldest keyframe
+ * and its deltas are dropped, so the history covered depends on how much memory the program
+ * writes, and never exceeds the budget.
+ *
+ * @author Stéphane Meny
+ */
+public final class RewindBuffer {
+  private final Core_2A03 cpu;
+  private final ByteBuffer ring;
+  /** Number of snapshots between two keyframes, the keyframe included. */
+  private final int keyframeInterval;
+  /** Space reserved in the ring for each snapshot, its real size being known once written. */
+  private final int maximumSnapshotSize;
+
+  /* Snapshots, oldest first from index head, in circular arrays. */
+  private final int[] offsets;
+  private final int[] sizes;
+  private final long[] tags;
+  private final boolean[] isKeyframe;
+  private int head;
+  private int count;
+  /** Number of deltas written since the last keyframe. */
+  private int deltaCount;
+  /** Position in the ring where the next snapshot is written. */
+  private int writePosition;
+
+  /**
+   * Creates a rewind buffer for a CPU.
+   *
+   * @param cpu The CPU to snapshot and restore.
+   * @param budget The size of the ring holding the snapshots, in bytes.
+   * @param snapshotCapacity The largest number of snapshots kept.
+   * @param keyframeInterval The number of snapshots between two keyframes.
+   * @throws IllegalArgumentException If the budget cannot hold a full state, or if no snapshot can
+   *         be kept.
+   */
+  public RewindBuffer(final Core_2A03 cpu, final int budget, final int snapshotCapacity,
+      final int keyframeInterval) {
+    this.cpu = cpu;
+    this.maximumSnapshotSize = cpu.getMaximumStateSize();
+    if (budget < maximumSnapshotSize) {
+      throw new IllegalArgumentException("The budget is smaller than a state: "
+          + maximumSnapshotSize + " bytes");
+    }
+    if (snapshotCapacity < 1) {
+      throw new IllegalArgumentException("The snapshot capacity is not positive: "
+          + snapshotCapacity);
+    }
+    this.ring = ByteBuffer.allocate(budget);
+    this.keyframeInterval = Math.max(keyframeInterval, 1);
+    this.offsets = new int[snapshotCapacity];
+    this.sizes = new int[snapshotCapacity];
+    this.tags = new long[snapshotCapacity];
+    this.isKeyframe = new boolean[snapshotCapacity];
+  }
+
+  /**
+   * Takes a snapshot of the CPU, dropping the oldest ones if there is no room left.
+   *
+   * @param tag A value returned when this snapshot is restored, like a frame number.
+   */
+  public void capture(final long tag) {
+    int position = writePosition;
+    if (position + maximumSnapshotSize > ring.capacity()) {
+      position = 0;
+    }
+    while (count > 0 && (count == offsets.length || overlaps(position))) {
+      dropOldestKeyframe();
+    }
+
+    final boolean isNewKeyframe = count == 0 || deltaCount >= keyframeInterval - 1;
+    ring.limit(ring.capacity()).position(position);
+    if (isNewKeyframe) {
+      cpu.saveState(ring, true);
+      cpu.getMemory().clearDirtyPages();
+      deltaCount = 0;
+    } else {
+      cpu.saveDeltaState(ring, true);
+      deltaCount++;
+    }
+
+    final int index = (head + count) % offsets.length;
+    offsets[index] = position;
+    sizes[index] = ring.position() - position;
+    tags[index] = tag;
+    isKeyframe[index] = isNewKeyframe;
+    count++;
+    writePosition = ring.position();
+  }
+
+  /**
+   * Restores a previous snapshot and drops the snapshots taken after it.
+   *
+   * @param steps The number of snapshots to go back, 0 restoring the last one. It is limited to
+   *        the oldest snapshot kept.
+   * @return The tag of the restored snapshot.
+   * @throws InvalidStateException If the snapshot cannot be restored, which means that the CPU
+   *         was given another cartridge.
+   * @throws IllegalStateException If there is no snapshot.
+   */
+  public long rewind(final int steps) throws InvalidStateException {
+    if (count == 0) {
+      throw new IllegalStateException("No snapshot to rewind to");
+    }
+    final int target = Math.max(count - 1 - Math.max(steps, 0), 0);
+    int keyframe = target;
+    while (!isKeyframe[indexOf(keyframe)]) {
+      keyframe--;
+    }
+    final ByteBuffer snapshot = ring.duplicate();
+    for (int i = keyframe; i <= target; i++) {
+      final int index = indexOf(i);
+      snapshot.limit(offsets[index] + sizes[index]).position(offsets[index]);
+      cpu.loadState(snapshot);
+    }
+    // The memory is now the restored snapshot, the next delta follows it
+    cpu.getMemory().clearDirtyPages();
+
+    final int index = indexOf(target);
+    count = target + 1;
+    deltaCount = target - keyframe;
+    writePosition = offsets[index] + sizes[index];
+    return tags[index];
+  }
+
+  /**
+   * Drops all the snapshots.
+   */
+  public void clear() {
+    head = 0;
+    count = 0;
+    deltaCount = 0;
+    writePosition = 0;
+  }
+
+  /**
+   * Returns the number of snapshots kept.
+   */
+  public int getSnapshotCount() {
+    return count;
+  }
+
+  /**
+   * Returns the number of bytes used by the snapshots kept.
+   */
+  public int getUsedSize() {
+    int size = 0;
+    for (int i = 0; i < count; i++) {
+      size += sizes[indexOf(i)];
+    }
+    return size;
+  }
+
+  /**
+   * Returns the size of the ring holding the snapshots.
+   */
+  public int getBudget() {
+    return ring.capacity();
+  }
+
+  private int indexOf(final int snapshot) {
+    return (head + snapshot) % offsets.length;
+  }
+
+  /**
+   * Indicates if a snapshot written at a position could overwrite a snapshot kept.
+   */
+  private boolean overlaps(final int position) {
+    final int end = position + maximumSnapshotSize;
+    for (int i = 0; i < count; i++) {
+      final int index = indexOf(i);
+      if (offsets[index] < end && position < offsets[index] + sizes[index]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Drops the oldest keyframe and the deltas following it, which cannot be restored without it.
+   */
+  private void dropOldestKeyframe() {
+    do {
+      head = (head + 1) % offsets.length;
+      count--;
+    } while (count > 0 && !isKeyframe[head]);
+    if (count == 0) {
+      deltaCount = 0;
+    }
+  }
+}
@@ -0,0 +1,245 @@
+/**
+ * StateFormat
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.state;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.smeny.retrobox.exception.InvalidStateException;
+
+/**
+ * This class reads and writes the common parts of the save states: the header and the memory
+ * arrays. States are written straight into a buffer supplied by the caller and restored into the
+ * existing arrays, nothing is allocated.
+ *
+ * <p>A state starts with a magic number, the format version and the flags, then each component
+ * writes its section: the CPU, its memory, then the devices running along it. A delta state only
+ * holds the memory pages written since the previous state, and is restored on top of it. Memory
+ * arrays are preceded by their length, and are optionally compressed with PackBits, a run length
+ * encoding which is cheap to encode and decode and shrinks well the mostly empty memories of the
+ * console.
+ *
+ * @author Stéphane Meny
+ */
+public final class StateFormat {
+  /** Flag set when the memory arrays are compressed. */
+  public static final int COMPRESSED_FLAG = 0x01;
+  /** Flag set when the state only holds the memory pages written since the previous state. */
+  public static final int DELTA_FLAG = 0x02;
+  /** Size of the header. */
+  public static final int HEADER_SIZE = 8;
+
+  /** "RBST" in ASCII. */
+  private static final int MAGIC = 0x52425354;
+  /** Version of the format, to increase on any change of the layout. */
+  private static final int VERSION = 3;
+  private static final int KNOWN_FLAGS = COMPRESSED_FLAG | DELTA_FLAG;
+  /** Size of the length preceding each array. */
+  private static final int ARRAY_LENGTH_SIZE = 4;
+  /** Longest literal sequence or run of a PackBits block. */
+  private static final int MAX_BLOCK_LENGTH = 128;
+  /** Shortest run worth a run block, shorter ones being kept in literal blocks. */
+  private static final int MIN_RUN_LENGTH = 3;
+  /** Block header without data, skipped by the decoder. */
+  private static final int NO_OPERATION = -128;
+
+  /**
+   * Private default constructor to prevent instantiation.
+   */
+  private StateFormat() {
+  }
+
+  /**
+   * Writes the header of a state.
+   *
+   * @param buffer The buffer receiving the state.
+   * @param flags The flags of the state.
+   */
+  public static void writeHeader(final ByteBuffer buffer, final int flags) {
+    buffer.putInt(MAGIC);
+    buffer.putShort((short) VERSION);
+    buffer.putShort((short) flags);
+  }
+
+  /**
+   * Reads and checks the header of a state.
+   *
+   * @param buffer The buffer holding the state.
+   * @return The flags of the state.
+   * @throws InvalidStateException If the buffer does not hold a state of this version.
+   */
+  public static int readHeader(final ByteBuffer buffer) throws InvalidStateException {
+    if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+      throw new InvalidStateException("Not a save state");
+    }
+    final int version = buffer.getShort();
+    if (version != VERSION) {
+      throw new InvalidStateException("Unsupported save state version " + version);
+    }
+    final int flags = buffer.getShort();
+    if ((flags & ~KNOWN_FLAGS) != 0) {
+      throw new InvalidStateException("Unknown save state flags " + flags);
+    }
+    return flags;
+  }
+
+  /**
+   * Returns the largest size an array can take in a state, when it cannot be compressed.
+   *
+   * @param data The array, may be null.
+   */
+  public static int getMaximumArraySize(final byte[] data) {
+    return ARRAY_LENGTH_SIZE + getMaximumBytesSize(data == null ? 0 : data.length);
+  }
+
+  /**
+   * Writes an array preceded by its length.
+   *
+   * @param buffer The buffer receiving the state.
+   * @param data The array, written as an empty array if null.
+   * @param isCompressed true to compress the array.
+   */
+  public static void writeArray(final ByteBuffer buffer, final byte[] data,
+      final boolean isCompressed) {
+    if (data == null) {
+      buffer.putInt(0);
+    } else {
+      buffer.putInt(data.length);
+      writeBytes(buffer, data, 0, data.length, isCompressed);
+    }
+  }
+
+  /**
+   * Returns the largest size of bytes written by {@link #writeBytes}.
+   *
+   * @param length The number of bytes.
+   */
+  public static int getMaximumBytesSize(final int length) {
+    return length + (length + MAX_BLOCK_LENGTH - 1) / MAX_BLOCK_LENGTH;
+  }
+
+  /**
+   * Writes a part of an array, without its length.
+   *
+   * @param buffer The buffer receiving the state.
+   * @param data The array.
+   * @param offset The offset of the first byte to write.
+   * @param length The number of bytes to write.
+   * @param isCompressed true to compress the bytes.
+   */
+  public static void writeBytes(final ByteBuffer buffer, final byte[] data, final int offset,
+      final int length, final boolean isCompressed) {
+    if (isCompressed) {
+      encode(buffer, data, offset, offset + length);
+    } else {
+      buffer.put(data, offset, length);
+    }
+  }
+
+  /**
+   * Reads bytes written by {@link #writeBytes} into a part of an array.
+   *
+   * @param buffer The buffer holding the state.
+   * @param data The array to fill.
+   * @param offset The offset of the first byte to read.
+   * @param length The number of bytes to read.
+   * @param isCompressed true if the bytes were compressed.
+   * @throws InvalidStateException If the compressed data are corrupted.
+   */
+  public static void readBytes(final ByteBuffer buffer, final byte[] data, final int offset,
+      final int length, final boolean isCompressed) throws InvalidStateException {
+    if (isCompressed) {
+      decode(buffer, data, offset, offset + length);
+    } else {
+      buffer.get(data, offset, length);
+    }
+  }
+
+  /**
+   * Reads an array written by {@link #writeArray} into an existing array of the same length.
+   *
+   * @param buffer The buffer holding the state.
+   * @param data The array to fill, may be null if the array was saved as null.
+   * @param isCompressed true if the array was compressed.
+   * @throws InvalidStateException If the lengths differ or the compressed data are corrupted.
+   */
+  public static void readArray(final ByteBuffer buffer, final byte[] data,
+      final boolean isCompressed) throws InvalidStateException {
+    final int length = buffer.getInt();
+    if (length != (data == null ? 0 : data.length)) {
+      throw new InvalidStateException("Memory size mismatch, the state is from another cartridge");
+    }
+    if (length > 0) {
+      readBytes(buffer, data, 0, length, isCompressed);
+    }
+  }
+
+  /**
+   * Compresses a part of an array with PackBits. Each block starts with a header n: if n is positive, n + 1
+   * bytes are copied as is, if n is negative the next byte is repeated 1 - n times.
+   */
+  private static void encode(final ByteBuffer buffer, final byte[] data, final int start,
+      final int end) {
+    int i = start;
+    while (i < end) {
+      int run = 1;
+      while (i + run < end && run < MAX_BLOCK_LENGTH && data[i + run] == data[i]) {
+        run++;
+      }
+      if (run >= MIN_RUN_LENGTH) {
+        buffer.put((byte) (1 - run));
+        buffer.put(data[i]);
+        i += run;
+      } else {
+        // Literal bytes up to the next run worth a block
+        final int literalStart = i;
+        i += run;
+        while (i < end && i - literalStart < MAX_BLOCK_LENGTH
+            && !(i + 2 < end && data[i] == data[i + 1] && data[i] == data[i + 2])) {
+          i++;
+        }
+        buffer.put((byte) (i - literalStart - 1));
+        buffer.put(data, literalStart, i - literalStart);
+      }
+    }
+  }
+
+  private static void decode(final ByteBuffer buffer, final byte[] data, final int start,
+      final int end) throws InvalidStateException {
+    int i = start;
+    while (i < end) {
+      final int header = buffer.get();
+      if (header >= 0) {
+        final int count = header + 1;
+        checkBlock(end, i, count);
+        buffer.get(data, i, count);
+        i += count;
+      } else if (header != NO_OPERATION) {
+        final int count = 1 - header;
+        checkBlock(end, i, count);
+        Arrays.fill(data, i, i + count, buffer.get());
+        i += count;
+      }
+    }
+  }
+
+  private static void checkBlock(final int end, final int offset, final int count)
+      throws InvalidStateException {
+    if (offset + count > end) {
+      throw new InvalidStateException("Corrupted compressed memory");
+    }
+  }
+}
@@ -0,0 +1,66 @@
+/**
+ * StatefulDevice
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.state;
+
+import java.nio.ByteBuffer;
+
+import org.smeny.retrobox.exception.InvalidStateException;
+import org.smeny.retrobox.motherboard.nes.processor.Core_2A03;
+
+/**
+ * A StatefulDevice is a chip running along the CPU, like the PPU or the APU, whose state is saved
+ * and restored with the state of the CPU. Its section follows the memory, in full even in the
+ * delta states, the devices being small. Whatever drives the CPU frame by frame completes the
+ * frames of its devices through {@link Core_2A03#completeFrame()}.
+ *
+ * <p>The deadlines of the device in the scheduler of the CPU are not saved: the device schedules
+ * them again from its restored state.
+ *
+ * @author Stéphane Meny
+ */
+public interface StatefulDevice {
+
+  /**
+   * Brings the device to the end of a frame, which the CPU just ran.
+   *
+   * @param cpuCycle The CPU cycle count where the frame ends.
+   */
+  void completeFrame(long cpuCycle);
+
+  /**
+   * Returns the largest size of the state of the device, when nothing can be compressed.
+   */
+  int getMaximumStateSize();
+
+  /**
+   * Writes the state of the device.
+   *
+   * @param buffer The buffer receiving the state.
+   * @param isCompressed true to compress the memory arrays of the device.
+   */
+  void saveState(ByteBuffer buffer, boolean isCompressed);
+
+  /**
+   * Restores a state written by {@link #saveState(ByteBuffer, boolean)}, then schedules the
+   * deadlines of the device again. If the state is invalid, the device may be partially restored.
+   *
+   * @param buffer The buffer holding the state.
+   * @param isCompressed true if the memory arrays were compressed.
+   * @throws InvalidStateException If the state is not valid.
+   */
+  void loadState(ByteBuffer buffer, boolean isCompressed) throws InvalidStateException;
+
+}
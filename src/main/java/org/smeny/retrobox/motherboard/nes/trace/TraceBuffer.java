@@ -0,0 +1,188 @@
+/**
+ * TraceBuffer
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.trace;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sun.misc.Unsafe;
+
+/**
+ * A TraceBuffer records the state of the CPU before each instruction into a preallocated ring of
+ * longs, so tracing allocates nothing and formats nothing on the CPU thread. Each entry is packed
+ * in two longs: the program counter, the operation code, its operand and the A, X and Y registers
+ * in the first one, the status, the stack pointer and the cycle count in the second one.
+ *
+ * <p>The buffer has one writer, the CPU, and one reader, usually a {@link TraceWriter} on another
+ * thread. The writer never waits: when the reader is too slow the oldest entries are overwritten
+ * and counted as lost.
+ *
+ * @author Stéphane Meny
+ */
+public final class TraceBuffer {
+  private static final int LONGS_PER_ENTRY = 2;
+  private static final int BYTE_MASK = 0xFF;
+  private static final int WORD_MASK = 0xFFFF;
+  private static final long CYCLE_MASK = (1L << 48) - 1;
+
+  private static final int PROGRAM_COUNTER_SHIFT = 48;
+  private static final int OPCODE_SHIFT = 40;
+  private static final int OPERAND_SHIFT = 24;
+  private static final int ACCUMULATOR_SHIFT = 16;
+  private static final int REGISTER_X_SHIFT = 8;
+  private static final int STATUS_SHIFT = 56;
+  private static final int STACK_POINTER_SHIFT = 48;
+
+  /** Gives the load fence ordering the copy of an entry before its validation. */
+  private static final Unsafe UNSAFE;
+
+  static {
+    try {
+      final Field field = Unsafe.class.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      UNSAFE = (Unsafe) field.get(null);
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  /** Entries, two longs each. */
+  private final long[] entries;
+  /** Mask giving the index of an entry from its sequence number. */
+  private final int indexMask;
+  /** Sequence number of the next entry written, published once the entry is complete. */
+  private final AtomicLong writeSequence = new AtomicLong();
+  /** Sequence number of the entry being written. */
+  private long currentSequence;
+  /** Registers recorded before the current instruction. */
+  private long currentRegisters;
+  private long currentState;
+
+  /**
+   * Creates a trace buffer.
+   *
+   * @param capacity The number of entries kept, rounded up to a power of two.
+   */
+  public TraceBuffer(final int capacity) {
+    final int size = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1);
+    entries = new long[size * LONGS_PER_ENTRY];
+    indexMask = size - 1;
+  }
+
+  /**
+   * Records the state of the CPU before an instruction.
+   *
+   * @param programCounter The address of the instruction.
+   * @param accumulator The accumulator.
+   * @param registerX The X register.
+   * @param registerY The Y register.
+   * @param status The status register as a byte.
+   * @param stackPointer The stack pointer.
+   * @param cycle The cycle count.
+   */
+  public void begin(final int programCounter, final int accumulator, final int registerX,
+      final int registerY, final int status, final int stackPointer, final long cycle) {
+    currentRegisters = ((long) programCounter << PROGRAM_COUNTER_SHIFT)
+        | (accumulator << ACCUMULATOR_SHIFT) | (registerX << REGISTER_X_SHIFT) | registerY;
+    currentState = ((long) status << STATUS_SHIFT) | ((long) stackPointer << STACK_POINTER_SHIFT)
+        | (cycle & CYCLE_MASK);
+  }
+
+  /**
+   * Completes the entry started by {@link #begin} with the instruction executed and publishes it.
+   *
+   * @param opcode The operation code.
+   * @param operand The operand fetched by the instruction, 0 if it has none.
+   */
+  public void end(final int opcode, final int operand) {
+    final int index = ((int) currentSequence & indexMask) * LONGS_PER_ENTRY;
+    entries[index] = currentRegisters | ((long) (opcode & BYTE_MASK) << OPCODE_SHIFT)
+        | ((long) (operand & WORD_MASK) << OPERAND_SHIFT);
+    entries[index + 1] = currentState;
+    currentSequence++;
+    // Ordered store: the reader sees the entry once it sees the sequence number
+    writeSequence.lazySet(currentSequence);
+  }
+
+  /**
+   * Returns the number of entries the buffer keeps.
+   */
+  public int getCapacity() {
+    return indexMask + 1;
+  }
+
+  /**
+   * Returns the sequence number of the next entry to be written, all entries before it being
+   * readable unless overwritten.
+   */
+  public long getWriteSequence() {
+    return writeSequence.get();
+  }
+
+  /**
+   * Copies an entry, checking that it was not overwritten meanwhile.
+   *
+   * @param sequence The sequence number of the entry.
+   * @param entry The array receiving the two longs of the entry.
+   * @return false if the entry was overwritten, its copy being unusable.
+   */
+  public boolean read(final long sequence, final long[] entry) {
+    final int index = ((int) sequence & indexMask) * LONGS_PER_ENTRY;
+    entry[0] = entries[index];
+    entry[1] = entries[index + 1];
+    // The copy must not move after the check, as in StampedLock.validate
+    UNSAFE.loadFence();
+    // The writer may have lapped the reader while the entry was copied
+    return writeSequence.get() - sequence <= indexMask;
+  }
+
+  public static int getProgramCounter(final long[] entry) {
+    return (int) (entry[0] >>> PROGRAM_COUNTER_SHIFT) & WORD_MASK;
+  }
+
+  public static int getOpcode(final long[] entry) {
+    return (int) (entry[0] >>> OPCODE_SHIFT) & BYTE_MASK;
+  }
+
+  public static int getOperand(final long[] entry) {
+    return (int) (entry[0] >>> OPERAND_SHIFT) & WORD_MASK;
+  }
+
+  public static int getAccumulator(final long[] entry) {
+    return (int) (entry[0] >>> ACCUMULATOR_SHIFT) & BYTE_MASK;
+  }
+
+  public static int getRegisterX(final long[] entry) {
+    return (int) (entry[0] >>> REGISTER_X_SHIFT) & BYTE_MASK;
+  }
+
+  public static int getRegisterY(final long[] entry) {
+    return (int) entry[0] & BYTE_MASK;
+  }
+
+  public static int getStatus(final long[] entry) {
+    return (int) (entry[1] >>> STATUS_SHIFT) & BYTE_MASK;
+  }
+
+  public static int getStackPointer(final long[] entry) {
+    return (int) (entry[1] >>> STACK_POINTER_SHIFT) & BYTE_MASK;
+  }
+
+  public static long getCycle(final long[] entry) {
+    return entry[1] & CYCLE_MASK;
+  }
+
+}
@@ -0,0 +1,167 @@
+/**
+ * TraceFormatter
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.trace;
+
+import org.smeny.retrobox.motherboard.nes.processor.AbstractDecoder;
+import org.smeny.retrobox.motherboard.nes.processor.AddressingMode;
+import org.smeny.retrobox.motherboard.nes.processor.OperationCode;
+
+/**
+ * This class formats trace entries in the layout of the nestest reference log
+ * (log/cpu_reference.log): address, instruction bytes, disassembly, registers, then the PPU dot
+ * and scanline reached at the start of the instruction.
+ *
+ * <p>The disassembly does not show the values read in memory ("= 00" in the reference log), as
+ * the memory has changed by the time the entry is formatted.
+ *
+ * @author Stéphane Meny
+ */
+public final class TraceFormatter {
+  /** Column where the disassembly starts. */
+  private static final int DISASSEMBLY_COLUMN = 16;
+  /** Column where the registers start. */
+  private static final int REGISTERS_COLUMN = 48;
+  private static final int PPU_DOTS_PER_CPU_CYCLE = 3;
+  private static final int PPU_DOTS_PER_SCANLINE = 341;
+  private static final int SCANLINES_PER_FRAME = 262;
+  /** Scanline of the PPU when the CPU starts, as in the reference log. */
+  private static final int FIRST_SCANLINE = 241;
+  private static final int CYCLE_COLUMN_WIDTH = 3;
+  private static final int BYTE_MASK = 0xFF;
+  private static final int WORD_MASK = 0xFFFF;
+  private static final int BYTE_SHIFT = 8;
+  private static final int RELATIVE_OPERATION_SIZE = 2;
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  private final OperationCode[] opcodes;
+
+  /**
+   * Creates a formatter.
+   *
+   * @param decoder The decoder giving the instruction and the addressing mode of each operation
+   *        code.
+   */
+  public TraceFormatter(final AbstractDecoder decoder) {
+    opcodes = new OperationCode[BYTE_MASK + 1];
+    for (int i = 0; i < opcodes.length; i++) {
+      opcodes[i] = decoder.getOpcode(i);
+    }
+  }
+
+  /**
+   * Appends a trace entry, without line separator.
+   *
+   * @param entry The entry, as read from a {@link TraceBuffer}.
+   * @param line The builder receiving the entry.
+   */
+  public void append(final long[] entry, final StringBuilder line) {
+    final int start = line.length();
+    final int programCounter = TraceBuffer.getProgramCounter(entry);
+    final int opcodeValue = TraceBuffer.getOpcode(entry);
+    final int operand = TraceBuffer.getOperand(entry);
+    final OperationCode opcode = opcodes[opcodeValue];
+    final AddressingMode mode = opcode == null ? AddressingMode.IMPLIED
+        : opcode.getAddressingMode();
+
+    appendWord(line, programCounter).append("  ");
+    appendByte(line, opcodeValue);
+    for (int i = 0; i < mode.getOperandSize(); i++) {
+      appendByte(line.append(' '), operand >> (i * BYTE_SHIFT));
+    }
+    pad(line, start + DISASSEMBLY_COLUMN);
+    line.append(opcode == null ? "???" : opcode.getInstruction().name());
+    appendOperand(line, mode, operand, programCounter);
+    pad(line, start + REGISTERS_COLUMN);
+
+    appendByte(line.append("A:"), TraceBuffer.getAccumulator(entry));
+    appendByte(line.append(" X:"), TraceBuffer.getRegisterX(entry));
+    appendByte(line.append(" Y:"), TraceBuffer.getRegisterY(entry));
+    appendByte(line.append(" P:"), TraceBuffer.getStatus(entry));
+    appendByte(line.append(" SP:"), TraceBuffer.getStackPointer(entry));
+
+    final long dots = TraceBuffer.getCycle(entry) * PPU_DOTS_PER_CPU_CYCLE;
+    final String dot = Long.toString(dots % PPU_DOTS_PER_SCANLINE);
+    line.append(" CYC:");
+    for (int i = dot.length(); i < CYCLE_COLUMN_WIDTH; i++) {
+      line.append(' ');
+    }
+    line.append(dot);
+    // Scanlines go from -1 (pre-render) to 260
+    final long scanline = (dots / PPU_DOTS_PER_SCANLINE + FIRST_SCANLINE + 1) % SCANLINES_PER_FRAME
+        - 1;
+    line.append(" SL:").append(scanline);
+  }
+
+  private static void appendOperand(final StringBuilder line, final AddressingMode mode,
+      final int operand, final int programCounter) {
+    switch (mode) {
+      case ACCUMULATOR:
+        line.append(" A");
+        break;
+      case IMMEDIATE:
+        appendByte(line.append(" #$"), operand);
+        break;
+      case RELATIVE:
+        final int target = programCounter + RELATIVE_OPERATION_SIZE + (byte) operand;
+        appendWord(line.append(" $"), target);
+        break;
+      case ZERO_PAGE:
+        appendByte(line.append(" $"), operand);
+        break;
+      case ZERO_PAGE_X_INDEXED:
+        appendByte(line.append(" $"), operand).append(",X");
+        break;
+      case ZERO_PAGE_Y_INDEXED:
+        appendByte(line.append(" $"), operand).append(",Y");
+        break;
+      case ABSOLUTE:
+        appendWord(line.append(" $"), operand);
+        break;
+      case ABSOLUTE_X_INDEXED:
+        appendWord(line.append(" $"), operand).append(",X");
+        break;
+      case ABSOLUTE_Y_INDEXED:
+        appendWord(line.append(" $"), operand).append(",Y");
+        break;
+      case INDIRECT:
+        appendWord(line.append(" ($"), operand).append(')');
+        break;
+      case INDIRECT_X_PREINDEXED:
+        appendByte(line.append(" ($"), operand).append(",X)");
+        break;
+      case INDIRECT_Y_POSTINDEXED:
+        appendByte(line.append(" ($"), operand).append("),Y");
+        break;
+      default:
+        break;
+    }
+  }
+
+  private static void pad(final StringBuilder line, final int column) {
+    do {
+      line.append(' ');
+    } while (line.length() < column);
+  }
+
+  private static StringBuilder appendByte(final StringBuilder line, final int value) {
+    return line.append(HEX_DIGITS[(value >> 4) & 0x0F]).append(HEX_DIGITS[value & 0x0F]);
+  }
+
+  private static StringBuilder appendWord(final StringBuilder line, final int value) {
+    return appendByte(appendByte(line, (value & WORD_MASK) >> BYTE_SHIFT), value);
+  }
+
+}
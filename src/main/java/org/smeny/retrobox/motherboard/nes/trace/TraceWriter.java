@@ -0,0 +1,147 @@
+/**
+ * TraceWriter
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.trace;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A TraceWriter formats the entries of a {@link TraceBuffer} on its own thread and writes them, one
+ * per line, to a writer. The CPU thread only fills the buffer. Entries overwritten before the
+ * writer could read them are counted and reported in the output.
+ *
+ * @author Stéphane Meny
+ */
+public final class TraceWriter implements Runnable, Closeable {
+  /** Our default logger for this class. */
+  private static final Logger LOGGER = Logger.getLogger(TraceWriter.class.getName());
+  /** Time waited when the buffer is empty. */
+  private static final long IDLE_NANOS = 1000000L;
+  private static final String THREAD_NAME = "trace-writer";
+  private static final String LINE_SEPARATOR = System.lineSeparator();
+
+  private final TraceBuffer buffer;
+  private final TraceFormatter formatter;
+  private final Writer output;
+  private final Thread thread;
+  private final long[] entry = new long[2];
+  private final StringBuilder line = new StringBuilder();
+  private volatile boolean isRunning;
+  /** Sequence number of the next entry to read. */
+  private long readSequence;
+  private long lostEntryCount;
+
+  /**
+   * Creates a writer, which starts on {@link #start()}.
+   *
+   * @param buffer The buffer to read.
+   * @param formatter The formatter of the entries.
+   * @param output The writer receiving the lines, closed with the trace writer.
+   */
+  public TraceWriter(final TraceBuffer buffer, final TraceFormatter formatter,
+      final Writer output) {
+    this.buffer = buffer;
+    this.formatter = formatter;
+    this.output = output;
+    this.readSequence = buffer.getWriteSequence();
+    this.thread = new Thread(this, THREAD_NAME);
+    thread.setDaemon(true);
+  }
+
+  /**
+   * Starts the thread writing the entries.
+   */
+  public void start() {
+    isRunning = true;
+    thread.start();
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (isRunning) {
+        if (drain() == 0) {
+          LockSupport.parkNanos(this, IDLE_NANOS);
+        }
+      }
+      // Entries written before close are not lost
+      drain();
+      output.flush();
+    } catch (IOException e) {
+      isRunning = false;
+      LOGGER.log(Level.SEVERE, "Error writing the trace", e);
+    }
+  }
+
+  /**
+   * Writes all the entries available.
+   *
+   * @return The number of entries read.
+   */
+  private long drain() throws IOException {
+    final long writeSequence = buffer.getWriteSequence();
+    if (writeSequence - readSequence > buffer.getCapacity()) {
+      reportLostEntries(writeSequence - readSequence - buffer.getCapacity());
+      readSequence = writeSequence - buffer.getCapacity();
+    }
+    final long firstSequence = readSequence;
+    for (; readSequence < writeSequence; readSequence++) {
+      if (buffer.read(readSequence, entry)) {
+        line.setLength(0);
+        formatter.append(entry, line);
+        output.append(line).append(LINE_SEPARATOR);
+      } else {
+        reportLostEntries(1);
+      }
+    }
+    return writeSequence - firstSequence;
+  }
+
+  private void reportLostEntries(final long count) throws IOException {
+    lostEntryCount += count;
+    output.append("... ").append(Long.toString(count)).append(" entries lost")
+        .append(LINE_SEPARATOR);
+  }
+
+  /**
+   * Returns the number of entries overwritten before they could be written.
+   */
+  public long getLostEntryCount() {
+    return lostEntryCount;
+  }
+
+  /**
+   * Writes the remaining entries, then stops the thread and closes the output.
+   *
+   * @throws IOException If the output cannot be closed.
+   */
+  @Override
+  public void close() throws IOException {
+    isRunning = false;
+    LockSupport.unpark(thread);
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    output.close();
+  }
+
+}
@@ -0,0 +1,1041 @@
+/**
+ * Ppu_2C02
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.video;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import org.smeny.retrobox.exception.InvalidStateException;
+import org.smeny.retrobox.motherboard.nes.event.EventScheduler;
+import org.smeny.retrobox.motherboard.nes.memory.MemoryMappedDevice;
+import org.smeny.retrobox.motherboard.nes.memory.PagedMemoryController;
+import org.smeny.retrobox.motherboard.nes.processor.Core_2A03;
+import org.smeny.retrobox.motherboard.nes.state.StateFormat;
+import org.smeny.retrobox.motherboard.nes.state.StatefulDevice;
+
+/**
+ * This class emulates the 2C02 Picture Processing Unit of the NES. It draws the background and
+ * the sprites scanline by scanline into a framebuffer allocated once, reading the name tables, the
+ * pattern tables and the palette through the video memory of the memory controller.
+ *
+ * <p>The PPU runs three dots per CPU cycle. It is not stepped along with the CPU:
+ * {@link #runTo(long)} brings it to a CPU cycle, running at once the dots elapsed since the
+ * previous call. Only the dots where something happens are visited: the end of the visible part of
+ * each scanline, where the whole scanline is drawn, the start and the end of vblank, and the scroll
+ * copies of the pre-render scanline. The registers written while a scanline is fetched take effect
+ * on the next one.
+ *
+ * <p>When connected to a CPU, the PPU maps its registers from 0x2000 to 0x3FFF and the OAM DMA
+ * register at 0x4014, and catches up with the CPU lazily: before the register accesses, at the
+ * deadlines it registers in the scheduler of the CPU, and at the end of each frame. The deadlines
+ * are the start of vblank while the NMI is enabled, and the scanline where the mapper will raise
+ * its IRQ. The PPU also catches up before each write to the scanline counter of the mapper, which
+ * it clocks at the end of the visible part of each rendered scanline.
+ *
+ * <p>The status register only changes at predictable dots: the start and the end of vblank, and
+ * the scanlines where sprite 0 is drawn or where more than eight sprites are. A status read before
+ * the next of them gets the status as it is, so the loops polling for vblank or for the sprite 0
+ * hit do not run the PPU at each read. Once read, the status reads the same up to there, which
+ * lets the CPU skip these loops, see {@link #getSteadyReadCycle(int)}.
+ *
+ * <p>The state of a connected PPU is saved with the state of the CPU: the registers, the OAM and
+ * the position in the frame, the video memory being saved with the memory. The frame is not
+ * saved, it is drawn again by the next frame run.
+ *
+ * <p>The frame holds ARGB colors of the 2C02 palette, the color emphasis bits being ignored.
+ *
+ * @author Stéphane Meny
+ */
+public final class Ppu_2C02 implements MemoryMappedDevice, StatefulDevice {
+  /** Width of the frame in pixels. */
+  public static final int SCREEN_WIDTH = 256;
+  /** Height of the frame in pixels, the number of visible scanlines. */
+  public static final int SCREEN_HEIGHT = 240;
+  /** Number of PPU dots run for each CPU cycle. */
+  public static final int DOTS_PER_CPU_CYCLE = 3;
+  /** Number of dots of a scanline. */
+  public static final int DOTS_PER_SCANLINE = 341;
+  /** Number of scanlines of a frame, the visible ones, vblank and the pre-render scanline. */
+  public static final int SCANLINES_PER_FRAME = 262;
+
+  /** Scanline where vblank starts. */
+  private static final int VBLANK_SCANLINE = 241;
+  /** Last scanline of a frame, fetching the first tiles of the next one. */
+  private static final int PRE_RENDER_SCANLINE = SCANLINES_PER_FRAME - 1;
+  /** Dot where vblank starts and ends. */
+  private static final int VBLANK_DOT = 1;
+  /** Dot where the visible scanlines are drawn, once their pixels are all fetched. */
+  private static final int DRAW_DOT = 257;
+  /** Dot of the pre-render scanline where the vertical scroll is copied. */
+  private static final int VERTICAL_COPY_DOT = 280;
+
+  /** First page of the registers, mirrored every eight bytes up to 0x3FFF. */
+  private static final int REGISTERS_FIRST_PAGE = 0x20;
+  private static final int REGISTERS_PAGE_COUNT = 0x20;
+  /** Register copying a page of CPU memory to the OAM. */
+  private static final int OAM_DMA = 0x4014;
+  /** CPU cycles suspended by the OAM DMA, plus one when it starts on an odd cycle. */
+  private static final int OAM_DMA_CYCLES = 513;
+  private static final int REGISTER_MASK = 0x07;
+  private static final int CONTROL = 0;
+  private static final int MASK = 1;
+  private static final int STATUS = 2;
+  private static final int OAM_ADDRESS = 3;
+  private static final int OAM_DATA = 4;
+  private static final int SCROLL = 5;
+  private static final int ADDRESS = 6;
+  private static final int DATA = 7;
+
+  private static final int CONTROL_NAME_TABLE_MASK = 0x03;
+  private static final int CONTROL_INCREMENT_32 = 0x04;
+  private static final int CONTROL_SPRITE_TABLE = 0x08;
+  private static final int CONTROL_BACKGROUND_TABLE = 0x10;
+  private static final int CONTROL_SPRITE_16 = 0x20;
+  private static final int CONTROL_NMI = 0x80;
+  private static final int MASK_GREYSCALE = 0x01;
+  private static final int MASK_BACKGROUND_LEFT = 0x02;
+  private static final int MASK_SPRITES_LEFT = 0x04;
+  private static final int MASK_BACKGROUND = 0x08;
+  private static final int MASK_SPRITES = 0x10;
+  private static final int STATUS_OVERFLOW = 0x20;
+  private static final int STATUS_SPRITE_0_HIT = 0x40;
+  private static final int STATUS_VBLANK = 0x80;
+  /** Bits of the status register, the others reading the last value on the PPU bus. */
+  private static final int STATUS_MASK = 0xE0;
+
+  /** Bits of the address registers holding the coarse X scroll, in tiles. */
+  private static final int COARSE_X_MASK = 0x001F;
+  /** Bits of the address registers holding the coarse Y scroll, in tiles. */
+  private static final int COARSE_Y_MASK = 0x03E0;
+  private static final int COARSE_Y_SHIFT = 5;
+  private static final int NAME_TABLE_X = 0x0400;
+  private static final int NAME_TABLE_Y = 0x0800;
+  private static final int NAME_TABLE_SHIFT = 10;
+  /** Bits of the address registers holding the fine Y scroll, in pixels. */
+  private static final int FINE_Y_MASK = 0x7000;
+  private static final int FINE_Y_SHIFT = 12;
+  /** Bits of the address registers copied from t to v at the end of each scanline. */
+  private static final int HORIZONTAL_BITS = NAME_TABLE_X | COARSE_X_MASK;
+  /** Bits of the address registers copied from t to v on the pre-render scanline. */
+  private static final int VERTICAL_BITS = FINE_Y_MASK | NAME_TABLE_Y | COARSE_Y_MASK;
+  private static final int LAST_COARSE_X = 31;
+  /** Last tile row of a name table, the two rows after it holding the attributes. */
+  private static final int LAST_COARSE_Y = 29;
+  private static final int LAST_FINE_Y = 7;
+  private static final int FINE_X_MASK = 0x07;
+  private static final int ADDRESS_HIGH_MASK = 0x3F;
+  private static final int BYTE_MASK = 0xFF;
+  private static final int BYTE_SHIFT = 8;
+  private static final int ADDRESS_MASK = 0x7FFF;
+  private static final int VIDEO_ADDRESS_MASK = 0x3FFF;
+
+  private static final int NAME_TABLE_OFFSET = 0x2000;
+  private static final int NAME_TABLE_ADDRESS_MASK = 0x0FFF;
+  private static final int ATTRIBUTE_OFFSET = 0x23C0;
+  /** Width and height in tiles of the area sharing an attribute byte. */
+  private static final int ATTRIBUTE_AREA_TILES = 4;
+  /** Width and height in tiles of the blocks sharing a palette. */
+  private static final int ATTRIBUTE_BLOCK_TILES = 2;
+  private static final int ATTRIBUTES_PER_ROW = 8;
+  private static final int PALETTE_OFFSET = 0x3F00;
+  /** Distance between the palette and the name tables it hides from the data register. */
+  private static final int PALETTE_MIRROR_DISTANCE = 0x1000;
+  /** Bits of a palette read coming from the last value on the PPU bus. */
+  private static final int PALETTE_OPEN_BUS_MASK = 0xC0;
+  private static final int PALETTE_SIZE = 32;
+  /** First palette entry used by the sprites. */
+  private static final int SPRITE_PALETTE_OFFSET = 0x10;
+  private static final int COLOR_MASK = 0x3F;
+  /** Colors kept in greyscale mode, the first column of the system palette. */
+  private static final int GREYSCALE_COLOR_MASK = 0x30;
+
+  private static final int PATTERN_TABLE_SIZE = 0x1000;
+  private static final int TILE_SIZE = 16;
+  private static final int TILE_WIDTH = 8;
+  private static final int TILE_WIDTH_SHIFT = 3;
+  private static final int TILE_HEIGHT = 8;
+  /** Number of tiles fetched for a scanline, the first one being partly hidden by the fine X. */
+  private static final int TILES_PER_SCANLINE = SCREEN_WIDTH / TILE_WIDTH + 1;
+
+  private static final int OAM_SIZE = 256;
+  private static final int SPRITE_SIZE = 4;
+  private static final int SPRITE_TILE = 1;
+  private static final int SPRITE_ATTRIBUTES = 2;
+  private static final int SPRITE_X = 3;
+  private static final int MAX_SPRITES_PER_SCANLINE = 8;
+  private static final int SPRITE_PALETTE_MASK = 0x03;
+  private static final int SPRITE_BEHIND = 0x20;
+  private static final int SPRITE_FLIP_HORIZONTAL = 0x40;
+  private static final int SPRITE_FLIP_VERTICAL = 0x80;
+  /** Flag of the sprite pixels of a scanline coming from the first sprite of the OAM. */
+  private static final int SPRITE_0_PIXEL = 0x100;
+  /** Flag of the sprite pixels of a scanline drawn behind the background. */
+  private static final int BEHIND_PIXEL = 0x200;
+  private static final int PALETTE_INDEX_MASK = 0x1F;
+  /** Number of bits shifting a palette number to its first palette entry. */
+  private static final int PALETTE_SHIFT = 2;
+  /** Bits of the palette entries showing the backdrop color, whatever their palette. */
+  private static final int TRANSPARENT_ENTRY_MASK = 0x03;
+
+  /**
+   * Size of the state after the OAM: control, mask, status, OAM address, v, t, fine X, flags, read
+   * buffer, bus value, dot count, scanline, dot and frame count.
+   */
+  private static final int STATE_FIELDS_SIZE = 32;
+  private static final int SECOND_WRITE_FLAG = 0x01;
+  private static final int ODD_FRAME_FLAG = 0x02;
+
+  /** ARGB colors of the system palette of the 2C02, indexed by color number. */
+  private static final int[] COLORS = {
+      0xFF666666, 0xFF002A88, 0xFF1412A7, 0xFF3B00A4, 0xFF5C007E, 0xFF6E0040, 0xFF6C0600,
+      0xFF561D00, 0xFF333500, 0xFF0B4800, 0xFF005200, 0xFF004F08, 0xFF00404D, 0xFF000000,
+      0xFF000000, 0xFF000000, 0xFFADADAD, 0xFF155FD9, 0xFF4240FF, 0xFF7527FE, 0xFFA01ACC,
+      0xFFB71E7B, 0xFFB53120, 0xFF994E00, 0xFF6B6D00, 0xFF388700, 0xFF0C9300, 0xFF008F32,
+      0xFF007C8D, 0xFF000000, 0xFF000000, 0xFF000000, 0xFFFFFEFF, 0xFF64B0FF, 0xFF9290FF,
+      0xFFC676FF, 0xFFF36AFF, 0xFFFE6ECC, 0xFFFE8170, 0xFFEA9E22, 0xFFBCBE00, 0xFF88D800,
+      0xFF5CE430, 0xFF45E082, 0xFF48CDDE, 0xFF4F4F4F, 0xFF000000, 0xFF000000, 0xFFFFFEFF,
+      0xFFC0DFFF, 0xFFD3D2FF, 0xFFE8C8FF, 0xFFFBC2FF, 0xFFFEC4EA, 0xFFFECCC5, 0xFFF7D8A5,
+      0xFFE4E594, 0xFFCFEF96, 0xFFBDF4AB, 0xFFB3F3CC, 0xFFB5EBF2, 0xFFB8B8B8, 0xFF000000,
+      0xFF000000};
+
+  private final PagedMemoryController memory;
+  /** CPU receiving the interrupts, null if the PPU is not connected. */
+  private final Core_2A03 cpu;
+  private final EventScheduler scheduler;
+  /** Event bringing the PPU to the start of vblank, to raise the NMI. */
+  private final int vblankEvent;
+  /** Event bringing the PPU to the scanline where the mapper raises its IRQ. */
+  private final int scanlineIrqEvent;
+  /** The frame, rows of ARGB pixels from the top left corner. */
+  private final int[] frameBuffer = new int[SCREEN_WIDTH * SCREEN_HEIGHT];
+  /** Read only view of the frame given to the readers. */
+  private final IntBuffer frameView = IntBuffer.wrap(frameBuffer).asReadOnlyBuffer();
+  /** Object attribute memory, four bytes for each of the 64 sprites. */
+  private final byte[] oam = new byte[OAM_SIZE];
+  /**
+   * Colors of the background pixels of the scanline drawn, from 0 to 3, 0 where transparent. It
+   * holds the pixels of all the tiles fetched, the scanline starting at the fine X scroll.
+   */
+  private final byte[] backgroundColors = new byte[TILES_PER_SCANLINE * TILE_WIDTH];
+  /** First palette entry of each tile of the background scanline. */
+  private final int[] backgroundPalettes = new int[TILES_PER_SCANLINE];
+  /**
+   * Sprite pixels of the scanline drawn, as palette indexes with the sprite flags, 0 where no
+   * sprite is drawn.
+   */
+  private final int[] spriteLine = new int[SCREEN_WIDTH];
+  /** ARGB colors of the palette entries for the scanline drawn. */
+  private final int[] lineColors = new int[PALETTE_SIZE];
+  /** True if sprite pixels were left in the sprite scanline. */
+  private boolean isSpriteLineDirty;
+  /** Number of sprites in each scanline, counted to predict the sprite overflow. */
+  private final int[] spriteCounts = new int[SCREEN_HEIGHT];
+  /**
+   * CPU cycle from which the status may differ from the one held, so that a status read catches
+   * up with the CPU. It is 0 when the sprites or the rendering changed since it was predicted.
+   */
+  private long statusSyncCycle;
+
+  private int control;
+  private int mask;
+  private int status;
+  private int oamAddress;
+  /** Current video address, also holding the scroll while rendering. */
+  private int v;
+  /** Temporary video address, the scroll of the top left corner of the screen. */
+  private int t;
+  /** Fine X scroll, in pixels. */
+  private int fineX;
+  /** True if the next scroll or address write is the second one. */
+  private boolean isSecondWrite;
+  /** Value read before by the data register, returned by the next read. */
+  private int readBuffer;
+  /** Last value seen on the PPU bus, read back from the write only registers. */
+  private int busValue;
+
+  /** Number of dots run since power up. */
+  private long dotCount;
+  private int scanline;
+  private int dot;
+  /** True during odd frames, whose pre-render scanline is one dot shorter when rendering. */
+  private boolean isOddFrame;
+  /** Number of frames drawn since power up. */
+  private long frameCount;
+
+  /**
+   * Creates a PPU at the start of the first visible scanline, raising no interrupt.
+   *
+   * @param memory The memory controller holding the video memory.
+   */
+  public Ppu_2C02(final PagedMemoryController memory) {
+    this.memory = memory;
+    cpu = null;
+    scheduler = null;
+    vblankEvent = 0;
+    scanlineIrqEvent = 0;
+  }
+
+  /**
+   * Creates a PPU at the start of the first visible scanline, connected to a CPU: it raises the
+   * NMI of the CPU and clocks the scanline counter of its mapper.
+   *
+   * @param cpu The CPU, whose memory controller holds the video memory.
+   */
+  public Ppu_2C02(final Core_2A03 cpu) {
+    this.memory = cpu.getMemory();
+    this.cpu = cpu;
+    scheduler = cpu.getEventScheduler();
+    vblankEvent = scheduler.register(cycle -> {
+      runTo(cycle);
+      scheduleVblank();
+    });
+    scanlineIrqEvent = scheduler.register(cycle -> {
+      runTo(cycle);
+      scheduleScanlineIrq();
+    });
+    memory.setScanlineCounterListener(() -> {
+      runTo(cpu.getCycleCount());
+      // Predicted again once the write is done, after the instruction
+      scheduler.schedule(scanlineIrqEvent, cpu.getCycleCount());
+    });
+    memory.mapDevicePages(REGISTERS_FIRST_PAGE, REGISTERS_PAGE_COUNT, this);
+    memory.mapDeviceRegister(OAM_DMA, this);
+    cpu.addStatefulDevice(this);
+  }
+
+  /**
+   * Runs the dots elapsed until a CPU cycle. Nothing is run if the PPU already reached it.
+   *
+   * @param cpuCycle The CPU cycle count to reach, three dots being run for each cycle.
+   */
+  public void runTo(final long cpuCycle) {
+    final long targetDot = cpuCycle * DOTS_PER_CPU_CYCLE;
+    while (dotCount < targetDot) {
+      final int eventDot = getNextEventDot();
+      final int step = (int) Math.min(targetDot - dotCount, eventDot - dot);
+      dot += step;
+      dotCount += step;
+      if (dot == eventDot) {
+        runEvent();
+      }
+    }
+  }
+
+  /**
+   * Draws the scanlines run until the end of the frame.
+   */
+  @Override
+  public void completeFrame(final long cpuCycle) {
+    runTo(cpuCycle);
+  }
+
+  /**
+   * Returns the next dot of the current scanline where something happens, the end of the scanline
+   * if nothing happens before.
+   */
+  private int getNextEventDot() {
+    if (scanline < SCREEN_HEIGHT) {
+      return dot < DRAW_DOT ? DRAW_DOT : DOTS_PER_SCANLINE;
+    }
+    if (scanline == VBLANK_SCANLINE) {
+      return dot < VBLANK_DOT ? VBLANK_DOT : DOTS_PER_SCANLINE;
+    }
+    if (scanline == PRE_RENDER_SCANLINE) {
+      if (dot < VBLANK_DOT) {
+        return VBLANK_DOT;
+      }
+      if (dot < DRAW_DOT) {
+        return DRAW_DOT;
+      }
+      if (dot < VERTICAL_COPY_DOT) {
+        return VERTICAL_COPY_DOT;
+      }
+    }
+    return getScanlineLength();
+  }
+
+  /**
+   * Returns the number of dots of the current scanline, the last dot of the odd frames being
+   * skipped when rendering.
+   */
+  private int getScanlineLength() {
+    return scanline == PRE_RENDER_SCANLINE && isOddFrame && isRenderingEnabled()
+        ? DOTS_PER_SCANLINE - 1 : DOTS_PER_SCANLINE;
+  }
+
+  /**
+   * Does what happens at the current dot, which is the one returned by {@link #getNextEventDot()}.
+   */
+  private void runEvent() {
+    if (dot >= getScanlineLength()) {
+      nextScanline();
+    } else if (scanline < SCREEN_HEIGHT) {
+      drawScanline();
+      scrollToNextScanline();
+      clockScanlineCounter();
+    } else if (scanline == VBLANK_SCANLINE) {
+      status |= STATUS_VBLANK;
+      frameCount++;
+      if ((control & CONTROL_NMI) != 0 && cpu != null) {
+        cpu.requestNmi();
+      }
+    } else if (dot == VBLANK_DOT) {
+      status &= ~(STATUS_VBLANK | STATUS_SPRITE_0_HIT | STATUS_OVERFLOW);
+    } else if (dot == DRAW_DOT) {
+      scrollToNextScanline();
+      clockScanlineCounter();
+    } else if (isRenderingEnabled()) {
+      v = (v & ~VERTICAL_BITS) | (t & VERTICAL_BITS);
+    }
+  }
+
+  /**
+   * Clocks the scanline counter of the mapper if rendering, at the end of the visible part of the
+   * scanline, and tells the CPU when the mapper raises its IRQ.
+   */
+  private void clockScanlineCounter() {
+    if (!isRenderingEnabled()) {
+      return;
+    }
+    memory.clockScanlineCounter();
+    if (cpu != null && memory.isIrqPending()) {
+      cpu.pollInterrupts();
+    }
+  }
+
+  /**
+   * Schedules the start of the next vblank if the NMI is enabled, cancels it otherwise.
+   */
+  private void scheduleVblank() {
+    if (cpu == null) {
+      return;
+    }
+    if ((control & CONTROL_NMI) == 0) {
+      scheduler.cancel(vblankEvent);
+      return;
+    }
+    scheduler.schedule(vblankEvent, toCpuCycle(getNextDotCount(VBLANK_SCANLINE, VBLANK_DOT)));
+  }
+
+  /**
+   * Returns the dot count when the PPU next reaches a dot of a scanline, in this frame or in the
+   * next one. The odd frames being one dot shorter when rendering, the next frame is always
+   * counted one dot shorter, so the dot count may be one dot early, never late.
+   *
+   * @param lineNumber The scanline.
+   * @param lineDot The dot of the scanline.
+   * @return The dot count.
+   */
+  private long getNextDotCount(final int lineNumber, final int lineDot) {
+    long dots = (lineNumber - scanline) * DOTS_PER_SCANLINE + lineDot - dot;
+    if (dots <= 0) {
+      dots += SCANLINES_PER_FRAME * DOTS_PER_SCANLINE - 1;
+    }
+    return dotCount + dots;
+  }
+
+  /**
+   * Returns the dot count when the status may change next: the start or the end of vblank, or the
+   * drawing of a scanline where sprite 0 may hit the background or the sprites may overflow.
+   */
+  private long getNextStatusChangeDot() {
+    long change = Math.min(getNextDotCount(VBLANK_SCANLINE, VBLANK_DOT),
+        getNextDotCount(PRE_RENDER_SCANLINE, VBLANK_DOT));
+    if (!isRenderingEnabled() || (scanline >= SCREEN_HEIGHT && scanline != PRE_RENDER_SCANLINE)) {
+      return change;
+    }
+    // Dot count at the start of the first scanline still to draw
+    final int firstLine;
+    long firstLineStart = dotCount - dot;
+    if (scanline == PRE_RENDER_SCANLINE) {
+      firstLine = 0;
+      firstLineStart += DOTS_PER_SCANLINE - 1;
+    } else if (dot < DRAW_DOT) {
+      firstLine = scanline;
+    } else {
+      firstLine = scanline + 1;
+      firstLineStart += DOTS_PER_SCANLINE;
+    }
+    final int line = getFirstSpriteStatusLine(firstLine);
+    if (line < SCREEN_HEIGHT) {
+      change = Math.min(change,
+          firstLineStart + (line - firstLine) * DOTS_PER_SCANLINE + DRAW_DOT);
+    }
+    return change;
+  }
+
+  /**
+   * Returns the first scanline from a visible one where sprite 0 is drawn, unless it already hit
+   * the background, or where more than eight sprites are, unless they already overflowed.
+   *
+   * @param firstLine The first scanline to consider.
+   * @return The scanline, {@link #SCREEN_HEIGHT} if there is none.
+   */
+  private int getFirstSpriteStatusLine(final int firstLine) {
+    final int height = (control & CONTROL_SPRITE_16) != 0 ? 2 * TILE_HEIGHT : TILE_HEIGHT;
+    int line = SCREEN_HEIGHT;
+    if ((status & STATUS_SPRITE_0_HIT) == 0) {
+      // Sprites are drawn one scanline below their Y coordinate
+      final int top = (oam[0] & BYTE_MASK) + 1;
+      if (top + height > firstLine) {
+        line = Math.min(line, Math.max(top, firstLine));
+      }
+    }
+    if ((status & STATUS_OVERFLOW) == 0 && firstLine < line) {
+      Arrays.fill(spriteCounts, firstLine, line, 0);
+      for (int sprite = 0; sprite < OAM_SIZE; sprite += SPRITE_SIZE) {
+        final int top = (oam[sprite] & BYTE_MASK) + 1;
+        final int end = Math.min(top + height, line);
+        for (int i = Math.max(top, firstLine); i < end; i++) {
+          spriteCounts[i]++;
+          if (spriteCounts[i] > MAX_SPRITES_PER_SCANLINE) {
+            line = i;
+            break;
+          }
+        }
+      }
+    }
+    return line;
+  }
+
+  /**
+   * Catches up with the CPU before a register access. A status read only needs it once the status
+   * may have changed, the status being predicted again then.
+   *
+   * @param isStatusRead true if the status is read.
+   */
+  private void catchUp(final boolean isStatusRead) {
+    final long cycle = cpu.getCycleCount();
+    if (!isStatusRead) {
+      runTo(cycle);
+    } else if (cycle >= statusSyncCycle) {
+      runTo(cycle);
+      statusSyncCycle = toCpuCycle(getNextStatusChangeDot());
+    }
+  }
+
+  /**
+   * Copies a page of CPU memory to the OAM from the OAM address, the CPU being suspended
+   * meanwhile.
+   *
+   * @param page The page, which is the high byte of its first address.
+   */
+  private void copyOam(final int page) {
+    final int address = page << BYTE_SHIFT;
+    for (int i = 0; i < OAM_SIZE; i++) {
+      oam[oamAddress] = (byte) memory.read8(address + i);
+      oamAddress = (oamAddress + 1) & BYTE_MASK;
+    }
+    cpu.stall(OAM_DMA_CYCLES + (int) (cpu.getCycleCount() & 1));
+  }
+
+  /**
+   * Schedules the scanline where the mapper raises its next IRQ, if it raises one while rendering.
+   * Rendering being enabled, the skipped dot of the odd frames is counted, so the deadline is the
+   * same wherever it is predicted from.
+   */
+  private void scheduleScanlineIrq() {
+    int clocks = memory.getClocksToIrq();
+    if (clocks == PagedMemoryController.NO_IRQ || !isRenderingEnabled()) {
+      scheduler.cancel(scanlineIrqEvent);
+      return;
+    }
+    int line = scanline;
+    long lineStart = dotCount - dot;
+    boolean isOdd = isOddFrame;
+    boolean isClocked = dot < DRAW_DOT;
+    while (!isClocked || (line >= SCREEN_HEIGHT && line != PRE_RENDER_SCANLINE) || --clocks > 0) {
+      isClocked = true;
+      if (line == PRE_RENDER_SCANLINE) {
+        lineStart += isOdd ? DOTS_PER_SCANLINE - 1 : DOTS_PER_SCANLINE;
+        isOdd = !isOdd;
+      } else {
+        lineStart += DOTS_PER_SCANLINE;
+      }
+      line = (line + 1) % SCANLINES_PER_FRAME;
+    }
+    scheduler.schedule(scanlineIrqEvent, toCpuCycle(lineStart + DRAW_DOT));
+  }
+
+  /**
+   * Returns the first CPU cycle where the PPU has run a dot.
+   */
+  private static long toCpuCycle(final long dotCount) {
+    return (dotCount + DOTS_PER_CPU_CYCLE - 1) / DOTS_PER_CPU_CYCLE;
+  }
+
+  private void nextScanline() {
+    dot = 0;
+    scanline++;
+    if (scanline == SCANLINES_PER_FRAME) {
+      scanline = 0;
+      isOddFrame = !isOddFrame;
+    }
+  }
+
+  /**
+   * Moves the scroll held by v to the start of the next scanline, if rendering: the fine Y is
+   * increased, wrapping to the next tile row and to the name table below, then the horizontal
+   * scroll is copied from t.
+   */
+  private void scrollToNextScanline() {
+    if (!isRenderingEnabled()) {
+      return;
+    }
+    if ((v & FINE_Y_MASK) != FINE_Y_MASK) {
+      v += 1 << FINE_Y_SHIFT;
+    } else {
+      v &= ~FINE_Y_MASK;
+      int coarseY = (v & COARSE_Y_MASK) >> COARSE_Y_SHIFT;
+      if (coarseY == LAST_COARSE_Y) {
+        coarseY = 0;
+        v ^= NAME_TABLE_Y;
+      } else if (coarseY == COARSE_Y_MASK >> COARSE_Y_SHIFT) {
+        // Rows of attributes wrap in the same name table
+        coarseY = 0;
+      } else {
+        coarseY++;
+      }
+      v = (v & ~COARSE_Y_MASK) | (coarseY << COARSE_Y_SHIFT);
+    }
+    v = (v & ~HORIZONTAL_BITS) | (t & HORIZONTAL_BITS);
+  }
+
+  /**
+   * Draws the current scanline into the frame, from the background and the sprites of the
+   * scanline.
+   */
+  private void drawScanline() {
+    final int colorMask = (mask & MASK_GREYSCALE) != 0 ? GREYSCALE_COLOR_MASK : COLOR_MASK;
+    for (int i = 0; i < PALETTE_SIZE; i++) {
+      final int entry = (i & TRANSPARENT_ENTRY_MASK) == 0 ? 0 : i;
+      lineColors[i] = COLORS[memory.readVideoMemory(PALETTE_OFFSET + entry) & colorMask];
+    }
+    final int lineOffset = scanline * SCREEN_WIDTH;
+    if (!isRenderingEnabled()) {
+      Arrays.fill(frameBuffer, lineOffset, lineOffset + SCREEN_WIDTH, lineColors[0]);
+      return;
+    }
+    if ((mask & MASK_BACKGROUND) == 0) {
+      Arrays.fill(backgroundColors, (byte) 0);
+    } else {
+      fetchBackground();
+      if ((mask & MASK_BACKGROUND_LEFT) == 0) {
+        Arrays.fill(backgroundColors, fineX, fineX + TILE_WIDTH, (byte) 0);
+      }
+    }
+    final boolean hasSprites = (mask & MASK_SPRITES) != 0 && fetchSprites();
+    final int spriteStart = (mask & MASK_SPRITES_LEFT) != 0 ? 0 : TILE_WIDTH;
+    for (int x = 0; x < SCREEN_WIDTH; x++) {
+      final int position = x + fineX;
+      final int color = backgroundColors[position];
+      int pixel = backgroundPalettes[position >> TILE_WIDTH_SHIFT] | color;
+      final int sprite = hasSprites && x >= spriteStart ? spriteLine[x] : 0;
+      if (sprite != 0) {
+        if (color != 0 && (sprite & SPRITE_0_PIXEL) != 0 && x != SCREEN_WIDTH - 1) {
+          status |= STATUS_SPRITE_0_HIT;
+        }
+        if (color == 0 || (sprite & BEHIND_PIXEL) == 0) {
+          pixel = sprite;
+        }
+      }
+      frameBuffer[lineOffset + x] = lineColors[pixel & PALETTE_INDEX_MASK];
+    }
+  }
+
+  /**
+   * Fetches the background tiles of the current scanline into the background scanline, from the
+   * scroll held by v. The pixels of each tile row are copied from the decoded tiles.
+   */
+  private void fetchBackground() {
+    final int patternTable = (control & CONTROL_BACKGROUND_TABLE) != 0 ? PATTERN_TABLE_SIZE : 0;
+    final int fineY = (v & FINE_Y_MASK) >> FINE_Y_SHIFT;
+    int address = v;
+    for (int tile = 0; tile < TILES_PER_SCANLINE; tile++) {
+      final int tileAddress = patternTable + TILE_SIZE
+          * memory.readVideoMemory(NAME_TABLE_OFFSET | (address & NAME_TABLE_ADDRESS_MASK));
+      final int firstPixel = memory.decodeTile(tileAddress) + fineY * TILE_WIDTH;
+      System.arraycopy(memory.getTilePixels(tileAddress), firstPixel, backgroundColors,
+          tile * TILE_WIDTH, TILE_WIDTH);
+      backgroundPalettes[tile] = getBackgroundPalette(address) << PALETTE_SHIFT;
+      if ((address & COARSE_X_MASK) == LAST_COARSE_X) {
+        address = (address & ~COARSE_X_MASK) ^ NAME_TABLE_X;
+      } else {
+        address++;
+      }
+    }
+  }
+
+  /**
+   * Returns the palette of the background tile at an address of the name tables. Each attribute
+   * byte holds the palettes of the four blocks of 2x2 tiles of an area of 4x4 tiles.
+   *
+   * @param address The address of the tile, as held by v.
+   * @return The palette number of the tile.
+   */
+  private int getBackgroundPalette(final int address) {
+    final int coarseX = address & COARSE_X_MASK;
+    final int coarseY = (address & COARSE_Y_MASK) >> COARSE_Y_SHIFT;
+    final int attributes = memory.readVideoMemory(ATTRIBUTE_OFFSET
+        | (address & (NAME_TABLE_X | NAME_TABLE_Y))
+        | coarseY / ATTRIBUTE_AREA_TILES * ATTRIBUTES_PER_ROW + coarseX / ATTRIBUTE_AREA_TILES);
+    final int block = (coarseY & ATTRIBUTE_BLOCK_TILES) + (coarseX & ATTRIBUTE_BLOCK_TILES) / 2;
+    return (attributes >> (block * 2)) & SPRITE_PALETTE_MASK;
+  }
+
+  /**
+   * Fetches the sprites of the current scanline into the sprite scanline. The first eight sprites
+   * of the OAM in the scanline are drawn, the sprite overflow flag being set if there are more. The
+   * sprites coming first are drawn on top of the others.
+   *
+   * @return true if a sprite is in the scanline.
+   */
+  private boolean fetchSprites() {
+    if (isSpriteLineDirty) {
+      Arrays.fill(spriteLine, 0);
+      isSpriteLineDirty = false;
+    }
+    final int height = (control & CONTROL_SPRITE_16) != 0 ? 2 * TILE_HEIGHT : TILE_HEIGHT;
+    int spriteCount = 0;
+    for (int sprite = 0; sprite < OAM_SIZE; sprite += SPRITE_SIZE) {
+      // Sprites are drawn one scanline below their Y coordinate
+      int row = scanline - 1 - (oam[sprite] & BYTE_MASK);
+      if (row < 0 || row >= height) {
+        continue;
+      }
+      if (spriteCount == MAX_SPRITES_PER_SCANLINE) {
+        status |= STATUS_OVERFLOW;
+        break;
+      }
+      spriteCount++;
+      final int attributes = oam[sprite + SPRITE_ATTRIBUTES];
+      if ((attributes & SPRITE_FLIP_VERTICAL) != 0) {
+        row = height - 1 - row;
+      }
+      int tile = oam[sprite + SPRITE_TILE] & BYTE_MASK;
+      int patternTable = (control & CONTROL_SPRITE_TABLE) != 0 ? PATTERN_TABLE_SIZE : 0;
+      if (height != TILE_HEIGHT) {
+        // Tall sprites take their table from the tile number, the bottom half being the next tile
+        patternTable = (tile & 1) * PATTERN_TABLE_SIZE;
+        tile = (tile & ~1) + row / TILE_HEIGHT;
+        row %= TILE_HEIGHT;
+      }
+      final int tileAddress = patternTable + tile * TILE_SIZE;
+      final int firstPixel = memory.decodeTile(tileAddress) + row * TILE_WIDTH;
+      int flags = SPRITE_PALETTE_OFFSET | ((attributes & SPRITE_PALETTE_MASK) << PALETTE_SHIFT);
+      if ((attributes & SPRITE_BEHIND) != 0) {
+        flags |= BEHIND_PIXEL;
+      }
+      if (sprite == 0) {
+        flags |= SPRITE_0_PIXEL;
+      }
+      drawSpriteRow(memory.getTilePixels(tileAddress), firstPixel, flags,
+          oam[sprite + SPRITE_X] & BYTE_MASK, (attributes & SPRITE_FLIP_HORIZONTAL) != 0);
+    }
+    isSpriteLineDirty = spriteCount > 0;
+    return isSpriteLineDirty;
+  }
+
+  /**
+   * Draws a row of a sprite into the sprite scanline, where no sprite coming before drew a pixel.
+   *
+   * @param pixels The decoded tiles holding the row.
+   * @param firstPixel The offset of the first pixel of the row in the decoded tiles.
+   * @param flags The first palette entry of the sprite with its flags.
+   * @param x The position of the sprite in the scanline.
+   * @param isFlipped true if the sprite is flipped horizontally.
+   */
+  private void drawSpriteRow(final byte[] pixels, final int firstPixel, final int flags,
+      final int x, final boolean isFlipped) {
+    final int width = Math.min(TILE_WIDTH, SCREEN_WIDTH - x);
+    for (int i = 0; i < width; i++) {
+      final int color = pixels[firstPixel + (isFlipped ? TILE_WIDTH - 1 - i : i)];
+      if (color != 0 && spriteLine[x + i] == 0) {
+        spriteLine[x + i] = flags | color;
+      }
+    }
+  }
+
+  /**
+   * Reads a register of the PPU. Reading the status clears the vblank flag and resets the write
+   * toggle of the scroll and address registers, reading the data reads the video memory at the
+   * current address and moves to the next one. When connected, the PPU catches up with the CPU
+   * first.
+   *
+   * @param address The address of the register, mirrored every eight bytes.
+   * @return The value read.
+   */
+  @Override
+  public int readRegister(final int address) {
+    if (address == OAM_DMA) {
+      return OPEN_BUS;
+    }
+    final int register = address & REGISTER_MASK;
+    if (cpu != null) {
+      catchUp(register == STATUS);
+    }
+    switch (register) {
+      case STATUS:
+        busValue = (status & STATUS_MASK) | (busValue & ~STATUS_MASK);
+        status &= ~STATUS_VBLANK;
+        isSecondWrite = false;
+        break;
+      case OAM_DATA:
+        busValue = oam[oamAddress] & BYTE_MASK;
+        break;
+      case DATA:
+        busValue = readData();
+        break;
+      default:
+        // Write only registers read the last value seen on the bus
+        break;
+    }
+    return busValue;
+  }
+
+  private int readData() {
+    final int address = v & VIDEO_ADDRESS_MASK;
+    final int value;
+    if (address >= PALETTE_OFFSET) {
+      // The palette is read at once, the buffer getting the name table below it
+      value = memory.readVideoMemory(address) | (busValue & PALETTE_OPEN_BUS_MASK);
+      readBuffer = memory.readVideoMemory(address - PALETTE_MIRROR_DISTANCE);
+    } else {
+      value = readBuffer;
+      readBuffer = memory.readVideoMemory(address);
+    }
+    incrementAddress();
+    return value;
+  }
+
+  /**
+   * Writes a register of the PPU. When connected, the PPU catches up with the CPU first, and
+   * handles the OAM DMA register at 0x4014 as well.
+   *
+   * @param address The address of the register, mirrored every eight bytes.
+   * @param data The value to write.
+   */
+  @Override
+  public void writeRegister(final int address, final int data) {
+    final int value = data & BYTE_MASK;
+    if (cpu != null) {
+      catchUp(false);
+      if (address == OAM_DMA) {
+        copyOam(value);
+        statusSyncCycle = 0;
+        return;
+      }
+    }
+    busValue = value;
+    switch (address & REGISTER_MASK) {
+      case CONTROL:
+        if ((value & ~control & CONTROL_NMI) != 0 && (status & STATUS_VBLANK) != 0
+            && cpu != null) {
+          // Enabling the NMI during vblank raises it at once
+          cpu.requestNmi();
+        }
+        control = value;
+        statusSyncCycle = 0;
+        scheduleVblank();
+        t = (t & ~(NAME_TABLE_X | NAME_TABLE_Y))
+            | ((value & CONTROL_NAME_TABLE_MASK) << NAME_TABLE_SHIFT);
+        break;
+      case MASK:
+        mask = value;
+        statusSyncCycle = 0;
+        if (cpu != null) {
+          scheduleScanlineIrq();
+        }
+        break;
+      case OAM_ADDRESS:
+        oamAddress = value;
+        break;
+      case OAM_DATA:
+        oam[oamAddress] = (byte) value;
+        oamAddress = (oamAddress + 1) & BYTE_MASK;
+        statusSyncCycle = 0;
+        break;
+      case SCROLL:
+        if (isSecondWrite) {
+          t = (t & ~(FINE_Y_MASK | COARSE_Y_MASK)) | ((value & FINE_X_MASK) << FINE_Y_SHIFT)
+              | ((value >> 3) << COARSE_Y_SHIFT);
+        } else {
+          t = (t & ~COARSE_X_MASK) | (value >> 3);
+          fineX = value & FINE_X_MASK;
+        }
+        isSecondWrite = !isSecondWrite;
+        break;
+      case ADDRESS:
+        if (isSecondWrite) {
+          t = (t & ~BYTE_MASK) | value;
+          v = t;
+        } else {
+          t = (t & BYTE_MASK) | ((value & ADDRESS_HIGH_MASK) << BYTE_SHIFT);
+        }
+        isSecondWrite = !isSecondWrite;
+        break;
+      case DATA:
+        memory.writeVideoMemory(v & VIDEO_ADDRESS_MASK, value);
+        incrementAddress();
+        break;
+      default:
+        // The status is read only
+        break;
+    }
+  }
+
+  /**
+   * Returns the cycle until which the status reads all give the status held, when the PPU is
+   * connected: the first read has cleared the vblank flag and the write toggle, so the next ones
+   * change nothing. The other registers are not steady, the data register moving its address at
+   * each read.
+   *
+   * @param address The address of the register, mirrored every eight bytes.
+   * @return The first cycle where the status may change, 0 for the other registers.
+   */
+  @Override
+  public long getSteadyReadCycle(final int address) {
+    if (cpu == null || address == OAM_DMA || (address & REGISTER_MASK) != STATUS) {
+      return 0;
+    }
+    return statusSyncCycle;
+  }
+
+  @Override
+  public int getMaximumStateSize() {
+    return StateFormat.getMaximumArraySize(oam) + STATE_FIELDS_SIZE;
+  }
+
+  @Override
+  public void saveState(final ByteBuffer buffer, final boolean isCompressed) {
+    StateFormat.writeArray(buffer, oam, isCompressed);
+    buffer.put((byte) control);
+    buffer.put((byte) mask);
+    buffer.put((byte) status);
+    buffer.put((byte) oamAddress);
+    buffer.putShort((short) v);
+    buffer.putShort((short) t);
+    buffer.put((byte) fineX);
+    buffer.put((byte) ((isSecondWrite ? SECOND_WRITE_FLAG : 0)
+        | (isOddFrame ? ODD_FRAME_FLAG : 0)));
+    buffer.put((byte) readBuffer);
+    buffer.put((byte) busValue);
+    buffer.putLong(dotCount);
+    buffer.putShort((short) scanline);
+    buffer.putShort((short) dot);
+    buffer.putLong(frameCount);
+  }
+
+  /**
+   * Restores a state written by {@link #saveState(ByteBuffer, boolean)}. When connected, the
+   * vblank and scanline IRQ deadlines are scheduled again, and the status is predicted again at
+   * the next read.
+   *
+   * @param buffer The buffer holding the state.
+   * @param isCompressed true if the OAM was compressed.
+   * @throws InvalidStateException If the state is not valid.
+   */
+  @Override
+  public void loadState(final ByteBuffer buffer, final boolean isCompressed)
+      throws InvalidStateException {
+    StateFormat.readArray(buffer, oam, isCompressed);
+    final int savedControl = buffer.get() & BYTE_MASK;
+    final int savedMask = buffer.get() & BYTE_MASK;
+    final int savedStatus = buffer.get() & BYTE_MASK;
+    final int savedOamAddress = buffer.get() & BYTE_MASK;
+    final int savedV = buffer.getShort() & ADDRESS_MASK;
+    final int savedT = buffer.getShort() & ADDRESS_MASK;
+    final int savedFineX = buffer.get() & FINE_X_MASK;
+    final int flags = buffer.get();
+    final int savedReadBuffer = buffer.get() & BYTE_MASK;
+    final int savedBusValue = buffer.get() & BYTE_MASK;
+    final long savedDotCount = buffer.getLong();
+    final int savedScanline = buffer.getShort();
+    final int savedDot = buffer.getShort();
+    final long savedFrameCount = buffer.getLong();
+    if (savedScanline < 0 || savedScanline >= SCANLINES_PER_FRAME || savedDot < 0
+        || savedDot > DOTS_PER_SCANLINE || savedDotCount < 0) {
+      throw new InvalidStateException("Invalid PPU position");
+    }
+
+    control = savedControl;
+    mask = savedMask;
+    status = savedStatus;
+    oamAddress = savedOamAddress;
+    v = savedV;
+    t = savedT;
+    fineX = savedFineX;
+    isSecondWrite = (flags & SECOND_WRITE_FLAG) != 0;
+    isOddFrame = (flags & ODD_FRAME_FLAG) != 0;
+    readBuffer = savedReadBuffer;
+    busValue = savedBusValue;
+    dotCount = savedDotCount;
+    scanline = savedScanline;
+    dot = savedDot;
+    frameCount = savedFrameCount;
+    statusSyncCycle = 0;
+    if (cpu != null) {
+      scheduleVblank();
+      scheduleScanlineIrq();
+    }
+  }
+
+  private void incrementAddress() {
+    v = (v + ((control & CONTROL_INCREMENT_32) != 0 ? SCREEN_WIDTH / TILE_WIDTH : 1))
+        & ADDRESS_MASK;
+  }
+
+  /**
+   * Returns true if the background or the sprites are drawn.
+   */
+  public boolean isRenderingEnabled() {
+    return (mask & (MASK_BACKGROUND | MASK_SPRITES)) != 0;
+  }
+
+  /**
+   * Returns a read only view of the frame, holding the ARGB colors of its pixels row by row from
+   * the top left corner. The view is shared and reflects the frame being drawn: it is complete
+   * once {@link #getFrameCount()} changes, until the PPU runs the next visible scanline. Its
+   * position being shared as well, it is read with the absolute get methods.
+   */
+  public IntBuffer getFrame() {
+    return frameView;
+  }
+
+  /**
+   * Returns the number of frames drawn since power up, a frame being drawn when vblank starts.
+   */
+  public long getFrameCount() {
+    return frameCount;
+  }
+
+  /**
+   * Returns the number of CPU cycles run by the PPU since power up.
+   */
+  public long getCycleCount() {
+    return dotCount / DOTS_PER_CPU_CYCLE;
+  }
+
+  public int getScanline() {
+    return scanline;
+  }
+
+  public int getDot() {
+    return dot;
+  }
+
+}
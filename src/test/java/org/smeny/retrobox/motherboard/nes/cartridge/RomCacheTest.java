@@ -0,0 +1,111 @@
+/**
+ * RomCacheTest
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.cartridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.smeny.retrobox.exception.UnknownRomFormatException;
+import org.smeny.retrobox.motherboard.nes.memory.PagedMemoryController;
+
+/**
+ * This test checks that cartridges loaded separately from the same ROM share their banks through
+ * the {@link RomCache}, down to the memory controllers mapping them, and that cartridges with
+ * another content do not.
+ *
+ * @author Stéphane Meny
+ */
+public class RomCacheTest {
+  private static final String ROM = "/roms/cpu_test.nes";
+  private static final int BUFFER_SIZE = 0x2000;
+  /** Offset of the first program ROM byte in the ROM file, after its header. */
+  private static final int PROGRAM_ROM_OFFSET = 0x10;
+  /** Address where the single 16KB program bank of nestest is mapped first. */
+  private static final int PROGRAM_ROM_ADDRESS = 0x8000;
+
+  private byte[] image;
+
+  @Before
+  public void setUp() throws IOException {
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    try (InputStream input = RomCacheTest.class.getResourceAsStream(ROM)) {
+      final byte[] buffer = new byte[BUFFER_SIZE];
+      int length;
+      while ((length = input.read(buffer)) != -1) {
+        data.write(buffer, 0, length);
+      }
+    }
+    image = data.toByteArray();
+  }
+
+  @Test
+  public void sameContentSharesBanks() throws UnknownRomFormatException {
+    final Cartridge first = load(image.clone());
+    final Cartridge second = load(image.clone());
+
+    assertEquals(first.getProgramRom().length, second.getProgramRom().length);
+    for (int bank = 0; bank < first.getProgramRom().length; bank++) {
+      assertSame(first.getProgramRom()[bank], second.getProgramRom()[bank]);
+    }
+    for (int bank = 0; bank < first.getCharacterRom().length; bank++) {
+      assertSame(first.getCharacterRom()[bank], second.getCharacterRom()[bank]);
+    }
+  }
+
+  @Test
+  public void controllersMapSharedBanks() throws UnknownRomFormatException {
+    final Cartridge first = load(image.clone());
+    final Cartridge second = load(image.clone());
+    final PagedMemoryController firstMemory = new PagedMemoryController(first);
+    final PagedMemoryController secondMemory = new PagedMemoryController(second);
+
+    // Changing the shared bank shows through both controllers, so neither holds a copy
+    final byte[] bank = first.getProgramRom()[0];
+    final byte original = bank[0];
+    try {
+      bank[0] = (byte) ~original;
+      assertEquals(bank[0] & 0xFF, firstMemory.read8(PROGRAM_ROM_ADDRESS));
+      assertEquals(bank[0] & 0xFF, secondMemory.read8(PROGRAM_ROM_ADDRESS));
+    } finally {
+      bank[0] = original;
+    }
+  }
+
+  @Test
+  public void otherContentHasOwnBanks() throws UnknownRomFormatException {
+    final byte[] patched = image.clone();
+    patched[PROGRAM_ROM_OFFSET] ^= 1;
+    final Cartridge original = load(image.clone());
+    final Cartridge modified = load(patched);
+
+    assertNotSame(original.getProgramRom()[0], modified.getProgramRom()[0]);
+    assertEquals((image[PROGRAM_ROM_OFFSET] ^ 1) & 0xFF, modified.getProgramRom()[0][0] & 0xFF);
+    // The character ROM is identical, so it is still shared
+    assertSame(original.getCharacterRom()[0], modified.getCharacterRom()[0]);
+  }
+
+  private static Cartridge load(final byte[] data) throws UnknownRomFormatException {
+    return CartridgeReader.loadCartridge(ByteBuffer.wrap(data));
+  }
+}
@@ -0,0 +1,148 @@
+/**
+ * PagedMemoryControllerTest
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.memory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.smeny.retrobox.exception.InvalidStateException;
+import org.smeny.retrobox.motherboard.nes.cartridge.CartridgeReader;
+
+/**
+ * This test checks the mapping of the 2KB work RAM, mirrored four times from 0x0000 to 0x1FFF,
+ * and the pattern tiles decoded for the PPU: shared between the controllers of a character ROM,
+ * and decoded again after a write to the character RAM or a state restore.
+ *
+ * @author Stéphane Meny
+ */
+public class PagedMemoryControllerTest {
+  private static final int WORK_RAM_SIZE = 0x0800;
+  private static final int MIRRORS_END = 0x2000;
+  /** Offset of the work RAM written through its mirrors. */
+  private static final int RAM_OFFSET = 0x0123;
+  /** Tile of the second pattern table, in the middle of its fifth page. */
+  private static final int TILE_ADDRESS = 0x1410;
+  /** Offset of the high bit plane of a tile row from its low bit plane. */
+  private static final int PLANE_OFFSET = 8;
+  private static final int LOW_PLANE = 0xF0;
+  private static final int HIGH_PLANE = 0xCC;
+  /** Pixels of a row of LOW_PLANE and HIGH_PLANE. */
+  private static final byte[] ROW = {3, 3, 1, 1, 2, 2, 0, 0};
+  /** Pixels of the same row with the planes swapped. */
+  private static final byte[] SWAPPED_ROW = {3, 3, 2, 2, 1, 1, 0, 0};
+
+  private PagedMemoryController memory;
+
+  @Before
+  public void setUp() {
+    memory = new PagedMemoryController(new byte[][] {new byte[CartridgeReader.PROGRAM_BANK_SIZE]},
+        new byte[][] {new byte[CartridgeReader.CHARACTER_BANK_SIZE]});
+  }
+
+  @Test
+  public void writeShowsInEveryMirror() {
+    for (int offset = 0; offset < WORK_RAM_SIZE; offset++) {
+      memory.write8(offset, offset * 7 + 1);
+    }
+    for (int address = 0; address < MIRRORS_END; address++) {
+      assertEquals("Address " + Integer.toHexString(address),
+          ((address % WORK_RAM_SIZE) * 7 + 1) & 0xFF, memory.read8(address));
+    }
+  }
+
+  @Test
+  public void writeToMirrorReachesWorkRam() {
+    for (int mirror = WORK_RAM_SIZE; mirror < MIRRORS_END; mirror += WORK_RAM_SIZE) {
+      memory.write8(mirror + RAM_OFFSET, mirror >> 8);
+      assertEquals(mirror >> 8, memory.read8(RAM_OFFSET));
+      assertEquals(mirror >> 8, memory.read8(MIRRORS_END - WORK_RAM_SIZE + RAM_OFFSET));
+    }
+  }
+
+  @Test
+  public void wordReadCrossesIntoNextMirror() {
+    memory.write8(WORK_RAM_SIZE - 1, 0x34);
+    memory.write8(0, 0x12);
+    // The high byte is read from the start of the second mirror, which is the work RAM start
+    assertEquals(0x1234, memory.read16(WORK_RAM_SIZE - 1));
+  }
+
+  @Test
+  public void romTilesAreSharedByControllers() {
+    final byte[] characterRom = new byte[CartridgeReader.CHARACTER_BANK_SIZE];
+    characterRom[TILE_ADDRESS] = (byte) LOW_PLANE;
+    characterRom[TILE_ADDRESS + PLANE_OFFSET] = (byte) HIGH_PLANE;
+    final PagedMemoryController first = createController(characterRom);
+    final PagedMemoryController second = createController(characterRom);
+    // Nothing is decoded before the first tile is drawn
+    assertNull(first.getTilePixels(TILE_ADDRESS));
+
+    assertRow(ROW, first, first.decodeTile(TILE_ADDRESS));
+    assertRow(ROW, second, second.decodeTile(TILE_ADDRESS));
+    assertSame(first.getTilePixels(TILE_ADDRESS), second.getTilePixels(TILE_ADDRESS));
+  }
+
+  @Test
+  public void ramWriteDecodesTileAgain() {
+    final PagedMemoryController ram = createController(null);
+    writeTileRow(ram, LOW_PLANE, HIGH_PLANE);
+    assertRow(ROW, ram, ram.decodeTile(TILE_ADDRESS));
+
+    writeTileRow(ram, HIGH_PLANE, LOW_PLANE);
+    assertRow(SWAPPED_ROW, ram, ram.decodeTile(TILE_ADDRESS));
+  }
+
+  @Test
+  public void loadedStateDecodesTilesAgain() throws InvalidStateException {
+    final PagedMemoryController ram = createController(null);
+    writeTileRow(ram, LOW_PLANE, HIGH_PLANE);
+    final ByteBuffer state = ByteBuffer.allocate(ram.getMaximumStateSize());
+    ram.saveState(state, true);
+    state.flip();
+    writeTileRow(ram, HIGH_PLANE, LOW_PLANE);
+    assertRow(SWAPPED_ROW, ram, ram.decodeTile(TILE_ADDRESS));
+
+    ram.loadState(state, true);
+    assertRow(ROW, ram, ram.decodeTile(TILE_ADDRESS));
+  }
+
+  /**
+   * Creates a controller of a character ROM, or of character RAM if the ROM is null.
+   */
+  private static PagedMemoryController createController(final byte[] characterRom) {
+    return new PagedMemoryController(new byte[][] {new byte[CartridgeReader.PROGRAM_BANK_SIZE]},
+        characterRom == null ? new byte[0][] : new byte[][] {characterRom});
+  }
+
+  private static void writeTileRow(final PagedMemoryController ram, final int low,
+      final int high) {
+    ram.writeVideoMemory(TILE_ADDRESS, low);
+    ram.writeVideoMemory(TILE_ADDRESS + PLANE_OFFSET, high);
+  }
+
+  private static void assertRow(final byte[] expected, final PagedMemoryController memory,
+      final int firstPixel) {
+    final byte[] pixels = memory.getTilePixels(TILE_ADDRESS);
+    assertArrayEquals(expected, Arrays.copyOfRange(pixels, firstPixel, firstPixel + ROW.length));
+  }
+}
@@ -0,0 +1,197 @@
+/**
+ * MovieTest
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.movie;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.smeny.retrobox.exception.InvalidStateException;
+import org.smeny.retrobox.exception.UnknownRomFormatException;
+import org.smeny.retrobox.motherboard.nes.audio.Apu_2A03;
+import org.smeny.retrobox.motherboard.nes.cartridge.Cartridge;
+import org.smeny.retrobox.motherboard.nes.cartridge.CartridgeReader;
+import org.smeny.retrobox.motherboard.nes.processor.Core_2A03;
+import org.smeny.retrobox.motherboard.nes.video.Ppu_2C02;
+
+/**
+ * This test records a movie of a program drawing and playing from its NMI handler, which also
+ * reads the first controller, and replays it on another machine. The keyframes hold the state of
+ * the PPU and the APU, whose frames are completed with the frames of the CPU.
+ *
+ * @author Stéphane Meny
+ */
+public class MovieTest {
+  private static final int SAMPLE_RATE = 44100;
+  private static final int KEYFRAME_INTERVAL = 30;
+  private static final int RECORDED_FRAMES = 120;
+  /** Frame sought in the middle of a keyframe interval. */
+  private static final int SOUGHT_FRAME = 75;
+
+  private static final int HEADER_SIZE = 0x10;
+  private static final int NMI_VECTOR_OFFSET = 0x3FFA;
+  private static final int NMI_HANDLER = 0xC020;
+  private static final int START_ADDRESS = 0xC000;
+
+  /**
+   * Starts the pulse channel, enables rendering and the NMI, then loops.
+   */
+  private static final int[] MAIN_PROGRAM = {
+      0xA9, 0x0F,             // C000  LDA #$0F
+      0x8D, 0x15, 0x40,       // C002  STA $4015    channels on
+      0xA9, 0xBF,             // C005  LDA #$BF
+      0x8D, 0x00, 0x40,       // C007  STA $4000    pulse at constant volume
+      0xA9, 0x1E,             // C00A  LDA #$1E
+      0x8D, 0x01, 0x20,       // C00C  STA $2001    rendering on
+      0xA9, 0x80,             // C00F  LDA #$80
+      0x8D, 0x00, 0x20,       // C011  STA $2000    NMI on
+      0x4C, 0x14, 0xC0,       // C014  JMP $C014
+  };
+
+  /**
+   * Counts the frames into the background color and the pulse period, then reads the first
+   * button of the first controller.
+   */
+  private static final int[] NMI_PROGRAM = {
+      0xE6, 0x10,             // C020  INC $10
+      0xA9, 0x3F,             // C022  LDA #$3F
+      0x8D, 0x06, 0x20,       // C024  STA $2006
+      0xA9, 0x00,             // C027  LDA #$00
+      0x8D, 0x06, 0x20,       // C029  STA $2006
+      0xA5, 0x10,             // C02C  LDA $10
+      0x8D, 0x07, 0x20,       // C02E  STA $2007    background color
+      0x8D, 0x02, 0x40,       // C031  STA $4002    pulse period
+      0xA9, 0x08,             // C034  LDA #$08
+      0x8D, 0x03, 0x40,       // C036  STA $4003
+      0xA9, 0x01,             // C039  LDA #$01
+      0x8D, 0x16, 0x40,       // C03B  STA $4016    controller strobe
+      0xA9, 0x00,             // C03E  LDA #$00
+      0x8D, 0x16, 0x40,       // C040  STA $4016
+      0x8D, 0x05, 0x20,       // C043  STA $2005
+      0x8D, 0x05, 0x20,       // C046  STA $2005
+      0xAD, 0x16, 0x40,       // C049  LDA $4016
+      0x85, 0x11,             // C04C  STA $11
+      0x40,                   // C04E  RTI
+  };
+
+  @Test
+  public void playedMovieMatchesRecording() throws UnknownRomFormatException,
+      InvalidStateException {
+    final Machine recorded = new Machine();
+    final Movie movie = recorded.record();
+
+    final Machine played = new Machine();
+    final MoviePlayer player = played.createPlayer(movie);
+    while (player.runFrame()) {
+      continue;
+    }
+    assertEquals(RECORDED_FRAMES, player.getFrame());
+    assertEquals(-1, player.getFirstDesyncFrame());
+    assertEquals(recorded.cpu.getCycleCount(), played.cpu.getCycleCount());
+    assertEquals(recorded.ppu.getFrameCount(), played.ppu.getFrameCount());
+    assertEquals(recorded.ppu.getFrame(), played.ppu.getFrame());
+  }
+
+  @Test
+  public void soughtMovieMatchesRecording() throws UnknownRomFormatException,
+      InvalidStateException {
+    final Machine recorded = new Machine();
+    final Movie movie = recorded.record();
+
+    final Machine played = new Machine();
+    final MoviePlayer player = played.createPlayer(movie);
+    player.seek(RECORDED_FRAMES);
+    // Back to a frame after a keyframe, which restores the devices too
+    player.seek(SOUGHT_FRAME);
+    while (player.runFrame()) {
+      continue;
+    }
+    assertEquals(-1, player.getFirstDesyncFrame());
+    assertEquals(recorded.ppu.getFrameCount(), played.ppu.getFrameCount());
+    assertEquals(recorded.ppu.getFrame(), played.ppu.getFrame());
+  }
+
+  @Test(expected = InvalidStateException.class)
+  public void machineWithoutDevicesIsRejected() throws UnknownRomFormatException,
+      InvalidStateException {
+    final Movie movie = new Machine().record();
+
+    // The keyframes hold the state of a PPU and an APU, which this CPU lacks
+    final Cartridge cart = CartridgeReader.loadCartridge(ByteBuffer.wrap(createImage()));
+    new MoviePlayer(new Core_2A03(cart), cart, movie);
+  }
+
+  /**
+   * Builds an NROM image of one program bank running {@link #MAIN_PROGRAM}, whose tiles are all
+   * opaque.
+   */
+  private static byte[] createImage() {
+    final byte[] image = new byte[HEADER_SIZE + CartridgeReader.PROGRAM_BANK_SIZE
+        + CartridgeReader.CHARACTER_BANK_SIZE];
+    image[0] = 'N';
+    image[1] = 'E';
+    image[2] = 'S';
+    image[3] = 0x1A;
+    image[4] = 1;
+    image[5] = 1;
+    copy(MAIN_PROGRAM, image, HEADER_SIZE);
+    copy(NMI_PROGRAM, image, HEADER_SIZE + (NMI_HANDLER - START_ADDRESS));
+    final int[] vectors = {NMI_HANDLER, START_ADDRESS, START_ADDRESS};
+    for (int i = 0; i < vectors.length; i++) {
+      image[HEADER_SIZE + NMI_VECTOR_OFFSET + 2 * i] = (byte) vectors[i];
+      image[HEADER_SIZE + NMI_VECTOR_OFFSET + 2 * i + 1] = (byte) (vectors[i] >> 8);
+    }
+    Arrays.fill(image, HEADER_SIZE + CartridgeReader.PROGRAM_BANK_SIZE, image.length, (byte) 0xFF);
+    return image;
+  }
+
+  private static void copy(final int[] program, final byte[] image, final int offset) {
+    for (int i = 0; i < program.length; i++) {
+      image[offset + i] = (byte) program[i];
+    }
+  }
+
+  /**
+   * A CPU running the program with a PPU and an APU.
+   */
+  private static final class Machine {
+    private final Cartridge cart;
+    private final Core_2A03 cpu;
+    private final Ppu_2C02 ppu;
+
+    private Machine() throws UnknownRomFormatException {
+      cart = CartridgeReader.loadCartridge(ByteBuffer.wrap(createImage()));
+      cpu = new Core_2A03(cart);
+      ppu = new Ppu_2C02(cpu);
+      new Apu_2A03(cpu, SAMPLE_RATE);
+    }
+
+    private Movie record() {
+      final MovieRecorder recorder = new MovieRecorder(cpu, cart, KEYFRAME_INTERVAL);
+      for (int frame = 0; frame < RECORDED_FRAMES; frame++) {
+        recorder.runFrame(frame & 0xFF, 0);
+      }
+      return recorder.getMovie();
+    }
+
+    private MoviePlayer createPlayer(final Movie movie) throws InvalidStateException {
+      return new MoviePlayer(cpu, cart, movie);
+    }
+  }
+
+}
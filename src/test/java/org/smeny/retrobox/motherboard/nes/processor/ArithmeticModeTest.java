@@ -0,0 +1,141 @@
+/**
+ * ArithmeticModeTest
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.processor;
+
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.smeny.retrobox.exception.UnknownRomFormatException;
+import org.smeny.retrobox.motherboard.nes.cartridge.CartridgeReader;
+
+/**
+ * This test checks that {@link ArithmeticMode#COMPUTED} and {@link ArithmeticMode#LOOKUP_TABLES}
+ * give the same accumulator, status and memory for ADC and SBC with every accumulator, operand and
+ * carry, and for ASL, LSR, ROL and ROR with every value and carry, on the accumulator and in
+ * memory. Each instruction is run from work RAM by a CPU of each mode.
+ *
+ * @author Stéphane Meny
+ */
+public class ArithmeticModeTest {
+  private static final String ROM = "/roms/cpu_test.nes";
+  private static final int PROGRAM_ADDRESS = 0x0200;
+  /** Zero page address modified by the shifts and rotations in memory. */
+  private static final int VALUE_ADDRESS = 0x0010;
+  /** Status before each instruction, with the interrupts disabled, carry clear. */
+  private static final int STATUS = 0x24;
+  private static final int CARRY = 0x01;
+  private static final int VALUE_COUNT = 0x100;
+
+  private static final int ADC_IMMEDIATE = 0x69;
+  private static final int SBC_IMMEDIATE = 0xE9;
+  /** ASL, LSR, ROL and ROR on the accumulator. */
+  private static final int[] ACCUMULATOR_SHIFTS = {0x0A, 0x4A, 0x2A, 0x6A};
+  /** ASL, LSR, ROL and ROR on a zero page address. */
+  private static final int[] MEMORY_SHIFTS = {0x06, 0x46, 0x26, 0x66};
+
+  private Core_2A03 computed;
+  private Core_2A03 lookup;
+
+  @Before
+  public void setUp() throws IOException, UnknownRomFormatException {
+    computed = createCpu(ArithmeticMode.COMPUTED);
+    lookup = createCpu(ArithmeticMode.LOOKUP_TABLES);
+  }
+
+  @Test
+  public void addWithCarryAgrees() {
+    checkEveryOperand(ADC_IMMEDIATE);
+  }
+
+  @Test
+  public void subtractWithBorrowAgrees() {
+    checkEveryOperand(SBC_IMMEDIATE);
+  }
+
+  @Test
+  public void shiftsAndRotationsOnAccumulatorAgree() {
+    for (final int opcode : ACCUMULATOR_SHIFTS) {
+      for (int carry = 0; carry <= CARRY; carry++) {
+        for (int value = 0; value < VALUE_COUNT; value++) {
+          execute(computed, opcode, 0, value, STATUS | carry);
+          execute(lookup, opcode, 0, value, STATUS | carry);
+          checkAgreement(opcode, 0, value, carry);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void shiftsAndRotationsInMemoryAgree() {
+    for (final int opcode : MEMORY_SHIFTS) {
+      for (int carry = 0; carry <= CARRY; carry++) {
+        for (int value = 0; value < VALUE_COUNT; value++) {
+          computed.getMemory().write8(VALUE_ADDRESS, value);
+          lookup.getMemory().write8(VALUE_ADDRESS, value);
+          execute(computed, opcode, VALUE_ADDRESS, 0, STATUS | carry);
+          execute(lookup, opcode, VALUE_ADDRESS, 0, STATUS | carry);
+          checkAgreement(opcode, VALUE_ADDRESS, value, carry);
+        }
+      }
+    }
+  }
+
+  private void checkEveryOperand(final int opcode) {
+    for (int carry = 0; carry <= CARRY; carry++) {
+      for (int accumulator = 0; accumulator < VALUE_COUNT; accumulator++) {
+        for (int operand = 0; operand < VALUE_COUNT; operand++) {
+          execute(computed, opcode, operand, accumulator, STATUS | carry);
+          execute(lookup, opcode, operand, accumulator, STATUS | carry);
+          checkAgreement(opcode, operand, accumulator, carry);
+        }
+      }
+    }
+  }
+
+  private static Core_2A03 createCpu(final ArithmeticMode mode)
+      throws IOException, UnknownRomFormatException {
+    try (InputStream rom = ArithmeticModeTest.class.getResourceAsStream(ROM)) {
+      return new Core_2A03(CartridgeReader.loadCartridge(rom), mode);
+    }
+  }
+
+  private static void execute(final Core_2A03 cpu, final int opcode, final int operand,
+      final int accumulator, final int status) {
+    cpu.getMemory().write8(PROGRAM_ADDRESS, opcode);
+    cpu.getMemory().write8(PROGRAM_ADDRESS + 1, operand);
+    cpu.setProgramCounter(PROGRAM_ADDRESS);
+    cpu.setAccumulator(accumulator);
+    cpu.getStatusRegister().fromByte(status);
+    cpu.emulate(1);
+  }
+
+  private void checkAgreement(final int opcode, final int operand, final int value,
+      final int carry) {
+    if (computed.getAccumulator() != lookup.getAccumulator()
+        || computed.getStatusRegister().toByte() != lookup.getStatusRegister().toByte()
+        || computed.getMemory().read8(VALUE_ADDRESS) != lookup.getMemory().read8(VALUE_ADDRESS)) {
+      fail(String.format("Opcode %02X, operand %02X, value %02X, carry %d: computed A:%02X P:%02X"
+          + " M:%02X, lookup A:%02X P:%02X M:%02X", opcode, operand, value, carry,
+          computed.getAccumulator(), computed.getStatusRegister().toByte(),
+          computed.getMemory().read8(VALUE_ADDRESS), lookup.getAccumulator(),
+          lookup.getStatusRegister().toByte(), lookup.getMemory().read8(VALUE_ADDRESS)));
+    }
+  }
+}
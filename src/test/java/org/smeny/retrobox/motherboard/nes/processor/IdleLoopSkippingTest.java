@@ -0,0 +1,208 @@
+/**
+ * IdleLoopSkippingTest
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.processor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.smeny.retrobox.exception.UnknownRomFormatException;
+import org.smeny.retrobox.motherboard.nes.FrameScheduler;
+import org.smeny.retrobox.motherboard.nes.cartridge.CartridgeReader;
+import org.smeny.retrobox.motherboard.nes.video.Ppu_2C02;
+
+/**
+ * This test checks that skipping idle loops gives the same results as interpreting them: a CPU
+ * skipping them and an interpreting one run the same program side by side, and their registers,
+ * cycle count and work RAM, and their frames when a PPU draws them, are compared after each slice
+ * of cycles.
+ *
+ * @author Stéphane Meny
+ */
+public class IdleLoopSkippingTest {
+  private static final String NESTEST_ROM = "/roms/cpu_test.nes";
+  /** Cycles run by nestest before its first unofficial operation code. */
+  private static final long NESTEST_CYCLES = 14000;
+  private static final long NESTEST_SLICE_CYCLES = 1000;
+  private static final int FRAME_COUNT = 120;
+  private static final int WORK_RAM_SIZE = 0x0800;
+
+  private static final int HEADER_SIZE = 0x10;
+  private static final int NMI_VECTOR_OFFSET = 0x3FFA;
+  private static final int NMI_HANDLER = 0xC040;
+  private static final int IRQ_HANDLER = 0xC050;
+  private static final int START_ADDRESS = 0xC000;
+  /** Counters of the polling program, in the zero page. */
+  private static final int NMI_COUNT = 0x10;
+  private static final int SPRITE_0_HIT_COUNT = 0x11;
+  private static final int VBLANK_COUNT = 0x12;
+
+  /**
+   * Program polling the PPU status: it enables the rendering and the NMI, then waits for the
+   * sprite 0 hit flag to be cleared, then set, then for vblank, counting each wait. Its NMI
+   * handler counts the NMIs and copies the sprites from 0x0200 with the OAM DMA.
+   */
+  private static final int[] POLLING_PROGRAM = {
+      0xA9, 0x64,             // C000  LDA #100
+      0x8D, 0x00, 0x02,       // C002  STA $0200    sprite 0 Y
+      0x8D, 0x03, 0x02,       // C005  STA $0203    sprite 0 X
+      0xA9, 0x1E,             // C008  LDA #$1E
+      0x8D, 0x01, 0x20,       // C00A  STA $2001    rendering on
+      0xA9, 0x80,             // C00D  LDA #$80
+      0x8D, 0x00, 0x20,       // C00F  STA $2000    NMI on
+      0x2C, 0x02, 0x20,       // C012  BIT $2002
+      0x70, 0xFB,             // C015  BVS $C012    wait for the sprite 0 flag to be cleared
+      0x2C, 0x02, 0x20,       // C017  BIT $2002
+      0x50, 0xFB,             // C01A  BVC $C017    wait for the sprite 0 hit
+      0xE6, 0x11,             // C01C  INC $11
+      0xAD, 0x02, 0x20,       // C01E  LDA $2002
+      0x10, 0xFB,             // C021  BPL $C01E    wait for vblank
+      0xE6, 0x12,             // C023  INC $12
+      0x4C, 0x12, 0xC0,       // C025  JMP $C012
+  };
+  private static final int[] NMI_PROGRAM = {
+      0xE6, 0x10,             // C040  INC $10
+      0xA9, 0x02,             // C042  LDA #$02
+      0x8D, 0x14, 0x40,       // C044  STA $4014    OAM DMA from 0x0200
+      0x40,                   // C047  RTI
+  };
+  private static final int RTI = 0x40;
+
+  @Test
+  public void nestestGivesSameResults() throws IOException, UnknownRomFormatException {
+    final Core_2A03 interpreted = createNestestCpu();
+    final Core_2A03 skipping = createNestestCpu();
+    skipping.setIdleLoopSkipping(true);
+
+    while (interpreted.getCycleCount() < NESTEST_CYCLES) {
+      interpreted.run(NESTEST_SLICE_CYCLES);
+      skipping.run(NESTEST_SLICE_CYCLES);
+      assertSameState(interpreted, skipping);
+    }
+  }
+
+  @Test
+  public void statusPollingGivesSameResults() throws UnknownRomFormatException {
+    final Machine interpreted = new Machine(false);
+    final Machine skipping = new Machine(true);
+
+    for (int frame = 1; frame <= FRAME_COUNT; frame++) {
+      interpreted.runFrame();
+      skipping.runFrame();
+      assertSameState(interpreted.cpu, skipping.cpu);
+      assertEquals(interpreted.ppu.getFrameCount(), skipping.ppu.getFrameCount());
+      assertArrayEquals("Frame " + frame, interpreted.getFrame(), skipping.getFrame());
+    }
+
+    // Every wait was run, and the skipping CPU skipped most polling iterations
+    final int nmiCount = interpreted.cpu.getMemory().read8(NMI_COUNT);
+    assertTrue("NMIs: " + nmiCount, nmiCount >= FRAME_COUNT - 1);
+    assertTrue(interpreted.cpu.getMemory().read8(SPRITE_0_HIT_COUNT) >= FRAME_COUNT - 2);
+    assertTrue(interpreted.cpu.getMemory().read8(VBLANK_COUNT) >= FRAME_COUNT - 2);
+    assertTrue("Jumps interpreted " + interpreted.cpu.getJumpCount() + ", skipping "
+        + skipping.cpu.getJumpCount(),
+        skipping.cpu.getJumpCount() < interpreted.cpu.getJumpCount() / 4);
+  }
+
+  private static Core_2A03 createNestestCpu() throws IOException, UnknownRomFormatException {
+    try (InputStream rom = IdleLoopSkippingTest.class.getResourceAsStream(NESTEST_ROM)) {
+      return new Core_2A03(CartridgeReader.loadCartridge(rom));
+    }
+  }
+
+  private static void assertSameState(final Core_2A03 expected, final Core_2A03 actual) {
+    final String cycle = "At cycle " + expected.getCycleCount();
+    assertEquals(cycle, expected.getCycleCount(), actual.getCycleCount());
+    assertEquals(cycle, expected.getProgramCounter(), actual.getProgramCounter());
+    assertEquals(cycle, expected.getAccumulator(), actual.getAccumulator());
+    assertEquals(cycle, expected.getRegisterX(), actual.getRegisterX());
+    assertEquals(cycle, expected.getRegisterY(), actual.getRegisterY());
+    assertEquals(cycle, expected.getStackPointer(), actual.getStackPointer());
+    assertEquals(cycle, expected.getStatusRegister().toByte(), actual.getStatusRegister().toByte());
+    for (int address = 0; address < WORK_RAM_SIZE; address++) {
+      assertEquals(cycle + ", address " + Integer.toHexString(address),
+          expected.getMemory().read8(address), actual.getMemory().read8(address));
+    }
+  }
+
+  /**
+   * Builds an NROM image running {@link #POLLING_PROGRAM}, whose tiles are all opaque so that
+   * sprite 0 hits the background.
+   */
+  private static byte[] createPollingImage() {
+    final byte[] image = new byte[HEADER_SIZE + CartridgeReader.PROGRAM_BANK_SIZE
+        + CartridgeReader.CHARACTER_BANK_SIZE];
+    image[0] = 'N';
+    image[1] = 'E';
+    image[2] = 'S';
+    image[3] = 0x1A;
+    image[4] = 1;
+    image[5] = 1;
+    copy(POLLING_PROGRAM, image, HEADER_SIZE);
+    copy(NMI_PROGRAM, image, HEADER_SIZE + (NMI_HANDLER - START_ADDRESS));
+    image[HEADER_SIZE + (IRQ_HANDLER - START_ADDRESS)] = (byte) RTI;
+    final int[] vectors = {NMI_HANDLER, START_ADDRESS, IRQ_HANDLER};
+    for (int i = 0; i < vectors.length; i++) {
+      image[HEADER_SIZE + NMI_VECTOR_OFFSET + 2 * i] = (byte) vectors[i];
+      image[HEADER_SIZE + NMI_VECTOR_OFFSET + 2 * i + 1] = (byte) (vectors[i] >> 8);
+    }
+    Arrays.fill(image, HEADER_SIZE + CartridgeReader.PROGRAM_BANK_SIZE, image.length, (byte) 0xFF);
+    return image;
+  }
+
+  private static void copy(final int[] program, final byte[] image, final int offset) {
+    for (int i = 0; i < program.length; i++) {
+      image[offset + i] = (byte) program[i];
+    }
+  }
+
+  /**
+   * A CPU running the polling program with a PPU, frame by frame.
+   */
+  private static final class Machine {
+    private final Core_2A03 cpu;
+    private final Ppu_2C02 ppu;
+    private final FrameScheduler scheduler;
+
+    private Machine(final boolean isSkipping) throws UnknownRomFormatException {
+      cpu = new Core_2A03(CartridgeReader.loadCartridge(ByteBuffer.wrap(createPollingImage())));
+      cpu.setIdleLoopSkipping(isSkipping);
+      ppu = new Ppu_2C02(cpu);
+      scheduler = new FrameScheduler(cpu);
+      scheduler.setTurbo(true);
+    }
+
+    private void runFrame() {
+      scheduler.runFrames(1);
+    }
+
+    private int[] getFrame() {
+      final IntBuffer frame = ppu.getFrame();
+      final int[] pixels = new int[frame.capacity()];
+      for (int i = 0; i < pixels.length; i++) {
+        pixels[i] = frame.get(i);
+      }
+      return pixels;
+    }
+  }
+}
@@ -0,0 +1,267 @@
+/**
+ * RecompiledModeTest
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.processor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.smeny.retrobox.exception.UnknownRomFormatException;
+import org.smeny.retrobox.motherboard.nes.cartridge.CartridgeReader;
+import org.smeny.retrobox.motherboard.nes.memory.BusFaultPolicy;
+import org.smeny.retrobox.motherboard.nes.video.Ppu_2C02;
+
+/**
+ * This test checks that the compiled blocks give the same results as the interpreter: an
+ * interpreting CPU and a recompiling one run the same program side by side, by slices of cycles
+ * with {@link Core_2A03#run(long)} and of instructions with {@link Core_2A03#emulate(long)}, and
+ * their states are compared byte for byte after each slice.
+ *
+ * <p>The UxROM program loops thousands of times through indexed reads crossing pages, a bank
+ * switch, a call into the switched bank, switching again inside, and a BRK every 64 iterations, so
+ * its blocks are compiled in each bank. It ends with a write into the character ROM from a
+ * compiled block, faulting under {@link BusFaultPolicy#HALT}.
+ *
+ * @author Stéphane Meny
+ */
+public class RecompiledModeTest {
+  private static final String NESTEST_ROM = "/roms/cpu_test.nes";
+  /** Cycles run by nestest before its first unofficial operation code. */
+  private static final long NESTEST_CYCLES = 14000;
+  /** Cycle budgets of the run slices, in turn. */
+  private static final long[] CYCLE_SLICES = {1, 7, 100, 1000, 29781};
+  /** Instruction counts of the emulate slices, in turn. */
+  private static final long[] INSTRUCTION_SLICES = {1, 3, 24, 500};
+  /** Largest number of cycles taken by an instruction, without page crossing. */
+  private static final int MAX_INSTRUCTION_CYCLES = 7;
+  /** Largest number of slices run, far more than the UxROM program needs to halt. */
+  private static final int MAX_SLICES = 5000;
+
+  private static final int HEADER_SIZE = 0x10;
+  private static final int PROGRAM_BANK_COUNT = 8;
+  /** Low nibble of mapper 2 in the sixth byte of the header. */
+  private static final int UXROM_FLAGS = 0x20;
+  /** Number of banks the program switches between, each with its own routine at 0x8000. */
+  private static final int SWITCHED_BANK_COUNT = 4;
+  private static final int NMI_VECTOR_OFFSET = 0x3FFA;
+  private static final int START_ADDRESS = 0xC000;
+  private static final int BRK_HANDLER = 0xC050;
+  /** Video address above those the PPU registers writes of the program can set. */
+  private static final int FAULT_ADDRESS_LIMIT = 0x100;
+  /** Zero page address of the number of BRKs run. */
+  private static final int BRK_COUNT = 0x13;
+  /** BRKs run: one every 64 of the 2048 iterations, and one before the fault. */
+  private static final int BRK_TOTAL = 2048 / 64 + 1;
+
+  /**
+   * Runs 2048 iterations, then points the indirect write of the loop at the PPU registers from
+   * 0x2004: the writes to 0x2005 and 0x2006 set a video address below 0x100, and the write to
+   * 0x2007 goes into the character ROM.
+   */
+  private static final int[] MAIN_PROGRAM = {
+      0xA9, 0xFF,             // C000  LDA #$FF
+      0x85, 0x20,             // C002  STA $20
+      0xA9, 0x02,             // C004  LDA #$02
+      0x85, 0x21,             // C006  STA $21      ($20) = $02FF
+      0xA9, 0x00,             // C008  LDA #$00
+      0x85, 0x22,             // C00A  STA $22
+      0xA9, 0x03,             // C00C  LDA #$03
+      0x85, 0x23,             // C00E  STA $23      ($22) = $0300
+      0xA2, 0x00,             // C010  LDX #$00
+      0x8A,                   // C012  TXA
+      0x29, 0x03,             // C013  AND #$03
+      0xA8,                   // C015  TAY
+      0x99, 0x00, 0xC1,       // C016  STA $C100,Y  bank switch
+      0xBD, 0xF0, 0x02,       // C019  LDA $02F0,X  crosses a page from X = $10
+      0x65, 0x10,             // C01C  ADC $10
+      0x85, 0x10,             // C01E  STA $10
+      0xB1, 0x20,             // C020  LDA ($20),Y  crosses a page from Y = 1
+      0x45, 0x11,             // C022  EOR $11
+      0x85, 0x11,             // C024  STA $11
+      0x91, 0x22,             // C026  STA ($22),Y
+      0x20, 0x00, 0x80,       // C028  JSR $8000    routine of the switched bank
+      0x8A,                   // C02B  TXA
+      0x29, 0x3F,             // C02C  AND #$3F
+      0xD0, 0x03,             // C02E  BNE $C033
+      0x00, 0xEA,             // C030  BRK
+      0xEA,                   // C032  NOP
+      0xE8,                   // C033  INX
+      0xD0, 0xDC,             // C034  BNE $C012
+      0xE6, 0x12,             // C036  INC $12
+      0xA5, 0x12,             // C038  LDA $12
+      0xC9, 0x08,             // C03A  CMP #$08
+      0xD0, 0xD4,             // C03C  BNE $C012
+      0xA9, 0x04,             // C03E  LDA #$04
+      0x85, 0x22,             // C040  STA $22
+      0xA9, 0x20,             // C042  LDA #$20
+      0x85, 0x23,             // C044  STA $23      ($22) = $2004
+      0x4C, 0x12, 0xC0,       // C046  JMP $C012
+  };
+  private static final int[] BRK_PROGRAM = {
+      0xE6, 0x13,             // C050  INC $13
+      0x40,                   // C052  RTI
+  };
+
+  /**
+   * Routine at 0x8000 of each switched bank, whose number it adds. It switches to the next bank in
+   * the middle of its block, so the instructions after come from that bank.
+   */
+  private static int[] createBankProgram(final int bank) {
+    final int nextBank = (bank + 1) % SWITCHED_BANK_COUNT;
+    return new int[] {
+        0xA9, bank,             // 8000  LDA #bank
+        0x18,                   // 8002  CLC
+        0x65, 0x14,             // 8003  ADC $14
+        0x85, 0x14,             // 8005  STA $14
+        0xBD, 0xF0, 0x03,       // 8007  LDA $03F0,X  crosses a page from X = $10
+        0x69, bank,             // 800A  ADC #bank
+        0x9D, 0x00, 0x04,       // 800C  STA $0400,X
+        0xA9, nextBank,         // 800F  LDA #nextBank
+        0x8D, 0x00, 0xC1,       // 8011  STA $C100    bank switch
+        0xA9, bank,             // 8014  LDA #nextBank, read from the next bank
+        0x85, 0x15,             // 8016  STA $15
+        0x60,                   // 8018  RTS
+    };
+  }
+
+  @Test
+  public void uxromProgramGivesSameStates() throws UnknownRomFormatException {
+    final Core_2A03 interpreted = createUxromCpu();
+    final Core_2A03 recompiled = createUxromCpu();
+    recompiled.setExecutionMode(ExecutionMode.RECOMPILED);
+
+    int slice = 0;
+    while (!interpreted.getMemory().isHaltRequested() && slice < MAX_SLICES) {
+      runSlice(interpreted, slice, Long.MAX_VALUE);
+      runSlice(recompiled, slice, Long.MAX_VALUE);
+      assertSameState(slice, interpreted, recompiled);
+      slice++;
+    }
+    // Both stopped at the fault, nothing runs afterwards
+    for (int i = 0; i < CYCLE_SLICES.length + INSTRUCTION_SLICES.length; i++, slice++) {
+      runSlice(interpreted, slice, Long.MAX_VALUE);
+      runSlice(recompiled, slice, Long.MAX_VALUE);
+      assertSameState(slice, interpreted, recompiled);
+    }
+    for (final Core_2A03 cpu : new Core_2A03[] {interpreted, recompiled}) {
+      assertTrue(cpu.getMemory().isHaltRequested());
+      assertEquals(1, cpu.getMemory().getFaultCount());
+      assertTrue(cpu.getMemory().getLastFaultAddress() < FAULT_ADDRESS_LIMIT);
+      assertEquals(BRK_TOTAL, cpu.getMemory().read8(BRK_COUNT));
+    }
+    // The loop, the BRK handler and the routine of each bank were compiled
+    assertEquals(0, interpreted.getCompiledBlockCount());
+    assertTrue("Blocks compiled: " + recompiled.getCompiledBlockCount(),
+        recompiled.getCompiledBlockCount() > SWITCHED_BANK_COUNT);
+  }
+
+  @Test
+  public void nestestGivesSameStates() throws IOException, UnknownRomFormatException {
+    final Core_2A03 interpreted = createNestestCpu();
+    final Core_2A03 recompiled = createNestestCpu();
+    recompiled.setExecutionMode(ExecutionMode.RECOMPILED);
+
+    int slice = 0;
+    while (interpreted.getCycleCount() < NESTEST_CYCLES) {
+      runSlice(interpreted, slice, NESTEST_CYCLES);
+      runSlice(recompiled, slice, NESTEST_CYCLES);
+      assertSameState(slice, interpreted, recompiled);
+      slice++;
+    }
+  }
+
+  /**
+   * Runs a slice of cycles on even slices, of instructions on odd ones, their sizes varying and
+   * bounded to stop around the cycle limit.
+   */
+  private static void runSlice(final Core_2A03 cpu, final int slice, final long cycleLimit) {
+    final long remainingCycles = cycleLimit - cpu.getCycleCount();
+    if (slice % 2 == 0) {
+      cpu.run(Math.min(CYCLE_SLICES[slice / 2 % CYCLE_SLICES.length], remainingCycles));
+    } else {
+      cpu.emulate(Math.min(INSTRUCTION_SLICES[slice / 2 % INSTRUCTION_SLICES.length],
+          remainingCycles / MAX_INSTRUCTION_CYCLES));
+    }
+  }
+
+  private static void assertSameState(final int slice, final Core_2A03 expected,
+      final Core_2A03 actual) {
+    assertArrayEquals("Slice " + slice + " at cycle " + expected.getCycleCount(),
+        saveState(expected), saveState(actual));
+  }
+
+  private static byte[] saveState(final Core_2A03 cpu) {
+    final ByteBuffer state = ByteBuffer.allocate(cpu.getMaximumStateSize());
+    cpu.saveState(state, false);
+    return Arrays.copyOf(state.array(), state.position());
+  }
+
+  private static Core_2A03 createNestestCpu() throws IOException, UnknownRomFormatException {
+    try (InputStream rom = RecompiledModeTest.class.getResourceAsStream(NESTEST_ROM)) {
+      return new Core_2A03(CartridgeReader.loadCartridge(rom));
+    }
+  }
+
+  private static Core_2A03 createUxromCpu() throws UnknownRomFormatException {
+    final Core_2A03 cpu = new Core_2A03(CartridgeReader.loadCartridge(
+        ByteBuffer.wrap(createUxromImage())));
+    new Ppu_2C02(cpu);
+    cpu.getMemory().setFaultPolicy(BusFaultPolicy.HALT);
+    return cpu;
+  }
+
+  /**
+   * Builds a UxROM image with a character ROM, {@link #MAIN_PROGRAM} being in the last bank, fixed
+   * at 0xC000.
+   */
+  private static byte[] createUxromImage() {
+    final byte[] image = new byte[HEADER_SIZE
+        + PROGRAM_BANK_COUNT * CartridgeReader.PROGRAM_BANK_SIZE
+        + CartridgeReader.CHARACTER_BANK_SIZE];
+    image[0] = 'N';
+    image[1] = 'E';
+    image[2] = 'S';
+    image[3] = 0x1A;
+    image[4] = PROGRAM_BANK_COUNT;
+    image[5] = 1;
+    image[6] = UXROM_FLAGS;
+    for (int bank = 0; bank < SWITCHED_BANK_COUNT; bank++) {
+      copy(createBankProgram(bank), image, HEADER_SIZE + bank * CartridgeReader.PROGRAM_BANK_SIZE);
+    }
+    final int offset = HEADER_SIZE + (PROGRAM_BANK_COUNT - 1) * CartridgeReader.PROGRAM_BANK_SIZE;
+    copy(MAIN_PROGRAM, image, offset);
+    copy(BRK_PROGRAM, image, offset + (BRK_HANDLER - START_ADDRESS));
+    final int[] vectors = {BRK_HANDLER, START_ADDRESS, BRK_HANDLER};
+    for (int i = 0; i < vectors.length; i++) {
+      image[offset + NMI_VECTOR_OFFSET + 2 * i] = (byte) vectors[i];
+      image[offset + NMI_VECTOR_OFFSET + 2 * i + 1] = (byte) (vectors[i] >> 8);
+    }
+    return image;
+  }
+
+  private static void copy(final int[] program, final byte[] image, final int offset) {
+    for (int i = 0; i < program.length; i++) {
+      image[offset + i] = (byte) program[i];
+    }
+  }
+
+}
@@ -0,0 +1,84 @@
+/**
+ * RetainedHeapTest
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.processor;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.smeny.retrobox.exception.UnknownRomFormatException;
+import org.smeny.retrobox.motherboard.nes.cartridge.CartridgeReader;
+
+/**
+ * This test bounds the heap retained by each CPU built from the same ROM, with nothing running
+ * along it: the ROM banks and the tables decoded from them are shared, so an instance should only
+ * hold its RAMs and its own tables.
+ *
+ * @author Stéphane Meny
+ */
+public class RetainedHeapTest {
+  private static final String ROM = "/roms/cpu_test.nes";
+  private static final int BUFFER_SIZE = 0x2000;
+  private static final int INSTANCE_COUNT = 200;
+  /** Heap an instance may retain, about 54KB being measured. */
+  private static final long MAXIMUM_INSTANCE_SIZE = 64 * 1024;
+  /** Number of collections run before the used heap is read, the smallest reading being kept. */
+  private static final int COLLECTION_COUNT = 5;
+
+  @Test
+  public void instanceRetainsLittleHeap() throws IOException, UnknownRomFormatException {
+    final byte[] image = readRom();
+    final List<Core_2A03> instances = new ArrayList<>();
+    // The first instance loads the classes and the shared banks
+    instances.add(new Core_2A03(CartridgeReader.loadCartridge(ByteBuffer.wrap(image))));
+    final long before = getUsedHeap();
+    for (int i = 0; i < INSTANCE_COUNT; i++) {
+      instances.add(new Core_2A03(CartridgeReader.loadCartridge(ByteBuffer.wrap(image))));
+    }
+    final long instanceSize = (getUsedHeap() - before) / INSTANCE_COUNT;
+    assertTrue(instanceSize + " bytes retained by each of " + instances.size() + " instances",
+        instanceSize <= MAXIMUM_INSTANCE_SIZE);
+  }
+
+  private static long getUsedHeap() {
+    final Runtime runtime = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    for (int i = 0; i < COLLECTION_COUNT; i++) {
+      System.gc();
+      used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+    }
+    return used;
+  }
+
+  private static byte[] readRom() throws IOException {
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    try (InputStream input = RetainedHeapTest.class.getResourceAsStream(ROM)) {
+      final byte[] buffer = new byte[BUFFER_SIZE];
+      int length;
+      while ((length = input.read(buffer)) != -1) {
+        data.write(buffer, 0, length);
+      }
+    }
+    return data.toByteArray();
+  }
+
+}
@@ -0,0 +1,367 @@
+/**
+ * SaveStateTest
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.state;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.smeny.retrobox.exception.InvalidStateException;
+import org.smeny.retrobox.exception.UnknownRomFormatException;
+import org.smeny.retrobox.motherboard.nes.FrameScheduler;
+import org.smeny.retrobox.motherboard.nes.audio.Apu_2A03;
+import org.smeny.retrobox.motherboard.nes.cartridge.Cartridge;
+import org.smeny.retrobox.motherboard.nes.cartridge.CartridgeReader;
+import org.smeny.retrobox.motherboard.nes.processor.Core_2A03;
+import org.smeny.retrobox.motherboard.nes.video.Ppu_2C02;
+
+/**
+ * This test checks that a restored state runs the frames the saved machine ran: a machine runs a
+ * program driven by the NMI, the PPU status and the frame interrupt of the APU, then is restored
+ * and runs again, and its CPU registers, work RAM, PPU position, APU state, scheduled deadlines
+ * and frames are compared after each frame.
+ *
+ * @author Stéphane Meny
+ */
+public class SaveStateTest {
+  /** Frames run before the state is saved. */
+  private static final int SAVED_FRAME = 30;
+  /** Frames compared after the state is restored. */
+  private static final int COMPARED_FRAMES = 45;
+  /** Frames captured in the rewind buffer. */
+  private static final int CAPTURED_FRAMES = 40;
+  private static final int REWIND_FRAMES = 15;
+  private static final int REWIND_BUDGET = 1 << 20;
+  private static final int KEYFRAME_INTERVAL = 8;
+  private static final int WORK_RAM_SIZE = 0x0800;
+  /** Events of the scheduler: the interrupt sequence, vblank, the scanline IRQ and the APU. */
+  private static final int EVENT_COUNT = 4;
+
+  private static final int HEADER_SIZE = 0x10;
+  private static final int PROGRAM_BANK_COUNT = 2;
+  /** Low nibble of mapper 4 in the sixth byte of the header. */
+  private static final int MMC3_FLAGS = 0x40;
+  private static final int NMI_VECTOR_OFFSET = 0x3FFA;
+  private static final int NMI_HANDLER = 0xC040;
+  private static final int IRQ_HANDLER = 0xC068;
+  private static final int SETUP = 0xC080;
+  private static final int START_ADDRESS = 0xC000;
+  /** Number of NMIs, in the zero page. */
+  private static final int NMI_COUNT = 0x10;
+  /** Number of interrupts, in the zero page. */
+  private static final int IRQ_COUNT = 0x13;
+  /** Number of interrupts raised by the mapper only, in the zero page. */
+  private static final int MAPPER_IRQ_COUNT = 0x14;
+  private static final int SAMPLE_RATE = 44100;
+
+  /**
+   * Program polling the PPU status: it sets the interrupts and the sound up, enables the rendering
+   * and the NMI, then waits for the sprite 0 hit flag to be cleared, then set, then for vblank,
+   * counting each wait.
+   */
+  private static final int[] MAIN_PROGRAM = {
+      0x20, 0x80, 0xC0,       // C000  JSR $C080    setup
+      0xA9, 0x1E,             // C003  LDA #$1E
+      0x8D, 0x01, 0x20,       // C005  STA $2001    rendering on
+      0xA9, 0x80,             // C008  LDA #$80
+      0x8D, 0x00, 0x20,       // C00A  STA $2000    NMI on
+      0x2C, 0x02, 0x20,       // C00D  BIT $2002
+      0x70, 0xFB,             // C010  BVS $C00D    wait for the sprite 0 flag to be cleared
+      0x2C, 0x02, 0x20,       // C012  BIT $2002
+      0x50, 0xFB,             // C015  BVC $C012    wait for the sprite 0 hit
+      0xE6, 0x11,             // C017  INC $11
+      0xAD, 0x02, 0x20,       // C019  LDA $2002
+      0x10, 0xFB,             // C01C  BPL $C019    wait for vblank
+      0xE6, 0x12,             // C01E  INC $12
+      0x4C, 0x0D, 0xC0,       // C020  JMP $C00D
+  };
+  /**
+   * NMI handler counting the NMIs, and changing a color of the palette, the period of the first
+   * pulse channel and the scroll with the count, so that each frame differs.
+   */
+  private static final int[] NMI_PROGRAM = {
+      0xE6, 0x10,             // C040  INC $10
+      0xA9, 0x3F,             // C042  LDA #$3F
+      0x8D, 0x06, 0x20,       // C044  STA $2006
+      0xA9, 0x03,             // C047  LDA #$03
+      0x8D, 0x06, 0x20,       // C049  STA $2006
+      0xA5, 0x10,             // C04C  LDA $10
+      0x29, 0x3F,             // C04E  AND #$3F
+      0x8D, 0x07, 0x20,       // C050  STA $2007    color 3 of the first palette
+      0x8D, 0x02, 0x40,       // C053  STA $4002    pulse period
+      0x8D, 0x05, 0x20,       // C056  STA $2005    X scroll
+      0x8D, 0x05, 0x20,       // C059  STA $2005    Y scroll
+      0xA9, 0x80,             // C05C  LDA #$80
+      0x8D, 0x00, 0x20,       // C05E  STA $2000    first name table
+      0x40,                   // C061  RTI
+  };
+  /**
+   * IRQ handler counting the interrupts and the ones of the mapper, and acknowledging the frame
+   * and mapper interrupts.
+   */
+  private static final int[] IRQ_PROGRAM = {
+      0xE6, 0x13,             // C068  INC $13
+      0xAD, 0x15, 0x40,       // C06A  LDA $4015    acknowledge the frame interrupt
+      0x29, 0x40,             // C06D  AND #$40
+      0xD0, 0x02,             // C06F  BNE $C073    frame interrupt
+      0xE6, 0x14,             // C071  INC $14
+      0x8D, 0x00, 0xE0,       // C073  STA $E000    acknowledge the mapper interrupt
+      0x8D, 0x01, 0xE0,       // C076  STA $E001    enable it again
+      0x40,                   // C079  RTI
+  };
+  /**
+   * Subroutine starting the pulse, triangle and noise channels, the frame interrupts of the four
+   * step sequence, and the mapper interrupts every 65 scanlines.
+   */
+  private static final int[] SETUP_PROGRAM = {
+      0xA9, 0x0F,             // C080  LDA #$0F
+      0x8D, 0x15, 0x40,       // C082  STA $4015    channels on
+      0xA9, 0xBF,             // C085  LDA #$BF
+      0x8D, 0x00, 0x40,       // C087  STA $4000    half duty, constant volume 15
+      0xA9, 0x08,             // C08A  LDA #$08
+      0x8D, 0x01, 0x40,       // C08C  STA $4001    no sweep
+      0xA9, 0xFD,             // C08F  LDA #$FD
+      0x8D, 0x02, 0x40,       // C091  STA $4002
+      0xA9, 0x00,             // C094  LDA #$00
+      0x8D, 0x03, 0x40,       // C096  STA $4003
+      0xA9, 0xFF,             // C099  LDA #$FF
+      0x8D, 0x08, 0x40,       // C09B  STA $4008    linear counter held
+      0xA9, 0x40,             // C09E  LDA #$40
+      0x8D, 0x0A, 0x40,       // C0A0  STA $400A
+      0xA9, 0x00,             // C0A3  LDA #$00
+      0x8D, 0x0B, 0x40,       // C0A5  STA $400B
+      0xA9, 0x28,             // C0A8  LDA #$28
+      0x8D, 0x0C, 0x40,       // C0AA  STA $400C    looped decay
+      0xA9, 0x05,             // C0AD  LDA #$05
+      0x8D, 0x0E, 0x40,       // C0AF  STA $400E
+      0x8D, 0x0F, 0x40,       // C0B2  STA $400F
+      0xA9, 0x00,             // C0B5  LDA #$00
+      0x8D, 0x17, 0x40,       // C0B7  STA $4017    frame interrupts on
+      0xA9, 0x40,             // C0BA  LDA #$40
+      0x8D, 0x00, 0xC0,       // C0BC  STA $C000    scanline counter latch
+      0x8D, 0x01, 0xC0,       // C0BF  STA $C001    reload it
+      0x8D, 0x01, 0xE0,       // C0C2  STA $E001    mapper interrupts on
+      0x58,                   // C0C5  CLI
+      0x60,                   // C0C6  RTS
+  };
+
+  @Test
+  public void restoredMachineRunsSameFrames() throws UnknownRomFormatException,
+      InvalidStateException {
+    final Machine machine = new Machine();
+    machine.runFrames(SAVED_FRAME);
+    // Every interrupt was raised about once a frame or more, the counters not wrapping yet
+    for (final int counter : new int[] {NMI_COUNT, IRQ_COUNT, MAPPER_IRQ_COUNT}) {
+      final int count = machine.cpu.getMemory().read8(counter);
+      assertTrue("Counter " + Integer.toHexString(counter) + ": " + count,
+          count >= SAVED_FRAME - 1);
+    }
+    final ByteBuffer state = machine.saveState();
+    final long[] deadlines = machine.getDeadlines();
+    final List<long[]> expected = machine.runFrames(COMPARED_FRAMES);
+
+    // The machine is ahead of the state, its PPU and deadlines go back with it
+    machine.loadState(state, SAVED_FRAME);
+    assertArrayEquals(deadlines, machine.getDeadlines());
+    assertFrames(expected, machine.runFrames(COMPARED_FRAMES));
+  }
+
+  @Test
+  public void otherMachineRunsSameFrames() throws UnknownRomFormatException,
+      InvalidStateException {
+    final Machine machine = new Machine();
+    machine.runFrames(SAVED_FRAME);
+    final ByteBuffer state = machine.saveState();
+    final List<long[]> expected = machine.runFrames(COMPARED_FRAMES);
+
+    final Machine other = new Machine();
+    other.loadState(state, SAVED_FRAME);
+    assertFrames(expected, other.runFrames(COMPARED_FRAMES));
+  }
+
+  @Test
+  public void rewoundMachineRunsSameFrames() throws UnknownRomFormatException,
+      InvalidStateException {
+    final Machine machine = new Machine();
+    final RewindBuffer rewindBuffer = new RewindBuffer(machine.cpu, REWIND_BUDGET,
+        CAPTURED_FRAMES, KEYFRAME_INTERVAL);
+    final List<long[]> expected = new ArrayList<>();
+    for (int i = 0; i < CAPTURED_FRAMES; i++) {
+      expected.add(machine.runFrame());
+      rewindBuffer.capture(machine.frame);
+    }
+
+    machine.frame = rewindBuffer.rewind(REWIND_FRAMES);
+    final int restoredFrame = (int) machine.frame;
+    assertEquals(CAPTURED_FRAMES - REWIND_FRAMES, restoredFrame);
+    assertFrames(expected.subList(restoredFrame, CAPTURED_FRAMES),
+        machine.runFrames(CAPTURED_FRAMES - restoredFrame));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rewindBufferWithoutSnapshotsIsRejected() throws UnknownRomFormatException {
+    new RewindBuffer(new Machine().cpu, REWIND_BUDGET, 0, KEYFRAME_INTERVAL);
+  }
+
+  @Test(expected = InvalidStateException.class)
+  public void stateWithoutDevicesIsRejected() throws UnknownRomFormatException,
+      InvalidStateException {
+    final Core_2A03 cpu = new Core_2A03(loadCartridge());
+    final ByteBuffer state = ByteBuffer.allocate(cpu.getMaximumStateSize());
+    cpu.saveState(state, true);
+    state.flip();
+    new Machine().cpu.loadState(state);
+  }
+
+  private static void assertFrames(final List<long[]> expected, final List<long[]> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertArrayEquals("Frame " + (i + 1) + " after the restore", expected.get(i),
+          actual.get(i));
+    }
+  }
+
+  private static Cartridge loadCartridge() throws UnknownRomFormatException {
+    return CartridgeReader.loadCartridge(ByteBuffer.wrap(createImage()));
+  }
+
+  /**
+   * Builds an MMC3 image of two program banks running {@link #MAIN_PROGRAM} from the second one,
+   * which the mapper fixes at 0xC000, and whose tiles are all opaque so that sprite 0 hits the
+   * background.
+   */
+  private static byte[] createImage() {
+    final byte[] image = new byte[HEADER_SIZE + PROGRAM_BANK_COUNT
+        * CartridgeReader.PROGRAM_BANK_SIZE + CartridgeReader.CHARACTER_BANK_SIZE];
+    image[0] = 'N';
+    image[1] = 'E';
+    image[2] = 'S';
+    image[3] = 0x1A;
+    image[4] = PROGRAM_BANK_COUNT;
+    image[5] = 1;
+    image[6] = MMC3_FLAGS;
+    final int offset = HEADER_SIZE + (PROGRAM_BANK_COUNT - 1) * CartridgeReader.PROGRAM_BANK_SIZE;
+    copy(MAIN_PROGRAM, image, offset);
+    copy(NMI_PROGRAM, image, offset + (NMI_HANDLER - START_ADDRESS));
+    copy(IRQ_PROGRAM, image, offset + (IRQ_HANDLER - START_ADDRESS));
+    copy(SETUP_PROGRAM, image, offset + (SETUP - START_ADDRESS));
+    final int[] vectors = {NMI_HANDLER, START_ADDRESS, IRQ_HANDLER};
+    for (int i = 0; i < vectors.length; i++) {
+      image[offset + NMI_VECTOR_OFFSET + 2 * i] = (byte) vectors[i];
+      image[offset + NMI_VECTOR_OFFSET + 2 * i + 1] = (byte) (vectors[i] >> 8);
+    }
+    Arrays.fill(image, offset + CartridgeReader.PROGRAM_BANK_SIZE, image.length, (byte) 0xFF);
+    return image;
+  }
+
+  private static void copy(final int[] program, final byte[] image, final int offset) {
+    for (int i = 0; i < program.length; i++) {
+      image[offset + i] = (byte) program[i];
+    }
+  }
+
+  /**
+   * A CPU running the program with a PPU and an APU, frame by frame.
+   */
+  private static final class Machine {
+    private final Core_2A03 cpu;
+    private final Ppu_2C02 ppu;
+    private final Apu_2A03 apu;
+    /** Number of the last frame run. */
+    private long frame;
+
+    private Machine() throws UnknownRomFormatException {
+      cpu = new Core_2A03(loadCartridge());
+      ppu = new Ppu_2C02(cpu);
+      apu = new Apu_2A03(cpu, SAMPLE_RATE);
+    }
+
+    private List<long[]> runFrames(final int count) {
+      final List<long[]> frames = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+        frames.add(runFrame());
+      }
+      return frames;
+    }
+
+    /**
+     * Runs the next frame and returns what is compared.
+     */
+    private long[] runFrame() {
+      frame++;
+      cpu.run(FrameScheduler.getFrameEndCycle(0, frame) - cpu.getCycleCount());
+      cpu.completeFrame();
+      final ByteBuffer apuState = ByteBuffer.allocate(apu.getMaximumStateSize());
+      apu.saveState(apuState, false);
+      final IntBuffer pixels = ppu.getFrame();
+      final long[] values = new long[WORK_RAM_SIZE + pixels.capacity() + apuState.capacity()
+          + EVENT_COUNT + 11];
+      int i = 0;
+      values[i++] = cpu.getCycleCount();
+      values[i++] = cpu.getProgramCounter();
+      values[i++] = cpu.getAccumulator();
+      values[i++] = cpu.getRegisterX();
+      values[i++] = cpu.getRegisterY();
+      values[i++] = cpu.getStackPointer();
+      values[i++] = cpu.getStatusRegister().toByte();
+      for (final long deadline : getDeadlines()) {
+        values[i++] = deadline;
+      }
+      values[i++] = ppu.getCycleCount();
+      values[i++] = ppu.getFrameCount();
+      values[i++] = ppu.getScanline();
+      values[i++] = ppu.getDot();
+      for (int offset = 0; offset < apuState.capacity(); offset++) {
+        values[i++] = apuState.get(offset);
+      }
+      for (int address = 0; address < WORK_RAM_SIZE; address++) {
+        values[i++] = cpu.getMemory().read8(address);
+      }
+      for (int pixel = 0; pixel < pixels.capacity(); pixel++) {
+        values[i++] = pixels.get(pixel);
+      }
+      return values;
+    }
+
+    private long[] getDeadlines() {
+      final long[] deadlines = new long[EVENT_COUNT];
+      for (int event = 0; event < EVENT_COUNT; event++) {
+        deadlines[event] = cpu.getEventScheduler().getDeadline(event);
+      }
+      return deadlines;
+    }
+
+    private ByteBuffer saveState() {
+      final ByteBuffer state = ByteBuffer.allocate(cpu.getMaximumStateSize());
+      cpu.saveState(state, true);
+      state.flip();
+      return state;
+    }
+
+    private void loadState(final ByteBuffer state, final long savedFrame)
+        throws InvalidStateException {
+      cpu.loadState(state.duplicate());
+      frame = savedFrame;
+    }
+  }
+}
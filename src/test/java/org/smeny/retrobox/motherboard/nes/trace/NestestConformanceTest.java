@@ -0,0 +1,215 @@
+/**
+ * NestestConformanceTest
+ *
+ * Copyright 2013 Stéphane MENY
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.smeny.retrobox.motherboard.nes.trace;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+import org.smeny.retrobox.exception.UnknownRomFormatException;
+import org.smeny.retrobox.motherboard.nes.cartridge.CartridgeReader;
+import org.smeny.retrobox.motherboard.nes.memory.PagedMemoryController;
+import org.smeny.retrobox.motherboard.nes.processor.AbstractDecoder;
+import org.smeny.retrobox.motherboard.nes.processor.Core_2A03;
+import org.smeny.retrobox.motherboard.nes.processor.Decoder;
+import org.smeny.retrobox.motherboard.nes.processor.ExecutionMode;
+
+/**
+ * This test runs the nestest ROM headless and compares each executed instruction with the
+ * reference log (log/cpu_reference.log), which is streamed line by line. For every instruction
+ * the address, the instruction bytes, the mnemonic, the registers, the PPU dot and the scanline
+ * must match. The test fails at the first divergence, with the last lines that matched.
+ *
+ * <p>Lines marked with '*' in the reference log are unofficial operation codes. The comparison
+ * ends at the first of them the decoder does not implement.
+ *
+ * <p>Tracing makes the CPU interpret every instruction, so the ROM is also run untraced in each
+ * execution mode with idle loops skipped, by slices of a varying number of instructions. The
+ * registers and the cycle count are read from the CPU between two slices and compared with the
+ * line of the next instruction, the decoded instructions, the compiled blocks and the skipped
+ * loops being free to run meanwhile.
+ *
+ * @author Stéphane Meny
+ */
+public class NestestConformanceTest {
+  private static final String ROM = "/roms/cpu_test.nes";
+  private static final String REFERENCE_LOG = "log/cpu_reference.log";
+  /** Number of lines before the first unofficial operation code of the reference log. */
+  private static final long OFFICIAL_LINE_COUNT = 5003;
+  /** Number of matching lines reported before a divergence. */
+  private static final int CONTEXT_LINES = 8;
+  /** Numbers of instructions run between two comparisons of the untraced runs, in turn. */
+  private static final int[] SLICES = {1, 2, 3, 5, 8, 13, 21, 34};
+  /** Capacity of the trace buffer, only the last instruction is read. */
+  private static final int TRACE_CAPACITY = 2;
+  /** End of the address and instruction bytes in a line. */
+  private static final int BYTES_END = 15;
+  /** Column marking an unofficial operation code in the reference log. */
+  private static final int UNOFFICIAL_COLUMN = 15;
+  private static final int MNEMONIC_START = 16;
+  private static final int MNEMONIC_END = 19;
+  private static final int REGISTERS_START = 48;
+  private static final int OPCODE_START = 6;
+  private static final int OPCODE_END = 8;
+  private static final int HEX_RADIX = 16;
+
+  private final AbstractDecoder decoder = new Decoder();
+  private final TraceBuffer trace = new TraceBuffer(TRACE_CAPACITY);
+  /** Buffer filled from the registers of the CPU when it is not traced. */
+  private final TraceBuffer state = new TraceBuffer(TRACE_CAPACITY);
+  private final TraceFormatter formatter = new TraceFormatter(decoder);
+  private final long[] entry = new long[2];
+  private final StringBuilder line = new StringBuilder();
+  /** Last matching lines, indexed by line number modulo the context size. */
+  private final String[] context = new String[CONTEXT_LINES];
+  private long checkedLineCount;
+
+  @Test
+  public void matchesReferenceLog() throws IOException, UnknownRomFormatException {
+    final Core_2A03 cpu = loadCpu();
+    cpu.setTrace(trace);
+    try (BufferedReader reference = openReference()) {
+      String expected;
+      while ((expected = reference.readLine()) != null && !isUnimplementedUnofficial(expected)) {
+        final long sequence = trace.getWriteSequence();
+        cpu.emulate(1);
+        line.setLength(0);
+        if (trace.getWriteSequence() == sequence) {
+          line.append("(CPU stopped)");
+        } else if (trace.read(sequence, entry)) {
+          formatter.append(entry, line);
+        }
+        check("Traced", expected, line.toString());
+      }
+    }
+    assertTrue("Only " + checkedLineCount + " lines compared",
+        checkedLineCount >= OFFICIAL_LINE_COUNT);
+  }
+
+  @Test
+  public void untracedMatchesReferenceLogInEveryMode() throws IOException,
+      UnknownRomFormatException {
+    for (final ExecutionMode mode : ExecutionMode.values()) {
+      final Core_2A03 cpu = loadCpu();
+      cpu.setExecutionMode(mode);
+      cpu.setIdleLoopSkipping(true);
+      checkedLineCount = 0;
+      try (BufferedReader reference = openReference()) {
+        final String[] slice = new String[SLICES[SLICES.length - 1]];
+        int sliceIndex = 0;
+        int count;
+        do {
+          // The lines of the slice are read first, so it stops before an unimplemented code
+          final int size = SLICES[sliceIndex++ % SLICES.length];
+          count = 0;
+          String expected;
+          while (count < size && (expected = reference.readLine()) != null
+              && !isUnimplementedUnofficial(expected)) {
+            slice[count++] = expected;
+          }
+          if (count > 0) {
+            check(mode + " untraced", slice[0], formatState(cpu));
+            cpu.emulate(count);
+            for (int i = 1; i < count; i++) {
+              addContext(slice[i]);
+            }
+          }
+        } while (count > 0);
+      }
+      assertTrue(mode + ": only " + checkedLineCount + " lines compared",
+          checkedLineCount >= OFFICIAL_LINE_COUNT);
+    }
+  }
+
+  private static Core_2A03 loadCpu() throws IOException, UnknownRomFormatException {
+    try (InputStream rom = NestestConformanceTest.class.getResourceAsStream(ROM)) {
+      return new Core_2A03(CartridgeReader.loadCartridge(rom));
+    }
+  }
+
+  private static BufferedReader openReference() throws IOException {
+    return Files.newBufferedReader(Paths.get(REFERENCE_LOG), StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Formats the registers of the CPU and the instruction at its program counter, as a trace of
+   * the instruction would.
+   */
+  private String formatState(final Core_2A03 cpu) {
+    final PagedMemoryController memory = cpu.getMemory();
+    final int programCounter = cpu.getProgramCounter();
+    final long sequence = state.getWriteSequence();
+    state.begin(programCounter, cpu.getAccumulator(), cpu.getRegisterX(), cpu.getRegisterY(),
+        cpu.getStatusRegister().toByte(), cpu.getStackPointer(), cpu.getCycleCount());
+    state.end(memory.read8(programCounter),
+        memory.read8(programCounter + 1) | memory.read8(programCounter + 2) << Byte.SIZE);
+    line.setLength(0);
+    if (state.read(sequence, entry)) {
+      formatter.append(entry, line);
+    }
+    return line.toString();
+  }
+
+  /**
+   * Fails if a line differs from its reference, otherwise keeps it as context.
+   */
+  private void check(final String run, final String expected, final String actual) {
+    if (!matches(expected, actual)) {
+      fail(run + ": " + describeDivergence(expected, actual));
+    }
+    addContext(expected);
+  }
+
+  private void addContext(final String expected) {
+    context[(int) (checkedLineCount % CONTEXT_LINES)] = expected;
+    checkedLineCount++;
+  }
+
+  private boolean isUnimplementedUnofficial(final String expected) {
+    return expected.length() > UNOFFICIAL_COLUMN && expected.charAt(UNOFFICIAL_COLUMN) == '*'
+        && decoder.getOpcode(Integer.parseInt(expected.substring(OPCODE_START, OPCODE_END),
+            HEX_RADIX)) == null;
+  }
+
+  private static boolean matches(final String expected, final String actual) {
+    return expected.length() > REGISTERS_START && actual.length() > REGISTERS_START
+        && expected.regionMatches(0, actual, 0, BYTES_END)
+        && expected.regionMatches(MNEMONIC_START, actual, MNEMONIC_START,
+            MNEMONIC_END - MNEMONIC_START)
+        && expected.substring(REGISTERS_START).trim()
+            .equals(actual.substring(REGISTERS_START).trim());
+  }
+
+  private String describeDivergence(final String expected, final String actual) {
+    final StringBuilder report = new StringBuilder();
+    report.append(String.format("Divergence at line %d, after %d matching lines%n",
+        checkedLineCount + 1, checkedLineCount));
+    final long firstContextLine = Math.max(0, checkedLineCount - CONTEXT_LINES);
+    for (long i = firstContextLine; i < checkedLineCount; i++) {
+      report.append(String.format("  %6d  %s%n", i + 1, context[(int) (i % CONTEXT_LINES)]));
+    }
+    report.append(String.format("expected  %s%n", expected));
+    report.append(String.format("  actual  %s", actual));
+    return report.toString();
+  }
+}